@@ -1,7 +1,8 @@
 package fidocadj;
 
-import java.util.Locale;
+import java.util.*;
 
+import fidocadj.globals.FileUtils;
 import fidocadj.globals.Globals;
 
 /** CommandLineParser.java
@@ -57,11 +58,27 @@ public class CommandLineParser
     private boolean splitLayers=false;
     private double resolution=1;
     private Locale currentLocale=null;
+    private int renderThreads=0;
+    private boolean compressOutput=false;
+    private boolean uncompressedPDF=false;
+    private boolean batchMode=false;
+
+    // Render server: port (0 for the standard input and output), maximum
+    // number of jobs waiting, timeout of each job in milliseconds and
+    // maximum size of a drawing in bytes.
+    private boolean serveMode=false;
+    private int servePort=0;
+    private int serveQueue=64;
+    private int serveTimeout=30000;
+    private int serveMaxSize=16*1024*1024;
 
     // Filename to open or a particular library directory to be considered
     private String loadFile="";
     private String libDirectory="";
 
+    // All the files given in the command line, for the batch mode.
+    private final List<String> inputFiles=new ArrayList<String>();
+
     // The standard behavior implies that FidoCadJ tries to activate some
     // optimizations or settings which depends on the platform and should
     // increase things such as the redrawing speed and other stuff. In some
@@ -99,7 +116,6 @@ public class CommandLineParser
     public void processArguments(String... orArgs)
     {
         int i;
-        boolean loaded=false;
         boolean nextLib=false;
         String[] args=orArgs;
 
@@ -125,7 +141,9 @@ public class CommandLineParser
                 if ("-open".equalsIgnoreCase(args[i].trim())) {
                     continue;
                 }
-                if (args[i].startsWith("-k")) {
+                if (args[i].startsWith("--")) {
+                    processLongOption(args[i]);
+                } else if (args[i].startsWith("-k")) {
                     // -k: show the current locale
                     System.out.println("Detected locale: "+
                         Locale.getDefault().getLanguage());
@@ -220,6 +238,34 @@ public class CommandLineParser
                     }
                     currentLocale = Locale.forLanguageTag(loc);
 
+                } else if (args[i].startsWith("-j")) { // Threads
+                    // The number might follow immediately or be separated
+                    // by a space, as for the -l option.
+                    String n;
+                    if(args[i].length()==2) {
+                        if(i==args.length-1) {
+                            System.err.println("-j option requires a "+
+                                "number of threads.");
+                            System.exit(1);
+                        }
+                        n=args[++i];
+                    } else {
+                        n=args[i].substring(2);
+                    }
+                    try {
+                        renderThreads=Integer.parseInt(n);
+                    } catch (NumberFormatException eE) {
+                        renderThreads=0;
+                    }
+                    if(renderThreads<=0) {
+                        System.err.println("The number of threads should"+
+                            " be a positive integer");
+                        System.exit(1);
+                    }
+                } else if (args[i].startsWith("-z")) { // Compress
+                    compressOutput=true;
+                } else if (args[i].startsWith("-b")) { // Batch conversion
+                    batchMode=true;
                 } else {
                     System.err.println("Unrecognized option: "+args[i]);
                     showCommandLineHelp();
@@ -234,18 +280,81 @@ public class CommandLineParser
                     System.out.println("Changed the library directory: "
                         +args[i]);
                 } else {
-                    if (loaded) {
-                        System.err.println("Only one file can be"+
-                            " specified in the command line");
-                    }
                     // We can not load the file now, since the main frame
                     // has not been initialized yet.
                     loadFile=args[i];
-                    loaded=true;
+                    inputFiles.add(args[i]);
                 }
                 nextLib=false;
             }
         }
+        // The name of the output file is adjusted when it should be
+        // compressed, for example test.svg becomes test.svgz.
+        if(compressOutput && !"".equals(outputFile)) {
+            outputFile=FileUtils.compressedName(outputFile);
+        }
+        if(serveMode) {
+            commandLineOnly=true;
+            System.setProperty("java.awt.headless", "true");
+        }
+        if(batchMode) {
+            if(!convertFile) {
+                System.err.println("The batch mode (-b) requires the -c "+
+                    "option");
+                System.exit(1);
+            }
+            commandLineOnly=true;
+        } else if(inputFiles.size()>1) {
+            System.err.println("Only one file can be"+
+                " specified in the command line");
+        }
+    }
+
+    /** Read an option of the form --name or --name=value. They are used
+        to configure the render server and the PDF export.
+        @param arg the option.
+    */
+    private void processLongOption(String arg)
+    {
+        int eq=arg.indexOf('=');
+        String name=eq<0?arg:arg.substring(0, eq);
+        String value=eq<0?null:arg.substring(eq+1);
+        try {
+            if ("--serve".equals(name)) {
+                serveMode=true;
+                if(value!=null) {
+                    servePort=Integer.parseInt(value);
+                    if(servePort<=0 || servePort>65535) {
+                        throw new NumberFormatException();
+                    }
+                }
+            } else if ("--queue".equals(name) && value!=null) {
+                serveQueue=Integer.parseInt(value);
+                if(serveQueue<=0) {
+                    throw new NumberFormatException();
+                }
+            } else if ("--timeout".equals(name) && value!=null) {
+                serveTimeout=Integer.parseInt(value);
+                if(serveTimeout<=0) {
+                    throw new NumberFormatException();
+                }
+            } else if ("--uncompressed-pdf".equals(name) && value==null) {
+                uncompressedPDF=true;
+            } else if ("--max-size".equals(name) && value!=null) {
+                serveMaxSize=Integer.parseInt(value);
+                if(serveMaxSize<=0) {
+                    throw new NumberFormatException();
+                }
+            } else {
+                System.err.println("Unrecognized option: "+arg);
+                showCommandLineHelp();
+                System.exit(1);
+            }
+        } catch (NumberFormatException eE) {
+            System.err.println("Invalid value for the option "+name
+                +": "+value);
+            System.exit(1);
+        }
     }
 
     /** Print a short summary of each option available for launching
@@ -301,6 +410,51 @@ public class CommandLineParser
 
             " -f     Force FidoCadJ to skip some sanity tests on the input data.\n\n"+
 
+            " -z     Compress the output of -c with gzip, adding the z or .gz suffix to the\n"+
+            "        file name (test.svg becomes test.svgz, test.eps becomes test.eps.gz).\n"+
+            "        The compression is also done if the output file name already has such\n"+
+            "        a suffix. Compressed FidoCadJ files (.fcdz) are read transparently.\n\n"+
+
+            " -j     Set the number of threads used to render large png and jpg images\n"+
+            "        (the number might follow immediately or be separated by an optional\n"+
+            "        space). By default, all the available processors are used.\n"+
+            "        In the batch mode, it sets the number of files converted in parallel.\n\n"+
+
+            " -b     Batch mode: convert all the files given, with the options given to -c.\n"+
+            "        The libraries are loaded only once. A name starting with @ indicates\n"+
+            "        a file containing the names of the drawings, one per line. In the\n"+
+            "        output file name, %s is replaced by the name of each drawing without\n"+
+            "        its extension. The time employed for each file is printed and the\n"+
+            "        exit status is 1 if a conversion failed. For example:\n\n"+
+            "           java -jar fidocadj.jar -n -b -c r2 svg out/%s.svg a.fcd b.fcd\n\n"+
+
+            " --uncompressed-pdf\n"+
+            "        Write the contents of the PDF files without compression, so that they\n"+
+            "        can be read and compared as text.\n\n"+
+
+            " --serve[=port]\n"+
+            "        Render server: the libraries are loaded once, then the drawings\n"+
+            "        received are converted until the end of the input. Without a port,\n"+
+            "        the jobs are read from the standard input and the results are\n"+
+            "        written to the standard output. With a port, the server accepts\n"+
+            "        connections on the local host only. A job is a line such as\n\n"+
+            "           RENDER r2 svg 1234          or        RENDER 800 600 png 1234\n\n"+
+            "        with the same parameters as -c, instead of the file name the number\n"+
+            "        of bytes of the drawing, which follows the line. The answer is\n"+
+            "        \"OK n\" followed by the n bytes of the output, or \"ERROR message\".\n"+
+            "        The -j option sets the number of jobs executed in parallel.\n\n"+
+
+            " --queue=n\n"+
+            "        Maximum number of jobs waiting in the render server (default 64).\n\n"+
+
+            " --timeout=ms\n"+
+            "        Maximum time for a job in the render server, in milliseconds\n"+
+            "        (default 30000).\n\n"+
+
+            " --max-size=bytes\n"+
+            "        Maximum size of a drawing sent to the render server, in bytes\n"+
+            "        (default 16777216). Bigger drawings are refused.\n\n"+
+
             " [file] The optional (except if you use the -d or -s options) FidoCadJ file to\n"+
             "        load at startup time.\n\n"+
 
@@ -410,6 +564,81 @@ public class CommandLineParser
         return printTime;
     }
 
+    /** Check if many files should be converted (batch mode).
+        @return true if the batch mode is active.
+    */
+    public boolean getBatchMode()
+    {
+        return batchMode;
+    }
+
+    /** Check if the render server should be started.
+        @return true if the --serve option has been given.
+    */
+    public boolean getServeMode()
+    {
+        return serveMode;
+    }
+
+    /** Get the port of the render server.
+        @return the port, or 0 if the standard input and output are used.
+    */
+    public int getServePort()
+    {
+        return servePort;
+    }
+
+    /** Get the maximum number of jobs waiting in the render server.
+        @return the number of jobs.
+    */
+    public int getServeQueue()
+    {
+        return serveQueue;
+    }
+
+    /** Get the maximum time for a job in the render server.
+        @return the time in milliseconds.
+    */
+    public int getServeTimeout()
+    {
+        return serveTimeout;
+    }
+
+    /** Get the maximum size of a drawing sent to the render server.
+        @return the size in bytes.
+    */
+    public int getServeMaxSize()
+    {
+        return serveMaxSize;
+    }
+
+    /** Get all the files given in the command line, in the same order.
+        In the batch mode, a name starting with @ indicates a file listing
+        the drawings to be converted.
+        @return a read only list of the file names.
+    */
+    public List<String> getInputFiles()
+    {
+        return Collections.unmodifiableList(inputFiles);
+    }
+
+    /** Check if the PDF files should be written without compression.
+        @return true if the --uncompressed-pdf option has been given.
+    */
+    public boolean getUncompressedPDF()
+    {
+        return uncompressedPDF;
+    }
+
+    /** Get the number of threads to be used to render raster images, or to
+        convert files in the batch mode.
+        @return the number of threads, or 0 if it has not been specified.
+    */
+    public int getRenderThreads()
+    {
+        return renderThreads;
+    }
+
     /** Get the resolution to be employed for the graphic export.
         @return the resolution in pixels for logical unit.
     */
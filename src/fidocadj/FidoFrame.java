@@ -39,6 +39,7 @@ import fidocadj.librarymodel.LibraryModel;
 import fidocadj.layermodel.LayerModel;
 import fidocadj.layers.StandardLayers;
 import fidocadj.layers.LayerDesc;
+import fidocadj.primitives.LibraryCache;
 import fidocadj.librarymodel.utils.CircuitPanelUpdater;
 import fidocadj.librarymodel.utils.LibraryUndoExecutor;
 
@@ -442,6 +443,10 @@ public final class FidoFrame extends JFrame implements
         circuitPanel.setSelectedColor(Color.decode(
                 SettingsManager.get("SELECTED_ELEMENTS_COLOR", "#00FF00")));
 
+        // Memory employed by the tiles kept to scroll the drawing.
+        circuitPanel.setTileCacheSize(
+                SettingsManager.getInt("TILE_CACHE_MB", 64));
+
         MapCoordinates mc=circuitPanel.getMapCoordinates();
         double z=Double.parseDouble(SettingsManager.get("CURRENT_ZOOM","4.0"));
         mc.setMagnitudes(z,z);
@@ -475,6 +480,7 @@ public final class FidoFrame extends JFrame implements
             // to the user file system, for example because it is run as an
             // applet. In this case, the only accesses will be internal to
             // the jar file in order to respect security restrictions.
+            pa.startParallelLibraryLoading();
             if(englishLibraries) {
                 // Read the english version of the libraries
                 pa.loadLibraryInJar(FidoFrame.class.getResource(
@@ -500,7 +506,12 @@ public final class FidoFrame extends JFrame implements
                 pa.loadLibraryInJar(FidoFrame.class.getResource(
                     "lib/EY_Libraries.fcl"), "EY_Libraries");
             }
+            pa.finishParallelLibraryLoading();
         }
+        // The next launch will not need to read the libraries again. The
+        // cache is written only here, and not by the conversions from the
+        // command line.
+        LibraryCache.save();
         libraryModel.forceUpdate();
     }
 
@@ -5,14 +5,16 @@ import java.awt.Desktop;
 import java.lang.reflect.InvocationTargetException;
 
 import java.io.*;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
+import java.util.concurrent.*;
 
 import fidocadj.circuit.controllers.ParserActions;
 import fidocadj.circuit.model.DrawingModel;
 import fidocadj.export.ExportGraphic;
 import fidocadj.geom.DrawingSize;
-import fidocadj.globals.Globals;
 import fidocadj.globals.FileUtils;
+import fidocadj.globals.Globals;
 import fidocadj.globals.OSValidator;
 import fidocadj.globals.SettingsManager;
 import fidocadj.layers.StandardLayers;
@@ -79,12 +81,22 @@ public final class FidoMain
             handleUncaughtException(thread, throwable);
         });
 
+        // The render server answers on the standard output: the messages
+        // are sent to the standard error from the beginning.
+        if (Arrays.asList(args).contains("--serve")) {
+            RenderServer.reserveStandardOutput();
+        }
+
         if (args.length >= 1) {
             clp.processArguments(args);
         }
 
         // Now we proceed with all the operations: opening files, converting...
-        if (clp.getHeadlessMode()) {
+        if (clp.getServeMode()) {
+            System.exit(doServe(clp));
+        } else if (clp.getBatchMode()) {
+            System.exit(doBatch(clp));
+        } else if (clp.getHeadlessMode()) {
             // Creates a circuit object
             DrawingModel pP = new DrawingModel();
 
@@ -101,9 +113,15 @@ public final class FidoMain
 
             MyTimer mt = new MyTimer();
             try {
-                String txt = FileUtils.readFile(clp.getLoadFileName());
-                // Here txt contains the new circuit: parse it!
-                pa.parseString(new StringBuffer(txt));
+                // The circuit is parsed while the file is being read.
+                // Compressed files are decompressed on the fly.
+                ReadableByteChannel ch = FileUtils.openChannel(
+                    clp.getLoadFileName());
+                try {
+                    pa.parseChannel(ch);
+                } finally {
+                    ch.close();
+                }
             } catch (IllegalArgumentException iae) {
                 System.err.println("Illegal filename");
             } catch (Exception e) {
@@ -242,37 +260,240 @@ public final class FidoMain
     private static void doConvert(CommandLineParser clp, DrawingModel pP,
             boolean splitLayers)
     {
-        if (!Globals.checkExtension(clp.getOutputFile(),
+        if (!checkOutputExtension(clp)) {
+            System.exit(1);
+        }
+
+        if (clp.getRenderThreads() > 0) {
+            ExportGraphic.setRenderThreads(clp.getRenderThreads());
+        }
+        ExportGraphic.setCompressPDF(!clp.getUncompressedPDF());
+
+        try {
+            exportFile(clp, pP, clp.getOutputFile(), splitLayers);
+            System.out.println("Export completed");
+        } catch (IOException ioe) {
+            System.err.println("Export error: " + ioe);
+        }
+    }
+
+    /** Check if the extension of the output file is coherent with the
+     * export format, unless the -f option has been given. An error message
+     * is shown if it is not the case.
+     *
+     * @param clp command-line arguments.
+     * @return true if the conversion can be done.
+     */
+    private static boolean checkOutputExtension(CommandLineParser clp)
+    {
+        // The extension of a compressed file is checked without the ".gz"
+        // suffix or the final "z" of ".svgz" and ".fcdz".
+        String outName = clp.getOutputFile();
+        if (FileUtils.isCompressedName(outName)) {
+            outName = outName.toLowerCase(Locale.US).endsWith(".gz")
+                    ? outName.substring(0, outName.length() - 3)
+                    : outName.substring(0, outName.length() - 1);
+        }
+        if (!Globals.checkExtension(outName,
                 clp.getExportFormat()) && !clp.getForceMode())
         {
             System.err.println(
                     "File extension is not coherent with the "
                     + "export output format! Use -f to skip this test.");
-            System.exit(1);
+            return false;
+        }
+        return true;
+    }
+
+    /** Export a drawing with the format and the size given in the command
+     * line.
+     *
+     * @param clp command-line arguments.
+     * @param pP the model containing the drawing.
+     * @param outName the name of the file to be written.
+     * @param splitLayers split layers into different files when exporting.
+     * @throws IOException if the export fails.
+     */
+    private static void exportFile(CommandLineParser clp, DrawingModel pP,
+            String outName, boolean splitLayers)
+            throws IOException
+    {
+        if (clp.getResolutionBasedExport()) {
+            ExportGraphic.export(new File(outName), pP,
+                    clp.getExportFormat(), clp.getResolution(),
+                    true, false, true, true, splitLayers);
+        } else {
+            ExportGraphic.exportSize(new File(outName),
+                    pP, clp.getExportFormat(), clp.getXSize(),
+                    clp.getYSize(),
+                    true, false, true, true, splitLayers);
         }
+    }
 
+    /** Convert many drawings, as requested by the -b option. The libraries
+     * are read only once. The drawings are converted in parallel, each one
+     * in its own model.
+     *
+     * @param clp command-line arguments.
+     * @return the exit status: 0 if all the files have been converted, 1 if
+     * at least a conversion failed.
+     */
+    private static int doBatch(CommandLineParser clp)
+    {
+        MyTimer totalTime = new MyTimer();
+        final List<String> files = new ArrayList<String>();
         try {
-            if (clp.getResolutionBasedExport()) {
-                ExportGraphic.export(new File(clp.getOutputFile()), pP,
-                        clp.getExportFormat(), clp.getResolution(),
-                        true, false, true, true, splitLayers);
+            for (String s : clp.getInputFiles()) {
+                if (s.startsWith("@")) {
+                    files.addAll(readFileList(s.substring(1)));
+                } else {
+                    files.add(s);
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println("Unable to read the list of files: " + ioe);
+            return 1;
+        }
+        if (files.isEmpty()) {
+            System.err.println("You should specify the FidoCadJ files to"
+                    + " convert");
+            return 1;
+        }
+        if (files.size() > 1 && !clp.getOutputFile().contains("%s")) {
+            System.err.println("The output file name should contain %s,"
+                    + " which is replaced by the name of each drawing.");
+            return 1;
+        }
+        if (!checkOutputExtension(clp)) {
+            return 1;
+        }
+
+        // Read the libraries once.
+        final HeadlessConverter converter =
+                new HeadlessConverter(clp.getLibDirectory());
+
+        int nThreads = clp.getRenderThreads() > 0 ? clp.getRenderThreads()
+                : Runtime.getRuntime().availableProcessors();
+        // The images are rendered with a single thread, since the files are
+        // converted in parallel.
+        ExportGraphic.setRenderThreads(1);
+        ExportGraphic.setCompressPDF(!clp.getUncompressedPDF());
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        for (final String f : files) {
+            results.add(pool.submit(() -> {
+                MyTimer mt = new MyTimer();
+                ReadableByteChannel ch = FileUtils.openChannel(f);
+                try {
+                    converter.convert(ch, dm -> exportFile(clp, dm,
+                            batchOutputName(clp.getOutputFile(), f),
+                            clp.shouldSplitLayers()));
+                } finally {
+                    ch.close();
+                }
+                return Long.valueOf(mt.getElapsed());
+            }));
+        }
+        pool.shutdown();
+
+        int failed = 0;
+        for (int i = 0; i < files.size(); ++i) {
+            try {
+                System.out.println(files.get(i) + ": "
+                        + results.get(i).get() + " ms");
+            } catch (ExecutionException ee) {
+                ++failed;
+                System.err.println(files.get(i) + ": FAILED "
+                        + ee.getCause());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                ++failed;
+                System.err.println(files.get(i) + ": interrupted");
+            }
+        }
+        System.out.println("Converted " + (files.size() - failed) + " of "
+                + files.size() + " files in " + totalTime.getElapsed()
+                + " ms.");
+        return failed > 0 ? 1 : 0;
+    }
+
+    /** Start the render server, as requested by the --serve option.
+     *
+     * @param clp command-line arguments.
+     * @return the exit status: 0 at the end of the input, 1 if an error
+     * occurred.
+     */
+    private static int doServe(CommandLineParser clp)
+    {
+        int nThreads = clp.getRenderThreads() > 0 ? clp.getRenderThreads()
+                : Runtime.getRuntime().availableProcessors();
+        RenderServer server = new RenderServer(clp.getLibDirectory(),
+                nThreads, clp.getServeQueue(), clp.getServeTimeout(),
+                clp.getServeMaxSize());
+        try {
+            if (clp.getServePort() > 0) {
+                server.serveSocket(clp.getServePort());
             } else {
-                ExportGraphic.exportSize(new File(clp.getOutputFile()),
-                        pP, clp.getExportFormat(), clp.getXSize(),
-                        clp.getYSize(),
-                        true, false, true, true, splitLayers);
+                server.serveStandardStreams();
             }
-            System.out.println("Export completed");
         } catch (IOException ioe) {
-            System.err.println("Export error: " + ioe);
+            System.err.println("Render server error: " + ioe);
+            return 1;
+        }
+        return 0;
+    }
+
+    /** Read a list of files, one per line. Empty lines and lines beginning
+     * with # are ignored.
+     *
+     * @param name the name of the file containing the list.
+     * @return the names of the files.
+     * @throws IOException if the list can not be read.
+     */
+    private static List<String> readFileList(String name)
+            throws IOException
+    {
+        List<String> r = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                FileUtils.openInput(new File(name)), Globals.encoding));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    r.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return r;
+    }
+
+    /** Obtain the name of the output file for a drawing in the batch mode,
+     * by replacing %s in the given pattern with the name of the drawing,
+     * without the directory and the extension.
+     *
+     * @param pattern the name given with the -c option.
+     * @param input the name of the drawing.
+     * @return the name of the output file.
+     */
+    private static String batchOutputName(String pattern, String input)
+    {
+        String base = new File(input).getName();
+        int dot = base.lastIndexOf('.');
+        if (dot > 0) {
+            base = base.substring(0, dot);
         }
+        return pattern.replace("%s", base);
     }
 
     /** Read all libraries, eventually by inspecting the directory specified
      * by the user. There are three standard directories: IHRAM.FCL,
      * FCDstdlib.fcl and PCB.fcl. If those files are found in the external
      * directory specified, the internal version is not loaded. Other files
-     * on the external directory are loaded.
+     * on the external directory are loaded. The library cache (see
+     * LibraryCache) is employed, but it is not written.
      *
      * @param pP the parsing class in which the libraries should be loaded
      * @param englishLibraries a flag to specify if the internal libraries
@@ -290,11 +511,15 @@ public final class FidoMain
                 libDirectory = System.getProperty("user.home");
             }
 
+            // The libraries are read in parallel, then added to the drawing
+            // in the same order as below.
+            pa.startParallelLibraryLoading();
             readIHRAM(englishLibraries, libDirectory, pa);
             readFCDstdlib(englishLibraries, libDirectory, pa);
             readPCBlib(englishLibraries, libDirectory, pa);
             readEYLibraries(englishLibraries, libDirectory, pa);
             readElecLib(englishLibraries, libDirectory, pa);
+            pa.finishParallelLibraryLoading();
         }
     }
 
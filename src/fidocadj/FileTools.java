@@ -4,8 +4,10 @@ import java.io.*;
 import javax.swing.*;
 import java.awt.*;
 import java.util.Locale;
+import java.nio.channels.ReadableByteChannel;
 
 import fidocadj.circuit.CircuitPanel;
+import fidocadj.globals.FileUtils;
 import fidocadj.globals.Globals;
 import fidocadj.export.ExportGraphic;
 import fidocadj.globals.SettingsManager;
@@ -131,32 +133,23 @@ public class FileTools
             throws IOException
     {
 
-        BufferedReader bufRead = null;
-        StringBuffer txt = new StringBuffer();
+        ReadableByteChannel input = null;
 
         try {
-            bufRead = new BufferedReader(
-                    new InputStreamReader(new FileInputStream(
+            input = FileUtils.openChannel(
                             fidoFrame.getCircuitPanel()
-                                     .getParserActions().openFileName),
-                            Globals.encoding));
+                                     .getParserActions().openFileName);
 
-            String line = bufRead.readLine();
-            while (line != null) {
-                txt.append(line);
-                txt.append("\n");
-                line = bufRead.readLine();
-            }
+            // The circuit is parsed while the file is being read, or in
+            // parallel if it is big. Compressed files are decompressed on
+            // the fly.
+            fidoFrame.getCircuitPanel().getParserActions().parseChannel(input);
         } finally {
-            if (bufRead != null) {
-                bufRead.close();
+            if (input != null) {
+                input.close();
             }
         }
 
-        // Here txt contains the new circuit: draw it!
-        fidoFrame.getCircuitPanel().getParserActions().parseString(
-                new StringBuffer(txt.toString()));
-
         // Check for ghost primitives (hidden outside the drawing area)
         if (fidoFrame.getCircuitPanel().checkGhostPrimitives()) {
             int response = JOptionPane.showConfirmDialog(fidoFrame,
@@ -210,7 +203,8 @@ public class FileTools
                 @Override
                 public boolean accept(File dir, String name)
                 {
-                    return name.toLowerCase(Locale.US).endsWith(".fcd");
+                    String n = name.toLowerCase(Locale.US);
+                    return n.endsWith(".fcd") || n.endsWith(".fcdz");
                 }
             });
             fd.setVisible(true);
@@ -226,14 +220,15 @@ public class FileTools
                 @Override
                 public boolean accept(File f)
                 {
-                    return f.getName().toLowerCase(Locale.US).endsWith(".fcd")
+                    String n = f.getName().toLowerCase(Locale.US);
+                    return n.endsWith(".fcd") || n.endsWith(".fcdz")
                             || f.isDirectory();
                 }
 
                 @Override
                 public String getDescription()
                 {
-                    return "FidoCadJ (.fcd)";
+                    return "FidoCadJ (.fcd, .fcdz)";
                 }
             });
 
@@ -254,11 +249,15 @@ public class FileTools
             fidoFrame.getCircuitPanel().getParserActions().openFileName
                 = Globals.createCompleteFileName(din, fin);
 
+            // A drawing saved as .fcdz is compressed.
+            String ext = Globals.DEFAULT_EXTENSION;
+            if (fin.toLowerCase(Locale.US).endsWith(".fcdz")) {
+                ext = Globals.DEFAULT_EXTENSION + "z";
+            }
             fidoFrame.getCircuitPanel().getParserActions().openFileName
                 = Globals.adjustExtension(
                         fidoFrame.getCircuitPanel()
-                                 .getParserActions().openFileName,
-                                        Globals.DEFAULT_EXTENSION);
+                                 .getParserActions().openFileName, ext);
 
             SettingsManager.put("OPEN_DIR", din);
 
@@ -302,8 +301,8 @@ public class FileTools
                 BufferedWriter output = null;
                 try {
                     output = new BufferedWriter(new OutputStreamWriter(
-                            new FileOutputStream(
-                                    cc.getParserActions().openFileName),
+                            FileUtils.openOutput(new File(
+                                    cc.getParserActions().openFileName)),
                             Globals.encoding));
 
                     output.write("[FIDOCAD]\n");
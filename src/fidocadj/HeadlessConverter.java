@@ -0,0 +1,136 @@
+package fidocadj;
+
+import java.io.*;
+import java.nio.channels.ReadableByteChannel;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import fidocadj.circuit.controllers.ParserActions;
+import fidocadj.circuit.model.DrawingModel;
+import fidocadj.globals.Globals;
+import fidocadj.layers.StandardLayers;
+import fidocadj.primitives.MacroDesc;
+
+/** The HeadlessConverter class reads the libraries once and then converts
+    many drawings, possibly in parallel, without the user interface. It is
+    employed by the batch mode and by the render server.
+
+    Each thread has its own copy of the library, since the parsed contents
+    of the macros are kept in the library and shared by the drawings using
+    it. The drawings are always read in parallel, but the settings they
+    contain (such as the line widths) are global: a drawing which changes
+    them is exported while the others wait.
+
+    <pre>
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2008-2023 by Davide Bucci
+    </pre>
+
+    @author Davide Bucci
+*/
+class HeadlessConverter
+{
+    /** What should be done with a drawing once it has been read.
+    */
+    interface ExportAction
+    {
+        /** Export the drawing.
+            @param dm the model containing the drawing.
+            @throws IOException if the export fails.
+        */
+        void export(DrawingModel dm) throws IOException;
+    }
+
+    private final Map<String, MacroDesc> library;
+    private final ThreadLocal<Map<String, MacroDesc>> threadLibrary;
+    private final ReadWriteLock settingsLock = new ReentrantReadWriteLock();
+
+    // The settings are restored after each drawing which changes them.
+    private final double lineWidth;
+    private final double lineWidthCircles;
+    private final double diameterConnection;
+
+    /** Read the libraries and remember the current settings.
+        @param libDirectory the directory containing the external libraries.
+    */
+    HeadlessConverter(String libDirectory)
+    {
+        DrawingModel libraries = new DrawingModel();
+        FidoMain.readLibrariesProbeDirectory(libraries, false, libDirectory);
+        library = libraries.getLibrary();
+        threadLibrary = ThreadLocal.withInitial(
+            () -> MacroDesc.copyLibrary(library));
+
+        lineWidth = Globals.lineWidth;
+        lineWidthCircles = Globals.lineWidthCircles;
+        diameterConnection = Globals.diameterConnection;
+    }
+
+    /** Read a drawing and export it. This method can be called by many
+        threads at the same time.
+        @param source the channel containing the drawing. It is not closed.
+        @param action what should be done with the drawing.
+        @throws IOException if the drawing can not be read or exported.
+    */
+    void convert(ReadableByteChannel source, ExportAction action)
+        throws IOException
+    {
+        DrawingModel pP = new DrawingModel();
+        pP.setLibrary(threadLibrary.get());
+        pP.setLayers(StandardLayers.createStandardLayers());
+        ParserActions pa = new ParserActions(pP);
+        pa.setApplySettings(false);
+        pa.parseChannel(source);
+
+        double lw = pa.getLineWidth() > 0 ? pa.getLineWidth() : lineWidth;
+        double lwc = pa.getLineWidthCircles() > 0
+            ? pa.getLineWidthCircles() : lineWidthCircles;
+        double dc = pa.getConnectionSize() > 0
+            ? pa.getConnectionSize() : diameterConnection;
+
+        // A drawing which keeps the settings is exported together with the
+        // others. One which changes them is exported alone.
+        if (lw == lineWidth && lwc == lineWidthCircles
+            && dc == diameterConnection)
+        {
+            settingsLock.readLock().lock();
+            try {
+                action.export(pP);
+            } finally {
+                settingsLock.readLock().unlock();
+            }
+            return;
+        }
+        settingsLock.writeLock().lock();
+        try {
+            Globals.lineWidth = lw;
+            Globals.lineWidthCircles = lwc;
+            Globals.diameterConnection = dc;
+            action.export(pP);
+        } finally {
+            Globals.lineWidth = lineWidth;
+            Globals.lineWidthCircles = lineWidthCircles;
+            Globals.diameterConnection = diameterConnection;
+            // The macros may have been prepared with the settings of this
+            // drawing.
+            threadLibrary.remove();
+            settingsLock.writeLock().unlock();
+        }
+    }
+}
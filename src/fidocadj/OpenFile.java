@@ -67,8 +67,8 @@ class OpenFile implements Runnable
             fd.setFilenameFilter(new FilenameFilter(){
                 @Override public boolean accept(File dir, String name)
                 {
-                    return name.toLowerCase(
-                        parent.getLocale()).endsWith(".fcd");
+                    String n=name.toLowerCase(parent.getLocale());
+                    return n.endsWith(".fcd")||n.endsWith(".fcdz");
                 }
             });
 
@@ -86,12 +86,13 @@ class OpenFile implements Runnable
             fc.setFileFilter(new javax.swing.filechooser.FileFilter(){
                 @Override public boolean accept(File f)
                 {
-                    return f.getName().toLowerCase(Locale.US)
-                        .endsWith(".fcd")||f.isDirectory();
+                    String n=f.getName().toLowerCase(Locale.US);
+                    return n.endsWith(".fcd")||n.endsWith(".fcdz")
+                        ||f.isDirectory();
                 }
                 @Override public String getDescription()
                 {
-                    return "FidoCadJ (.fcd)";
+                    return "FidoCadJ (.fcd, .fcdz)";
                 }
             });
 
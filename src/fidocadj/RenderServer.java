@@ -0,0 +1,417 @@
+package fidocadj;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+import fidocadj.export.ExportGraphic;
+import fidocadj.globals.Globals;
+
+/** The RenderServer class converts the drawings it receives until the end
+    of its input, so that the libraries are read only once and the
+    converters stay ready. The jobs are read from the standard input, or
+    from the connections on a local port.
+
+    Each job is a line containing the same parameters given to the -c
+    option, with the length in bytes of the drawing instead of the name of
+    the output file:
+<pre>
+    RENDER r2 svg 1234
+    RENDER 800 600 png 1234
+</pre>
+    The line is followed by the drawing. The answer is a line "OK n"
+    followed by the n bytes of the output, or a line "ERROR message".
+    The answers are given in the same order as the jobs, but the jobs
+    received are executed in parallel. "QUIT" closes the connection.
+    A drawing bigger than the maximum size is skipped and answered with
+    an error. A job which takes more than the timeout is answered with an
+    error and cancelled: its worker stops at the next primitive it reads,
+    draws or exports.
+
+    <pre>
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2008-2023 by Davide Bucci
+    </pre>
+
+    @author Davide Bucci
+*/
+class RenderServer
+{
+    // Maximum length of the line describing a job.
+    private static final int MAX_LINE = 256;
+
+    // The standard output, when it is used for the answers.
+    private static OutputStream standardOutput;
+
+    private final HeadlessConverter converter;
+    private final ThreadPoolExecutor pool;
+    private final long timeout;
+    private final int maxSize;
+
+    /** A job which has been received, waiting for its answer to be sent.
+    */
+    private static final class Pending
+    {
+        final Future<byte[]> result;
+        final long deadline;
+
+        Pending(Future<byte[]> r, long d)
+        {
+            result = r;
+            deadline = d;
+        }
+    }
+
+    /** Read the libraries and prepare the workers.
+        @param libDirectory the directory containing the external libraries.
+        @param nThreads the number of jobs executed in parallel.
+        @param queue the maximum number of jobs waiting to be executed.
+        @param timeoutMs the maximum time for a job, in milliseconds,
+            counted from when it is received.
+        @param maxBytes the maximum size of a drawing, in bytes.
+    */
+    RenderServer(String libDirectory, int nThreads, int queue, int timeoutMs,
+        int maxBytes)
+    {
+        converter = new HeadlessConverter(libDirectory);
+        // The images are rendered with a single thread, since the jobs are
+        // executed in parallel.
+        ExportGraphic.setRenderThreads(1);
+        pool = new ThreadPoolExecutor(nThreads, nThreads, 0L,
+            TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue));
+        timeout = timeoutMs;
+        maxSize = maxBytes;
+    }
+
+    /** Keep the standard output for the answers of the server. From now
+        on, the messages printed by the program are sent to the standard
+        error. This should be done before the libraries are read.
+    */
+    static synchronized void reserveStandardOutput()
+    {
+        if (standardOutput == null) {
+            standardOutput = new FileOutputStream(FileDescriptor.out);
+            System.setOut(System.err);
+        }
+    }
+
+    /** Serve the jobs read from the standard input. The answers are
+        written to the standard output.
+        @throws IOException if a communication error occurs.
+    */
+    void serveStandardStreams() throws IOException
+    {
+        reserveStandardOutput();
+        System.err.println("Render server ready.");
+        serve(new BufferedInputStream(System.in), standardOutput);
+        pool.shutdown();
+    }
+
+    /** Serve the connections on a local port, until the program is
+        stopped. Each connection is served by its own thread.
+        @param port the port.
+        @throws IOException if the port can not be opened.
+    */
+    void serveSocket(int port) throws IOException
+    {
+        ServerSocket server = new ServerSocket(port, 50,
+            InetAddress.getLoopbackAddress());
+        System.out.println("Render server ready on port "+port+".");
+        while (true) {
+            final Socket s = server.accept();
+            Thread t = new Thread(() -> {
+                try {
+                    serve(new BufferedInputStream(s.getInputStream()),
+                        s.getOutputStream());
+                } catch (IOException ioe) {
+                    System.err.println("Render server: " + ioe);
+                } finally {
+                    try {
+                        s.close();
+                    } catch (IOException ioe) {
+                        System.err.println("Render server: " + ioe);
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /** Serve the jobs of a single connection. The jobs are read and given
+        to the workers, while another thread sends the answers in order.
+        @param in the stream from which the jobs are read.
+        @param outS the stream to which the answers are written.
+        @throws IOException if a communication error occurs.
+    */
+    private void serve(InputStream in, OutputStream outS) throws IOException
+    {
+        final BlockingQueue<Pending> answers =
+            new LinkedBlockingQueue<Pending>();
+        final OutputStream out = new BufferedOutputStream(outS);
+        final IOException[] writeError = new IOException[1];
+        Thread writer = new Thread(() -> {
+            try {
+                writeAnswers(answers, out);
+            } catch (IOException ioe) {
+                writeError[0] = ioe;
+            }
+        });
+        writer.start();
+
+        try {
+            String line;
+            while ((line = readLine(in)) != null) {
+                line = line.trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+                if ("QUIT".equals(line)) {
+                    break;
+                }
+                Pending p = readJob(line, in);
+                answers.add(p);
+                if (p.result.isDone() && p.deadline == 0) {
+                    // The job could not be read: the connection can not be
+                    // used anymore.
+                    break;
+                }
+            }
+        } finally {
+            // An empty job stops the writer.
+            answers.add(new Pending(null, 0));
+            try {
+                writer.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (writeError[0] != null) {
+            throw writeError[0];
+        }
+    }
+
+    /** Read a job and give it to the workers.
+        @param line the line describing the job.
+        @param in the stream containing the drawing.
+        @return the job, with a deadline equal to 0 if it could not be read.
+        @throws IOException if the drawing can not be read.
+    */
+    private Pending readJob(String line, InputStream in) throws IOException
+    {
+        final double resolution;
+        final int sizeX;
+        final int sizeY;
+        final String format;
+        int length;
+        StringTokenizer t = new StringTokenizer(line);
+        try {
+            if (!"RENDER".equals(t.nextToken())) {
+                return failed("Unknown command: " + line, 0);
+            }
+            String s = t.nextToken();
+            if (s.startsWith("r")) {
+                resolution = Double.parseDouble(s.substring(1));
+                sizeX = 0;
+                sizeY = 0;
+            } else {
+                resolution = 0;
+                sizeX = Integer.parseInt(s);
+                sizeY = Integer.parseInt(t.nextToken());
+            }
+            format = t.nextToken();
+            length = Integer.parseInt(t.nextToken());
+        } catch (NoSuchElementException | NumberFormatException eE) {
+            return failed("Invalid job: " + line, 0);
+        }
+        if (length < 0) {
+            return failed("Invalid length: " + length, 0);
+        }
+        if (length > maxSize) {
+            // The drawing is skipped, so that the next jobs can be read.
+            skipFully(in, length);
+            return failed("Drawing too big: " + length + " bytes, maximum "
+                + maxSize, System.currentTimeMillis() + timeout);
+        }
+
+        final byte[] drawing = new byte[length];
+        new DataInputStream(in).readFully(drawing);
+        long deadline = System.currentTimeMillis() + timeout;
+
+        if (resolution <= 0 && (sizeX <= 0 || sizeY <= 0)) {
+            return failed("The resolution or the size should be positive",
+                deadline);
+        }
+        try {
+            return new Pending(pool.submit(() ->
+                render(drawing, format, resolution, sizeX, sizeY)),
+                deadline);
+        } catch (RejectedExecutionException ree) {
+            return failed("Too many jobs waiting", deadline);
+        }
+    }
+
+    /** Convert a drawing.
+        @param drawing the drawing.
+        @param format the export format.
+        @param resolution the resolution in pixels per logical unit, or 0
+            if the size is given.
+        @param sizeX the width of the image.
+        @param sizeY the height of the image.
+        @return the contents of the output.
+        @throws IOException if the conversion fails.
+    */
+    private byte[] render(byte[] drawing, String format, double resolution,
+        int sizeX, int sizeY) throws IOException
+    {
+        // The export filters write files.
+        final File f = File.createTempFile("fidocadj", "." + format);
+        try {
+            converter.convert(Channels.newChannel(
+                new ByteArrayInputStream(drawing)), dm -> {
+                    if (resolution > 0) {
+                        ExportGraphic.export(f, dm, format, resolution,
+                            true, false, true, true, false);
+                    } else {
+                        ExportGraphic.exportSize(f, dm, format, sizeX, sizeY,
+                            true, false, true, true, false);
+                    }
+                });
+            return Files.readAllBytes(f.toPath());
+        } finally {
+            // The file has already been deleted if the export failed.
+            if (f.exists() && !f.delete()) {
+                f.deleteOnExit();
+            }
+        }
+    }
+
+    /** Write the answers, in the same order as the jobs.
+        @param answers the jobs. A job without result ends the answers.
+        @param out the stream to which the answers are written.
+        @throws IOException if a communication error occurs.
+    */
+    private void writeAnswers(BlockingQueue<Pending> answers,
+        OutputStream out) throws IOException
+    {
+        while (true) {
+            Pending p;
+            try {
+                p = answers.take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (p.result == null) {
+                out.flush();
+                return;
+            }
+            String error;
+            try {
+                long wait = p.deadline - System.currentTimeMillis();
+                byte[] r = p.result.get(Math.max(wait, 0),
+                    TimeUnit.MILLISECONDS);
+                writeLine(out, "OK " + r.length);
+                out.write(r);
+                error = null;
+            } catch (TimeoutException te) {
+                // The worker is interrupted and stops the job.
+                p.result.cancel(true);
+                error = "Timeout";
+            } catch (ExecutionException ee) {
+                error = String.valueOf(ee.getCause());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (error != null) {
+                writeLine(out, "ERROR " + error.replace('\n', ' '));
+            }
+            // Answers are sent as soon as nothing else is ready.
+            if (answers.isEmpty()) {
+                out.flush();
+            }
+        }
+    }
+
+    /** Create a job which failed.
+        @param message the reason of the failure.
+        @param deadline the deadline of the job.
+        @return the job.
+    */
+    private static Pending failed(String message, long deadline)
+    {
+        CompletableFuture<byte[]> r = new CompletableFuture<byte[]>();
+        r.completeExceptionally(new IOException(message));
+        return new Pending(r, deadline);
+    }
+
+    /** Skip the given number of bytes.
+        @param in the stream.
+        @param n the number of bytes.
+        @throws IOException if the end of the stream is reached before.
+    */
+    private static void skipFully(InputStream in, long n) throws IOException
+    {
+        while (n > 0) {
+            long k = in.skip(n);
+            if (k <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                k = 1;
+            }
+            n -= k;
+        }
+    }
+
+    /** Read a line ended by '\n'.
+        @param in the stream.
+        @return the line, or null at the end of the stream.
+        @throws IOException if the line is too long or can not be read.
+    */
+    private static String readLine(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                return b.size() == 0 ? null : b.toString(Globals.encoding);
+            }
+            if (b.size() >= MAX_LINE) {
+                throw new IOException("Line too long");
+            }
+            b.write(c);
+        }
+        return b.toString(Globals.encoding);
+    }
+
+    /** Write a line ended by '\n'.
+        @param out the stream.
+        @param line the line.
+        @throws IOException if the line can not be written.
+    */
+    private static void writeLine(OutputStream out, String line)
+        throws IOException
+    {
+        out.write((line + "\n").getBytes(Globals.encoding));
+    }
+}
@@ -26,9 +26,11 @@ import fidocadj.circuit.controllers.PrimitivesParInterface;
 import fidocadj.circuit.controllers.ElementsEdtActions;
 import fidocadj.circuit.controllers.HandleActions;
 import fidocadj.circuit.model.DrawingModel;
+import fidocadj.circuit.model.ProcessElementsInterface;
 import fidocadj.circuit.views.Drawing;
 import fidocadj.clipboard.TextTransfer;
 import fidocadj.graphic.PointG;
+import fidocadj.graphic.RectangleG;
 import fidocadj.graphic.DimensionG;
 import fidocadj.graphic.swing.Graphics2DSwing;
 import fidocadj.graphic.swing.ColorSwing;
@@ -78,6 +80,25 @@ public class CircuitPanel extends JPanel implements ChangeSelectedLayer,
     // *********** DRAWING ***********
     Graphics2DSwing graphicSwing;
 
+    // Images of the layers drawn at the last repaint. They are employed
+    // when only the elements drawn over the drawing change.
+    private final transient LayerImageCache layerCache =
+        new LayerImageCache();
+
+    // True if a repaint keeping the images of the layers has been asked,
+    // and if a normal repaint has been asked since the last repaint.
+    private boolean overlaysRepaintAsked;
+    private boolean repaintAsked = true;
+
+    // Tiles of the drawing, employed to paint the regions exposed while
+    // scrolling, and the visible part of the panel at the last repaint.
+    private final transient TileCache tileCache = new TileCache();
+    private final Rectangle lastVisible = new Rectangle();
+
+    // Image of the primitives which are not selected, employed while the
+    // selected ones are being dragged.
+    private final transient DragImageCache dragCache = new DragImageCache();
+
     // Coordinate system to be used.
     private transient MapCoordinates mapCoordinates;
 
@@ -604,6 +625,18 @@ public class CircuitPanel extends JPanel implements ChangeSelectedLayer,
     public void setSelectedColor(Color color)
     {
         graphicSwing.setSelectedColor(color);
+        tileCache.setSelectedColor(color);
+    }
+
+    /**
+     Sets the maximum memory employed by the tiles of the drawing kept to
+     scroll it quickly.
+
+     @param mb the size in megabytes.
+     */
+    public void setTileCacheSize(int mb)
+    {
+        tileCache.setMaxSize(mb);
     }
 
     /**
@@ -693,8 +726,53 @@ public class CircuitPanel extends JPanel implements ChangeSelectedLayer,
         // This is important for taking into account the dashing size
         graphicSwing.setZoom(mapCoordinates.getXMagnitude());
 
-        // Draw all the elements of the drawing.
-        drawingAgent.draw(graphicSwing, mapCoordinates);
+        // Draw all the elements of the drawing. The images of the layers
+        // are employed again only if it has been explicitly asked, since
+        // many changes of the drawing are not notified to the model.
+        // When the panel is scrolled, only the exposed region is painted
+        // and the tiles of the drawing are still valid.
+        Rectangle visible = getVisibleRect();
+        boolean scrolled = !visible.equals(lastVisible);
+        lastVisible.setBounds(visible);
+        boolean changed = drawingModel.getChanged();
+        if (repaintAsked || !overlaysRepaintAsked || changed) {
+            layerCache.invalidate();
+        }
+        if (repaintAsked || changed || !overlaysRepaintAsked && !scrolled) {
+            tileCache.invalidate();
+        }
+        overlaysRepaintAsked = false;
+        repaintAsked = false;
+        boolean dragging = handleActions.isDragging()
+            || continuosMoveActions.isMovingSelected();
+        if (!dragging) {
+            dragCache.release();
+        }
+        if (drawingModel.getDrawOnlyLayer() >= 0
+            || drawingModel.getDrawOnlyPads())
+        {
+            drawingAgent.draw(graphicSwing, mapCoordinates);
+        } else if (dragging) {
+            // Only the selected primitives are moving.
+            dragCache.paint(g2, graphicSwing, visible, mapCoordinates,
+                drawingAgent);
+        } else if (!layerCache.paint(g2, graphicSwing, visible,
+                mapCoordinates, drawingModel, drawingAgent))
+        {
+            if (!scrolled) {
+                drawingAgent.draw(graphicSwing, mapCoordinates);
+            } else {
+                // The regions whose tiles are not ready are drawn directly.
+                Shape missing = tileCache.paint(g2, visible, mapCoordinates,
+                    drawingModel, parserActions);
+                if (missing != null) {
+                    Shape oldClip = g2.getClip();
+                    g2.clip(missing);
+                    drawingAgent.draw(graphicSwing, mapCoordinates);
+                    g2.setClip(oldClip);
+                }
+            }
+        }
         drawingModel.getImgCanvas().trackExtremePoints(mapCoordinates);
 
         if (zoomListener != null) {
@@ -760,7 +838,9 @@ public class CircuitPanel extends JPanel implements ChangeSelectedLayer,
                     + " averaging "
                     + average / runs
                     + "ms in " + runs
-                    + " redraws; record: " + record + " ms");
+                    + " redraws; record: " + record + " ms; "
+                    + drawingAgent.getDrawnPrimitives() + " primitives drawn, "
+                    + drawingAgent.getCulledPrimitives() + " culled");
         }
     }
 
@@ -865,6 +945,10 @@ public class CircuitPanel extends JPanel implements ChangeSelectedLayer,
         handleActions = new HandleActions(getDrawingModel(), getEditorActions(),
             getSelectionActions(), getUndoActions());
         drawingAgent = new Drawing(drawingModel);
+        // Only what is visible in the panel needs to be drawn.
+        drawingAgent.setCulling(true);
+        layerCache.invalidate();
+        tileCache.invalidate();
         continuosMoveActions.setPrimitivesParListener(this);
         copyPasteActions = new CopyPasteActions(drawingModel, editorActions,
                 selectionActions, parserActions,
@@ -1140,6 +1224,14 @@ public class CircuitPanel extends JPanel implements ChangeSelectedLayer,
                 }
             }
             drawingModel.setChanged(true);
+            selectionActions.applyToSelectedElements(
+                new ProcessElementsInterface()
+            {
+                public void doAction(GraphicPrimitive g)
+                {
+                    drawingModel.updatePrimitive(g);
+                }
+            });
 
             // We need to check and sort the layers, since the user can
             // change the layer associated with a given primitive thanks to
@@ -1216,6 +1308,108 @@ public class CircuitPanel extends JPanel implements ChangeSelectedLayer,
         repaint();
     }
 
+    /** Force a repaint when the drawing has not changed, but only the
+     * elements drawn over it (the ruler, the selection rectangle, the
+     * primitive being edited) or the visibility of the layers. The images
+     * of the layers drawn at the previous repaint are employed again.
+     */
+    @Override
+    public void forcesRepaintOverlays()
+    {
+        overlaysRepaintAsked = true;
+        super.repaint(0, 0, 0, getWidth(), getHeight());
+    }
+
+    /** Force a repaint of a region when the drawing has not changed, but
+     * only the elements drawn over it. See forcesRepaintOverlays().
+     *
+     * @param x the x leftmost corner of the dirty region to repaint.
+     * @param y the y leftmost corner of the dirty region to repaint.
+     * @param width the width of the dirty region.
+     * @param height the height of the dirty region.
+     */
+    @Override
+    public void forcesRepaintOverlays(int x, int y, int width, int height)
+    {
+        overlaysRepaintAsked = true;
+        super.repaint(0, x, y, width, height);
+    }
+
+    /** Force a repaint of the region occupied by a part of the drawing,
+     * including the handles of the primitives.
+     *
+     * @param r the region, in logical units. If it is null, the whole
+     * panel is repainted.
+     */
+    @Override
+    public void forcesRepaint(RectangleG r)
+    {
+        if (r == null) {
+            repaint();
+        } else {
+            repaint(getScreenRegion(r));
+        }
+    }
+
+    /** Force a repaint of the region occupied by an element drawn over the
+     * drawing, when the drawing has not changed. See
+     * forcesRepaintOverlays().
+     *
+     * @param r the region, in logical units. If it is null, the whole
+     * panel is repainted.
+     */
+    @Override
+    public void forcesRepaintOverlays(RectangleG r)
+    {
+        if (r == null) {
+            forcesRepaintOverlays();
+        } else {
+            Rectangle s = getScreenRegion(r);
+            forcesRepaintOverlays(s.x, s.y, s.width, s.height);
+        }
+    }
+
+    /** Get the region of the panel corresponding to a region of the
+     * drawing. It is enlarged so that it contains the handles of the
+     * primitives as well as the pixels touched by the antialiasing.
+     *
+     * @param r the region, in logical units.
+     * @return the region, in pixels.
+     */
+    private Rectangle getScreenRegion(RectangleG r)
+    {
+        // The orientation and the mirroring transform a rectangle into
+        // another one, so two opposite corners are enough.
+        int xa = mapCoordinates.mapXi(r.x, r.y, false);
+        int ya = mapCoordinates.mapYi(r.x, r.y, false);
+        int xb = mapCoordinates.mapXi(r.x + r.width, r.y + r.height, false);
+        int yb = mapCoordinates.mapYi(r.x + r.width, r.y + r.height, false);
+        Rectangle s = new Rectangle(Math.min(xa, xb), Math.min(ya, yb),
+            Math.abs(xb - xa) + 1, Math.abs(yb - ya) + 1);
+
+        // The handles are 10 pixels wide at 112 dpi.
+        int margin = (int) Math.ceil(
+            graphicSwing.getScreenDensity() / 112.0 * 5.0) + 2;
+        s.grow(margin, margin);
+        return s;
+    }
+
+    /** Ask a repaint of a region. All the other repaint methods call this
+     * one. The images of the layers will be drawn again.
+     *
+     * @param tm maximum time in milliseconds before the repaint.
+     * @param x the x leftmost corner of the dirty region to repaint.
+     * @param y the y leftmost corner of the dirty region to repaint.
+     * @param width the width of the dirty region.
+     * @param height the height of the dirty region.
+     */
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height)
+    {
+        repaintAsked = true;
+        super.repaint(tm, x, y, width, height);
+    }
+
     /** Force a repaint.
      *
      * @param x the x leftmost corner of the dirty region to repaint.
@@ -1265,7 +1459,7 @@ public class CircuitPanel extends JPanel implements ChangeSelectedLayer,
     {
         this.isLeftToRight = isLeftToRight;
         // Force the redraw when the selection direction changes.
-        this.repaint();
+        forcesRepaintOverlays();
     }
 
     /**
@@ -1306,6 +1500,7 @@ public class CircuitPanel extends JPanel implements ChangeSelectedLayer,
             for (GraphicPrimitive gp : model.getPrimitiveVector()) {
                 gp.movePrimitive(deltaX, deltaY);
             }
+            model.invalidateSpatialIndex();
             // Return true indicating that a translation was performed
             return true;
         }
@@ -0,0 +1,147 @@
+package fidocadj.circuit;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.*;
+
+import fidocadj.circuit.views.Drawing;
+import fidocadj.geom.MapCoordinates;
+import fidocadj.graphic.swing.Graphics2DSwing;
+
+/** Keeps an image of the primitives which are not selected, while the
+    selected ones are being dragged. The image is drawn once, when the
+    dragging starts, and then each repaint draws over it only the selected
+    primitives. The image is discarded when the dragging ends, so that the
+    drawing is drawn again as a whole.
+
+    <pre>
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2007-2023 by Davide Bucci
+    </pre>
+*/
+class DragImageCache
+{
+    private BufferedImage image;
+
+    // The view for which the image has been drawn.
+    private final Rectangle view = new Rectangle();
+    private double scaleX;
+    private double scaleY;
+    private double xCenter;
+    private double yCenter;
+    private double xMagnitude;
+    private double yMagnitude;
+    private int orientation;
+    private boolean mirror;
+
+    /** Forget the image, since the dragging has ended.
+    */
+    public void release()
+    {
+        image=null;
+    }
+
+    /** Draw the drawing in the visible part of the editor, by employing the
+        image of the primitives which are not selected. The image is drawn
+        if it is not available or if the view has changed.
+        @param g the graphic context of the editor.
+        @param gs the graphic context of the editor, as employed by the
+            primitives. It is used to draw the image and then restored.
+        @param visible the visible part of the editor.
+        @param cs the coordinate mapping.
+        @param drawingAgent the view employed to draw the primitives.
+    */
+    public void paint(Graphics2D g, Graphics2DSwing gs, Rectangle visible,
+        MapCoordinates cs, Drawing drawingAgent)
+    {
+        // On high resolution screens, the image contains one pixel for
+        // each pixel of the screen.
+        AffineTransform t=g.getTransform();
+        if(image==null || !isSameView(visible, t.getScaleX(),
+            t.getScaleY(), cs))
+        {
+            drawImage(g, gs, visible, cs, drawingAgent);
+        }
+        g.drawImage(image, view.x, view.y, view.width, view.height, null);
+        drawingAgent.drawSelection(gs, cs, true);
+    }
+
+    /** Check if the view is the one for which the image has been drawn.
+        @param visible the visible part of the editor.
+        @param sx the horizontal scale of the screen.
+        @param sy the vertical scale of the screen.
+        @param cs the coordinate mapping.
+        @return true if the view has not changed.
+    */
+    private boolean isSameView(Rectangle visible, double sx, double sy,
+        MapCoordinates cs)
+    {
+        return visible.equals(view) && sx==scaleX && sy==scaleY
+            && cs.getXCenter()==xCenter && cs.getYCenter()==yCenter
+            && cs.getXMagnitude()==xMagnitude
+            && cs.getYMagnitude()==yMagnitude
+            && cs.getOrientation()==orientation && cs.getMirror()==mirror;
+    }
+
+    /** Draw the image of the primitives which are not selected.
+        @param g the graphic context of the editor, whose settings are
+            employed.
+        @param gs the graphic context of the editor, as employed by the
+            primitives.
+        @param visible the visible part of the editor.
+        @param cs the coordinate mapping.
+        @param drawingAgent the view employed to draw the primitives.
+    */
+    private void drawImage(Graphics2D g, Graphics2DSwing gs,
+        Rectangle visible, MapCoordinates cs, Drawing drawingAgent)
+    {
+        AffineTransform t=g.getTransform();
+        view.setBounds(visible);
+        scaleX=t.getScaleX();
+        scaleY=t.getScaleY();
+        xCenter=cs.getXCenter();
+        yCenter=cs.getYCenter();
+        xMagnitude=cs.getXMagnitude();
+        yMagnitude=cs.getYMagnitude();
+        orientation=cs.getOrientation();
+        mirror=cs.getMirror();
+
+        int w=Math.max(1, (int)Math.ceil(view.width*scaleX));
+        int h=Math.max(1, (int)Math.ceil(view.height*scaleY));
+        if(image==null || image.getWidth()!=w || image.getHeight()!=h) {
+            GraphicsConfiguration gc=g.getDeviceConfiguration();
+            image=gc.createCompatibleImage(w, h, Transparency.TRANSLUCENT);
+        }
+        Graphics2D ig=image.createGraphics();
+        try {
+            ig.setComposite(AlphaComposite.Clear);
+            ig.fillRect(0, 0, w, h);
+            ig.setComposite(AlphaComposite.SrcOver);
+            ig.setRenderingHints(g.getRenderingHints());
+            ig.scale(scaleX, scaleY);
+            ig.translate(-view.x, -view.y);
+            ig.setColor(Color.black);
+
+            gs.setGraphicContext(ig);
+            drawingAgent.drawSelection(gs, cs, false);
+        } finally {
+            gs.setGraphicContext(g);
+            ig.dispose();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package fidocadj.circuit;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.*;
+import java.util.*;
+import java.util.List;
+
+import fidocadj.circuit.model.DrawingModel;
+import fidocadj.circuit.views.Drawing;
+import fidocadj.geom.MapCoordinates;
+import fidocadj.graphic.swing.Graphics2DSwing;
+import fidocadj.layers.LayerDesc;
+
+/** Keeps an image of each layer of the drawing, as it appears in the
+    visible part of the editor. The images are drawn over the background and
+    the grid, one after the other. The holes of the pads have their own
+    image, drawn over all the layers.
+
+    The images are valid as long as the drawing and the view do not change.
+    They allow to repaint the editor quickly when only the elements drawn
+    over the drawing (such as the ruler or the selection rectangle) change.
+    Hiding or showing a layer does not require to draw the other layers
+    again.
+
+    <pre>
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2007-2023 by Davide Bucci
+    </pre>
+*/
+class LayerImageCache
+{
+    // Index of the image containing the holes of the pads.
+    private static final int HOLES = LayerDesc.MAX_LAYERS;
+
+    private final BufferedImage[] images =
+        new BufferedImage[LayerDesc.MAX_LAYERS+1];
+    private final boolean[] valid = new boolean[LayerDesc.MAX_LAYERS+1];
+
+    // The visible layers when the holes have been drawn, since the holes of
+    // the pads in a hidden layer are not drawn.
+    private int holesVisibility;
+
+    // The view for which the images have been drawn.
+    private final Rectangle view = new Rectangle();
+    private double scaleX;
+    private double scaleY;
+    private double xCenter;
+    private double yCenter;
+    private double xMagnitude;
+    private double yMagnitude;
+    private int orientation;
+    private boolean mirror;
+
+    /** Forget all the images, since the drawing has changed.
+    */
+    public void invalidate()
+    {
+        Arrays.fill(valid, false);
+    }
+
+    /** Draw the drawing in the visible part of the editor, by employing the
+        images of the layers. The images which are not valid are drawn
+        again, but only if the whole visible part should be painted.
+        Otherwise, nothing is done and the drawing should be drawn directly.
+        @param g the graphic context of the editor.
+        @param gs the graphic context of the editor, as employed by the
+            primitives. It is used to draw the images and then restored.
+        @param visible the visible part of the editor.
+        @param cs the coordinate mapping.
+        @param dm the model containing the drawing.
+        @param drawingAgent the view employed to draw the layers.
+        @return true if the drawing has been drawn.
+    */
+    public boolean paint(Graphics2D g, Graphics2DSwing gs, Rectangle visible,
+        MapCoordinates cs, DrawingModel dm, Drawing drawingAgent)
+    {
+        if(visible.width<=0 || visible.height<=0) {
+            return false;
+        }
+        // On high resolution screens, the images contain one pixel for
+        // each pixel of the screen.
+        AffineTransform t=g.getTransform();
+        checkView(visible, t.getScaleX(), t.getScaleY(), cs);
+
+        List<LayerDesc> layers=dm.getLayers();
+        boolean holes=!dm.getHolePrimitives().isEmpty();
+        int visibility=0;
+        boolean complete=true;
+        for(int j=0; j<LayerDesc.MAX_LAYERS; ++j) {
+            if(!dm.containsLayer(j)) {
+                // An empty layer does not need its image.
+                images[j]=null;
+                valid[j]=false;
+            } else if(j<layers.size() && layers.get(j).isVisible()) {
+                visibility|=1<<j;
+                complete&=valid[j];
+            }
+        }
+        if(holes && holesVisibility!=visibility) {
+            valid[HOLES]=false;
+        }
+        complete&=!holes || valid[HOLES];
+
+        // If some images should be drawn again, it is better to draw
+        // directly the region to be painted, if it is small.
+        Rectangle clip=g.getClipBounds();
+        if(!complete && clip!=null && !clip.contains(visible)) {
+            return false;
+        }
+
+        // The primitives to be drawn in the images are determined once,
+        // with the clip region of the editor, which contains the visible
+        // part.
+        if(!complete) {
+            drawingAgent.beginLayers(gs, cs);
+        }
+        try {
+            for(int j=0; j<LayerDesc.MAX_LAYERS; ++j) {
+                if((visibility & (1<<j))==0) {
+                    continue;
+                }
+                if(!valid[j]) {
+                    drawImage(g, gs, j, cs, drawingAgent);
+                }
+                g.drawImage(images[j], view.x, view.y, view.width,
+                    view.height, null);
+            }
+            if(holes) {
+                if(!valid[HOLES]) {
+                    drawImage(g, gs, HOLES, cs, drawingAgent);
+                    holesVisibility=visibility;
+                }
+                g.drawImage(images[HOLES], view.x, view.y, view.width,
+                    view.height, null);
+            }
+        } finally {
+            if(!complete) {
+                drawingAgent.endLayers();
+            }
+        }
+        return true;
+    }
+
+    /** Check if the view has changed since the images have been drawn. If
+        it is the case, all the images are invalidated.
+        @param visible the visible part of the editor.
+        @param sx the horizontal scale of the screen.
+        @param sy the vertical scale of the screen.
+        @param cs the coordinate mapping.
+    */
+    private void checkView(Rectangle visible, double sx, double sy,
+        MapCoordinates cs)
+    {
+        if(!visible.equals(view) || sx!=scaleX || sy!=scaleY
+            || cs.getXCenter()!=xCenter || cs.getYCenter()!=yCenter
+            || cs.getXMagnitude()!=xMagnitude
+            || cs.getYMagnitude()!=yMagnitude
+            || cs.getOrientation()!=orientation || cs.getMirror()!=mirror)
+        {
+            invalidate();
+            view.setBounds(visible);
+            scaleX=sx;
+            scaleY=sy;
+            xCenter=cs.getXCenter();
+            yCenter=cs.getYCenter();
+            xMagnitude=cs.getXMagnitude();
+            yMagnitude=cs.getYMagnitude();
+            orientation=cs.getOrientation();
+            mirror=cs.getMirror();
+        }
+    }
+
+    /** Draw the image of a layer, or the one of the holes.
+        @param g the graphic context of the editor, whose settings are
+            employed.
+        @param gs the graphic context of the editor, as employed by the
+            primitives.
+        @param index the layer, or HOLES.
+        @param cs the coordinate mapping.
+        @param drawingAgent the view employed to draw the layer.
+    */
+    private void drawImage(Graphics2D g, Graphics2DSwing gs, int index,
+        MapCoordinates cs, Drawing drawingAgent)
+    {
+        int w=(int)Math.ceil(view.width*scaleX);
+        int h=(int)Math.ceil(view.height*scaleY);
+        BufferedImage img=images[index];
+        if(img==null || img.getWidth()!=w || img.getHeight()!=h) {
+            GraphicsConfiguration gc=g.getDeviceConfiguration();
+            img=gc.createCompatibleImage(w, h, Transparency.TRANSLUCENT);
+            images[index]=img;
+        }
+        Graphics2D ig=img.createGraphics();
+        try {
+            ig.setComposite(AlphaComposite.Clear);
+            ig.fillRect(0, 0, w, h);
+            ig.setComposite(AlphaComposite.SrcOver);
+            ig.setRenderingHints(g.getRenderingHints());
+            ig.scale(scaleX, scaleY);
+            ig.translate(-view.x, -view.y);
+            ig.setColor(Color.black);
+
+            gs.setGraphicContext(ig);
+            if(index==HOLES) {
+                drawingAgent.drawHoles(gs, cs);
+            } else {
+                drawingAgent.drawLayer(gs, cs, index);
+            }
+        } finally {
+            gs.setGraphicContext(g);
+            ig.dispose();
+        }
+        valid[index]=true;
+    }
+}
@@ -10,6 +10,8 @@ import fidocadj.circuit.controllers.EditorActions;
 import fidocadj.circuit.controllers.HandleActions;
 import fidocadj.timer.MyTimer;
 import fidocadj.geom.MapCoordinates;
+import fidocadj.graphic.RectangleG;
+import fidocadj.primitives.GraphicPrimitive;
 import fidocadj.globals.OSValidator;
 
 
@@ -89,19 +91,67 @@ public class MouseMoveClickHandler implements MouseMotionListener,
 
         // Handle Move command mode - update positions with center anchoring
         if (continuosMoveActions.isMovingSelected()) {
-            continuosMoveActions.updateMovePositions(
-                    circuitPanel.getMapCoordinates().unmapXsnap(xa),
-                    circuitPanel.getMapCoordinates().unmapYsnap(ya));
-            circuitPanel.repaint();
+            moveSelected(xa, ya);
             return;
         }
 
         // Normal continuous move (for drawing new primitives)
+        // Only the primitive being edited changes.
+        RectangleG before = getPrimEditBox();
         if (continuosMoveActions.continuosMove(
                 circuitPanel.getMapCoordinates(), xa, ya, toggle)) {
+            circuitPanel.forcesRepaintOverlays(union(before,
+                getPrimEditBox()));
+        }
+    }
+
+    /** Move the selected primitives in the Move command mode, and repaint
+        the region they occupied before and after the move.
+        @param xa the x coordinate of the pointer (screen).
+        @param ya the y coordinate of the pointer (screen).
+    */
+    private void moveSelected(int xa, int ya)
+    {
+        RectangleG before =
+            circuitPanel.getSelectionActions().getSelectedBoundingBox();
+        continuosMoveActions.updateMovePositions(
+                circuitPanel.getMapCoordinates().unmapXsnap(xa),
+                circuitPanel.getMapCoordinates().unmapYsnap(ya));
+        RectangleG after =
+            circuitPanel.getSelectionActions().getSelectedBoundingBox();
+        if (before == null || after == null) {
             circuitPanel.repaint();
+        } else {
+            after.add(before);
+            circuitPanel.forcesRepaint(after);
         }
     }
+
+    /** Get the region occupied by the primitive being edited.
+        @return a new rectangle in logical units, or null if no primitive
+            is being edited.
+    */
+    private RectangleG getPrimEditBox()
+    {
+        GraphicPrimitive p = continuosMoveActions.getPrimEdit();
+        return p == null ? null : p.getBoundingBox();
+    }
+
+    /** Calculate the union of two regions, any of which may be missing.
+        @param a the first region (it may be modified).
+        @param b the second region.
+        @return the union, or null if both regions are missing.
+    */
+    private static RectangleG union(RectangleG a, RectangleG b)
+    {
+        if (a == null) {
+            return b;
+        }
+        if (b != null) {
+            a.add(b);
+        }
+        return a;
+    }
     
     /** Check if the "toggle" keyboard button is pressed during the mouse
         operation. Toggle may be Control or Meta, depending on the operating
@@ -173,10 +223,7 @@ public class MouseMoveClickHandler implements MouseMotionListener,
         
         // Handle Move command mode - update positions during drag
         if (continuosMoveActions.isMovingSelected()) {
-            continuosMoveActions.updateMovePositions(
-                    circuitPanel.getMapCoordinates().unmapXsnap(px),
-                    circuitPanel.getMapCoordinates().unmapYsnap(py));
-            circuitPanel.repaint();
+            moveSelected(px, py);
             return;
         }
 
@@ -186,8 +233,10 @@ public class MouseMoveClickHandler implements MouseMotionListener,
         if((evt.getModifiersEx() & InputEvent.BUTTON3_DOWN_MASK)!=0 ||
             evt.isShiftDown())
         {
+            Rectangle r = circuitPanel.getRuler().getBounds();
             circuitPanel.getRuler().setRulerEnd(px, py);
-            circuitPanel.repaint();
+            r.add(circuitPanel.getRuler().getBounds());
+            circuitPanel.forcesRepaintOverlays(r.x, r.y, r.width, r.height);
             return;
         }
         
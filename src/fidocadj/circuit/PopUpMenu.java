@@ -562,6 +562,7 @@ public class PopUpMenu implements ActionListener
                         circuitPanel.getMapCoordinates()
                                 .unmapYnosnap(getMenuY()),
                         1);
+                    circuitPanel.getDrawingModel().updatePrimitive(poly);
                     undoActions.saveUndoState();
                     circuitPanel.repaint();
                 } else if(selectionActions.getFirstSelectedPrimitive()
@@ -575,6 +576,7 @@ public class PopUpMenu implements ActionListener
                         circuitPanel.getMapCoordinates()
                                 .unmapYnosnap(getMenuY()),
                         1);
+                    circuitPanel.getDrawingModel().updatePrimitive(curve);
                     undoActions.saveUndoState();
                     circuitPanel.repaint();
                 }
@@ -589,6 +591,7 @@ public class PopUpMenu implements ActionListener
                             .unmapXsnap(getMenuX()),
                         circuitPanel.getMapCoordinates()
                                 .unmapYsnap(getMenuY()));
+                    circuitPanel.getDrawingModel().updatePrimitive(poly);
                     undoActions.saveUndoState();
                     circuitPanel.repaint();
                 } else if(selectionActions.getFirstSelectedPrimitive() 
@@ -601,6 +604,7 @@ public class PopUpMenu implements ActionListener
                             .unmapXsnap(getMenuX()),
                         circuitPanel.getMapCoordinates()
                                 .unmapYsnap(getMenuY()));
+                    circuitPanel.getDrawingModel().updatePrimitive(poly);
                     undoActions.saveUndoState();
                     circuitPanel.repaint();
                 }
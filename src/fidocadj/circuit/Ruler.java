@@ -35,6 +35,9 @@ public class Ruler
     // Font to be used to draw the ruler.
     private static final String rulerFont = "Lucida Sans Regular";
 
+    // Maximum width of the box containing the measurement, in pixels.
+    private static final int MAX_BOX_WIDTH = 150;
+
     // Color of elements during editing.
     private final Color rulerColor;
     private final Color textColor;
@@ -192,6 +195,21 @@ public class Ruler
         g2d.drawString(t2, ex + 10, ey + 20);
     }
 
+    /** Get the region of the screen occupied by the ruler, including the
+        box with the measurement. The size of the text is known only when
+        it is drawn, so the box is estimated generously.
+        @return a new rectangle, in pixels.
+    */
+    public Rectangle getBounds()
+    {
+        Rectangle r=new Rectangle(rulerStartX, rulerStartY, 0, 0);
+        r.add(rulerEndX, rulerEndY);
+        // The tics extend at most 10 pixels from the ruler.
+        r.grow(12, 12);
+        r.add(new Rectangle(rulerEndX+8, rulerEndY-2, MAX_BOX_WIDTH, 28));
+        return r;
+    }
+
     /** Define the coordinates of the starting point of the ruler.
         @param sx the x coordinate.
         @param sy the y coordinate.
@@ -0,0 +1,384 @@
+package fidocadj.circuit;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.image.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+import fidocadj.circuit.controllers.ParserActions;
+import fidocadj.circuit.model.DrawingModel;
+import fidocadj.circuit.views.Drawing;
+import fidocadj.geom.MapCoordinates;
+import fidocadj.graphic.swing.Graphics2DSwing;
+import fidocadj.layers.LayerDesc;
+import fidocadj.primitives.GraphicPrimitive;
+import fidocadj.primitives.MacroDesc;
+
+/** Keeps the drawing shown in the editor as a set of square tiles, so that
+    the regions exposed while scrolling can be painted without drawing
+    again the primitives they contain. The tiles contain the layers and the
+    holes of the pads, over a transparent background.
+
+    The tiles are drawn by a background thread, around the region visible
+    in the editor. The thread employs a copy of the drawing (a snapshot),
+    since the drawing may be modified in the meanwhile. When the drawing
+    changes, the snapshot and all the tiles are discarded. The regions for
+    which the tiles are not available yet are drawn directly. The least
+    recently used tiles are discarded when the memory employed exceeds a
+    given size.
+
+    <pre>
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2007-2023 by Davide Bucci
+    </pre>
+*/
+class TileCache
+{
+    // Size of the tiles, in pixels of the editor.
+    private static final int TILE = 256;
+
+    /** The view for which a tile has been drawn, and its position.
+    */
+    private static final class Key
+    {
+        final long generation;
+        final double xMagnitude;
+        final double yMagnitude;
+        final double xCenter;
+        final double yCenter;
+        final int orientation;
+        final boolean mirror;
+        final double scaleX;
+        final double scaleY;
+        final int tx;
+        final int ty;
+
+        Key(long gen, MapCoordinates cs, double sx, double sy, int x, int y)
+        {
+            generation=gen;
+            xMagnitude=cs.getXMagnitude();
+            yMagnitude=cs.getYMagnitude();
+            xCenter=cs.getXCenter();
+            yCenter=cs.getYCenter();
+            orientation=cs.getOrientation();
+            mirror=cs.getMirror();
+            scaleX=sx;
+            scaleY=sy;
+            tx=x;
+            ty=y;
+        }
+
+        @Override public boolean equals(Object o)
+        {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key k=(Key)o;
+            return generation==k.generation && tx==k.tx && ty==k.ty
+                && xMagnitude==k.xMagnitude && yMagnitude==k.yMagnitude
+                && xCenter==k.xCenter && yCenter==k.yCenter
+                && orientation==k.orientation && mirror==k.mirror
+                && scaleX==k.scaleX && scaleY==k.scaleY;
+        }
+
+        @Override public int hashCode()
+        {
+            return Objects.hash(generation, xMagnitude, yMagnitude, xCenter,
+                yCenter, orientation, mirror, scaleX, scaleY, tx, ty);
+        }
+    }
+
+    /** The copy of the drawing employed by the background thread.
+    */
+    private static final class Snapshot
+    {
+        final long generation;
+        final DrawingModel model;
+        final Drawing drawing;
+
+        Snapshot(long gen, DrawingModel dm)
+        {
+            generation=gen;
+            model=dm;
+            drawing=new Drawing(dm);
+            drawing.setCulling(true);
+        }
+    }
+
+    // The tiles, from the least recently used.
+    private final LinkedHashMap<Key, BufferedImage> tiles=
+        new LinkedHashMap<Key, BufferedImage>(64, 0.75f, true);
+    private final Set<Key> pending=new HashSet<Key>();
+    private long usedBytes;
+    private long maxBytes=64L*1024*1024;
+
+    // Incremented each time the drawing changes.
+    private volatile long generation;
+    // Accessed only by the background thread.
+    private Snapshot snapshot;
+    // The generation for which a snapshot has been asked.
+    private long snapshotAsked=-1;
+
+    private ExecutorService renderer;
+    private Color selectedColor=Color.GREEN;
+
+    /** Set the maximum memory employed by the tiles.
+        @param mb the size in megabytes.
+    */
+    public void setMaxSize(int mb)
+    {
+        synchronized(tiles) {
+            maxBytes=Math.max(1, mb)*1024L*1024L;
+            evict();
+        }
+    }
+
+    /** Set the color employed for the selected primitives.
+        @param c the color.
+    */
+    public void setSelectedColor(Color c)
+    {
+        selectedColor=c;
+    }
+
+    /** Forget all the tiles, since the drawing has changed.
+    */
+    public void invalidate()
+    {
+        synchronized(tiles) {
+            ++generation;
+            tiles.clear();
+            pending.clear();
+            usedBytes=0;
+        }
+    }
+
+    /** Paint the drawing in a region of the editor by employing the tiles.
+        The missing tiles are asked to the background thread, together with
+        the ones around the visible part of the editor.
+        @param g the graphic context of the editor.
+        @param visible the visible part of the editor.
+        @param cs the coordinate mapping.
+        @param dm the model containing the drawing.
+        @param pa the parser associated to the model, employed to obtain a
+            copy of the drawing.
+        @return the part of the region which has not been painted, since
+            some tiles are missing, or null if everything has been painted.
+    */
+    public Shape paint(Graphics2D g, Rectangle visible, MapCoordinates cs,
+        DrawingModel dm, ParserActions pa)
+    {
+        Rectangle clip=g.getClipBounds();
+        if(clip==null) {
+            clip=visible;
+        }
+        AffineTransform t=g.getTransform();
+        double sx=t.getScaleX();
+        double sy=t.getScaleY();
+        long gen=generation;
+        if(snapshotAsked!=gen) {
+            askSnapshot(gen, dm, pa);
+        }
+
+        Area missing=null;
+        List<Key> toDraw=new ArrayList<Key>();
+        synchronized(tiles) {
+            for(int ty=Math.floorDiv(clip.y, TILE);
+                ty*TILE<clip.y+clip.height; ++ty)
+            {
+                for(int tx=Math.floorDiv(clip.x, TILE);
+                    tx*TILE<clip.x+clip.width; ++tx)
+                {
+                    Key k=new Key(gen, cs, sx, sy, tx, ty);
+                    BufferedImage img=tiles.get(k);
+                    if(img==null) {
+                        Rectangle r=new Rectangle(tx*TILE, ty*TILE, TILE,
+                            TILE);
+                        if(missing==null) {
+                            missing=new Area(r);
+                        } else {
+                            missing.add(new Area(r));
+                        }
+                    } else {
+                        g.drawImage(img, tx*TILE, ty*TILE, TILE, TILE, null);
+                    }
+                }
+            }
+            // Ask the tiles in the visible part and around it.
+            Rectangle around=new Rectangle(visible);
+            around.grow(TILE, TILE);
+            for(int ty=Math.floorDiv(around.y, TILE);
+                ty*TILE<around.y+around.height; ++ty)
+            {
+                for(int tx=Math.floorDiv(around.x, TILE);
+                    tx*TILE<around.x+around.width; ++tx)
+                {
+                    Key k=new Key(gen, cs, sx, sy, tx, ty);
+                    if(!tiles.containsKey(k) && pending.add(k)) {
+                        toDraw.add(k);
+                    }
+                }
+            }
+        }
+        if(!toDraw.isEmpty()) {
+            askTiles(toDraw, new MapCoordinates(cs), g.getRenderingHints(),
+                g.getDeviceConfiguration());
+        }
+        return missing;
+    }
+
+    /** Ask the background thread to prepare a copy of the drawing. The
+        text of the drawing and a copy of the layers are obtained
+        immediately. The configuration commands in the text are applied
+        only to the copy of the layers, and not to the global settings,
+        which belong to the editor.
+        @param gen the generation of the copy.
+        @param dm the model containing the drawing.
+        @param pa the parser associated to the model.
+    */
+    private void askSnapshot(final long gen, DrawingModel dm,
+        ParserActions pa)
+    {
+        snapshotAsked=gen;
+        final StringBuffer text=pa.getText(true);
+        List<GraphicPrimitive> v=dm.getPrimitiveVector();
+        final boolean[] selected=new boolean[v.size()];
+        for(int i=0; i<selected.length; ++i) {
+            selected[i]=v.get(i).isSelected();
+        }
+        final Map<String, MacroDesc> library=
+            MacroDesc.copyLibrary(dm.getLibrary());
+        final List<LayerDesc> layers=new ArrayList<LayerDesc>();
+        for(LayerDesc l : dm.getLayers()) {
+            layers.add(new LayerDesc(l));
+        }
+
+        getRenderer().execute(() -> {
+            if(gen!=generation) {
+                return;
+            }
+            DrawingModel copy=new DrawingModel();
+            copy.setLibrary(library);
+            copy.setLayers(layers);
+            ParserActions p=new ParserActions(copy);
+            p.setApplySettings(false);
+            p.parseString(text);
+            // The selected primitives are drawn with a different color.
+            List<GraphicPrimitive> w=copy.getPrimitiveVector();
+            if(w.size()==selected.length) {
+                for(int i=0; i<selected.length; ++i) {
+                    w.get(i).setSelected(selected[i]);
+                }
+            }
+            snapshot=new Snapshot(gen, copy);
+        });
+    }
+
+    /** Ask the background thread to draw some tiles.
+        @param keys the tiles.
+        @param cs the coordinate mapping.
+        @param hints the settings of the graphic context of the editor.
+        @param gc the configuration of the screen.
+    */
+    private void askTiles(List<Key> keys, final MapCoordinates cs,
+        final RenderingHints hints, final GraphicsConfiguration gc)
+    {
+        final Graphics2DSwing gs=new Graphics2DSwing();
+        gs.setSelectedColor(selectedColor);
+        for(final Key k : keys) {
+            getRenderer().execute(() -> drawTile(k, cs, hints, gc, gs));
+        }
+    }
+
+    /** Draw a tile. This is done by the background thread.
+        @param k the tile.
+        @param cs the coordinate mapping.
+        @param hints the settings of the graphic context of the editor.
+        @param gc the configuration of the screen.
+        @param gs the graphic context employed by the primitives.
+    */
+    private void drawTile(Key k, MapCoordinates cs, RenderingHints hints,
+        GraphicsConfiguration gc, Graphics2DSwing gs)
+    {
+        Snapshot s=snapshot;
+        if(k.generation!=generation || s==null || s.generation!=k.generation)
+        {
+            synchronized(tiles) {
+                pending.remove(k);
+            }
+            return;
+        }
+        int w=(int)Math.ceil(TILE*k.scaleX);
+        int h=(int)Math.ceil(TILE*k.scaleY);
+        BufferedImage img=gc.createCompatibleImage(w, h,
+            Transparency.TRANSLUCENT);
+        Graphics2D ig=img.createGraphics();
+        try {
+            ig.setRenderingHints(hints);
+            ig.scale(k.scaleX, k.scaleY);
+            ig.translate(-k.tx*TILE, -k.ty*TILE);
+            ig.clipRect(k.tx*TILE, k.ty*TILE, TILE, TILE);
+            ig.setColor(Color.black);
+            gs.setGraphicContext(ig);
+            gs.setZoom(cs.getXMagnitude());
+            // The drawing changes the extremes tracked by the mapping.
+            s.drawing.draw(gs, new MapCoordinates(cs));
+        } finally {
+            ig.dispose();
+        }
+        synchronized(tiles) {
+            if(pending.remove(k)) {
+                tiles.put(k, img);
+                usedBytes+=4L*w*h;
+                evict();
+            }
+        }
+    }
+
+    /** Discard the least recently used tiles, until the memory employed is
+        below the maximum size. The tiles should be locked.
+    */
+    private void evict()
+    {
+        Iterator<BufferedImage> i=tiles.values().iterator();
+        while(usedBytes>maxBytes && i.hasNext()) {
+            BufferedImage img=i.next();
+            usedBytes-=4L*img.getWidth()*img.getHeight();
+            i.remove();
+        }
+    }
+
+    /** Get the background thread, which is created the first time.
+        @return the executor corresponding to the thread.
+    */
+    private ExecutorService getRenderer()
+    {
+        if(renderer==null) {
+            renderer=Executors.newSingleThreadExecutor((r) -> {
+                Thread th=new Thread(r, "FidoCadJ tile renderer");
+                th.setDaemon(true);
+                th.setPriority(Thread.MIN_PRIORITY);
+                return th;
+            });
+        }
+        return renderer;
+    }
+}
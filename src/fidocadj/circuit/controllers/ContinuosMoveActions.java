@@ -477,6 +477,7 @@ public class ContinuosMoveActions extends ElementsEdtActions
             int currentX = g.getFirstPoint().x;
             int currentY = g.getFirstPoint().y;
             g.movePrimitive(newX - currentX, newY - currentY);
+            dmp.updatePrimitive(g);
         }
     }
 
@@ -514,6 +515,7 @@ public class ContinuosMoveActions extends ElementsEdtActions
             int currentX = g.getFirstPoint().x;
             int currentY = g.getFirstPoint().y;
             g.movePrimitive(originalPos.x - currentX, originalPos.y - currentY);
+            dmp.updatePrimitive(g);
         }
 
         isMovingSelected = false;
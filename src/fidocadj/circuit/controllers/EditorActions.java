@@ -94,6 +94,7 @@ public class EditorActions
             public void doAction(GraphicPrimitive g)
             {
                 g.rotatePrimitive(false, ix, iy);
+                drawingModel.updatePrimitive(g);
             }
         });
 
@@ -111,6 +112,7 @@ public class EditorActions
             public void doAction(GraphicPrimitive g)
             {
                 g.movePrimitive(dx, dy);
+                drawingModel.updatePrimitive(g);
             }
         });
 
@@ -132,6 +134,7 @@ public class EditorActions
             public void doAction(GraphicPrimitive g)
             {
                 g.mirrorPrimitive(ix);
+                drawingModel.updatePrimitive(g);
             }
         });
 
@@ -152,7 +155,7 @@ public class EditorActions
 
         for (i=0; i<v.size(); ++i){
             if(v.get(i).isSelected()) {
-                v.remove(v.get(i--));
+                drawingModel.removePrimitive(v.get(i--));
             }
         }
         if (saveState && undoActions!=null) {
@@ -256,10 +259,14 @@ public class EditorActions
         List<LayerDesc> layerV=drawingModel.getLayers();
 
         /*  The search method is very simple: we compute the distance of the
-            given point from each primitive and we retain the minimum value, if
-            it is less than a given tolerance.
+            given point from each primitive close enough to it and we retain
+            the minimum value, if it is less than a given tolerance.
+            The spatial index gives the candidates in the drawing order, so
+            that in case of ties the primitive shown on top is chosen.
         */
-        for  (GraphicPrimitive g: drawingModel.getPrimitiveVector()) {
+        for  (GraphicPrimitive g: drawingModel.getPrimitivesNear(px, py,
+            tolerance))
+        {
             layer = g.getLayer();
             if(layerV.get(layer).isVisible() || g instanceof PrimitiveMacro) {
                 distance=g.getDistanceToPoint(px,py);
@@ -339,6 +346,7 @@ public class EditorActions
             {
                 int dx = finalLeftmost - g.getPosition().x;
                 g.movePrimitive(dx, 0);
+                drawingModel.updatePrimitive(g);
             }
         });
 
@@ -375,6 +383,7 @@ public class EditorActions
                 int dx = finalRightmost -
                         (g.getPosition().x + g.getSize().width);
                 g.movePrimitive(dx, 0);
+                drawingModel.updatePrimitive(g);
             }
         });
 
@@ -410,6 +419,7 @@ public class EditorActions
             {
                 int dy = finalTopmost - g.getPosition().y;
                 g.movePrimitive(0, dy);
+                drawingModel.updatePrimitive(g);
             }
         });
 
@@ -446,6 +456,7 @@ public class EditorActions
                 int dy = finalBottommost -
                         (g.getPosition().y + g.getSize().height);
                 g.movePrimitive(0, dy);
+                drawingModel.updatePrimitive(g);
             }
         });
 
@@ -490,6 +501,7 @@ public class EditorActions
                         g.getPosition().y + (g.getSize().height / 2);
                 int dy = verticalCenter - currentCenterY;
                 g.movePrimitive(0, dy);
+                drawingModel.updatePrimitive(g);
             }
         });
 
@@ -534,6 +546,7 @@ public class EditorActions
                         g.getPosition().x + (g.getSize().width / 2);
                 int dx = horizontalCenter - currentCenterX;
                 g.movePrimitive(dx, 0);
+                drawingModel.updatePrimitive(g);
             }
         });
 
@@ -587,6 +600,7 @@ public class EditorActions
             GraphicPrimitive g = selectedPrimitives.get(i);
             int dx = targetX - g.getPosition().x;
             g.movePrimitive(dx, 0);
+            drawingModel.updatePrimitive(g);
         }
 
         // Save the state for the undo operation
@@ -639,6 +653,7 @@ public class EditorActions
             GraphicPrimitive g = selectedPrimitives.get(i);
             int dy = targetY - g.getPosition().y;
             g.movePrimitive(0, dy);
+            drawingModel.updatePrimitive(g);
         }
 
         // Save the state for the undo operation
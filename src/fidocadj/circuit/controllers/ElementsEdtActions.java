@@ -330,7 +330,7 @@ public class ElementsEdtActions
                     
                     if (ret == false) {
                         // remove the text if user don't confirm
-                        dmp.getPrimitiveVector().remove(newtext);
+                        dmp.removePrimitive(newtext);
                     }
                 }
                 break;
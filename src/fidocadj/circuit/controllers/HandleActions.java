@@ -129,6 +129,7 @@ public class HandleActions
         if (dx == 0 && dy == 0) {
             return;
         }
+        RectangleG before = selectionActions.getSelectedBoundingBox();
 
         // First, check if all primitives can move without going out of bounds
         boolean canMoveAll = true;
@@ -160,11 +161,30 @@ public class HandleActions
                         g.virtualPoint[j].y += dy;
                     }
                     g.setChanged(true);
+                    drawingModel.updatePrimitive(g);
                 }
             }
         }
 
-        cc.forcesRepaint();
+        // Only the region occupied by the primitives before and after the
+        // move needs to be drawn again.
+        RectangleG after = selectionActions.getSelectedBoundingBox();
+        if (before == null || after == null) {
+            cc.forcesRepaint();
+        } else {
+            after.add(before);
+            cc.forcesRepaint(after);
+        }
+    }
+
+    /** Check if the selected primitives are being modified with the mouse,
+        by dragging one of their handles or the primitives themselves.
+        @return true if a handle or the primitives are being dragged.
+    */
+    public boolean isDragging()
+    {
+        return hasMoved && (handleBeingDragged>=0
+            || handleBeingDragged==GraphicPrimitive.DRAG_PRIMITIVE);
     }
 
     /** Start dragging handle. Check if the pointer is on the handle of a
@@ -179,15 +199,11 @@ public class HandleActions
     public void dragHandleStart(int px, int py, int tolerance, boolean multiple,
         MapCoordinates cs)
     {
-        int i;
-        int isel=0;
         int mindistance=Integer.MAX_VALUE;
-        int distance=mindistance;
-        int layer;
+        int distance;
 
         hasMoved=false;
 
-        GraphicPrimitive gp;
         List<LayerDesc> layerV=drawingModel.getLayers();
 
         oldpx=cs.unmapXnosnap(px);
@@ -198,40 +214,42 @@ public class HandleActions
         int sptol=Math.abs(cs.unmapXnosnap(px+tolerance)-cs.unmapXnosnap(px));
         if (sptol<2) { sptol=2; }
 
-        // Search for the closest primitive to the given point
-        // Performs a cycle through all primitives and check their
-        // distance.
-        for (i=0; i<drawingModel.getPrimitiveVector().size(); ++i){
-            gp=(GraphicPrimitive)drawingModel.getPrimitiveVector().get(i);
-            layer= gp.getLayer();
-
-            // Does not allow for selecting an invisible primitive
-            if(layer<layerV.size() &&
-                !((LayerDesc)layerV.get(layer)).isVisible() &&
-                !(gp instanceof PrimitiveMacro))
-            {
+        // Verify if the pointer is on a handle of a selected primitive.
+        // This is a cheap test, done only on the selected primitives.
+        handleBeingDragged=GraphicPrimitive.NO_DRAG;
+        for (GraphicPrimitive g: drawingModel.getPrimitiveVector()) {
+            if(!g.isSelected() || !isSelectable(g, layerV)) {
                 continue;
             }
+            int h=g.onHandle(cs, px, py);
+            if(h!=GraphicPrimitive.NO_DRAG) {
+                handleBeingDragged=h;
+                primBeingDragged=g;
+            }
+        }
 
-            if(gp.isSelected()){
-                // Verify if the pointer is on a handle
-                handleBeingDragged=gp.onHandle(cs, px, py);
-
-                if(handleBeingDragged!=GraphicPrimitive.NO_DRAG) {
-                    primBeingDragged=gp;
+        // Search for the closest primitive to the given point. Only the
+        // primitives close to it are checked, thanks to the spatial index.
+        // They are given in the drawing order, so in case of ties the
+        // primitive shown on top is chosen.
+        GraphicPrimitive closest=null;
+        if(handleBeingDragged==GraphicPrimitive.NO_DRAG) {
+            for (GraphicPrimitive g: drawingModel.getPrimitivesNear(oldpx,
+                oldpy, sptol))
+            {
+                if(!isSelectable(g, layerV)) {
                     continue;
                 }
-            }
-            distance=gp.getDistanceToPoint(oldpx,oldpy);
-            if (distance<=mindistance) {
-                isel=i;
-                mindistance=distance;
+                distance=g.getDistanceToPoint(oldpx,oldpy);
+                if (distance<=mindistance) {
+                    closest=g;
+                    mindistance=distance;
+                }
             }
         }
         // Verify if the whole primitive should be drag
-        if (mindistance<sptol && handleBeingDragged<0){
-            primBeingDragged=
-                (GraphicPrimitive)drawingModel.getPrimitiveVector().get(isel);
+        if (mindistance<sptol && closest!=null){
+            primBeingDragged=closest;
             if (!multiple && !primBeingDragged.isSelected()) {
                 selectionActions.setSelectionAll(false);
             }
@@ -250,6 +268,20 @@ public class HandleActions
         }
     }
 
+    /** Check if a primitive can be selected with the mouse: invisible
+        primitives can not, except macros.
+        @param g the primitive to be checked.
+        @param layerV the list of the layers.
+        @return true if the primitive can be selected.
+    */
+    private static boolean isSelectable(GraphicPrimitive g,
+        List<LayerDesc> layerV)
+    {
+        int layer=g.getLayer();
+        return layer>=layerV.size() || layerV.get(layer).isVisible() ||
+            g instanceof PrimitiveMacro;
+    }
+
     /** End dragging handle.
         @param cC the editor object
         @param px the (screen) x coordinate of the pointer.
@@ -374,9 +406,9 @@ public class HandleActions
                     d=Math.max(d, Math.abs(yb-ya));
 
                     if (flip) {
-                        editorObject.forcesRepaint();
+                        editorObject.forcesRepaintOverlays();
                     } else {
-                        editorObject.forcesRepaint(a,b,c+10,d+10);
+                        editorObject.forcesRepaintOverlays(a,b,c+10,d+10);
                     }
                     return;
                 }
@@ -389,10 +421,9 @@ public class HandleActions
             return;
         }
 
-        if(!firstDrag) {
-            editorObject.forcesRepaint();
-        }
+        boolean repaint=!firstDrag;
         firstDrag=false;
+        RectangleG before=primBeingDragged.getBoundingBox();
 
         // Here we adjust the new positions for the handle being drag...
         primBeingDragged.virtualPoint[handleBeingDragged].x=cs.unmapXsnap(px);
@@ -413,5 +444,12 @@ public class HandleActions
         }
         primBeingDragged.virtualPoint[handleBeingDragged].y=cs.unmapYsnap(ymm);
         primBeingDragged.setChanged(true);
+        drawingModel.updatePrimitive(primBeingDragged);
+
+        if(repaint) {
+            RectangleG r=primBeingDragged.getBoundingBox();
+            r.add(before);
+            editorObject.forcesRepaint(r);
+        }
     }
 }
\ No newline at end of file
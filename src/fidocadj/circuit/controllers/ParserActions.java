@@ -3,6 +3,8 @@ package fidocadj.circuit.controllers;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
 
 import fidocadj.circuit.model.DrawingModel;
 import fidocadj.export.ExportGraphic;
@@ -22,7 +24,9 @@ import fidocadj.primitives.PrimitivePCBPad;
 import fidocadj.primitives.PrimitiveRectangle;
 import fidocadj.primitives.PrimitiveOval;
 import fidocadj.primitives.MacroDesc;
+import fidocadj.primitives.LibraryIndex;
 import fidocadj.primitives.PrimitivePolygon;
+import fidocadj.primitives.TokenLine;
 
 /** ParserActions: perform parsing of FidoCadJ code.
     In general, those routines are constructed such as they are relatively
@@ -63,9 +67,55 @@ public class ParserActions
     // to the text generated).
     static final boolean useWindowsLineFeed=false;
 
+    // Size of the buffer used when reading a circuit from a stream.
+    private static final int READ_BUFFER_SIZE=8192;
+
+    // Circuits containing at least this number of characters are split in
+    // chunks which are parsed in parallel. Smaller ones are not worth it.
+    private static final int PARALLEL_THRESHOLD=1<<20;
+
+    // Minimum number of characters in a chunk parsed in parallel.
+    private static final int MIN_CHUNK_SIZE=1<<18;
+
+    // Number of chunks for each thread available, so that the work can
+    // be balanced even if some chunks are slower to parse than others.
+    private static final int CHUNKS_PER_THREAD=4;
+
+    // Codes of the commands recognized by the parser (see commandCode()).
+    private static final int CMD_LI='L'<<8|'I';
+    private static final int CMD_BE='B'<<8|'E';
+    private static final int CMD_MC='M'<<8|'C';
+    private static final int CMD_TE='T'<<8|'E';
+    private static final int CMD_TY='T'<<8|'Y';
+    private static final int CMD_PL='P'<<8|'L';
+    private static final int CMD_PA='P'<<8|'A';
+    private static final int CMD_SA='S'<<8|'A';
+    private static final int CMD_EV='E'<<8|'V';
+    private static final int CMD_EP='E'<<8|'P';
+    private static final int CMD_RV='R'<<8|'V';
+    private static final int CMD_RP='R'<<8|'P';
+    private static final int CMD_PV='P'<<8|'V';
+    private static final int CMD_PP='P'<<8|'P';
+    private static final int CMD_CV='C'<<8|'V';
+    private static final int CMD_CP='C'<<8|'P';
+    private static final int CMD_FCJ='F'<<16|'C'<<8|'J';
+    private static final int CMD_FJC='F'<<16|'J'<<8|'C';
+
     // Name of the last file opened
     public String openFileName = null;
 
+    // Libraries being read in parallel, in the order they have been
+    // requested, or null if each library is read immediately.
+    private List<PendingLibrary> pendingLibraries;
+
+    // If false, the line widths and the connection size given by the
+    // configuration commands (FJC) are only kept here and Globals is not
+    // changed. The values are -1 if they have not been given.
+    private boolean applySettings=true;
+    private double lineWidth=-1.0;
+    private double lineWidthCircles=-1.0;
+    private double connectionSize=-1.0;
+
     /** Standard constructor: provide the database class.
         @param pp the drawing model (database of the circuit).
     */
@@ -74,6 +124,50 @@ public class ParserActions
         model=pp;
     }
 
+    /** Choose if the line widths and the connection size given by the
+        configuration commands (FJC) of the circuits parsed should be
+        applied to the global settings (this is the default). If not, they
+        are only kept by the parser, so that many circuits can be parsed at
+        the same time.
+        @param a true if the settings should be applied.
+    */
+    public void setApplySettings(boolean a)
+    {
+        applySettings=a;
+    }
+
+    /** Get the width of the lines given by the circuits parsed.
+        @return the width, or -1 if it has not been given.
+    */
+    public double getLineWidth()
+    {
+        return lineWidth;
+    }
+
+    /** Get the width of the lines of the ovals given by the circuits parsed.
+        @return the width, or -1 if it has not been given.
+    */
+    public double getLineWidthCircles()
+    {
+        return lineWidthCircles;
+    }
+
+    /** Get the diameter of the connections given by the circuits parsed.
+        @return the diameter, or -1 if it has not been given.
+    */
+    public double getConnectionSize()
+    {
+        return connectionSize;
+    }
+
+    /** Get the drawing model on which the parser operates.
+        @return the drawing model.
+    */
+    DrawingModel getModel()
+    {
+        return model;
+    }
+
     /** Parse the circuit contained in the StringBuffer specified.
         This function resets the primitive database and then parses the circuit.
 
@@ -81,7 +175,7 @@ public class ParserActions
     */
     public void parseString(StringBuffer s)
     {
-        model.getPrimitiveVector().clear();
+        model.clear();
         addString(s, false);
         model.setChanged(true);
     }
@@ -153,6 +247,34 @@ public class ParserActions
         return txt;
     }
 
+    /** Create a copy of the drawing which can be drawn by another thread at
+        the same time as the original. The primitives keep some data about
+        the last time they have been drawn, so they are created again from
+        their description. The library is copied as well, since the parsed
+        contents of the macros are shared by all their instances (see
+        MacroDesc). The layers and the global settings are shared with the
+        original drawing and should not be modified while the copy is used.
+        @return the copy of the drawing.
+    */
+    public DrawingModel createDrawingCopy()
+    {
+        DrawingModel qQ=new DrawingModel();
+
+        qQ.setLibrary(MacroDesc.copyLibrary(model.getLibrary()));
+        qQ.setLayers(model.getLayers());
+
+        // The configuration lines (see registerConfiguration) are not
+        // needed, since the global settings are already active and the
+        // layers are shared.
+        StringBuffer s=new StringBuffer();
+        for (GraphicPrimitive g:model.getPrimitiveVector()){
+            s.append(g.toString(true));
+        }
+        new ParserActions(qQ).parseString(s);
+        qQ.setTextFont(model.getTextFont(), model.getTextFontSize(), null);
+        return qQ;
+    }
+
     /** Get the FidoCadJ text file.
 
         @param extensions specify if FCJ extensions should be used
@@ -256,435 +378,795 @@ public class ParserActions
     public void addString(StringBuffer s, boolean selectNew)
         //throws IOException
     {
-        int i; // Character pointer within the string
-        int j; // Token counter within the string
-        boolean hasFCJ=false; // The last primitive had FCJ extensions
-        StringBuffer token=new StringBuffer();
-        String macroFont = model.getTextFont();
-        int macroFontSize = model.getTextFontSize();
+        int len=s.length();
+        if(shouldParseInParallel(len)) {
+            char[] text=new char[len];
+            s.getChars(0, len, text, 0);
+            addCharsInParallel(text, len, selectNew);
+            return;
+        }
+        char[] buffer=new char[Math.min(len, READ_BUFFER_SIZE)];
+        synchronized(this) {
+            LineParser lp=new LineParser(selectNew);
+            for(int i=0; i<len; i+=buffer.length) {
+                int n=Math.min(buffer.length, len-i);
+                s.getChars(i, i+n, buffer, 0);
+                lp.addChars(buffer, 0, n);
+            }
+            lp.finish();
+        }
+    }
 
-        // Flag indicating that the line is already too long and should not be
-        // processed anymore:
-        boolean lineTooLong=false;
+    /** Parse the circuit read from the given Reader, resetting the primitive
+        database. The text is read by blocks and each line is processed as
+        soon as it is complete, so the whole file never needs to be kept in
+        memory.
 
-        GraphicPrimitive g = new PrimitiveLine(macroFont, macroFontSize);
+        @param r the Reader providing the circuit.
+        @throws IOException if the circuit can not be read, or if the
+            thread has been interrupted.
+    */
+    public void parseReader(Reader r)
+        throws IOException
+    {
+        model.clear();
+        addReader(r, false);
+        model.setChanged(true);
+    }
 
-        // The tokenized command string.
-        String[] tokens=new String[MAX_TOKENS];
+    /** Parse the circuit read from the given channel, resetting the primitive
+        database. The characters are decoded using the standard FidoCadJ
+        encoding. If the channel is a big file, it is read completely and
+        then parsed in parallel, otherwise it is parsed while it is read.
 
-        // Name and value fields for a primitive. Those arrays will contain
-        // the tokenized TJ commands which follow an appropriate FCJ modifier.
-        String[] name=null;
-        String[] value=null;
+        @param ch the channel providing the circuit.
+        @throws IOException if the circuit can not be read, or if the
+            thread has been interrupted.
+    */
+    public void parseChannel(ReadableByteChannel ch)
+        throws IOException
+    {
+        Reader r=Channels.newReader(ch, Globals.encoding);
+        long size=ch instanceof FileChannel?((FileChannel)ch).size():0;
+        if(size>Integer.MAX_VALUE-16 || !shouldParseInParallel((int)size)) {
+            parseReader(r);
+            return;
+        }
+        // With the usual encodings, there are never more characters than
+        // bytes, but the buffer is enlarged if needed.
+        char[] text=new char[(int)size];
+        int len=0;
+        int n;
+        while((n=r.read(text, len, text.length-len))>=0) {
+            len+=n;
+            if(len==text.length) {
+                if(text.length>=Integer.MAX_VALUE/2) {
+                    throw new IOException("File too big");
+                }
+                text=Arrays.copyOf(text, text.length*2);
+            }
+        }
+        model.clear();
+        addCharsInParallel(text, len, false);
+        model.setChanged(true);
+    }
 
-        int vn=0;
-        int vv=0;
+    /** Parse the circuit read from the given Reader and add it to the current
+        primitive database.
 
-        // Since the modifier FCJ follow the command, we need to save the
-        // tokens of the line previously read, as well as the number of
-        // tokens found in it.
-        String[] oldTokens=new String[MAX_TOKENS];
-        int oldJ=0;
+        @param r the Reader providing the circuit.
+        @param selectNew specify that the added primitives should be selected.
+        @throws IOException if the circuit can not be read, or if the
+            thread has been interrupted.
+    */
+    public void addReader(Reader r, boolean selectNew)
+        throws IOException
+    {
+        char[] buffer=new char[READ_BUFFER_SIZE];
+        synchronized(this) {
+            LineParser lp=new LineParser(selectNew);
+            int n;
+            while((n=r.read(buffer))>=0) {
+                // A thread which has been interrupted (for example because
+                // its job has been cancelled) stops reading.
+                if(Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Parsing interrupted");
+                }
+                lp.addChars(buffer, 0, n);
+            }
+            lp.finish();
+        }
+    }
 
-        int macroCounter=0;
-        int l;
+    /** Check if a circuit is big enough to be parsed in parallel.
+        @param len the number of characters of the circuit.
+        @return true if the circuit should be split in chunks.
+    */
+    private static boolean shouldParseInParallel(int len)
+    {
+        return len>=PARALLEL_THRESHOLD &&
+            ForkJoinPool.getCommonPoolParallelism()>1;
+    }
 
-        token.ensureCapacity(256);
+    /** Parse a circuit by splitting it in chunks, which are parsed in
+        parallel on the common fork-join pool. Each chunk gives a list of
+        primitives, then the lists are added to the drawing in the order
+        of the chunks, so that the result is the same as if the circuit was
+        parsed sequentially. The configuration commands (FJC) are applied
+        at that moment, too.
 
-        /*  This code is not very easy to read. If more extensions of the
-            original FidoCAD format (performed with the FCJ tag) are to be
-            implemented, it can be interesting to rewrite the parser as a
-            state machine.
-        */
+        @param text the characters of the circuit.
+        @param len the number of characters to be considered.
+        @param selectNew specify that the added primitives should be selected.
+    */
+    private void addCharsInParallel(final char[] text, int len,
+        boolean selectNew)
+    {
+        int chunks=Math.min(len/MIN_CHUNK_SIZE,
+            ForkJoinPool.getCommonPoolParallelism()*CHUNKS_PER_THREAD);
         synchronized(this) {
-            List<LayerDesc> layerV=model.getLayers();
+            List<ForkJoinTask<LineParser>> tasks=
+                new ArrayList<ForkJoinTask<LineParser>>(chunks);
+            int start=0;
+            int lineNum=1;
+            for(int i=1; i<=chunks && start<len; ++i) {
+                int end=i==chunks?len:findChunkEnd(text,
+                    Math.max(len*(long)i/chunks, start+1L), len);
+                final LineParser lp=new LineParser(selectNew, lineNum);
+                final int s=start;
+                final int e=end;
+                tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                    lp.addChars(text, s, e-s);
+                    lp.finish();
+                    return lp;
+                }));
+                lineNum+=countLines(text, start, end);
+                start=end;
+            }
+            for(ForkJoinTask<LineParser> t: tasks) {
+                t.join().merge();
+            }
+        }
+    }
 
-            char c='\n';
-            int len;
+    /** Find a position where a circuit can be split, so that the parsing
+        of the two parts gives the same primitives as the parsing of the
+        whole. This is the beginning of a line starting a new primitive: a
+        FCJ or a TY line would modify the previous one.
+        @param text the characters of the circuit.
+        @param from the position where to start searching (greater than
+            zero).
+        @param len the number of characters of the circuit.
+        @return the position found, or len if there is none.
+    */
+    private static int findChunkEnd(char[] text, long from, int len)
+    {
+        for(int p=(int)from; p<len; ++p) {
+            char c=text[p-1];
+            if((c=='\n' || c=='\r' && text[p]!='\n')
+                && startsPrimitive(text, p, len))
+            {
+                return p;
+            }
+        }
+        return len;
+    }
 
-            // Actual line number. This is useful to indicate where errors are.
-            int lineNum=1;
+    /** Check if a line starts with a command which describes a new
+        primitive, independently from the lines which precede it.
+        @param text the characters of the circuit.
+        @param p the position of the beginning of the line.
+        @param len the number of characters of the circuit.
+        @return true if the line starts a new primitive.
+    */
+    private static boolean startsPrimitive(char[] text, int p, int len)
+    {
+        int code=0;
+        int k;
+        for(k=p; k<len && k-p<=3; ++k) {
+            char c=text[k];
+            if(c==' ' || c=='\n' || c=='\r') {
+                break;
+            } else if(c>0x7F) {
+                return false;
+            }
+            code = code<<8 | c;
+        }
+        if(k-p<2 || k-p>3) {
+            return false;
+        }
+        switch(code) {
+            case CMD_LI:
+            case CMD_BE:
+            case CMD_MC:
+            case CMD_TE:
+            case CMD_PL:
+            case CMD_PA:
+            case CMD_SA:
+            case CMD_EV:
+            case CMD_EP:
+            case CMD_RV:
+            case CMD_RP:
+            case CMD_PV:
+            case CMD_PP:
+            case CMD_CV:
+            case CMD_CP:
+                return true;
+            default:
+                return false;
+        }
+    }
 
-            j=0;
-            token.setLength(0);
-            len=s.length();
+    /** Count the line terminations contained in a part of a circuit, in
+        the same way as the parser does.
+        @param text the characters of the circuit.
+        @param start the first character to be considered.
+        @param end the position following the last character.
+        @return the number of lines.
+    */
+    private static int countLines(char[] text, int start, int end)
+    {
+        int n=0;
+        for(int p=start; p<end; ++p) {
+            if(text[p]=='\r' || text[p]=='\n' && (p==0 ||
+                text[p-1]!='\r'))
+            {
+                ++n;
+            }
+        }
+        return n;
+    }
 
-            // The purpose of this code is to tokenize the lines. Things are
-            // made more complicated by the FCJ mechanism which acts as a
-            // modifier for the previous command.
+    /** Get a code identifying the command contained in the first token of a
+        line. The code is calculated from the characters of the command, so
+        that it can be used in a switch (see the CMD_* constants).
+        @param t the tokens of the line.
+        @return the code, or 0 if the first token is not made of two or three
+            ASCII characters.
+    */
+    private static int commandCode(TokenLine t)
+    {
+        if(t.size()==0) {
+            return 0;
+        }
+        int code=0;
+        int len=t.length(0);
+        if(len<2 || len>3) {
+            return 0;
+        }
+        for(int k=0; k<len; ++k) {
+            char c=t.charAt(0, k);
+            if(c>0x7F) {
+                return 0;
+            }
+            code = code<<8 | c;
+        }
+        return code;
+    }
 
-            for(i=0; i<len;++i){
-                c=s.charAt(i);
-                if(c=='\n' || c=='\r'|| i==len-1) { //The string is finished
-                    lineTooLong=false;
-                    if(i==len-1 && c!='\n' && c!=' '){
-                        token.append(c);
-                    }
-                    ++lineNum;
-                    tokens[j]=token.toString();
-                    if (token.length()==0) { // Avoids trailing spaces
-                        j--;
-                    }
+    /** The state of the parser while a circuit is being read. The characters
+        are provided by blocks and each line is processed as soon as it is
+        complete. A \r\n sequence is considered as a single line termination.
 
-                    try{
-                        // When we enter here, we have tokenized the current
-                        // line and we kept in memory also the previous one.
+        The tokens are kept in a TokenLine, so that no String has to be
+        created for each token. Things are made more complicated by the FCJ
+        mechanism which acts as a modifier for the previous command: the
+        tokens of the previous line are kept until the following one has
+        been read.
 
-                        // The first possibility is that the current line does
-                        // not contain a FCJ modifier. In this case, process
-                        // the previous line since we have all the information
-                        // needed
-                        // for doing that.
+        When a chunk of a big circuit is parsed in parallel with the others,
+        nothing is changed in the drawing until merge() is called: the
+        primitives, the configuration commands and the error messages are
+        kept aside.
+    */
+    private final class LineParser
+    {
+        private final boolean selectNew;
+        private final String macroFont;
+        private final int macroFontSize;
+        private final List<LayerDesc> layerV;
+        private final Map<String, MacroDesc> library;
 
-                        if(hasFCJ && !"FCJ".equals(tokens[0])) {
-                            hasFCJ = registerPrimitivesWithFCJ(hasFCJ,
-                                tokens, g, oldTokens, oldJ, selectNew);
-                        }
+        // The primitives read, the configuration commands read and the
+        // error messages, if the parser works on a chunk (null otherwise).
+        private final List<GraphicPrimitive> parsed;
+        private final List<TokenLine> configuration;
+        private final StringBuilder messages;
+
+        // The tokens of the line being read.
+        private final TokenLine tokens;
+
+        // Since the modifier FCJ follow the command, we need to save the
+        // tokens of the line previously read.
+        private final TokenLine oldTokens;
+
+        // Name field for a primitive. It contains the tokenized TY command
+        // which follows an appropriate FCJ modifier, until the value is read.
+        private TokenLine name;
+
+        private boolean hasFCJ; // The last primitive had FCJ extensions
+
+        // Flag indicating that the line is already too long and should not
+        // be processed anymore:
+        private boolean lineTooLong;
+
+        // True if some characters of the current line have been read.
+        private boolean pending;
+
+        // True if the last character read is a \r.
+        private boolean afterCR;
 
-                        if("FCJ".equals(tokens[0])) {
-                            // FidoCadJ extension!
-                            // Here the FCJ modifier changes something on the
-                            // previous command. So ve check case by case what
-                            // has to be modified.
-
-                            if(hasFCJ && "MC".equals(oldTokens[0])) {
-                                macroCounter=2;
-                                g=new PrimitiveMacro(model.getLibrary(),layerV,
-                                    macroFont, macroFontSize);
-                                g.parseTokens(oldTokens, oldJ+1);
-                            } else if (hasFCJ && "LI".equals(oldTokens[0])) {
-                                g=new PrimitiveLine(macroFont, macroFontSize);
-
-                                // We concatenate the two lines in a single
-                                // array
-                                // of tokens (the same code will be repeated
-                                // several
-                                // times for other commands also).
-
-                                for(l=0; l<j+1; ++l) {
-                                    oldTokens[l+oldJ+1]=tokens[l];
-                                }
-
-                                // Update the number of tokens
-                                oldJ+=j+1;
-
-                                // The actual parsing of the tokens is
-                                // relegated
-                                // to the primitive.
-                                g.parseTokens(oldTokens, oldJ+1);
-                                g.setSelected(selectNew);
-
-                                if(oldJ>5 && "1".equals(oldTokens[oldJ])) {
-                                    macroCounter = 2;
-                                } else {
-                                    model.addPrimitive(g,false,null);
-                                }
-
-                            } else if (hasFCJ && "BE".equals(oldTokens[0])) {
-                                g=new PrimitiveBezier(macroFont, macroFontSize);
-
-                                for(l=0; l<j+1; ++l) {
-                                    oldTokens[l+oldJ+1]=tokens[l];
-                                }
-
-                                oldJ+=j+1;
-                                g.parseTokens(oldTokens, oldJ+1);
-                                g.setSelected(selectNew);
-                                if(oldJ>5 && "1".equals(oldTokens[oldJ])) {
-                                    macroCounter = 2;
-                                } else {
-                                    model.addPrimitive(g,false,null);
-                                }
-                            } else if (hasFCJ && ("RV".equals(oldTokens[0])||
-                                "RP".equals(oldTokens[0])))
-                            {
-                                g=new PrimitiveRectangle(macroFont,
-                                    macroFontSize);
-
-                                for(l=0; l<j+1; ++l) {
-                                    oldTokens[l+oldJ+1]=tokens[l];
-                                }
-
-                                oldJ+=j+1;
-                                g.parseTokens(oldTokens, oldJ+1);
-                                g.setSelected(selectNew);
-                                if(oldJ>2 && "1".equals(oldTokens[oldJ])) {
-                                    macroCounter = 2;
-                                } else {
-                                    model.addPrimitive(g,false,null);
-                                }
-                            } else if (hasFCJ && ("EV".equals(oldTokens[0])||
-                                "EP".equals(oldTokens[0])))
-                            {
-                                g=new PrimitiveOval(macroFont, macroFontSize);
-
-                                for(l=0; l<j+1; ++l) {
-                                    oldTokens[l+oldJ+1]=tokens[l];
-                                }
-
-                                oldJ+=j+1;
-                                g.parseTokens(oldTokens, oldJ+1);
-                                g.setSelected(selectNew);
-                                if(oldJ>2 && "1".equals(oldTokens[oldJ])) {
-                                    macroCounter = 2;
-                                } else {
-                                    model.addPrimitive(g,false,null);
-                                }
-                            } else if (hasFCJ && ("PV".equals(oldTokens[0])||
-                                "PP".equals(oldTokens[0])))
-                            {
-                                g=new PrimitivePolygon(macroFont,
-                                    macroFontSize);
-
-                                for(l=0; l<j+1; ++l) {
-                                    oldTokens[l+oldJ+1]=tokens[l];
-                                }
-
-                                oldJ+=j+1;
-                                g.parseTokens(oldTokens, oldJ+1);
-                                g.setSelected(selectNew);
-                                if(oldJ>2 && "1".equals(oldTokens[oldJ])) {
-                                    macroCounter = 2;
-                                } else {
-                                    model.addPrimitive(g,false,null);
-                                }
-                            } else if (hasFCJ && ("CV".equals(oldTokens[0])||
-                                "CP".equals(oldTokens[0])))
-                            {
-                                g=new PrimitiveComplexCurve(macroFont,
-                                    macroFontSize);
-
-                                for(l=0; l<j+1; ++l) {
-                                    oldTokens[l+oldJ+1]=tokens[l];
-                                }
-
-                                oldJ+=j+1;
-                                g.parseTokens(oldTokens, oldJ+1);
-                                g.setSelected(selectNew);
-                                // If we have a name/value following, we
-                                // put macroCounter (successively used by
-                                // TY to determine that we are in a case in
-                                // which
-                                // TY commands must not be considered as
-                                // separate).
-                                if(oldJ>2 && "1".equals(oldTokens[oldJ])) {
-                                    macroCounter = 2;
-                                } else {
-                                    model.addPrimitive(g,false,null);
-                                }
-                            } else if (hasFCJ && "PL".equals(oldTokens[0])) {
-                                macroCounter = 2;
-                            } else if (hasFCJ && "PA".equals(oldTokens[0])) {
-                                macroCounter = 2;
-                            } else if (hasFCJ && "SA".equals(oldTokens[0])) {
-                                macroCounter = 2;
-                            }
-                            hasFCJ=false;
-
-                        } else if("FJC".equals(tokens[0])) {
-                            fidoConfig(tokens, j, layerV);
-                        } else if("LI".equals(tokens[0])) {
-                            // Save the tokenized line.
-                            // We cannot create the macro until we parse the
-                            // following line (which can be FCJ)
-                            macroCounter=0;
-
-                            for(l=0; l<j+1; ++l) {
-                                oldTokens[l]=tokens[l];
-                            }
-                            oldJ=j;
-                            hasFCJ=true;
-
-                        } else if("BE".equals(tokens[0])) {
-                            macroCounter=0;
-
-                            for(l=0; l<j+1; ++l) {
-                                oldTokens[l]=tokens[l];
-                            }
-                            oldJ=j;
-                            hasFCJ=true;
-                        } else if("MC".equals(tokens[0])) {
-                            // Save the tokenized line.
-                            macroCounter=0;
-                            for(l=0; l<j+1; ++l) {
-                                oldTokens[l]=tokens[l];
-                            }
-                            oldJ=j;
-                            hasFCJ=true;
-                        } else if("TE".equals(tokens[0])) {
-                            hasFCJ=false;
-                            macroCounter=0;
-                            g=new PrimitiveAdvText();
-                            g.parseTokens(tokens, j+1);
-                            g.setSelected(selectNew);
-                            model.addPrimitive(g,false,null);
-                        } else if("TY".equals(tokens[0])) {
-                            // The TY command is somewhat special, because
-                            // it can be used to specify the name and the value
-                            // of a primitive or a macro. Therefore, we try
-                            // to understand in which case we are
-                            hasFCJ=false;
-
-                            if(macroCounter==2) {
-                                macroCounter--;
-                                name=new String[j+1];
-                                for(l=0; l<j+1;++l) {
-                                    name[l]=tokens[l];
-                                }
-                                vn=j;
-                            } else if(macroCounter==1) {
-                                value=new String[j+1];
-                                for(l=0; l<j+1;++l) {
-                                    value[l]=tokens[l];
-                                }
-                                vv=j;
-                                if (name!=null) { g.setName(name,vn+1); }
-                                g.setValue(value,vv+1);
-
-                                g.setSelected(selectNew);
-                                model.addPrimitive(g, false,null);
-                                macroCounter=0;
-                            } else {
-                                // If we are in the classical case of a simple
-                                // isolated TY command, we process it.
-                                g=new PrimitiveAdvText();
-                                g.parseTokens(tokens, j+1);
-                                g.setSelected(selectNew);
-                                model.addPrimitive(g,false,null);
-                            }
-                        } else if("PL".equals(tokens[0])) {
-                            hasFCJ=true;
-                            for(l=0; l<j+1; ++l) {
-                                oldTokens[l]=tokens[l];
-                            }
-
-                            macroCounter=0;
-                            oldJ=j;
-                            g=new PrimitivePCBLine(macroFont, macroFontSize);
-                            g.parseTokens(tokens, j+1);
-                            g.setSelected(selectNew);
-                        } else if("PA".equals(tokens[0])) {
-                            hasFCJ=true;
-                            for(l=0; l<j+1; ++l) {
-                                oldTokens[l]=tokens[l];
-                            }
-                            macroCounter=0;
-                            g=new PrimitivePCBPad(macroFont, macroFontSize);
-                            oldJ=j;
-                            g.parseTokens(tokens, j+1);
-                            g.setSelected(selectNew);
-                        } else if("SA".equals(tokens[0])) {
-                            hasFCJ=true;
-                            for(l=0; l<j+1; ++l) {
-                                oldTokens[l]=tokens[l];
-                            }
-                            oldJ=j;
-                            macroCounter=0;
-                            g=new PrimitiveConnection(macroFont, macroFontSize);
-                            g.parseTokens(tokens, j+1);
-                            g.setSelected(selectNew);
-                            //addPrimitive(g,false,false);
-                        }  else if("EV".equals(tokens[0])
-                            ||"EP".equals(tokens[0]))
-                        {
-                            macroCounter=0;
-                            for(l=0; l<j+1; ++l) {
-                                oldTokens[l]=tokens[l];
-                            }
-                            oldJ=j;
-                            hasFCJ=true;
-                        } else if("RV".equals(tokens[0])
-                            ||"RP".equals(tokens[0]))
-                        {
-                            macroCounter=0;
-
-                            for(l=0; l<j+1; ++l) {
-                                oldTokens[l]=tokens[l];
-                            }
-                            oldJ=j;
-                            hasFCJ=true;
-                        } else if("PV".equals(tokens[0])
-                            ||"PP".equals(tokens[0]))
-                        {
-                            macroCounter=0;
-
-                            for(l=0; l<j+1; ++l) {
-                                oldTokens[l]=tokens[l];
-                            }
-                            oldJ=j;
-                            hasFCJ=true;
-                        } else if("CV".equals(tokens[0])
-                            ||"CP".equals(tokens[0]))
-                        {
-                            macroCounter=0;
-                            for(l=0; l<j+1; ++l) {
-                                oldTokens[l]=tokens[l];
-                            }
-                            oldJ=j;
-                            hasFCJ=true;
+        private GraphicPrimitive g;
+
+        private int macroCounter;
+
+        // Actual line number. This is useful to indicate where errors are.
+        private int lineNum;
+
+        /** Standard constructor.
+            @param selectNew specify that the added primitives should be
+                selected.
+        */
+        LineParser(boolean selectNew)
+        {
+            this(selectNew, 1, false);
+        }
+
+        /** Constructor of a parser working on a chunk of a circuit.
+            @param selectNew specify that the added primitives should be
+                selected.
+            @param firstLine the number of the first line of the chunk.
+        */
+        LineParser(boolean selectNew, int firstLine)
+        {
+            this(selectNew, firstLine, true);
+        }
+
+        private LineParser(boolean selectNew, int firstLine, boolean chunk)
+        {
+            this.selectNew=selectNew;
+            macroFont = model.getTextFont();
+            macroFontSize = model.getTextFontSize();
+            layerV=model.getLayers();
+            library=model.getLibrary();
+            g = new PrimitiveLine(macroFont, macroFontSize);
+            tokens=new TokenLine();
+            oldTokens=new TokenLine();
+            lineNum=firstLine;
+            if(chunk) {
+                parsed=new ArrayList<GraphicPrimitive>();
+                configuration=new ArrayList<TokenLine>();
+                messages=new StringBuilder();
+            } else {
+                parsed=null;
+                configuration=null;
+                messages=null;
+            }
+        }
+
+        /** Process a block of characters of the circuit.
+            @param buffer the characters.
+            @param off the position of the first character to be processed.
+            @param n the number of characters to be processed.
+        */
+        void addChars(char[] buffer, int off, int n)
+        {
+            for(int i=off; i<off+n; ++i) {
+                char c=buffer[i];
+                switch(c) {
+                    case '\n':
+                        if(afterCR) {
+                            afterCR=false;
+                        } else {
+                            endLine();
                         }
-                    } catch(IOException eE) {
-                        System.out.println("Error encountered: "+eE.toString());
-                        System.out.println("string parsing line: "+lineNum);
-                        hasFCJ = true;
-                        macroCounter = 0;
-
-                        for(l=0; l<j+1; ++l) {
-                            oldTokens[l]=tokens[l];
+                        break;
+                    case '\r':
+                        afterCR=true;
+                        endLine();
+                        break;
+                    case ' ': // Ready for next token
+                        afterCR=false;
+                        pending=true;
+                        if(!lineTooLong) {
+                            nextToken();
                         }
-                        oldJ=j;
-                    } catch(NumberFormatException fF) {
-                        System.out.println(
-                            "I could not read a number at line: "
-                            +lineNum);
-                        hasFCJ = true;
-                        macroCounter = 0;
-                        for(l=0; l<j+1; ++l) {
-                            oldTokens[l]=tokens[l];
+                        break;
+                    default:
+                        afterCR=false;
+                        pending=true;
+                        if(!lineTooLong) {
+                            tokens.addChar(c);
                         }
-                        oldJ=j;
-                    }
-                    j=0;
-                    token.setLength(0);
-                } else if (c==' ' && !lineTooLong){ // Ready for next token
-                    tokens[j]=token.toString();
-                    token.setLength(0);
-                    ++j;
-                    if (j>=MAX_TOKENS) {
-                        System.out.println("Too much tokens!");
-                        System.out.println("string parsing line: "+lineNum);
-                        j=MAX_TOKENS-1;
-                        lineTooLong=true;
-                        continue;
-                    }
-                } else {
-                    if (!lineTooLong) {
-                        token.append(c);
-                    }
+                        break;
                 }
             }
+        }
+
+        /** Process the last line, if it is not terminated, then the last
+            primitive read.
+        */
+        void finish()
+        {
+            if(pending) {
+                endLine();
+            }
 
-            // We need to process the very last line, which is contained in
-            // the tokens currently read.
+            // We need to process the very last primitive, which may be
+            // waiting for a FCJ modifier.
             try{
-                registerPrimitivesWithFCJ(hasFCJ, tokens, g, oldTokens, oldJ,
-                    selectNew);
+                registerPrimitivesWithFCJ();
             } catch(IOException eE) {
-                System.out.println("Error encountered: "+eE.toString());
-                System.out.println("string parsing line: "+lineNum);
+                report("Error encountered: "+eE.toString());
+                report("string parsing line: "+lineNum);
             } catch(NumberFormatException fF) {
-                System.out.println("I could not read a number at line: "
+                report("I could not read a number at line: "
                                          +lineNum);
             }
-            model.sortPrimitiveLayers();
+        }
+
+        /** Add to the drawing the results of the parsing of a chunk, then
+            print the error messages.
+        */
+        void merge()
+        {
+            for(TokenLine t: configuration) {
+                fidoConfig(t, layerV);
+            }
+            model.addPrimitives(parsed);
+            System.out.print(messages);
+        }
+
+        /** Add a primitive to the drawing, or to the list of the primitives
+            of the chunk.
+            @param p the primitive.
+        */
+        private void store(GraphicPrimitive p)
+        {
+            if(parsed==null) {
+                model.addPrimitive(p,false,null);
+            } else {
+                parsed.add(p);
+            }
+        }
+
+        /** Print an error message, or keep it until the chunk is merged.
+            @param m the message.
+        */
+        private void report(String m)
+        {
+            if(messages==null) {
+                System.out.println(m);
+            } else {
+                messages.append(m).append(System.lineSeparator());
+            }
+        }
+
+        /** Terminate the token being read.
+        */
+        private void nextToken()
+        {
+            tokens.endToken();
+            if (tokens.size()>=MAX_TOKENS) {
+                report("Too much tokens!");
+                report("string parsing line: "+lineNum);
+                tokens.removeLast();
+                lineTooLong=true;
+            }
+        }
+
+        /** Process the line which has just been tokenized.
+        */
+        private void endLine()
+        {
+            lineTooLong=false;
+            pending=false;
+            ++lineNum;
+            if (tokens.getPendingLength()>0) { // Avoids trailing spaces
+                tokens.endToken();
+            }
+
+            try{
+                processLine();
+            } catch(IOException eE) {
+                report("Error encountered: "+eE.toString());
+                report("string parsing line: "+lineNum);
+                hasFCJ = true;
+                macroCounter = 0;
+                oldTokens.copyFrom(tokens);
+            } catch(NumberFormatException fF) {
+                report(
+                    "I could not read a number at line: "
+                    +lineNum);
+                hasFCJ = true;
+                macroCounter = 0;
+                oldTokens.copyFrom(tokens);
+            }
+            tokens.clear();
+        }
+
+        /** Interpret the tokens of the current line.
+            @throws IOException if the line contains an invalid primitive.
+        */
+        private void processLine()
+            throws IOException
+        {
+            // When we enter here, we have tokenized the current line and we
+            // kept in memory also the previous one.
+            int cmd=commandCode(tokens);
+
+            // The first possibility is that the current line does not
+            // contain a FCJ modifier. In this case, process the previous
+            // line since we have all the information needed for doing that.
+            if(hasFCJ && cmd!=CMD_FCJ) {
+                registerPrimitivesWithFCJ();
+            }
+
+            switch(cmd) {
+                case CMD_FCJ:
+                    // FidoCadJ extension!
+                    processFCJ();
+                    hasFCJ=false;
+                    break;
+                case CMD_FJC:
+                    if(configuration==null) {
+                        fidoConfig(tokens, layerV);
+                    } else {
+                        TokenLine t=new TokenLine();
+                        t.copyFrom(tokens);
+                        configuration.add(t);
+                    }
+                    break;
+                case CMD_LI:
+                case CMD_BE:
+                case CMD_MC:
+                case CMD_EV:
+                case CMD_EP:
+                case CMD_RV:
+                case CMD_RP:
+                case CMD_PV:
+                case CMD_PP:
+                case CMD_CV:
+                case CMD_CP:
+                    // Save the tokenized line.
+                    // We cannot create the primitive until we parse the
+                    // following line (which can be FCJ)
+                    macroCounter=0;
+                    oldTokens.copyFrom(tokens);
+                    hasFCJ=true;
+                    break;
+                case CMD_TE:
+                    hasFCJ=false;
+                    macroCounter=0;
+                    g=new PrimitiveAdvText();
+                    g.parseTokens(tokens);
+                    g.setSelected(selectNew);
+                    store(g);
+                    break;
+                case CMD_TY:
+                    processTY();
+                    break;
+                case CMD_PL:
+                    savePrimitive(new PrimitivePCBLine(macroFont,
+                        macroFontSize));
+                    break;
+                case CMD_PA:
+                    savePrimitive(new PrimitivePCBPad(macroFont,
+                        macroFontSize));
+                    break;
+                case CMD_SA:
+                    savePrimitive(new PrimitiveConnection(macroFont,
+                        macroFontSize));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /** Process a FCJ line. Here the FCJ modifier changes something on
+            the previous command. So we check case by case what has to be
+            modified.
+            @throws IOException if the line contains an invalid primitive.
+        */
+        private void processFCJ()
+            throws IOException
+        {
+            if(!hasFCJ) {
+                return;
+            }
+            switch(commandCode(oldTokens)) {
+                case CMD_MC:
+                    macroCounter=2;
+                    g=new PrimitiveMacro(library,layerV,
+                        macroFont, macroFontSize);
+                    g.parseTokens(oldTokens);
+                    break;
+                case CMD_LI:
+                    completeWithFCJ(new PrimitiveLine(macroFont,
+                        macroFontSize), 5);
+                    break;
+                case CMD_BE:
+                    completeWithFCJ(new PrimitiveBezier(macroFont,
+                        macroFontSize), 5);
+                    break;
+                case CMD_RV:
+                case CMD_RP:
+                    completeWithFCJ(new PrimitiveRectangle(macroFont,
+                        macroFontSize), 2);
+                    break;
+                case CMD_EV:
+                case CMD_EP:
+                    completeWithFCJ(new PrimitiveOval(macroFont,
+                        macroFontSize), 2);
+                    break;
+                case CMD_PV:
+                case CMD_PP:
+                    completeWithFCJ(new PrimitivePolygon(macroFont,
+                        macroFontSize), 2);
+                    break;
+                case CMD_CV:
+                case CMD_CP:
+                    completeWithFCJ(new PrimitiveComplexCurve(macroFont,
+                        macroFontSize), 2);
+                    break;
+                case CMD_PL:
+                case CMD_PA:
+                case CMD_SA:
+                    macroCounter = 2;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /** Parse a primitive described by the previous line, followed by
+            the FCJ modifier contained in the current line. The primitive is
+            added to the drawing, unless the name and the value follow.
+            @param p the primitive to be parsed.
+            @param minLast the last token is checked only if its index is
+                greater than this.
+            @throws IOException if the primitive is not valid.
+        */
+        private void completeWithFCJ(GraphicPrimitive p, int minLast)
+            throws IOException
+        {
+            g=p;
+
+            // We concatenate the two lines in a single line of tokens.
+            oldTokens.append(tokens);
+
+            // The actual parsing of the tokens is relegated to the primitive.
+            g.parseTokens(oldTokens);
+            g.setSelected(selectNew);
+
+            // If we have a name/value following, we put macroCounter
+            // (successively used by TY to determine that we are in a case in
+            // which TY commands must not be considered as separate).
+            int last=oldTokens.size()-1;
+            if(last>minLast && oldTokens.is(last, "1")) {
+                macroCounter = 2;
+            } else {
+                store(g);
+            }
+        }
+
+        /** Parse a primitive which might be followed by a FCJ modifier, but
+            which is needed before (the name and value must be read).
+            @param p the primitive to be parsed.
+            @throws IOException if the primitive is not valid.
+        */
+        private void savePrimitive(GraphicPrimitive p)
+            throws IOException
+        {
+            hasFCJ=true;
+            oldTokens.copyFrom(tokens);
+            macroCounter=0;
+            g=p;
+            g.parseTokens(tokens);
+            g.setSelected(selectNew);
+        }
+
+        /** Process a TY line.
+            The TY command is somewhat special, because it can be used to
+            specify the name and the value of a primitive or a macro.
+            Therefore, we try to understand in which case we are.
+            @throws IOException if the line is not valid.
+        */
+        private void processTY()
+            throws IOException
+        {
+            hasFCJ=false;
+
+            if(macroCounter==2) {
+                macroCounter--;
+                if(name==null) {
+                    name=new TokenLine();
+                }
+                name.copyFrom(tokens);
+            } else if(macroCounter==1) {
+                if (name!=null) { g.setName(name); }
+                g.setValue(tokens);
+
+                g.setSelected(selectNew);
+                store(g);
+                macroCounter=0;
+            } else {
+                // If we are in the classical case of a simple isolated TY
+                // command, we process it.
+                g=new PrimitiveAdvText();
+                g.parseTokens(tokens);
+                g.setSelected(selectNew);
+                store(g);
+            }
+        }
+
+        /** This method checks if a primitive may have FCJ  modifiers
+            following. If no further FCJ tokens are present, the primitive
+            is created immediately. If a FCJ token follows, we proceed to
+            further parsing what follows.
+            @throws IOException if the primitive is not valid.
+        */
+        private void registerPrimitivesWithFCJ()
+            throws IOException
+        {
+            // The drawing is not available while a chunk is parsed. The font
+            // which was active at the beginning is used.
+            String font = parsed==null?model.getTextFont():macroFont;
+            int fontSize = parsed==null?model.getTextFontSize():macroFontSize;
+
+            GraphicPrimitive p;
+            if(!hasFCJ || commandCode(tokens)==CMD_FCJ) {
+                return;
+            }
+            switch(commandCode(oldTokens)) {
+                case CMD_MC:
+                    p=new PrimitiveMacro(library, layerV, font, fontSize);
+                    break;
+                case CMD_LI:
+                    p=new PrimitiveLine(font, fontSize);
+                    break;
+                case CMD_BE:
+                    p=new PrimitiveBezier(font, fontSize);
+                    break;
+                case CMD_RP:
+                case CMD_RV:
+                    p=new PrimitiveRectangle(font, fontSize);
+                    break;
+                case CMD_EP:
+                case CMD_EV:
+                    p=new PrimitiveOval(font, fontSize);
+                    break;
+                case CMD_PP:
+                case CMD_PV:
+                    p=new PrimitivePolygon(font, fontSize);
+                    break;
+                case CMD_PL:
+                    p=new PrimitivePCBLine(font, fontSize);
+                    break;
+                case CMD_CP:
+                case CMD_CV:
+                    p=new PrimitiveComplexCurve(font, fontSize);
+                    break;
+                case CMD_PA:
+                    p=new PrimitivePCBPad(font, fontSize);
+                    break;
+                case CMD_SA:
+                    p=new PrimitiveConnection(font, fontSize);
+                    break;
+                default:
+                    return;
+            }
+            p.parseTokens(oldTokens);
+            p.setSelected(selectNew);
+            store(p);
+            hasFCJ = false;
         }
     }
 
     /** Handle the FCJ command for the program configuration.
 
     */
-    private void fidoConfig(String[] tokens, int ntokens,
-        List<LayerDesc> layerV)
+    private void fidoConfig(TokenLine tokens, List<LayerDesc> layerV)
     {
         double newConnectionSize = -1.0;
         double newLineWidth = -1.0;
@@ -692,30 +1174,30 @@ public class ParserActions
 
         // FidoCadJ Configuration
 
-        if("C".equals(tokens[1])) {
+        if(tokens.is(1, "C")) {
             // Connection size
-            newConnectionSize = Double.parseDouble(tokens[2]);
-        } else if("L".equals(tokens[1])) {
+            newConnectionSize = tokens.getDouble(2);
+        } else if(tokens.is(1, "L")) {
             // Layer configuration
-            int layerNum = Integer.parseInt(tokens[2]);
+            int layerNum = tokens.getInt(2);
             if (layerNum>=0&&layerNum<layerV.size()) {
-                int rgb=Integer.parseInt(tokens[3]);
-                float alpha=Float.parseFloat(tokens[4]);
+                int rgb=tokens.getInt(3);
+                float alpha=tokens.getFloat(4);
                 LayerDesc ll=(LayerDesc)layerV.get(layerNum);
                 ll.getColor().setRGB(rgb);
                 ll.setAlpha(alpha);
                 ll.setModified(true);
             }
-        } else if("N".equals(tokens[1])) {
+        } else if(tokens.is(1, "N")) {
             // Layer name
 
-            int layerNum = Integer.parseInt(tokens[2]);
+            int layerNum = tokens.getInt(2);
             if (layerNum>=0&&layerNum<layerV.size()){
                 String lName="";
 
                 StringBuffer temp=new StringBuffer(25);
-                for(int t=3; t<ntokens+1; ++t) {
-                    temp.append(tokens[t]);
+                for(int t=3; t<tokens.size(); ++t) {
+                    temp.append(tokens.get(t));
                     temp.append(" ");
                 }
 
@@ -725,95 +1207,34 @@ public class ParserActions
                 ll.setModified(true);
             }
 
-        } else if("A".equals(tokens[1])) {
+        } else if(tokens.is(1, "A")) {
             // Connection size
-            newLineWidth = Double.parseDouble(tokens[2]);
-        } else if("B".equals(tokens[1])) {
+            newLineWidth = tokens.getDouble(2);
+        } else if(tokens.is(1, "B")) {
             // Connection size
-            newLineWidthCircles = Double.parseDouble(tokens[2]);
+            newLineWidthCircles = tokens.getDouble(2);
         }
 
         // If the schematics has some configuration information, we need
         // to set them up.
         if (newConnectionSize>0) {
-            Globals.diameterConnection=newConnectionSize;
+            connectionSize=newConnectionSize;
+            if(applySettings) {
+                Globals.diameterConnection=newConnectionSize;
+            }
         }
         if (newLineWidth>0) {
-            Globals.lineWidth = newLineWidth;
+            lineWidth=newLineWidth;
+            if(applySettings) {
+                Globals.lineWidth = newLineWidth;
+            }
         }
         if (newLineWidthCircles>0) {
-            Globals.lineWidthCircles = newLineWidthCircles;
-        }
-    }
-
-    /** This method checks if a primitive may have FCJ  modifiers following.
-        If no further FCJ tokens are present, the primitive is created
-        immediately. If a FCJ token follows, we proceed to further parsing
-        what follows.
-    */
-    private boolean registerPrimitivesWithFCJ(boolean hasFCJt,
-        String[] tokens,
-        GraphicPrimitive gg, String[] oldTokens, int oldJ,
-        boolean selectNew)
-        throws IOException
-    {
-        String macroFont = model.getTextFont();
-        int macroFontSize = model.getTextFontSize();
-        List<LayerDesc> layerV=model.getLayers();
-
-        GraphicPrimitive g=gg;
-        boolean hasFCJ=hasFCJt;
-        boolean addPrimitive = false;
-        if(hasFCJ && !"FCJ".equals(tokens[0])) {
-            if ("MC".equals(oldTokens[0])) {
-                g=new PrimitiveMacro(model.getLibrary(),
-                    layerV, macroFont, macroFontSize);
-                addPrimitive = true;
-            } else if ("LI".equals(oldTokens[0])) {
-                g=new PrimitiveLine(macroFont, macroFontSize);
-                addPrimitive = true;
-            } else if ("BE".equals(oldTokens[0])) {
-                g=new PrimitiveBezier(macroFont, macroFontSize);
-                addPrimitive = true;
-            } else if ("RP".equals(oldTokens[0])||
-                "RV".equals(oldTokens[0]))
-            {
-                g=new PrimitiveRectangle(macroFont, macroFontSize);
-                addPrimitive = true;
-            } else if ("EP".equals(oldTokens[0])||
-                "EV".equals(oldTokens[0]))
-            {
-                g=new PrimitiveOval(macroFont, macroFontSize);
-                addPrimitive = true;
-            } else if ("PP".equals(oldTokens[0])
-                ||"PV".equals(oldTokens[0]))
-            {
-                g=new PrimitivePolygon(macroFont, macroFontSize);
-                addPrimitive = true;
-            } else if("PL".equals(oldTokens[0])) {
-                g=new PrimitivePCBLine(macroFont, macroFontSize);
-                addPrimitive = true;
-            } else if ("CP".equals(oldTokens[0])
-                ||"CV".equals(oldTokens[0]))
-            {
-                g=new PrimitiveComplexCurve(macroFont, macroFontSize);
-                addPrimitive = true;
-            }  else if("PA".equals(oldTokens[0])) {
-                g=new PrimitivePCBPad(macroFont, macroFontSize);
-                addPrimitive = true;
-            } else if("SA".equals(oldTokens[0])) {
-                g=new PrimitiveConnection(macroFont, macroFontSize);
-                addPrimitive = true;
+            lineWidthCircles=newLineWidthCircles;
+            if(applySettings) {
+                Globals.lineWidthCircles = newLineWidthCircles;
             }
         }
-
-        if(addPrimitive) {
-            g.parseTokens(oldTokens, oldJ+1);
-            g.setSelected(selectNew);
-            model.addPrimitive(g,false,null);
-            hasFCJ = false;
-        }
-        return hasFCJ;
     }
 
     /** Read all librairies contained in the given URL at the given prefix.
@@ -834,15 +1255,14 @@ public class ParserActions
             System.out.println("Resource not found! "+prefix);
             return;
         }
-        try {
-            readLibraryBufferedReader(new BufferedReader(new
-                InputStreamReader(s.openStream(), Globals.encoding)), prefix);
-        } catch (IOException eE) {
-            System.out.println("Problems reading library: "+s.toString());
-        }
+        final String p=prefix;
+        loadLibrary(() -> LibraryIndex.fromURL(s, p),
+            "Problems reading library: "+s.toString(), false);
     }
 
-    /** Read the library contained in a file
+    /** Read the library contained in a file. Only the list of the macros
+        is read: the description of each macro is read from the file the
+        first time it is needed.
         @param openFileName the name of the file to be loaded
         @throws IOException when something goes horribly wrong. Most of the
             times the filename is not found.
@@ -850,26 +1270,22 @@ public class ParserActions
     public void readLibraryFile(String openFileName)
         throws IOException
     {
-        InputStreamReader input = null;
-        BufferedReader bufRead = null;
-        String prefix="";
-
-        try {
-            input = new InputStreamReader(new
-                FileInputStream(openFileName), Globals.encoding);
-
-            bufRead = new BufferedReader(input);
-
-            prefix = Globals.getFileNameOnly(openFileName);
-            if ("FCDstdlib".equals(prefix)) {
-                prefix="";
-            }
+        registerLibrary(LibraryIndex.fromFile(new File(openFileName),
+            getLibraryPrefix(openFileName)));
+    }
 
-            readLibraryBufferedReader(bufRead, prefix);
-        } finally {
-            if(bufRead!=null) { bufRead.close(); }
-            if(input!=null) { input.close(); }
+    /** Get the prefix to be used for the keys of the macros contained in a
+        library file.
+        @param fileName the name of the file.
+        @return the prefix.
+    */
+    private static String getLibraryPrefix(String fileName)
+    {
+        String prefix = Globals.getFileNameOnly(fileName);
+        if ("FCDstdlib".equals(prefix)) {
+            prefix="";
         }
+        return prefix;
     }
 
     /** Read a library provided by a buffered reader. Adds all the macro keys
@@ -884,115 +1300,142 @@ public class ParserActions
         String prefix)
         throws IOException
     {
-        String macroName="";
-        String longName="";
-        String categoryName="";
-        String libraryName="";
-        int i;
-        String line="";
-
-        MacroDesc macroDesc;
-
-        while(true) {
-            // Read and process line by line.
-            line = bufRead.readLine();
-
-            if(line==null) {
-                break;
-            }
-
-            // Avoid trailing spaces
-            line=line.trim();
+        StringBuilder text=new StringBuilder();
+        char[] buffer=new char[READ_BUFFER_SIZE];
+        int n;
+        while((n=bufRead.read(buffer))>=0) {
+            text.append(buffer, 0, n);
+        }
+        registerLibrary(LibraryIndex.fromBytes(
+            text.toString().getBytes(Globals.encoding), prefix));
+    }
 
-            // Avoid processing shorter lines
-            if (line.length()<=1) {
-                continue;
+    /** Start reading the libraries in parallel. From now on, the libraries
+        requested with loadLibraryInJar() and loadLibraryDirectory() are
+        read by the common fork-join pool, each one in its own index. They
+        are added to the drawing by finishParallelLibraryLoading().
+    */
+    public void startParallelLibraryLoading()
+    {
+        synchronized(this) {
+            if(pendingLibraries==null) {
+                pendingLibraries=new ArrayList<PendingLibrary>();
             }
+        }
+    }
 
-            // A category
-            if(line.charAt(0)=='{') {
-                categoryName="";
-                StringBuffer temp=new StringBuffer(25);
-                for(i=1; i<line.length()&&line.charAt(i)!='}'; ++i){
-                    temp.append(line.charAt(i));
-                }
-                categoryName=temp.toString().trim();
-                if(i==line.length()) {
-                    IOException e=new IOException(
-                        "Category non terminated with }.");
-                    throw e;
+    /** Wait until all the libraries requested since the call to
+        startParallelLibraryLoading() are read, then add them to the drawing
+        in the order they have been requested. The result is thus the same
+        as if they had been read one after the other: if two libraries
+        contain the same key, the last one wins. From now on, the libraries
+        are read immediately.
+    */
+    public void finishParallelLibraryLoading()
+    {
+        List<PendingLibrary> pending;
+        synchronized(this) {
+            pending=pendingLibraries;
+            pendingLibraries=null;
+        }
+        if(pending==null) {
+            return;
+        }
+        for(PendingLibrary pl: pending) {
+            pl.task.join();
+            try {
+                if(pl.error!=null) {
+                    throw pl.error;
                 }
-                continue;
+                registerLibrary(pl.index);
+            } catch (IOException eE) {
+                System.out.println(pl.failure+(pl.showError?" "+eE:""));
             }
+        }
+    }
 
-            // A macro
-            if(line.charAt(0)=='[') {
-                macroName="";
-
-                longName="";
-                StringBuffer temp=new StringBuffer(25);
-                for(i=1; line.charAt(i)!=' ' &&
-                         line.charAt(i)!=']' &&
-                         i<line.length(); ++i)
-                {
-                    temp.append(line.charAt(i));
-                }
-                macroName=temp.toString().trim();
-                int j;
-                temp=new StringBuffer(25);
-                for(j=i; j<line.length()&&line.charAt(j)!=']'; ++j){
-                    temp.append(line.charAt(j));
-                }
-                longName=temp.toString();
-                if(j==line.length()) {
-                    IOException e=new IOException(
-                        "Macro name non terminated with ].");
-                    throw e;
-                }
+    /** Read a library, immediately or in parallel with the others (see
+        startParallelLibraryLoading()).
+        @param reader the task reading the library.
+        @param failure the message to be shown if the library can not be
+            read.
+        @param showError true if the error must be shown after the message.
+    */
+    private void loadLibrary(LibraryReader reader, String failure,
+        boolean showError)
+    {
+        synchronized(this) {
+            if(pendingLibraries!=null) {
+                pendingLibraries.add(new PendingLibrary(reader, failure,
+                    showError));
+                return;
+            }
+        }
+        try {
+            registerLibrary(reader.read());
+        } catch (IOException eE) {
+            System.out.println(failure+(showError?" "+eE:""));
+        }
+    }
 
-                if ("FIDOLIB".equals(macroName)) {
-                    libraryName = longName.trim();
-                    continue;
-                } else {
-                    if(!"".equals(prefix)) {
-                        macroName=prefix+"."+macroName;
-                    }
+    /** A task reading a library.
+    */
+    private interface LibraryReader
+    {
+        /** Read the library.
+            @return the index of the library.
+            @throws IOException if the library can not be read.
+        */
+        LibraryIndex read() throws IOException;
+    }
 
-                    macroName=macroName.toLowerCase(
-                                        Locale.forLanguageTag("en"));
-                    model.getLibrary().put(macroName, new
-                        MacroDesc(macroName,"","","","", prefix));
-                    /*System.out.printf("-- macroName:%s | longName:%s |
-                        categoryName:%s | libraryName:%s | prefix:%s\n",
-                        macroName,longName,categoryName,libraryName,prefix);*/
-                    continue;
+    /** A library being read in parallel with the others.
+    */
+    private static final class PendingLibrary
+    {
+        final ForkJoinTask<?> task;
+        final String failure;
+        final boolean showError;
+        LibraryIndex index;
+        IOException error;
+
+        /** Start reading the library.
+            @param reader the task reading the library.
+            @param f the message to be shown if the library can not be read.
+            @param s true if the error must be shown after the message.
+        */
+        PendingLibrary(final LibraryReader reader, String f, boolean s)
+        {
+            failure=f;
+            showError=s;
+            task=ForkJoinPool.commonPool().submit(() -> {
+                try {
+                    index=reader.read();
+                } catch (IOException eE) {
+                    error=eE;
                 }
-            }
+            });
+        }
+    }
 
-            // TODO rewrite this block
-            if(!"".equals(macroName)){
-                // Add the macro name.
-                // NOTE: in FidoCAD, the macro prefix is somewhat case
-                // insensitive, since it indicates a file name and in
-                // Windows all file names are case insensitive. Under
-                // other operating systems, we need to be waaay much
-                // careful, hence we convert the macro name to lower case.
-                macroName = macroName.toLowerCase(Locale.forLanguageTag("en"));
-                macroDesc = model.getLibrary().get(macroName);
-                if(macroDesc==null) {
-                    return;
-                }
-                macroDesc.name = longName;
-                macroDesc.key = macroName;
-                macroDesc.category = categoryName;
-                macroDesc.library = libraryName;
-                macroDesc.filename = prefix;
-
-                macroDesc.description = macroDesc.description + "\n" +
-                        line;
-            }
+    /** Add to the library of the drawing the macros contained in the index
+        of a library. If the library is not valid, the macros found before
+        the error are added anyway.
+        @param index the index of the library.
+        @throws IOException if the library is not valid.
+    */
+    private void registerLibrary(LibraryIndex index)
+        throws IOException
+    {
+        Map<String, MacroDesc> library=model.getLibrary();
+        for(MacroDesc md: index.getMacros()) {
+            library.put(md.key, md);
+        }
+        if(index.getError()!=null) {
+            throw index.getError();
         }
     }
+
     /** Try to load all libraries ("*.fcl") files in the given directory.
         FCDstdlib.fcl if exists will be considered as standard library.
 
@@ -1027,15 +1470,12 @@ public class ParserActions
         }
         // We read all the directory content, file by file
         for (String fs: files) {
-            File f = new File(dir, fs);
-            try {
-                // Here we have a hopefully valid file in f, so we may read its
-                // contents
-                readLibraryFile(f.getPath());
-            } catch (IOException eE) {
-                System.out.println("Problems reading library "+
-                    f.getName()+" "+eE);
-            }
+            final File f = new File(dir, fs);
+            // Here we have a hopefully valid file in f, so we may read its
+            // contents
+            loadLibrary(() -> LibraryIndex.fromFile(f,
+                    getLibraryPrefix(f.getPath())),
+                "Problems reading library "+f.getName(), true);
         }
     }
 }
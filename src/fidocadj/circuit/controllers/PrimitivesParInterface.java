@@ -1,5 +1,6 @@
 package fidocadj.circuit.controllers;
 
+import fidocadj.graphic.RectangleG;
 
 /** PrimitivesParInterface specifies some actions useful to modify
     characteristics of primitives.
@@ -73,6 +74,34 @@ public interface PrimitivesParInterface
     */
     void forcesRepaint(int x, int y, int width, int height);
 
+    /** Forces a repaint of the region occupied by a part of the drawing,
+        including the handles of the primitives.
+        @param r the region, in logical units. If it is null, everything
+            is repainted.
+    */
+    void forcesRepaint(RectangleG r);
+
+    /** Forces a repaint event when the drawing has not changed, but only
+        the elements drawn over it (such as the selection rectangle).
+    */
+    void forcesRepaintOverlays();
+
+    /** Forces a repaint when the drawing has not changed, but only the
+        elements drawn over it.
+        @param x the x leftmost corner of the dirty region to repaint.
+        @param y the y leftmost corner of the dirty region to repaint.
+        @param width the width of the dirty region.
+        @param height the height of the dirty region.
+    */
+    void forcesRepaintOverlays(int x, int y, int width, int height);
+
+    /** Forces a repaint of the region occupied by an element drawn over
+        the drawing, when the drawing has not changed.
+        @param r the region, in logical units. If it is null, everything
+            is repainted.
+    */
+    void forcesRepaintOverlays(RectangleG r);
+
     /** Activate and sets an evidence rectangle which will be put on screen
         at the next redraw. All sizes are given in pixel.
         @param lx   the x coordinate of the left top corner
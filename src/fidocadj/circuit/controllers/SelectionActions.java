@@ -4,6 +4,7 @@ import java.util.*;
 
 import fidocadj.circuit.model.DrawingModel;
 import fidocadj.circuit.model.ProcessElementsInterface;
+import fidocadj.graphic.RectangleG;
 import fidocadj.primitives.GraphicPrimitive;
 import fidocadj.primitives.PrimitiveMacro;
 
@@ -125,6 +126,31 @@ public class SelectionActions
         return selectedPrimitives;
     }
 
+    /** Get the region occupied by the selected primitives, obtained from
+        their bounding boxes.
+        @return a new rectangle in logical units, or null if no primitive
+            is selected.
+    */
+    public RectangleG getSelectedBoundingBox()
+    {
+        RectangleG r=null;
+        for (GraphicPrimitive g : dmp.getPrimitiveVector()) {
+            if (!g.isSelected()) {
+                continue;
+            }
+            RectangleG b=dmp.getBoundingBox(g);
+            if (b==null) {
+                continue;
+            }
+            if (r==null) {
+                r=new RectangleG(b.x, b.y, b.width, b.height);
+            } else {
+                r.add(b);
+            }
+        }
+        return r;
+    }
+
     /** Determine if only one primitive has been selected
         @return true if only one primitive is selected, false otherwise (which
             means that either more than several primitives or no primitive are
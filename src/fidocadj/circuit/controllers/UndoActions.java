@@ -4,7 +4,11 @@ import java.io.*;
 import java.util.*;
 
 import fidocadj.circuit.HasChangedListener;
+import fidocadj.circuit.model.ChangeRecord;
+import fidocadj.circuit.model.DrawingModel;
 import fidocadj.globals.FileUtils;
+import fidocadj.primitives.GraphicPrimitive;
+import fidocadj.undo.DrawingDelta;
 import fidocadj.undo.UndoState;
 import fidocadj.undo.UndoManager;
 import fidocadj.undo.LibraryUndoListener;
@@ -12,6 +16,12 @@ import fidocadj.undo.UndoActorListener;
 
 /** UndoActions: perform undo operations. Since some parsing operations are
     to be done, this class requires the ParserActions controller.
+    Each undo state contains only the primitives which have changed with
+    respect to the previous state. The drawing model records the
+    primitives added, removed and modified, so only those are written as a
+    text. A copy of the textual description of each primitive in the last
+    state is kept, to know the description of the removed primitives and
+    to compare the whole drawing when the changes have not been recorded.
 
 <pre>
     This file is part of FidoCadJ.
@@ -52,6 +62,12 @@ public class UndoActions implements UndoActorListener
 
     private String tempLibraryDirectory="";
 
+    // The primitives of the drawing in the current undo state, with their
+    // description in the FidoCadJ format. The primitives are the ones
+    // contained in the drawing model, in the same order.
+    private final List<GraphicPrimitive> snapshotPrimitives;
+    private final List<String> snapshotTexts;
+
 
     // Listeners
     private LibraryUndoListener libraryUndoListener;
@@ -67,6 +83,8 @@ public class UndoActions implements UndoActorListener
         libraryUndoListener=null;
         tempDir=new Vector<String>();
         cl =null;
+        snapshotPrimitives=new ArrayList<GraphicPrimitive>();
+        snapshotTexts=new ArrayList<String>();
     }
     
     /** Check if undo operation is available.
@@ -89,16 +107,17 @@ public class UndoActions implements UndoActorListener
     */
     public void undo()
     {
+        UndoState current = um.getCurrentState();
         UndoState r = (UndoState)um.undoPop();
+        boolean library=um.isNextOperationOnALibrary();
 
         // Check if it is an operation involving libraries.
-        if(um.isNextOperationOnALibrary() && libraryUndoListener!=null) {
+        if(library && libraryUndoListener!=null) {
             libraryUndoListener.undoLibrary(r.libraryDir);
         }
 
-        if(!"".equals(r.text)) {
-            StringBuffer s=new StringBuffer(r.text);
-            pa.parseString(s);
+        if(current!=null && current!=r) {
+            restoreState(current.delta, false, r.configuration, library);
         }
         isModified = r.isModified;
         pa.openFileName = r.fileName;
@@ -110,14 +129,14 @@ public class UndoActions implements UndoActorListener
     */
     public void redo()
     {
+        UndoState current = um.getCurrentState();
         UndoState r = (UndoState)um.undoRedo();
         if(r.libraryOperation && libraryUndoListener!=null) {
             libraryUndoListener.undoLibrary(r.libraryDir);
         }
 
-        if(!"".equals(r.text)) {
-            StringBuffer s=new StringBuffer(r.text);
-            pa.parseString(s);
+        if(current!=null && current!=r) {
+            restoreState(r.delta, true, r.configuration, r.libraryOperation);
         }
 
         isModified = r.isModified;
@@ -134,9 +153,10 @@ public class UndoActions implements UndoActorListener
     {
         UndoState s = new UndoState();
 
-        // In fact, the whole drawing is stored as a text.
-        // In this way, we can easily store it on a string.
-        s.text=pa.getText(true).toString();
+        // Only the primitives which have changed since the last state are
+        // stored, as a text.
+        s.delta=updateSnapshot();
+        s.configuration=pa.registerConfiguration(true).toString();
 
         s.isModified=isModified;
         s.fileName=pa.openFileName;
@@ -156,7 +176,8 @@ public class UndoActions implements UndoActorListener
     {
         tempLibraryDirectory=t;
         UndoState s = new UndoState();
-        s.text=pa.getText(true).toString();
+        s.delta=updateSnapshot();
+        s.configuration=pa.registerConfiguration(true).toString();
         s.libraryDir=tempLibraryDirectory;
         s.isModified=isModified;
         s.fileName=pa.openFileName;
@@ -165,6 +186,295 @@ public class UndoActions implements UndoActorListener
         um.undoPush(s);
     }
 
+    /** Calculate the changes done to the drawing since the last undo
+        state, then update the copy of the last state.
+        @return the changes done to the drawing since the last state.
+    */
+    private DrawingDelta updateSnapshot()
+    {
+        DrawingModel model=pa.getModel();
+        ChangeRecord c=model.takeChanges();
+        if(c!=null) {
+            DrawingDelta d=replayChanges(model, c);
+            if(d!=null) {
+                return d;
+            }
+        }
+        List<GraphicPrimitive> prims=
+            new ArrayList<GraphicPrimitive>(model.getPrimitiveVector());
+        List<String> texts=new ArrayList<String>(prims.size());
+        for(GraphicPrimitive g: prims) {
+            texts.add(g.toString(true));
+        }
+        DrawingDelta d=DrawingDelta.compare(snapshotPrimitives, snapshotTexts,
+            prims, texts);
+        snapshotPrimitives.clear();
+        snapshotPrimitives.addAll(prims);
+        snapshotTexts.clear();
+        snapshotTexts.addAll(texts);
+        return d;
+    }
+
+    /** Do on the copy of the last state the changes recorded by the
+        drawing model, and write them as a difference. Only the primitives
+        added, removed or modified are written as a text.
+        @param model the drawing model.
+        @param c the changes recorded.
+        @return the difference, or null if the changes do not match the
+            copy of the last state (which is then left unchanged).
+    */
+    private DrawingDelta replayChanges(DrawingModel model, ChangeRecord c)
+    {
+        int n=c.getOperationCount();
+        List<GraphicPrimitive> updated=c.getUpdated();
+        int[] p=new int[n+2*updated.size()];
+        String[] t=new String[p.length];
+        boolean[] ins=new boolean[p.length];
+        Set<GraphicPrimitive> inserted=Collections.newSetFromMap(
+            new IdentityHashMap<GraphicPrimitive, Boolean>());
+
+        // Add and remove the primitives, in the same order as it has been
+        // done in the drawing.
+        int i;
+        for(i=0; i<n; ++i) {
+            GraphicPrimitive g=c.getPrimitive(i);
+            p[i]=c.getPosition(i);
+            ins[i]=c.isInsertion(i);
+            if(ins[i]) {
+                if(p[i]<0 || p[i]>snapshotPrimitives.size()) {
+                    break;
+                }
+                t[i]=g.toString(true);
+                snapshotPrimitives.add(p[i], g);
+                snapshotTexts.add(p[i], t[i]);
+                inserted.add(g);
+            } else {
+                if(p[i]<0 || p[i]>=snapshotPrimitives.size() ||
+                    snapshotPrimitives.get(p[i])!=g)
+                {
+                    break;
+                }
+                snapshotPrimitives.remove(p[i]);
+                t[i]=snapshotTexts.remove(p[i]);
+            }
+        }
+
+        // Find the primitives which have been modified. Those added since
+        // the last state have already been written as they are now.
+        int[] positions=null;
+        if(i==n) {
+            positions=findUpdated(model, updated, inserted);
+        }
+        if(positions==null) {
+            // Something has been modified without telling it to the model:
+            // go back to the last state.
+            for(--i; i>=0; --i) {
+                if(ins[i]) {
+                    snapshotPrimitives.remove(p[i]);
+                    snapshotTexts.remove(p[i]);
+                } else {
+                    snapshotPrimitives.add(p[i], c.getPrimitive(i));
+                    snapshotTexts.add(p[i], t[i]);
+                }
+            }
+            return null;
+        }
+
+        // A modified primitive is removed and inserted again.
+        for(int j=0; j<positions.length; ++j) {
+            int pos=positions[j];
+            if(pos<0) {
+                continue;
+            }
+            String s=updated.get(j).toString(true);
+            if(s.equals(snapshotTexts.get(pos))) {
+                continue;
+            }
+            p[n]=pos;
+            t[n++]=snapshotTexts.set(pos, s);
+            p[n]=pos;
+            t[n]=s;
+            ins[n++]=true;
+        }
+        return new DrawingDelta(Arrays.copyOf(p, n), Arrays.copyOf(t, n),
+            Arrays.copyOf(ins, n));
+    }
+
+    /** Find the position of the primitives which have been modified in the
+        copy of the last state (which has been updated with the insertions
+        and the removals).
+        @param model the drawing model.
+        @param updated the primitives which have been modified.
+        @param inserted the primitives which have been added since the last
+            state.
+        @return the positions, -1 for the primitives which have been added
+            or removed, or null if a primitive of the drawing is not in
+            the copy.
+    */
+    private int[] findUpdated(DrawingModel model,
+        List<GraphicPrimitive> updated, Set<GraphicPrimitive> inserted)
+    {
+        int[] positions=new int[updated.size()];
+        Map<GraphicPrimitive, Integer> index=null;
+
+        // Searching in the model is faster when few primitives have been
+        // modified, since only the list of their layer is searched.
+        if(updated.size()>16) {
+            index=new IdentityHashMap<GraphicPrimitive, Integer>(
+                snapshotPrimitives.size()*2);
+            for(int i=0; i<snapshotPrimitives.size(); ++i) {
+                index.put(snapshotPrimitives.get(i), Integer.valueOf(i));
+            }
+        }
+        for(int j=0; j<positions.length; ++j) {
+            GraphicPrimitive g=updated.get(j);
+            int pos;
+            if(inserted.contains(g)) {
+                pos=-1;
+            } else if(index!=null) {
+                Integer k=index.get(g);
+                pos=k==null?-1:k.intValue();
+                if(pos<0 && model.getPosition(g)>=0) {
+                    return null;
+                }
+            } else {
+                pos=model.getPosition(g);
+                if(pos>=snapshotPrimitives.size() ||
+                    pos>=0 && snapshotPrimitives.get(pos)!=g)
+                {
+                    return null;
+                }
+            }
+            positions[j]=pos;
+        }
+        return positions;
+    }
+
+    /** Bring the drawing to another undo state. Only the primitives which
+        are different are parsed. The whole drawing is parsed again if the
+        library has changed (the macros might be different) or if something
+        goes wrong.
+        @param d the difference between the current state and the new one,
+            or between the new state and the current one.
+        @param forward true if d brings to the new state, false if it must
+            be applied backwards.
+        @param configuration the configuration of the new state.
+        @param library true if the library has changed.
+    */
+    private void restoreState(DrawingDelta d, boolean forward,
+        String configuration, boolean library)
+    {
+        DrawingModel model=pa.getModel();
+
+        // Discard the changes done after the last state has been saved.
+        DrawingDelta unsaved=updateSnapshot();
+        boolean success=true;
+        if(!unsaved.isEmpty()) {
+            success=applyDelta(unsaved, false);
+        }
+        if(d!=null) {
+            success=applyDelta(d, forward) && success;
+        }
+
+        if(!configuration.equals(pa.registerConfiguration(true).toString())) {
+            pa.addString(new StringBuffer(configuration), false);
+        }
+
+        // The primitives are inserted in the layer they belong to. Check
+        // that everything is now in the expected order.
+        success = success && !library &&
+            snapshotPrimitives.equals(model.getPrimitiveVector());
+
+        if(!success) {
+            StringBuffer s=new StringBuffer(configuration);
+            for(String t: snapshotTexts) {
+                s.append(t);
+            }
+            pa.parseString(s);
+            updateSnapshot();
+        }
+
+        // What has been done here must not appear in the next undo state.
+        model.takeChanges();
+        model.setChanged(true);
+    }
+
+    /** Apply a difference between two states to the drawing and to the
+        copy of the current state.
+        @param d the difference.
+        @param forward true if the difference must be applied from the older
+            state to the newer one.
+        @return false if something went wrong and the drawing must be
+            parsed again.
+    */
+    private boolean applyDelta(DrawingDelta d, boolean forward)
+    {
+        DrawingModel model=pa.getModel();
+        boolean success=true;
+        ParserActions parser=null;
+        int n=d.getCount();
+
+        // Backwards, the operations are done starting from the last one
+        // and the insertions become removals.
+        for(int j=0; j<n; ++j) {
+            int i=forward?j:n-1-j;
+            int pos=d.getPosition(i);
+            if(d.isInsertion(i)==forward) {
+                String t=d.getText(i);
+                if(parser==null) {
+                    parser=createPrimitiveParser();
+                }
+                GraphicPrimitive g=parsePrimitive(parser, t);
+                if(g==null) {
+                    success=false;
+                } else {
+                    model.insertPrimitive(g, pos);
+                }
+                snapshotPrimitives.add(pos, g);
+                snapshotTexts.add(pos, t);
+            } else {
+                GraphicPrimitive g=snapshotPrimitives.remove(pos);
+                snapshotTexts.remove(pos);
+                if(g!=null) {
+                    model.removePrimitive(g);
+                }
+            }
+        }
+        return success;
+    }
+
+    /** Create a parser working on a temporary drawing model with the same
+        library, layers and font of the drawing.
+        @return the parser.
+    */
+    private ParserActions createPrimitiveParser()
+    {
+        DrawingModel model=pa.getModel();
+        DrawingModel tmp=new DrawingModel();
+        tmp.setLibrary(model.getLibrary());
+        tmp.setLayers(model.getLayers());
+        tmp.setTextFont(model.getTextFont(), model.getTextFontSize(), null);
+        return new ParserActions(tmp);
+    }
+
+    /** Parse the description of a single primitive.
+        @param parser the parser obtained with createPrimitiveParser().
+        @param t the description of the primitive.
+        @return the primitive, or null if the description does not contain
+            exactly one primitive.
+    */
+    private GraphicPrimitive parsePrimitive(ParserActions parser, String t)
+    {
+        DrawingModel tmp=parser.getModel();
+        tmp.clear();
+        parser.addString(new StringBuffer(t), false);
+        List<GraphicPrimitive> v=tmp.getPrimitiveVector();
+        if(v.size()!=1) {
+            return null;
+        }
+        return v.get(0);
+    }
+
     /** Define a listener for a undo operation involving libraries.
     @param l the library undo listener.
     */
@@ -0,0 +1,159 @@
+package fidocadj.circuit.model;
+
+import java.util.*;
+
+import fidocadj.primitives.GraphicPrimitive;
+
+/**
+    Changes done to the primitives of a drawing, as they are told to the
+    DrawingModel by the methods adding, removing and updating primitives.
+    The insertions and the removals are kept in the order they have been
+    done, each one with the position in the primitive vector at the moment
+    it has been done. The primitives which have been updated are only
+    listed, since an update does not change the position of a primitive.
+
+    This allows to know what has changed in a drawing without comparing it
+    with a copy. This class is not thread safe, DrawingModel takes care of
+    the synchronization.
+
+    <pre>
+
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2007-2023 by Davide Bucci
+    </pre>
+
+    @author Davide Bucci
+*/
+public final class ChangeRecord
+{
+    /** The insertion or the removal of a primitive.
+    */
+    private static final class Operation
+    {
+        final GraphicPrimitive primitive;
+        final int position;
+        final boolean insertion;
+
+        Operation(GraphicPrimitive p, int pos, boolean ins)
+        {
+            primitive=p;
+            position=pos;
+            insertion=ins;
+        }
+    }
+
+    private final List<Operation> operations;
+
+    // The primitives updated, in the order they have been updated for the
+    // first time. The set avoids listing them twice.
+    private final List<GraphicPrimitive> updated;
+    private final Set<GraphicPrimitive> updatedSet;
+
+    /** Standard constructor. Creates an empty record.
+    */
+    ChangeRecord()
+    {
+        operations=new ArrayList<Operation>();
+        updated=new ArrayList<GraphicPrimitive>();
+        updatedSet=Collections.newSetFromMap(
+            new IdentityHashMap<GraphicPrimitive, Boolean>());
+    }
+
+    /** Record the insertion of a primitive.
+        @param p the primitive.
+        @param position its position in the primitive vector.
+    */
+    void inserted(GraphicPrimitive p, int position)
+    {
+        operations.add(new Operation(p, position, true));
+    }
+
+    /** Record the removal of a primitive.
+        @param p the primitive.
+        @param position its position in the primitive vector before the
+            removal.
+    */
+    void removed(GraphicPrimitive p, int position)
+    {
+        operations.add(new Operation(p, position, false));
+    }
+
+    /** Record the update of a primitive.
+        @param p the primitive.
+    */
+    void updated(GraphicPrimitive p)
+    {
+        if(updatedSet.add(p)) {
+            updated.add(p);
+        }
+    }
+
+    /** Check if nothing has changed.
+        @return true if nothing has been recorded.
+    */
+    public boolean isEmpty()
+    {
+        return operations.isEmpty() && updated.isEmpty();
+    }
+
+    /** Get the number of insertions and removals.
+        @return the number of operations.
+    */
+    public int getOperationCount()
+    {
+        return operations.size();
+    }
+
+    /** Get the primitive inserted or removed by an operation.
+        @param i the index of the operation, in the order they have been
+            done.
+        @return the primitive.
+    */
+    public GraphicPrimitive getPrimitive(int i)
+    {
+        return operations.get(i).primitive;
+    }
+
+    /** Get the position in the primitive vector of the primitive inserted
+        or removed by an operation.
+        @param i the index of the operation.
+        @return the position after the insertion or before the removal.
+    */
+    public int getPosition(int i)
+    {
+        return operations.get(i).position;
+    }
+
+    /** Tell if an operation is an insertion or a removal.
+        @param i the index of the operation.
+        @return true if it is an insertion.
+    */
+    public boolean isInsertion(int i)
+    {
+        return operations.get(i).insertion;
+    }
+
+    /** Get the primitives which have been updated. Some of them may have
+        been removed afterwards.
+        @return a read only list of the primitives.
+    */
+    public List<GraphicPrimitive> getUpdated()
+    {
+        return Collections.unmodifiableList(updated);
+    }
+}
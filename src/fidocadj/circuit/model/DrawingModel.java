@@ -4,6 +4,7 @@ import java.util.*;
 
 import fidocadj.circuit.ImageAsCanvas;
 import fidocadj.circuit.controllers.UndoActions;
+import fidocadj.graphic.RectangleG;
 import fidocadj.layers.LayerDesc;
 import fidocadj.primitives.GraphicPrimitive;
 import fidocadj.primitives.MacroDesc;
@@ -69,20 +70,46 @@ public final class DrawingModel
 
     // ******* PRIMITIVE DATABASE ********
 
-    // List containing all primitives in the drawing.
-    private List<GraphicPrimitive> primitiveVector;
+    // Primitives in the drawing, one list for each layer. In each list,
+    // primitives are kept in the order they have been added.
+    private List<List<GraphicPrimitive>> layerBuckets;
+    // Primitives which need holes to be drawn (PCB pads and macros
+    // containing them).
+    private List<GraphicPrimitive> holePrimitives;
+    // Total number of primitives in the drawing.
+    private int primitiveCount;
+    // Position in the primitive vector of the first primitive of each
+    // layer, followed by the number of primitives. It is null if it has to
+    // be calculated again.
+    private int[] bucketOffsets;
+    // Read only view of all the primitives, ordered by layer.
+    private final List<GraphicPrimitive> primitiveVector;
     // List containing all layers used in the drawing.
     private List<LayerDesc> layerV;
 
     // Library of macros loaded.
     private Map<String, MacroDesc> library;
 
+    // Spatial index of the primitives, used to find quickly those which are
+    // close to a given point. It is created only when needed.
+    private SpatialIndex spatialIndex;
+
+    // Changes done to the primitives since they have been last taken (see
+    // takeChanges), or null if they are not known.
+    private ChangeRecord changes;
+
+    // Visible layers (one bit for each layer) when the drawn extent of the
+    // primitives has been calculated.
+    private long drawnVisibleLayers;
+
     /** The standard constructor. Not so much interesting, apart for the
         fact that it allocates memory of a few internal objects and reset all
         state flags.
     */
     public DrawingModel()
     {
+        layersUsed = new boolean[LayerDesc.MAX_LAYERS];
+        primitiveVector=new PrimitiveView();
         setPrimitiveVector(new Vector<GraphicPrimitive>(25));
         layerV=new Vector<LayerDesc>(LayerDesc.MAX_LAYERS);
         library=new TreeMap<String, MacroDesc>();
@@ -90,7 +117,6 @@ public final class DrawingModel
         imgCanvas= new ImageAsCanvas();
         drawOnlyPads=false;
         drawOnlyLayer=-1;
-        layersUsed = new boolean[LayerDesc.MAX_LAYERS];
         changed=true;
     }
 
@@ -146,6 +172,7 @@ public final class DrawingModel
     {
         library=l;
         changed=true;
+        invalidateDrawnExtent();
     }
 
     /** Resets the current library.
@@ -159,24 +186,21 @@ public final class DrawingModel
 
     /** Add a graphic primitive.
         @param p the primitive to be added.
-        @param sort if true, sort the primitive layers
+        @param sort not needed anymore, since the primitives are put in the
+            list of their layer when they are added. It is kept for
+            compatibility.
         @param ua if different from <pre>null</pre>, the operation will be
             undoable.
     */
     public void addPrimitive(GraphicPrimitive p, boolean sort,
         UndoActions ua)
     {
-        // The primitive database MUST be ordered. The idea is that we insert
-        // primitives without ordering them and then we call a sorter.
+        // The primitive database MUST be ordered. Each primitive goes at the
+        // end of the list of its layer, so there is no need to sort.
         synchronized(this) {
-            getPrimitiveVector().add(p);
-
-            // We check if the primitives should be sorted depending of
-            // their layer
-            // If there are more than a few primitives to insert, it is wise to
-            // sort only once, at the end of the insertion process.
-            if (sort) {
-                sortPrimitiveLayers();
+            storePrimitive(p);
+            if(spatialIndex!=null) {
+                spatialIndex.add(p, bucketIndex(p));
             }
 
             // Check if it should be undoable.
@@ -191,6 +215,384 @@ public final class DrawingModel
         }
     }
 
+    /** Add a list of graphic primitives at the end of the lists of their
+        layers, in the order they are given. This is the same as calling
+        addPrimitive() for each of them, without undo, but the lock is
+        acquired only once.
+        @param v the primitives to be added.
+    */
+    public void addPrimitives(List<GraphicPrimitive> v)
+    {
+        synchronized(this) {
+            for(GraphicPrimitive p: v) {
+                storePrimitive(p);
+                if(spatialIndex!=null) {
+                    spatialIndex.add(p, bucketIndex(p));
+                }
+            }
+        }
+    }
+
+    /** Insert a graphic primitive at a given position of the primitive
+        vector. The position must be compatible with the layer of the
+        primitive, otherwise the primitive is put at the beginning or at the
+        end of the list of its layer.
+        @param p the primitive to be inserted.
+        @param index the wanted position in the primitive vector.
+    */
+    public void insertPrimitive(GraphicPrimitive p, int index)
+    {
+        synchronized(this) {
+            int b=bucketIndex(p);
+            int offset=getBucketOffsets()[b];
+            List<GraphicPrimitive> bucket=layerBuckets.get(b);
+            int position=Math.max(0, Math.min(index-offset, bucket.size()));
+            storePrimitive(p, position);
+            if(spatialIndex!=null) {
+                spatialIndex.add(p, b);
+                spatialIndex.reorder(layerBuckets);
+            }
+            changed=true;
+        }
+    }
+
+    /** Remove a graphic primitive.
+        @param p the primitive to be removed.
+    */
+    public void removePrimitive(GraphicPrimitive p)
+    {
+        synchronized(this) {
+            int position=getPosition(p);
+            if(position<0) {
+                return;
+            }
+            // The layer may have been changed since the primitive has been
+            // added, if sortPrimitiveLayers() has not been called yet.
+            int[] o=getBucketOffsets();
+            int b=bucketIndex(p);
+            if(position<o[b] || position>=o[b+1]) {
+                b=0;
+                while(position>=o[b+1]) {
+                    ++b;
+                }
+            }
+            layerBuckets.get(b).remove(position-o[b]);
+            --primitiveCount;
+            bucketOffsets=null;
+            if(changes!=null) {
+                changes.removed(p, position);
+            }
+            holePrimitives.remove(p);
+            if(spatialIndex!=null) {
+                spatialIndex.remove(p);
+            }
+        }
+    }
+
+    /** Remove all the primitives of the drawing.
+    */
+    public void clear()
+    {
+        synchronized(this) {
+            setPrimitiveVector(new Vector<GraphicPrimitive>(25));
+        }
+    }
+
+    /** Get the primitives of a given layer, in the order they are drawn.
+        Macros are associated to layer 0 even if they contain other layers.
+        @param l the layer.
+        @return a read only list of primitives.
+    */
+    public List<GraphicPrimitive> getLayerPrimitives(int l)
+    {
+        return Collections.unmodifiableList(layerBuckets.get(l));
+    }
+
+    /** Get the primitives which need holes to be drawn (PCB pads and macros
+        containing them).
+        @return a read only list of primitives.
+    */
+    public List<GraphicPrimitive> getHolePrimitives()
+    {
+        return Collections.unmodifiableList(holePrimitives);
+    }
+
+    /** Put a primitive at the end of the list of its layer and update the
+        information about the layers used.
+        @param p the primitive.
+    */
+    private void storePrimitive(GraphicPrimitive p)
+    {
+        storePrimitive(p, layerBuckets.get(bucketIndex(p)).size());
+    }
+
+    /** Put a primitive in the list of its layer and update the information
+        about the layers used.
+        @param p the primitive.
+        @param position the position in the list of the layer.
+    */
+    private void storePrimitive(GraphicPrimitive p, int position)
+    {
+        if(changes!=null) {
+            changes.inserted(p, getBucketOffsets()[bucketIndex(p)]+position);
+        }
+        layerBuckets.get(bucketIndex(p)).add(position, p);
+        ++primitiveCount;
+        bucketOffsets=null;
+        registerLayersAndHoles(p);
+    }
+
+    /** Update the list of the primitives needing holes and the information
+        about the layers used, for a primitive stored in the drawing.
+        @param p the primitive.
+    */
+    private void registerLayersAndHoles(GraphicPrimitive p)
+    {
+        if(p.needsHoles()) {
+            holePrimitives.add(p);
+        }
+        if(p.getLayer()>maxLayer) {
+            maxLayer=p.getLayer();
+        }
+        // As it was done by the sort, if a layer is used, all the layers
+        // below it are considered used.
+        for(int l=LayerDesc.MAX_LAYERS-1; l>=0; --l) {
+            if(p.containsLayer(l)) {
+                for(int z=0; z<=l; ++z) {
+                    layersUsed[z]=true;
+                }
+                break;
+            }
+        }
+    }
+
+    /** Get the position in the primitive vector of the first primitive of
+        each layer. It is calculated again only if the primitives have been
+        added or removed.
+        @return the positions, followed by the number of primitives.
+    */
+    private int[] getBucketOffsets()
+    {
+        int[] o=bucketOffsets;
+        if(o==null) {
+            o=new int[layerBuckets.size()+1];
+            for(int l=0; l<layerBuckets.size(); ++l) {
+                o[l+1]=o[l]+layerBuckets.get(l).size();
+            }
+            bucketOffsets=o;
+        }
+        return o;
+    }
+
+    /** Get the index of the list in which a primitive should be stored.
+        @param p the primitive.
+        @return the index of the list (its layer).
+    */
+    private static int bucketIndex(GraphicPrimitive p)
+    {
+        return Math.max(0, Math.min(p.getLayer(), LayerDesc.MAX_LAYERS-1));
+    }
+
+    /** Tell the model that the geometry of a primitive has changed, for
+        example because it has been moved, rotated, mirrored or edited.
+        This keeps the spatial index up to date and records the change for
+        the undo system.
+        @param p the primitive which has been modified.
+    */
+    public void updatePrimitive(GraphicPrimitive p)
+    {
+        synchronized(this) {
+            if(spatialIndex!=null) {
+                spatialIndex.update(p);
+            }
+            if(changes!=null) {
+                changes.updated(p);
+            }
+        }
+    }
+
+    /** Tell the model that the geometry of many primitives has changed, or
+        that primitives have been added or removed without using the
+        methods of this class. The spatial index will be calculated again
+        when needed.
+    */
+    public void invalidateSpatialIndex()
+    {
+        synchronized(this) {
+            spatialIndex=null;
+            changes=null;
+        }
+    }
+
+    /** Get the changes done to the primitives since the last call, and
+        start recording them again. Nothing is recorded before the first
+        call. The changes are not known when the primitives have been
+        modified without telling it to the model (see
+        invalidateSpatialIndex), when the whole drawing has been replaced
+        or when sortPrimitiveLayers has moved some primitives to another
+        layer.
+        @return the changes, or null if they are not known.
+    */
+    public ChangeRecord takeChanges()
+    {
+        synchronized(this) {
+            ChangeRecord c=changes;
+            changes=new ChangeRecord();
+            return c;
+        }
+    }
+
+    /** Get the position of a primitive in the primitive vector. Only the
+        list of its layer is searched, unless the layer has been changed
+        since the primitive has been added.
+        @param p the primitive.
+        @return the position, or -1 if the primitive is not in the drawing.
+    */
+    public int getPosition(GraphicPrimitive p)
+    {
+        synchronized(this) {
+            int[] o=getBucketOffsets();
+            int b=bucketIndex(p);
+            int i=layerBuckets.get(b).indexOf(p);
+            if(i<0) {
+                for(b=0; b<layerBuckets.size(); ++b) {
+                    i=layerBuckets.get(b).indexOf(p);
+                    if(i>=0) {
+                        break;
+                    }
+                }
+                if(i<0) {
+                    return -1;
+                }
+            }
+            return o[b]+i;
+        }
+    }
+
+    /** Get the spatial index, creating it if needed. It is checked against
+        the number of primitives, so that a change made to the list of
+        primitives without using the methods of this class does not go
+        unnoticed. Must be called while holding the lock on this object.
+        @return the spatial index.
+    */
+    private SpatialIndex getSpatialIndex()
+    {
+        if(spatialIndex==null ||
+            spatialIndex.size()!=getPrimitiveVector().size())
+        {
+            spatialIndex=new SpatialIndex();
+            for(int l=0; l<layerBuckets.size(); ++l) {
+                for(GraphicPrimitive g: layerBuckets.get(l)) {
+                    spatialIndex.add(g, l);
+                }
+            }
+        }
+        return spatialIndex;
+    }
+
+    /** Get the primitives which might be close to the given point. This is
+        much faster than checking all primitives of the drawing, but it is
+        just a first screening: the distance must then be calculated for the
+        primitives returned. They are sorted in the same order as they are
+        drawn (by layer), so the last one is shown on top of the others.
+        @param px the x coordinate of the point (logical units).
+        @param py the y coordinate of the point (logical units).
+        @param radius the maximum distance between the point and the
+            bounding box of the primitives to be returned.
+        @return the list of primitives found.
+    */
+    public List<GraphicPrimitive> getPrimitivesNear(int px, int py,
+        int radius)
+    {
+        synchronized(this) {
+            return getSpatialIndex().query(px, py, radius);
+        }
+    }
+
+    /** Get the primitives whose bounding box intersects the given region,
+        in the order they are drawn. Only the primitives close to the region
+        are examined, so this is much faster than checking all primitives
+        when the region contains only a small part of the drawing.
+        @param r the region (logical units).
+        @param boxes if not null, the bounding box of each primitive found
+            is added to it, in the same order. They must not be modified.
+        @param outside if not null, the bounding boxes of all the other
+            primitives are added to it. This requires to examine all the
+            primitives. They must not be modified.
+        @return the list of primitives found.
+    */
+    public List<GraphicPrimitive> getPrimitivesIn(RectangleG r,
+        List<RectangleG> boxes, List<RectangleG> outside)
+    {
+        synchronized(this) {
+            return getSpatialIndex().queryArea(r, boxes, outside);
+        }
+    }
+
+    /** Get the bounding box of a primitive, as it is kept in the spatial
+        index.
+        @param g the primitive.
+        @return the bounding box in logical units (not to be modified), or
+            null if the primitive is not in the drawing.
+    */
+    public RectangleG getBoundingBox(GraphicPrimitive g)
+    {
+        synchronized(this) {
+            return getSpatialIndex().getBox(g);
+        }
+    }
+
+    /** Get the extent of the drawing, that is the union of the bounding boxes
+        of all primitives, in logical units.
+        @return the extent, or null if the drawing is empty.
+    */
+    public RectangleG getExtent()
+    {
+        synchronized(this) {
+            return getSpatialIndex().getExtent();
+        }
+    }
+
+    /** Get the extent of what is drawn, at unit zoom and with the origin of
+        the logical coordinates mapped on the origin. This is the region
+        tracked by the MapCoordinates while drawing the whole drawing in
+        this situation, but only the primitives which have been modified
+        since the last call are drawn again. Primitives must be added and
+        modified as explained for the spatial index (see updatePrimitive).
+        The region does not depend on the drawOnlyLayer and drawOnlyPads
+        settings: all the visible layers are considered.
+        @return the extent, or null if nothing is drawn.
+    */
+    public RectangleG getDrawnExtent()
+    {
+        synchronized(this) {
+            SpatialIndex si=getSpatialIndex();
+            long visibleLayers=0;
+            for(int l=0; l<layerV.size() && l<Long.SIZE; ++l) {
+                if(layerV.get(l).isVisible()) {
+                    visibleLayers |= 1L<<l;
+                }
+            }
+            if(visibleLayers!=drawnVisibleLayers) {
+                si.invalidateDrawn();
+                drawnVisibleLayers=visibleLayers;
+            }
+            return si.getDrawnExtent(layerV);
+        }
+    }
+
+    /** Forget the drawn extent of all the primitives, since the way they are
+        drawn may have changed. They will be measured again when needed.
+    */
+    private void invalidateDrawnExtent()
+    {
+        synchronized(this) {
+            if(spatialIndex!=null) {
+                spatialIndex.invalidateDrawn();
+            }
+        }
+    }
+
     /** Set the font of all elements.
         @param f the font name
         @param tsize the size
@@ -206,6 +608,7 @@ public final class DrawingModel
         for (GraphicPrimitive g:getPrimitiveVector()) {
             g.setMacroFont(f, size);
         }
+        invalidateSpatialIndex();
         changed=true;
         if(ua!=null) { ua.setModified(true); }
     }
@@ -238,74 +641,74 @@ public final class DrawingModel
         return macroFontSize;
     }
 
-    /** Performs a sort of the primitives on the basis of their layer.
-        The sorting metod adopted is the Shell sort. By the practical point
-        of view, this seems to be rather good even for large drawings. This is
-        because the primitive list is always more or less already ordered.
+    /** Put again the primitives in the list of their layer. This is needed
+        when the layer of some primitives has been changed after they have
+        been added. The relative order of the primitives of each layer is
+        kept. The information about the layers used in the drawing and the
+        list of the primitives needing holes are calculated again, too.
     */
     public void sortPrimitiveLayers()
     {
-        int i;
-        GraphicPrimitive g;
-        maxLayer = 0;
-
-        // Indexes
-        int j;
-        int k;
-        int l;
-        // Swap temporary variable
-        GraphicPrimitive s;
-
-        // Shell sort. This is a farly standard implementation
-        for(l = getPrimitiveVector().size()/2; l>0; l/=2) {
-            for(j = l; j< getPrimitiveVector().size(); ++j) {
-                for(i=j-l; i>=0; i-=l) {
-                    if(((GraphicPrimitive)getPrimitiveVector()
-                                                    .get(i+l)).getLayer()>=
-                        ((GraphicPrimitive)getPrimitiveVector()
-                                                    .get(i)).getLayer())
-                    {
-                        break;
-                    } else {
-                        // Swap
-                        s = (GraphicPrimitive)getPrimitiveVector().get(i);
-                        getPrimitiveVector().set(i,
-                            getPrimitiveVector().get(i+l));
-                        getPrimitiveVector().set(i+l, s);
+        synchronized(this) {
+            if(isSorted()) {
+                // Nothing moves, so the changes recorded remain valid.
+                holePrimitives=new ArrayList<GraphicPrimitive>();
+                maxLayer=-1;
+                Arrays.fill(layersUsed, false);
+                for(List<GraphicPrimitive> bucket: layerBuckets) {
+                    for(GraphicPrimitive g: bucket) {
+                        registerLayersAndHoles(g);
                     }
                 }
+            } else {
+                storePrimitives(new ArrayList<GraphicPrimitive>(
+                    getPrimitiveVector()));
+                if(spatialIndex!=null) {
+                    spatialIndex.reorder(layerBuckets);
+                }
             }
+            // Primitives on a layer which is not visible are not drawn.
+            invalidateDrawnExtent();
         }
+    }
 
-        // Since for sorting we need to analyze all the primitives in the
-        // database, this is a good place to calculate which layers are
-        // used. We thus start by resetting the array.
-        maxLayer = -1;
-        k=0;
-
-        for (l=0; l<LayerDesc.MAX_LAYERS; ++l) {
-            layersUsed[l] = false;
-
-            for (i=k; i<getPrimitiveVector().size(); ++i) {
-                g=(GraphicPrimitive)getPrimitiveVector().get(i);
-
-                // We keep track of the maximum layer number used in the
-                // drawing.
-                if (g.getLayer() > maxLayer) {
-                    maxLayer = g.getLayer();
-                }
-
-                if (g.containsLayer(l)) {
-                    layersUsed[l]=true;
-                    k=i;
-                    for (int z = 0; z<l; ++z) {
-                        layersUsed[z]=true;
-                    }
-                    break;
+    /** Check if each primitive is in the list of its layer.
+        @return true if no primitive has changed layer since it has been
+            added.
+    */
+    private boolean isSorted()
+    {
+        for(int l=0; l<layerBuckets.size(); ++l) {
+            for(GraphicPrimitive g: layerBuckets.get(l)) {
+                if(bucketIndex(g)!=l) {
+                    return false;
                 }
             }
         }
+        return true;
+    }
+
+    /** Replace the contents of the drawing with the given primitives.
+        @param v the primitives.
+    */
+    private void storePrimitives(List<GraphicPrimitive> v)
+    {
+        changes=null;
+        layerBuckets=new ArrayList<List<GraphicPrimitive>>(
+            LayerDesc.MAX_LAYERS);
+        for(int l=0; l<LayerDesc.MAX_LAYERS; ++l) {
+            layerBuckets.add(new ArrayList<GraphicPrimitive>());
+        }
+        holePrimitives=new ArrayList<GraphicPrimitive>();
+        primitiveCount=0;
+        bucketOffsets=null;
+        maxLayer=-1;
+        Arrays.fill(layersUsed, false);
+        for(GraphicPrimitive g: v) {
+            storePrimitive(g);
+        }
     }
+
     /** Get the maximum layer which contains something. This value is updated
         after a redraw. This is tracked for efficiency reasons.
 
@@ -358,7 +761,9 @@ public final class DrawingModel
         changed=c;
     }
 
-    /** Obtains a vector containing all elements.
+    /** Obtains a vector containing all elements, ordered by layer. It can
+        not be modified directly: use addPrimitive() and removePrimitive().
+        It reflects the changes done to the drawing.
         @return the vector containing all graphical objects.
     */
     public List<GraphicPrimitive> getPrimitiveVector()
@@ -366,12 +771,91 @@ public final class DrawingModel
         return primitiveVector;
     }
 
-    /** Sets a vector containing all elements.
+    /** Sets a vector containing all elements. The elements are copied in
+        the drawing and ordered by layer.
         @param primitiveVector the vector containing all graphical objects.
     */
     public void setPrimitiveVector(List<GraphicPrimitive> primitiveVector)
     {
-        this.primitiveVector = primitiveVector;
+        synchronized(this) {
+            storePrimitives(primitiveVector);
+            invalidateSpatialIndex();
+        }
+    }
+
+    /** Read only view of all the primitives, obtained by concatenating the
+        lists of the different layers. The list containing a given position
+        is found by means of the offsets of the lists.
+    */
+    private final class PrimitiveView extends AbstractList<GraphicPrimitive>
+    {
+        // The list in which the last primitive has been found. The
+        // primitives are often accessed in sequence.
+        private int lastBucket;
+
+        @Override
+        public GraphicPrimitive get(int index)
+        {
+            if(index<0 || index>=primitiveCount) {
+                throw new IndexOutOfBoundsException("Index: "+index);
+            }
+            int[] o=getBucketOffsets();
+            int b=lastBucket;
+            if(b>=o.length-1 || index<o[b] || index>=o[b+1]) {
+                // Find the last list starting before the position.
+                int lo=0;
+                int hi=o.length-2;
+                while(lo<hi) {
+                    int mid=(lo+hi+1)>>>1;
+                    if(o[mid]<=index) {
+                        lo=mid;
+                    } else {
+                        hi=mid-1;
+                    }
+                }
+                b=lo;
+                lastBucket=b;
+            }
+            return layerBuckets.get(b).get(index-o[b]);
+        }
+
+        @Override
+        public int size()
+        {
+            return primitiveCount;
+        }
+
+        @Override
+        public Iterator<GraphicPrimitive> iterator()
+        {
+            return new Iterator<GraphicPrimitive>()
+            {
+                private final List<List<GraphicPrimitive>> buckets=
+                    layerBuckets;
+                private int bucket;
+                private int position;
+
+                public boolean hasNext()
+                {
+                    while(bucket<buckets.size()) {
+                        if(position<buckets.get(bucket).size()) {
+                            return true;
+                        }
+                        ++bucket;
+                        position=0;
+                    }
+                    return false;
+                }
+
+                public GraphicPrimitive next()
+                {
+                    if(!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return buckets.get(bucket).get(position++);
+                }
+            };
+        }
     }
 
     /** Specify that the drawing process should only draw holes of the pcb
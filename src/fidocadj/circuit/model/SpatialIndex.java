@@ -0,0 +1,568 @@
+package fidocadj.circuit.model;
+
+import java.util.*;
+
+import fidocadj.geom.MapCoordinates;
+import fidocadj.graphic.RectangleG;
+import fidocadj.graphic.nil.GraphicsNull;
+import fidocadj.layers.LayerDesc;
+import fidocadj.primitives.GraphicPrimitive;
+
+/**
+    Spatial index of the primitives contained in a drawing. It is a uniform
+    grid over the bounding boxes of the primitives, in logical coordinates.
+    It allows to find quickly the primitives which are close to a given
+    point, without having to calculate the distance from every primitive
+    in the drawing. It also keeps track of the extent of the whole drawing.
+
+    Besides the conservative bounding boxes, the index stores the exact
+    extent of each primitive, as it is obtained by drawing the primitive at
+    unit zoom. It is calculated only when needed and kept until the
+    primitive is modified, so that the size of the drawing can be obtained
+    without drawing it all again.
+
+    The index does not know when a primitive is modified: it must be told
+    via update(). This class is not thread safe, DrawingModel takes care of
+    the synchronization.
+
+    <pre>
+
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2007-2023 by Davide Bucci
+    </pre>
+
+    @author Davide Bucci
+*/
+final class SpatialIndex
+{
+    // Size of the side of each cell of the grid, in logical units. A typical
+    // symbol spans a few cells.
+    private static final int CELL_SIZE=32;
+
+    // Primitives spanning more cells than that (very long lines, big
+    // rectangles and so on) are not put in the grid, but kept in a separate
+    // list which is always checked.
+    private static final int MAX_CELLS=64;
+
+    // The cells of the grid. Only the cells containing something are stored.
+    private final Map<Long, List<Entry>> cells;
+
+    // Primitives too big to be stored in the grid.
+    private final List<Entry> large;
+
+    // All the primitives indexed.
+    private final Map<GraphicPrimitive, Entry> entries;
+
+    // Counter used to remember the order in which primitives are added.
+    private int sequence;
+
+    // Counter used to avoid returning twice the same primitive in a query.
+    private int queryStamp;
+
+    // Union of the bounding boxes of all primitives, or null if it has to
+    // be recalculated.
+    private RectangleG extent;
+
+    // Primitives whose drawn extent has to be calculated.
+    private final Set<Entry> unmeasured;
+
+    // Union of the drawn extents of all primitives, or null if it has to be
+    // recalculated. It is valid only if the flag is true, since it may be
+    // null also when nothing is drawn.
+    private RectangleG drawnExtent;
+    private boolean drawnExtentValid;
+
+    /** An indexed primitive, with the bounding box used to store it.
+    */
+    private static final class Entry
+    {
+        final GraphicPrimitive primitive;
+        // The list of the drawing in which the primitive is stored (see
+        // DrawingModel) and its order in that list.
+        int bucket;
+        int sequence;
+        RectangleG box;
+        // Extent of what is drawn by the primitive at unit zoom, or null
+        // if nothing is drawn.
+        RectangleG drawn;
+        int stamp;
+
+        Entry(GraphicPrimitive p, int b, int s)
+        {
+            primitive=p;
+            bucket=b;
+            sequence=s;
+        }
+    }
+
+    // Order in which the primitives are drawn.
+    private static final Comparator<Entry> DRAWING_ORDER=
+        new Comparator<Entry>()
+    {
+        public int compare(Entry a, Entry b)
+        {
+            if(a.bucket!=b.bucket) {
+                return a.bucket<b.bucket?-1:1;
+            }
+            return Integer.compare(a.sequence, b.sequence);
+        }
+    };
+
+    /** Standard constructor. Creates an empty index.
+    */
+    SpatialIndex()
+    {
+        cells=new HashMap<Long, List<Entry>>();
+        large=new ArrayList<Entry>();
+        entries=new IdentityHashMap<GraphicPrimitive, Entry>();
+        extent=null;
+        unmeasured=new HashSet<Entry>();
+        drawnExtent=null;
+        drawnExtentValid=false;
+    }
+
+    /** Get the number of primitives which are indexed.
+        @return the number of primitives.
+    */
+    int size()
+    {
+        return entries.size();
+    }
+
+    /** Add a primitive to the index. Nothing is done if the primitive is
+        already present. The primitive is considered to be at the end of the
+        list in which it is stored.
+        @param g the primitive to be added.
+        @param bucket the list of the drawing in which it is stored.
+    */
+    void add(GraphicPrimitive g, int bucket)
+    {
+        if(entries.containsKey(g)) {
+            return;
+        }
+        Entry e=new Entry(g, bucket, sequence++);
+        entries.put(g, e);
+        store(e);
+    }
+
+    /** Update the order of the primitives, when they are not simply added
+        at the end of their list.
+        @param buckets the lists of the drawing, in the order they are
+            drawn.
+    */
+    void reorder(List<List<GraphicPrimitive>> buckets)
+    {
+        sequence=0;
+        for(int b=0; b<buckets.size(); ++b) {
+            for(GraphicPrimitive g: buckets.get(b)) {
+                Entry e=entries.get(g);
+                if(e!=null) {
+                    e.bucket=b;
+                    e.sequence=sequence++;
+                }
+            }
+        }
+    }
+
+    /** Remove a primitive from the index.
+        @param g the primitive to be removed.
+    */
+    void remove(GraphicPrimitive g)
+    {
+        Entry e=entries.remove(g);
+        if(e!=null) {
+            unstore(e);
+        }
+    }
+
+    /** Update the position of a primitive in the index. This must be done
+        each time the primitive is moved, rotated, mirrored or edited.
+        @param g the primitive which has changed.
+    */
+    void update(GraphicPrimitive g)
+    {
+        Entry e=entries.get(g);
+        if(e==null) {
+            return;
+        }
+        unstore(e);
+        store(e);
+    }
+
+    /** Get the bounding box of a primitive, as it is stored in the index.
+        @param g the primitive.
+        @return the bounding box (not to be modified), or null if the
+            primitive is not indexed.
+    */
+    RectangleG getBox(GraphicPrimitive g)
+    {
+        Entry e=entries.get(g);
+        return e==null?null:e.box;
+    }
+
+    /** Find the primitives whose bounding box is close to the given point.
+        The primitives are ordered by layer and, for the same layer, in the
+        order they have been added. This is the order they are drawn, so
+        the last primitive of the list is the one shown on top.
+        @param px the x coordinate of the point (logical units).
+        @param py the y coordinate of the point (logical units).
+        @param radius the maximum distance between the point and the
+            bounding boxes.
+        @return the list of primitives found.
+    */
+    List<GraphicPrimitive> query(int px, int py, int radius)
+    {
+        List<Entry> found=new ArrayList<Entry>();
+        ++queryStamp;
+        int r=Math.max(radius,0);
+        for(Entry e: large) {
+            checkEntry(e, px, py, r, found);
+        }
+        int cx1=cell(px-r);
+        int cy1=cell(py-r);
+        int cx2=cell(px+r);
+        int cy2=cell(py+r);
+        for(int cx=cx1; cx<=cx2; ++cx) {
+            for(int cy=cy1; cy<=cy2; ++cy) {
+                List<Entry> l=cells.get(key(cx,cy));
+                if(l==null) {
+                    continue;
+                }
+                for(Entry e: l) {
+                    checkEntry(e, px, py, r, found);
+                }
+            }
+        }
+        Collections.sort(found, new Comparator<Entry>()
+        {
+            public int compare(Entry a, Entry b)
+            {
+                int la=a.primitive.getLayer();
+                int lb=b.primitive.getLayer();
+                if(la!=lb) {
+                    return la<lb?-1:1;
+                }
+                return Integer.compare(a.sequence, b.sequence);
+            }
+        });
+        List<GraphicPrimitive> result=
+            new ArrayList<GraphicPrimitive>(found.size());
+        for(Entry e: found) {
+            result.add(e.primitive);
+        }
+        return result;
+    }
+
+    /** Find the primitives whose bounding box intersects the given region.
+        The primitives are in the order they are drawn. Only the cells of
+        the grid covered by the region are examined, unless they are more
+        than the cells containing something.
+        @param r the region (logical units).
+        @param boxes if not null, the bounding box of each primitive found
+            is added to it, in the same order.
+        @param outside if not null, the bounding boxes of all the other
+            primitives are added to it. All the primitives are examined.
+        @return the list of primitives found.
+    */
+    List<GraphicPrimitive> queryArea(RectangleG r, List<RectangleG> boxes,
+        List<RectangleG> outside)
+    {
+        List<Entry> found=new ArrayList<Entry>();
+        ++queryStamp;
+        for(Entry e: large) {
+            checkEntry(e, r, found);
+        }
+        int cx1=cell(r.x);
+        int cy1=cell(r.y);
+        int cx2=cell(r.x+r.width);
+        int cy2=cell(r.y+r.height);
+        if((long)(cx2-cx1+1)*(cy2-cy1+1)>cells.size()) {
+            for(List<Entry> l: cells.values()) {
+                for(Entry e: l) {
+                    checkEntry(e, r, found);
+                }
+            }
+        } else {
+            for(int cx=cx1; cx<=cx2; ++cx) {
+                for(int cy=cy1; cy<=cy2; ++cy) {
+                    List<Entry> l=cells.get(key(cx,cy));
+                    if(l==null) {
+                        continue;
+                    }
+                    for(Entry e: l) {
+                        checkEntry(e, r, found);
+                    }
+                }
+            }
+        }
+        Collections.sort(found, DRAWING_ORDER);
+        List<GraphicPrimitive> result=
+            new ArrayList<GraphicPrimitive>(found.size());
+        for(Entry e: found) {
+            result.add(e.primitive);
+            if(boxes!=null) {
+                boxes.add(e.box);
+            }
+        }
+        if(outside!=null) {
+            for(Entry e: entries.values()) {
+                if(e.stamp!=queryStamp) {
+                    outside.add(e.box);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Get the union of the bounding boxes of all the primitives.
+        @return the extent of the drawing, or null if the index is empty.
+    */
+    RectangleG getExtent()
+    {
+        if(entries.isEmpty()) {
+            return null;
+        }
+        if(extent==null) {
+            for(Entry e: entries.values()) {
+                if(extent==null) {
+                    extent=new RectangleG(e.box.x, e.box.y,
+                        e.box.width, e.box.height);
+                } else {
+                    extent.add(e.box);
+                }
+            }
+        }
+        return new RectangleG(extent.x, extent.y, extent.width,
+            extent.height);
+    }
+
+    /** Get the union of the extents of what is drawn by the primitives, at
+        unit zoom and with the coordinates mapped to the origin. It is the
+        same region which is tracked while drawing the whole drawing, but
+        only the primitives which have been modified are drawn again.
+        @param layers the layers of the drawing, which tell which
+            primitives are visible.
+        @return the extent, or null if nothing is drawn.
+    */
+    RectangleG getDrawnExtent(List<LayerDesc> layers)
+    {
+        for(Entry e: unmeasured) {
+            e.drawn=measure(e.primitive, layers);
+            if(drawnExtentValid) {
+                drawnExtent=union(drawnExtent, e.drawn);
+            }
+        }
+        unmeasured.clear();
+        if(!drawnExtentValid) {
+            drawnExtent=null;
+            for(Entry e: entries.values()) {
+                drawnExtent=union(drawnExtent, e.drawn);
+            }
+            drawnExtentValid=true;
+        }
+        return drawnExtent==null?null:new RectangleG(drawnExtent.x,
+            drawnExtent.y, drawnExtent.width, drawnExtent.height);
+    }
+
+    /** Forget the drawn extents of all primitives. This must be done when
+        something changes the way they are drawn without changing their
+        geometry, for example the visibility or the assignment of layers.
+    */
+    void invalidateDrawn()
+    {
+        for(Entry e: entries.values()) {
+            e.drawn=null;
+        }
+        unmeasured.addAll(entries.values());
+        drawnExtentValid=false;
+    }
+
+    /** Draw a primitive at unit zoom on a graphic context which does not
+        do anything, tracking the coordinates used. The calls are the same
+        done by the Drawing class while drawing the whole drawing. At the
+        end, the primitive is marked as changed, so that the coordinates
+        calculated for the screen are calculated again at the next redraw.
+        @return the extent of what has been drawn, or null if nothing has
+            been drawn.
+    */
+    private static RectangleG measure(GraphicPrimitive g,
+        List<LayerDesc> layers)
+    {
+        MapCoordinates m=new MapCoordinates();
+        GraphicsNull gn=new GraphicsNull();
+        g.setChanged(true);
+        for(int l=0; l<LayerDesc.MAX_LAYERS; ++l) {
+            if(g.containsLayer(l)) {
+                g.setDrawOnlyLayer(l);
+                g.draw(gn, m, layers);
+            }
+        }
+        if(g.needsHoles()) {
+            g.setDrawOnlyPads(true);
+            g.draw(gn, m, layers);
+            g.setDrawOnlyPads(false);
+        }
+        g.setChanged(true);
+        if(m.getXMax()<m.getXMin() || m.getYMax()<m.getYMin()) {
+            return null;
+        }
+        return new RectangleG(m.getXMin(), m.getYMin(),
+            m.getXMax()-m.getXMin(), m.getYMax()-m.getYMin());
+    }
+
+    /** Calculate the union of two rectangles, which may be null.
+        @return the first rectangle, enlarged, or a copy of the second one.
+    */
+    private static RectangleG union(RectangleG a, RectangleG b)
+    {
+        if(b==null) {
+            return a;
+        }
+        if(a==null) {
+            return new RectangleG(b.x, b.y, b.width, b.height);
+        }
+        a.add(b);
+        return a;
+    }
+
+    /** Add the entry to the result if its box is close enough to the
+        given point and it has not been already found during this query.
+    */
+    private void checkEntry(Entry e, int px, int py, int r, List<Entry> found)
+    {
+        if(e.stamp==queryStamp) {
+            return;
+        }
+        RectangleG b=e.box;
+        if(px>=b.x-r && px<=b.x+b.width+r && py>=b.y-r &&
+            py<=b.y+b.height+r)
+        {
+            e.stamp=queryStamp;
+            found.add(e);
+        }
+    }
+
+    /** Add the entry to the result if its box intersects the given region
+        and it has not been already found during this query.
+    */
+    private void checkEntry(Entry e, RectangleG r, List<Entry> found)
+    {
+        if(e.stamp==queryStamp) {
+            return;
+        }
+        RectangleG b=e.box;
+        if(b.x<=r.x+r.width && b.x+b.width>=r.x && b.y<=r.y+r.height &&
+            b.y+b.height>=r.y)
+        {
+            e.stamp=queryStamp;
+            found.add(e);
+        }
+    }
+
+    /** Calculate the bounding box of the primitive and store the entry in
+        the cells it covers.
+    */
+    private void store(Entry e)
+    {
+        RectangleG b=e.primitive.getBoundingBox();
+        e.box=b;
+        if(extent!=null) {
+            extent.add(b);
+        }
+        // The drawn extent will be calculated when needed.
+        e.drawn=null;
+        unmeasured.add(e);
+        int cx1=cell(b.x);
+        int cy1=cell(b.y);
+        int cx2=cell(b.x+b.width);
+        int cy2=cell(b.y+b.height);
+        if((long)(cx2-cx1+1)*(cy2-cy1+1)>MAX_CELLS) {
+            large.add(e);
+            return;
+        }
+        for(int cx=cx1; cx<=cx2; ++cx) {
+            for(int cy=cy1; cy<=cy2; ++cy) {
+                Long k=key(cx,cy);
+                List<Entry> l=cells.get(k);
+                if(l==null) {
+                    l=new ArrayList<Entry>(4);
+                    cells.put(k, l);
+                }
+                l.add(e);
+            }
+        }
+    }
+
+    /** Remove the entry from the cells it covers.
+    */
+    private void unstore(Entry e)
+    {
+        RectangleG b=e.box;
+        // If the box touches the border of the extent, the latter might
+        // shrink. It will be recalculated when needed.
+        if(extent!=null && (b.x<=extent.x || b.y<=extent.y ||
+            b.x+b.width>=extent.x+extent.width ||
+            b.y+b.height>=extent.y+extent.height))
+        {
+            extent=null;
+        }
+        RectangleG d=e.drawn;
+        if(d!=null && drawnExtent!=null && (d.x<=drawnExtent.x ||
+            d.y<=drawnExtent.y ||
+            d.x+d.width>=drawnExtent.x+drawnExtent.width ||
+            d.y+d.height>=drawnExtent.y+drawnExtent.height))
+        {
+            drawnExtentValid=false;
+        }
+        unmeasured.remove(e);
+        int cx1=cell(b.x);
+        int cy1=cell(b.y);
+        int cx2=cell(b.x+b.width);
+        int cy2=cell(b.y+b.height);
+        if((long)(cx2-cx1+1)*(cy2-cy1+1)>MAX_CELLS) {
+            large.remove(e);
+            return;
+        }
+        for(int cx=cx1; cx<=cx2; ++cx) {
+            for(int cy=cy1; cy<=cy2; ++cy) {
+                Long k=key(cx,cy);
+                List<Entry> l=cells.get(k);
+                if(l!=null) {
+                    l.remove(e);
+                    if(l.isEmpty()) {
+                        cells.remove(k);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Get the index of the cell containing the given coordinate.
+    */
+    private static int cell(int c)
+    {
+        return Math.floorDiv(c, CELL_SIZE);
+    }
+
+    /** Get the key identifying a cell in the map.
+    */
+    private static Long key(int cx, int cy)
+    {
+        return Long.valueOf(((long)cx<<32) | (cy & 0xFFFFFFFFL));
+    }
+}
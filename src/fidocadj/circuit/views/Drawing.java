@@ -1,10 +1,14 @@
 package fidocadj.circuit.views;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import fidocadj.circuit.model.DrawingModel;
 import fidocadj.geom.MapCoordinates;
 import fidocadj.layers.LayerDesc;
 import fidocadj.primitives.GraphicPrimitive;
 import fidocadj.graphic.GraphicsInterface;
+import fidocadj.graphic.RectangleG;
 
 /** Drawing: draws the FidoCadJ drawing. This is a view of the drawing.
 
@@ -48,10 +52,31 @@ public class Drawing
     private double oX;
     private double oY;
     private double oO;
-    private GraphicPrimitive gg;    // NOPMD
-    private int i_index; // NOPMD
     private int jIndex; // NOPMD
 
+    // True if the primitives outside the clip region should be skipped.
+    private boolean culling;
+
+    // The primitives visible in the current clip region, for each layer,
+    // and those among them which need holes. If they are null, all
+    // primitives are drawn.
+    private List<List<GraphicPrimitive>> visibleLayers;
+    private List<GraphicPrimitive> visibleHoles;
+
+    // True between beginLayers and endLayers: the primitives to be drawn
+    // have already been determined.
+    private boolean layersPrepared;
+
+    // Number of primitives drawn and skipped during the last redraw.
+    private int drawnCounter;
+    private int culledCounter;
+
+    // Which primitives should be drawn, depending on their selection state.
+    private static final int ALL_PRIMITIVES=0;
+    private static final int SELECTED_PRIMITIVES=1;
+    private static final int UNSELECTED_PRIMITIVES=2;
+    private int selectionFilter=ALL_PRIMITIVES;
+
     /** Create a drawing view.
         @param pp the model to which the view will be associated.
     */
@@ -60,12 +85,30 @@ public class Drawing
         drawingModel=pp;
     }
 
+    /** Activate or deactivate the culling of the primitives which are
+        outside the clip region of the graphic context. It should be active
+        only when the drawing is really shown, since many drawing operations
+        are done just to calculate the size of the drawing or to prepare
+        the primitives for the export (for example with GraphicsNull, which
+        tells that nothing hits its clip region).
+        @param c true if the culling should be active.
+    */
+    public void setCulling(boolean c)
+    {
+        synchronized(this) {
+            culling=c;
+        }
+    }
+
     /** Draw the handles of all selected primitives
         @param gi the graphic context to be used.
         @param cs the coordinate mapping system to employ.
     */
     public void drawSelectedHandles(GraphicsInterface gi, MapCoordinates cs)
     {
+        // The handles are opaque, whatever the transparency of the layer
+        // drawn last (it depends on the region being repainted).
+        gi.setAlpha(1.0f);
         for (GraphicPrimitive gp : drawingModel.getPrimitiveVector()) {
             if(gp.isSelected()) {
                 gp.drawHandles(gi, cs);
@@ -88,29 +131,8 @@ public class Drawing
         }
 
         synchronized (this) {
-            // At first, we check if the current view has changed.
-            if(drawingModel.getChanged() || oZ!=cs.getXMagnitude()
-                || oX!=cs.getXCenter() || oY!=cs.getYCenter()
-                || oO!=cs.getOrientation())
-            {
-                oZ=cs.getXMagnitude();
-                oX=cs.getXCenter();
-                oY=cs.getYCenter();
-                oO=cs.getOrientation();
-                drawingModel.setChanged(false);
-
-                // Here we force for a global refresh of graphic data at the
-                // primitive level.
-                for (GraphicPrimitive gp : drawingModel.getPrimitiveVector()) {
-                    gp.setChanged(true);
-                }
-
-                if (!drawingModel.getDrawOnlyPads()) {
-                    cs.resetMinMax();
-                }
-            }
-
-            needHoles = drawingModel.getDrawOnlyPads();
+            layersPrepared=false;
+            prepareDraw(gG, cs);
 
             /* First possibility: we need to draw only one layer (for example
                 in a macro). This is indicated by the fact that drawOnlyLayer
@@ -142,22 +164,313 @@ public class Drawing
             // Draw in a second time only the PCB pads, in order to ensure that
             // the drills are always open.
             if(needHoles) {
-                for (i_index = 0; i_index <
-                        drawingModel.getPrimitiveVector().size(); ++i_index){
-
-                    // We will process only primitive which require holes (pads
-                    // as well as macros containing pads).
-
-                    gg = (GraphicPrimitive)drawingModel.getPrimitiveVector()
-                                                                .get(i_index);
-                    if (gg.needsHoles()) {
-                        gg.setDrawOnlyPads(true);
-                        gg.draw(gG, cs, drawingModel.getLayers());
-                        gg.setDrawOnlyPads(false);
-                    }
+                drawHolePrimitives(gG, cs);
+            }
+        }
+    }
+
+    /** Draw only the selected primitives, or only the ones which are not
+        selected. While the selected primitives are being dragged, the
+        others can thus be kept in an image. The selected primitives are
+        drawn over the others, whatever their layer.
+        @param gG the graphic context in which the drawing should be drawn.
+        @param cs the coordinate mapping to be used.
+        @param selected true if the selected primitives should be drawn,
+            false if the others should be drawn.
+    */
+    public void drawSelection(GraphicsInterface gG, MapCoordinates cs,
+        boolean selected)
+    {
+        synchronized (this) {
+            selectionFilter=selected?SELECTED_PRIMITIVES:UNSELECTED_PRIMITIVES;
+            try {
+                draw(gG, cs);
+            } finally {
+                selectionFilter=ALL_PRIMITIVES;
+            }
+        }
+    }
+
+    /** Determine once which primitives should be drawn, before drawing
+        some layers (see drawLayer) and the holes (see drawHoles) with the
+        same coordinate mapping. Otherwise, this is done for each layer.
+        @param gG the graphic context whose clip region contains what will
+            be drawn.
+        @param cs the coordinate mapping to be used.
+    */
+    public void beginLayers(GraphicsInterface gG, MapCoordinates cs)
+    {
+        synchronized (this) {
+            prepareDraw(gG, cs);
+            layersPrepared=true;
+        }
+    }
+
+    /** Tell that the layers started with beginLayers have been drawn.
+    */
+    public void endLayers()
+    {
+        synchronized (this) {
+            layersPrepared=false;
+        }
+    }
+
+    /** Draw a single layer of the current drawing, without the holes of the
+        pads. Drawing all the layers in increasing order, followed by the
+        holes (see drawHoles), gives the same result as draw. This allows
+        to keep each layer in a different image.
+        @param gG the graphic context in which the layer should be drawn.
+        @param cs the coordinate mapping to be used.
+        @param layer the layer to be drawn.
+    */
+    public void drawLayer(GraphicsInterface gG, MapCoordinates cs, int layer)
+    {
+        synchronized (this) {
+            if(!layersPrepared) {
+                prepareDraw(gG, cs);
+            }
+            if(drawingModel.containsLayer(layer)) {
+                drawPrimitives(layer, gG, cs);
+            }
+        }
+    }
+
+    /** Draw the holes of the pads of the current drawing, which should be
+        drawn over all the layers.
+        @param gG the graphic context in which the holes should be drawn.
+        @param cs the coordinate mapping to be used.
+    */
+    public void drawHoles(GraphicsInterface gG, MapCoordinates cs)
+    {
+        synchronized (this) {
+            if(!layersPrepared) {
+                prepareDraw(gG, cs);
+            }
+            if(needHoles) {
+                drawHolePrimitives(gG, cs);
+            }
+        }
+    }
+
+    /** Check if the view has changed since the last redraw and determine
+        which primitives should be drawn.
+        @param gG the graphic context in which the drawing should be drawn.
+        @param cs the coordinate mapping to be used.
+    */
+    private void prepareDraw(GraphicsInterface gG, MapCoordinates cs)
+    {
+        boolean tracking=false;
+        // At first, we check if the current view has changed.
+        if(drawingModel.getChanged() || oZ!=cs.getXMagnitude()
+            || oX!=cs.getXCenter() || oY!=cs.getYCenter()
+            || oO!=cs.getOrientation())
+        {
+            oZ=cs.getXMagnitude();
+            oX=cs.getXCenter();
+            oY=cs.getYCenter();
+            oO=cs.getOrientation();
+            drawingModel.setChanged(false);
+
+            // Here we force for a global refresh of graphic data at the
+            // primitive level.
+            for (GraphicPrimitive gp : drawingModel.getPrimitiveVector()) {
+                gp.setChanged(true);
+            }
+
+            if (!drawingModel.getDrawOnlyPads()) {
+                cs.resetMinMax();
+                tracking=true;
+            }
+        }
+
+        cullPrimitives(gG, cs, tracking);
+
+        needHoles = drawingModel.getDrawOnlyPads()
+            || !drawingModel.getHolePrimitives().isEmpty();
+    }
+
+    /** Draw the holes of the primitives which need them (pads as well as
+        macros containing pads).
+        @param gG the graphic context in which the holes should be drawn.
+        @param cs the coordinate mapping to be used.
+    */
+    private void drawHolePrimitives(GraphicsInterface gG, MapCoordinates cs)
+    {
+        // Skip the primitives outside the clip region.
+        List<GraphicPrimitive> v=visibleHoles==null?
+            drawingModel.getHolePrimitives():visibleHoles;
+        for (GraphicPrimitive gg : v) {
+            if(Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            gg.setDrawOnlyPads(true);
+            gg.draw(gG, cs, drawingModel.getLayers());
+            gg.setDrawOnlyPads(false);
+        }
+    }
+
+    /** Determine which primitives are visible in the clip region of the
+        graphic context. This is done only if the culling is active. The
+        spatial index of the drawing gives the primitives whose bounding box
+        is close to the clip region, then the box of each of them is
+        compared with the clip region. The contents of the macros are not
+        checked, since the macro as a whole has already been checked. The
+        primitives skipped because of their selection state (see
+        drawSelection) are not visible as well.
+        @param gG the graphic context in which the drawing should be drawn.
+        @param cs the coordinate mapping to be used.
+        @param tracking true if the size of the drawing is being calculated
+            during this redraw. In this case, the primitives which are not
+            drawn are tracked by means of their bounding box. This requires
+            to examine all the primitives.
+    */
+    private void cullPrimitives(GraphicsInterface gG, MapCoordinates cs,
+        boolean tracking)
+    {
+        visibleLayers=null;
+        visibleHoles=null;
+        int total=drawingModel.getPrimitiveVector().size();
+        drawnCounter=total;
+        culledCounter=0;
+        if(!culling && selectionFilter==ALL_PRIMITIVES || cs.isMacro) {
+            return;
+        }
+        RectangleG region=culling?getLogicalClip(gG, cs):null;
+        List<GraphicPrimitive> v;
+        List<RectangleG> boxes=null;
+        List<RectangleG> outside=null;
+        if(region==null) {
+            v=drawingModel.getPrimitiveVector();
+        } else {
+            boxes=new ArrayList<RectangleG>();
+            outside=tracking?new ArrayList<RectangleG>():null;
+            v=drawingModel.getPrimitivesIn(region, boxes, outside);
+        }
+        visibleLayers=new ArrayList<List<GraphicPrimitive>>(
+            LayerDesc.MAX_LAYERS);
+        for(int l=0; l<LayerDesc.MAX_LAYERS; ++l) {
+            visibleLayers.add(new ArrayList<GraphicPrimitive>());
+        }
+        visibleHoles=new ArrayList<GraphicPrimitive>();
+        drawnCounter=0;
+        int i=0;
+        for(GraphicPrimitive gp: v) {
+            RectangleG b=boxes==null?null:boxes.get(i++);
+            if(!isFiltered(gp) && (b==null || hitsClip(gG, cs, b))) {
+                int l=Math.max(0, Math.min(gp.getLayer(),
+                    LayerDesc.MAX_LAYERS-1));
+                visibleLayers.get(l).add(gp);
+                if(gp.needsHoles()) {
+                    visibleHoles.add(gp);
                 }
+                ++drawnCounter;
+            } else if(tracking) {
+                trackBox(cs, b==null?drawingModel.getBoundingBox(gp):b);
+            }
+        }
+        if(outside!=null) {
+            for(RectangleG b: outside) {
+                trackBox(cs, b);
             }
         }
+        culledCounter=total-drawnCounter;
+    }
+
+    /** Calculate the region of the drawing which may be visible in the clip
+        region of the graphic context.
+        @param gG the graphic context.
+        @param cs the coordinate mapping to be used.
+        @return the region in logical units, or null if all the drawing
+            may be visible.
+    */
+    private static RectangleG getLogicalClip(GraphicsInterface gG,
+        MapCoordinates cs)
+    {
+        RectangleG c=gG.getClipBounds();
+        if(c==null || cs.getXMagnitude()<=0 || cs.getYMagnitude()<=0) {
+            return null;
+        }
+        // Take into account the margin used by hitsClip and the rounding.
+        c.grow(3,3);
+        int x1=(int)Math.floor((c.x-cs.getXCenter())/cs.getXMagnitude())-1;
+        int y1=(int)Math.floor((c.y-cs.getYCenter())/cs.getYMagnitude())-1;
+        int x2=(int)Math.ceil((c.x+c.width-cs.getXCenter())
+            /cs.getXMagnitude())+1;
+        int y2=(int)Math.ceil((c.y+c.height-cs.getYCenter())
+            /cs.getYMagnitude())+1;
+        return new RectangleG(x1, y1, x2-x1, y2-y1);
+    }
+
+    /** Track the bounding box of a primitive which is not drawn, so that
+        it is taken into account in the size of the drawing.
+        @param cs the coordinate mapping to be used.
+        @param b the bounding box in logical units, or null.
+    */
+    private static void trackBox(MapCoordinates cs, RectangleG b)
+    {
+        if(b!=null) {
+            cs.trackPoint(cs.mapXi(b.x, b.y, false),
+                cs.mapYi(b.x, b.y, false));
+            cs.trackPoint(cs.mapXi(b.x+b.width, b.y+b.height, false),
+                cs.mapYi(b.x+b.width, b.y+b.height, false));
+        }
+    }
+
+    /** Check if a bounding box hits the clip region of the graphic context.
+        @param gG the graphic context.
+        @param cs the coordinate mapping to be used.
+        @param b the bounding box in logical units. If it is null, the
+            primitive is considered visible.
+        @return true if the box is at least partially in the clip region.
+    */
+    private static boolean hitsClip(GraphicsInterface gG, MapCoordinates cs,
+        RectangleG b)
+    {
+        if(b==null) {
+            return true;
+        }
+        // The orientation and the mirroring transform a rectangle into
+        // another one, so two opposite corners are enough.
+        int xa=cs.mapXi(b.x, b.y, false);
+        int ya=cs.mapYi(b.x, b.y, false);
+        int xb=cs.mapXi(b.x+b.width, b.y+b.height, false);
+        int yb=cs.mapYi(b.x+b.width, b.y+b.height, false);
+        // The antialiasing may touch the pixels around the box.
+        return gG.hitClip(Math.min(xa,xb)-1, Math.min(ya,yb)-1,
+            Math.abs(xb-xa)+3, Math.abs(yb-ya)+3);
+    }
+
+    /** Check if a primitive should be skipped, because of its selection
+        state.
+        @param gp the primitive.
+        @return true if the primitive should not be drawn.
+    */
+    private boolean isFiltered(GraphicPrimitive gp)
+    {
+        return selectionFilter==SELECTED_PRIMITIVES && !gp.isSelected()
+            || selectionFilter==UNSELECTED_PRIMITIVES && gp.isSelected();
+    }
+
+    /** Get the number of primitives drawn during the last redraw. Those
+        outside the clip region are skipped.
+        @return the number of primitives drawn.
+    */
+    public int getDrawnPrimitives()
+    {
+        synchronized(this) {
+            return drawnCounter;
+        }
+    }
+
+    /** Get the number of primitives which have been skipped during the last
+        redraw, since they were outside the clip region.
+        @return the number of primitives skipped.
+    */
+    public int getCulledPrimitives()
+    {
+        synchronized(this) {
+            return culledCounter;
+        }
     }
 
     /** Returns true if there is the need of drawing holes in the actual
@@ -181,24 +494,26 @@ public class Drawing
     private void drawPrimitives(int jIndex, GraphicsInterface graphic,
         MapCoordinates cs)
     {
-        // Here we process all the primitives, one by one!
-        for (GraphicPrimitive gg : drawingModel.getPrimitiveVector()) {
-
-            // Layers are ordered. This improves the redrawing speed.
-            if (jIndex > 0 && gg.getLayer() > jIndex) {
-                break;
-            }
-
-            // Process a particular primitive if it is in the layer
-            // being processed.
-            if(gg.containsLayer(jIndex)) {
-                gg.setDrawOnlyLayer(jIndex);
-                gg.draw(graphic, cs, drawingModel.getLayers());
-            }
-
-            if(gg.needsHoles()) {
-                synchronized (this) {
-                    needHoles=true;
+        // Primitives are stored by layer. Apart from the primitives of the
+        // layer being processed, only macros may contain it. They are
+        // always associated to layer 0, which is thus examined first.
+        int[] lists = jIndex==0 ? new int[] {0} : new int[] {0, jIndex};
+        for (int l : lists) {
+            // Only the primitives in the clip region are considered.
+            List<GraphicPrimitive> v=visibleLayers==null?
+                drawingModel.getLayerPrimitives(l):visibleLayers.get(l);
+            // Here we process all the primitives, one by one!
+            for (GraphicPrimitive gg : v) {
+                // A thread which has been interrupted (for example because
+                // its job has been cancelled) stops drawing.
+                if(Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                // Process a particular primitive if it is in the layer
+                // being processed.
+                if(gg.containsLayer(jIndex)) {
+                    gg.setDrawOnlyLayer(jIndex);
+                    gg.draw(graphic, cs, drawingModel.getLayers());
                 }
             }
         }
@@ -1,6 +1,7 @@
 package fidocadj.circuit.views;
 
 import java.io.*;
+import java.util.*;
 
 import fidocadj.circuit.model.DrawingModel;
 import fidocadj.graphic.PointG;
@@ -39,6 +40,13 @@ public class Export
 {
     private final DrawingModel drawingModel;
 
+    // When the layers are exported one at a time, the primitives of layer 0
+    // which may give something for each of the other layers, and the pads
+    // of the other layers. They are found while layer 0 is exported, and
+    // they are null before.
+    private List<List<GraphicPrimitive>> layerZero;
+    private List<GraphicPrimitive> otherPads;
+
     // Border to be used in the export in logical coordinates
     public static final int exportBorder=6;
 
@@ -50,41 +58,147 @@ public class Export
         drawingModel=pp;
     }
 
-    /** Export all primitives and macros in the current model.
+    /** Export the primitives of a layer and the macros, which may contain
+        it. The primitives are kept grouped by layer in the model and the
+        macros are always associated to layer 0, so only the primitives of
+        layer 0 and of the given layer are examined, in the order they are
+        drawn.
         @param exp the export interface to be used
-        @param mp the coordinate mapping
         @param exportInvisible true if invisible objects should be exported
+        @param mp the coordinate mapping
+        @param layer the layer to be exported.
+        @param macros the macros to be considered if the layer is not 0, or
+            null if all the macros should be considered.
     */
     private void exportAllObjects(ExportInterface exp,
-        boolean exportInvisible, MapCoordinates mp)
+        boolean exportInvisible, MapCoordinates mp, int layer,
+        List<GraphicPrimitive> macros)
         throws IOException
     {
-        GraphicPrimitive g;
-
-        for (int i=0; i<drawingModel.getPrimitiveVector().size(); ++i) {
+        List<GraphicPrimitive> first=macros;
+        if(layer==0 || first==null) {
+            first=drawingModel.getLayerPrimitives(0);
+        }
+        for (GraphicPrimitive g : first) {
+            exportObject(exp, exportInvisible, mp, layer, g);
+        }
+        if(layer>0) {
+            for (GraphicPrimitive g : drawingModel.getLayerPrimitives(layer))
+            {
+                exportObject(exp, exportInvisible, mp, layer, g);
+            }
+        }
+    }
 
-            g = (GraphicPrimitive)drawingModel.getPrimitiveVector().get(i);
+    /** Export a primitive if it is on the given layer or if it is a macro
+        (only the part on the given layer is exported).
+        @param exp the export interface to be used
+        @param exportInvisible true if invisible objects should be exported
+        @param mp the coordinate mapping
+        @param layer the layer to be exported.
+        @param g the primitive.
+    */
+    private void exportObject(ExportInterface exp, boolean exportInvisible,
+        MapCoordinates mp, int layer, GraphicPrimitive g)
+        throws IOException
+    {
+        checkInterrupted();
+        if(g.getLayer()==layer && !(g instanceof PrimitiveMacro)) {
+            if(((LayerDesc)drawingModel.getLayers().get(
+                    g.getLayer())).isVisible()|| exportInvisible)
+            {
+                g.export(exp, mp);
+            }
+        } else if(g instanceof PrimitiveMacro) {
+            ((PrimitiveMacro)g).setDrawOnlyLayer(layer);
+            ((PrimitiveMacro)g).setExportInvisible(exportInvisible);
 
-            if(g.getLayer()==drawingModel.getDrawOnlyLayer() &&
-                !(g instanceof PrimitiveMacro))
+            if(((LayerDesc)drawingModel.getLayers().get(
+                    g.getLayer())).isVisible() || exportInvisible)
             {
-                if(((LayerDesc)drawingModel.getLayers().get(
-                        g.getLayer())).isVisible()|| exportInvisible)
-                {
-                    g.export(exp, mp);
+                g.export(exp, mp);
+            }
+        }
+    }
+
+    /** Stop the export if the thread has been interrupted, for example
+        because its job has been cancelled.
+        @throws InterruptedIOException if the thread has been interrupted.
+    */
+    private static void checkInterrupted()
+        throws InterruptedIOException
+    {
+        if(Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Export interrupted");
+        }
+    }
+
+    /** Find, for each layer, the macros which may give something when they
+        are exported after layer 0. Those which do not contain the layer
+        nor pads have already been written (or expanded) during the export
+        of layer 0, so they are skipped. In this way, the macros are not
+        examined once for each layer.
+        When the layers are exported alone, each one in its own file, the
+        pads of layer 0 and the macros which the export filter has written
+        as a whole during the export of layer 0 are needed as well, since
+        they are written again in each file.
+        @param nLayers the number of layers.
+        @param alone true if the layers are exported alone.
+        @return a list of primitives of layer 0 for each layer (the one of
+            layer 0 is not used).
+    */
+    private List<List<GraphicPrimitive>> macrosByLayer(int nLayers,
+        boolean alone)
+    {
+        List<List<GraphicPrimitive>> r=
+            new ArrayList<List<GraphicPrimitive>>(nLayers);
+        for(int j=0; j<nLayers; ++j) {
+            r.add(new ArrayList<GraphicPrimitive>());
+        }
+        for (GraphicPrimitive g : drawingModel.getLayerPrimitives(0)) {
+            boolean always;
+            if(g instanceof PrimitiveMacro) {
+                always=g.needsHoles() || alone
+                    && ((PrimitiveMacro)g).isExportedWhole();
+            } else if(alone && g instanceof PrimitivePCBPad) {
+                always=true;
+            } else {
+                continue;
+            }
+            for(int j=1; j<nLayers; ++j) {
+                if(always || g.containsLayer(j)) {
+                    r.get(j).add(g);
                 }
-            } else if(g instanceof PrimitiveMacro) {
-                ((PrimitiveMacro)g).setDrawOnlyLayer(
-                                            drawingModel.getDrawOnlyLayer());
-                ((PrimitiveMacro)g).setExportInvisible(exportInvisible);
+            }
+        }
+        return r;
+    }
 
-                if(((LayerDesc)drawingModel.getLayers().get(
-                        g.getLayer())).isVisible() || exportInvisible)
+    /** Find the pads of the layers other than 0, in the order they are
+        drawn.
+        @return the list of the pads.
+    */
+    private List<GraphicPrimitive> findOtherPads()
+    {
+        boolean[] withPads=new boolean[LayerDesc.MAX_LAYERS];
+        for (GraphicPrimitive g : drawingModel.getHolePrimitives()) {
+            withPads[Math.max(0, Math.min(g.getLayer(),
+                LayerDesc.MAX_LAYERS-1))]=true;
+        }
+        List<GraphicPrimitive> r=new ArrayList<GraphicPrimitive>();
+        for (int l=1; l<LayerDesc.MAX_LAYERS; ++l) {
+            if(!withPads[l]) {
+                continue;
+            }
+            for (GraphicPrimitive g : drawingModel.getLayerPrimitives(l)) {
+                if(g instanceof PrimitivePCBPad
+                    || g instanceof PrimitiveMacro)
                 {
-                    g.export(exp, mp);
+                    r.add(g);
                 }
             }
         }
+        return r;
     }
 
     /** Export the file header
@@ -112,6 +226,10 @@ public class Export
         }
     }
     /** Export the file using the given interface.
+        If only one layer is exported (see DrawingModel.setDrawOnlyLayer)
+        and layer 0 has been exported before by this object, the drawing
+        must not have been modified in the meantime, since only the
+        primitives found during the export of layer 0 are examined.
 
         @param exp the selected exporting interface.
         @param exportInvisible specify that the primitives on invisible layers
@@ -125,43 +243,100 @@ public class Export
         throws IOException
     {
         synchronized(this) {
+            // Last layer exported for the macros, which is the one they
+            // keep while the pads are exported.
+            int lastLayer=-1;
+            // Primitives of layer 0 and of the other layers examined for
+            // the pads.
+            List<GraphicPrimitive> first=drawingModel.getLayerPrimitives(0);
+            List<GraphicPrimitive> pads=null;
             if (drawingModel.getDrawOnlyLayer() >= 0 &&
                                             !drawingModel.getDrawOnlyPads())
             {
-                exportAllObjects(exp, exportInvisible, mp);
+                lastLayer=drawingModel.getDrawOnlyLayer();
+                List<GraphicPrimitive> macros=null;
+                if(lastLayer>0 && layerZero!=null
+                    && lastLayer<layerZero.size())
+                {
+                    // Use what has been found during the export of layer 0.
+                    macros=layerZero.get(lastLayer);
+                    first=macros;
+                    pads=otherPads;
+                }
+                exportAllObjects(exp, exportInvisible, mp, lastLayer, macros);
+                if(lastLayer==0) {
+                    // This must be done before the pads are exported, since
+                    // the macros are then reset.
+                    layerZero=macrosByLayer(drawingModel.getLayers().size(),
+                        true);
+                    otherPads=findOtherPads();
+                    pads=otherPads;
+                }
             } else if (!drawingModel.getDrawOnlyPads()) {
-                for(int j=0;j<drawingModel.getLayers().size(); ++j) {
-                    drawingModel.setDrawOnlyLayer(j);
-                    exportAllObjects(exp, exportInvisible, mp);
+                int nLayers=drawingModel.getLayers().size();
+                List<List<GraphicPrimitive>> macros=
+                    macrosByLayer(nLayers, false);
+                for(int j=0;j<nLayers; ++j) {
+                    exportAllObjects(exp, exportInvisible, mp, j,
+                        macros.get(j));
                 }
-                drawingModel.setDrawOnlyLayer(-1);
+                lastLayer=nLayers-1;
             }
 
             // Export in a second time only the PCB pads, in order to ensure
-            // that the drilling holes are always open.
-            for (GraphicPrimitive g : drawingModel.getPrimitiveVector()) {
-                if (g instanceof PrimitivePCBPad) {
-                    ((PrimitivePCBPad)g).setDrawOnlyPads(true);
-
-                    if(((LayerDesc)drawingModel.getLayers()
-                            .get(g.getLayer())).isVisible() || exportInvisible)
-                    {
-                        g.export(exp, mp);
-                    }
-                    ((PrimitivePCBPad)g).setDrawOnlyPads(false);
-                } else if (g instanceof PrimitiveMacro) {
-                    // Uhm... not beautiful
-                    ((PrimitiveMacro)g).setExportInvisible(exportInvisible);
-                    ((PrimitiveMacro)g).setDrawOnlyPads(true);
-                    if(((LayerDesc)drawingModel.getLayers()
-                            .get(g.getLayer())).isVisible() || exportInvisible)
-                    {
-                        g.export(exp, mp);
-                    }
-                    ((PrimitiveMacro)g).setDrawOnlyPads(false);
-                    ((PrimitiveMacro)g).resetExport();
-                }
+            // that the drilling holes are always open. Apart from layer 0,
+            // which contains the macros, only the pads of the other layers
+            // need to be examined.
+            if(pads==null) {
+                pads=findOtherPads();
+            }
+            for (GraphicPrimitive g : first) {
+                exportPads(exp, exportInvisible, mp, lastLayer, g);
+            }
+            for (GraphicPrimitive g : pads) {
+                exportPads(exp, exportInvisible, mp, lastLayer, g);
+            }
+        }
+    }
+
+    /** Export the drilling holes of a PCB pad or of the pads contained in
+        a macro. The name and the value of a macro are exported as well,
+        if the layer given to the macro is 0.
+        @param exp the export interface to be used
+        @param exportInvisible true if invisible objects should be exported
+        @param mp the coordinate mapping
+        @param lastLayer the layer to be given to the macros, or -1 if it
+            should not be changed.
+        @param g the primitive.
+    */
+    private void exportPads(ExportInterface exp, boolean exportInvisible,
+        MapCoordinates mp, int lastLayer, GraphicPrimitive g)
+        throws IOException
+    {
+        checkInterrupted();
+        if (g instanceof PrimitivePCBPad) {
+            ((PrimitivePCBPad)g).setDrawOnlyPads(true);
+
+            if(((LayerDesc)drawingModel.getLayers()
+                    .get(g.getLayer())).isVisible() || exportInvisible)
+            {
+                g.export(exp, mp);
+            }
+            ((PrimitivePCBPad)g).setDrawOnlyPads(false);
+        } else if (g instanceof PrimitiveMacro) {
+            // Uhm... not beautiful
+            if(lastLayer>=0) {
+                ((PrimitiveMacro)g).setDrawOnlyLayer(lastLayer);
+            }
+            ((PrimitiveMacro)g).setExportInvisible(exportInvisible);
+            ((PrimitiveMacro)g).setDrawOnlyPads(true);
+            if(((LayerDesc)drawingModel.getLayers()
+                    .get(g.getLayer())).isVisible() || exportInvisible)
+            {
+                g.export(exp, mp);
             }
+            ((PrimitiveMacro)g).setDrawOnlyPads(false);
+            ((PrimitiveMacro)g).resetExport();
         }
     }
 }
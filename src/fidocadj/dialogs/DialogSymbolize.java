@@ -255,7 +255,7 @@ public final class DialogSymbolize extends MinimumSizeDialog
 
         // Set the current objects in the preview panel.
         cpanel.getParserActions().addString(
-            new StringBuffer(macro.description), false);
+            new StringBuffer(macro.getDescription()), false);
         // Calculate an optimum preview size in order to show all elements.
         MapCoordinates m =
                 DrawingSize.calculateZoomToFit(cpanel.getDrawingModel(),
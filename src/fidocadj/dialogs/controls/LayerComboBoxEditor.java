@@ -116,8 +116,9 @@ public final class LayerComboBoxEditor extends AbstractCellEditor implements
                 visibilityLabel.setIcon(
                         currentLayer.isVisible() ? visibleIcon:invisibleIcon);
 
-                circuitPanel.getDrawingModel().setChanged(true);
-                fidoFrame.repaint();
+                // The layers are not drawn again: the hidden one is just
+                // not shown.
+                circuitPanel.forcesRepaintOverlays();
             }
         });
 
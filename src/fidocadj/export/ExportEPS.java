@@ -4,6 +4,7 @@ import java.util.*;
 import java.io.*;
 import java.text.*;
 
+import fidocadj.globals.FileUtils;
 import fidocadj.globals.Globals;
 import fidocadj.layers.LayerDesc;
 import fidocadj.primitives.MacroDesc;
@@ -41,7 +42,7 @@ import fidocadj.graphic.TextInterface;
 
 public final class ExportEPS implements ExportInterface, TextInterface
 {
-    private final FileWriter fstream;
+    private final OutputStreamWriter fstream;
     private BufferedWriter out;
     private List layerV;
     private double actualWidth;
@@ -111,7 +112,7 @@ public final class ExportEPS implements ExportInterface, TextInterface
     */
     public ExportEPS (File f) throws IOException
     {
-        fstream = new FileWriter(f);
+        fstream = new OutputStreamWriter(FileUtils.openOutput(f));
         dt=new DecoratedText(this);
     }
 
@@ -4,6 +4,7 @@ import java.util.*;
 import java.io.*;
 import java.text.*;
 
+import fidocadj.globals.FileUtils;
 import fidocadj.globals.Globals;
 import fidocadj.layers.LayerDesc;
 import fidocadj.primitives.MacroDesc;
@@ -39,7 +40,7 @@ import fidocadj.graphic.PointDouble;
 
 public final class ExportEagle implements ExportInterface
 {
-    private final FileWriter fstream;
+    private final OutputStreamWriter fstream;
     private BufferedWriter out;
     private DimensionG dim;
     private int oldtextsize;
@@ -62,7 +63,7 @@ public final class ExportEagle implements ExportInterface
     {
         macroList = "";
         junctionList = "";
-        fstream = new FileWriter(f);
+        fstream = new OutputStreamWriter(FileUtils.openOutput(f));
     }
 
     /** Set the multiplication factor to be used for the dashing.
@@ -5,6 +5,7 @@ import java.io.*;
 
 import fidocadj.circuit.controllers.ParserActions;
 import fidocadj.circuit.model.DrawingModel;
+import fidocadj.globals.FileUtils;
 import fidocadj.globals.Globals;
 import fidocadj.layers.LayerDesc;
 import fidocadj.primitives.MacroDesc;
@@ -118,7 +119,7 @@ public final class ExportFidoCad implements ExportInterface
         textFont=Globals.defaultTextFont;
         textFontSize=3;
         fstream = new OutputStreamWriter(
-            new FileOutputStream(f),
+            FileUtils.openOutput(f),
             Globals.encoding);
         out = new BufferedWriter(fstream);
     }
@@ -1,21 +1,18 @@
 package fidocadj.export;
 
 import java.io.*;
-import java.awt.*;
-import java.awt.image.*;
 import java.util.*;
 import javax.imageio.*;
 
 import fidocadj.circuit.controllers.SelectionActions;
 import fidocadj.circuit.model.DrawingModel;
 import fidocadj.circuit.views.Export;
-import fidocadj.circuit.views.Drawing;
 import fidocadj.geom.MapCoordinates;
 import fidocadj.geom.DrawingSize;
+import fidocadj.globals.FileUtils;
 import fidocadj.layers.LayerDesc;
 import fidocadj.graphic.DimensionG;
 import fidocadj.graphic.PointG;
-import fidocadj.graphic.swing.Graphics2DSwing;
 import fidocadj.graphic.swing.ColorSwing;
 import fidocadj.graphic.nil.GraphicsNull;
 
@@ -50,11 +47,37 @@ import fidocadj.graphic.nil.GraphicsNull;
 */
 public final class ExportGraphic
 {
+    // Number of threads used to render the raster images.
+    private static int renderThreads=
+        Runtime.getRuntime().availableProcessors();
+
+    // If false, the PDF files are written without compression.
+    private static boolean compressPDF=true;
+
     private ExportGraphic()
     {
         // Nothing to do.
     }
 
+    /** Set the number of threads used to render the raster images. They
+        are useful only for large images, made of several stripes (see
+        StripedImage).
+        @param n the number of threads (at least 1).
+    */
+    public static void setRenderThreads(int n)
+    {
+        renderThreads=Math.max(1, n);
+    }
+
+    /** Choose if the contents of the PDF files should be compressed (this
+        is the default). Uncompressed files can be compared as text.
+        @param c true if the contents should be compressed.
+    */
+    public static void setCompressPDF(boolean c)
+    {
+        compressPDF=c;
+    }
+
     /** Exports the circuit contained in circ using the specified parsing
         class.
 
@@ -204,8 +227,6 @@ public final class ExportGraphic
 
         java.util.List<LayerDesc> ol=pp.getLayers();
 
-        BufferedImage bufferedImage;
-
         // To print in black and white, we only need to create an array layer
         // in which all colours will be black.
         if(blackWhite) {
@@ -227,40 +248,35 @@ public final class ExportGraphic
         }
         if ("png".equals(format)||"jpg".equals(format)) {
 
-            // Create a buffered image in which to draw
-
-            /*  To get an error, try to export this in png at 1200 dpi:
-
-                [FIDOCAD]
-                RP 25 15 11000 95000 2
-
-            */
+            // The image is rendered in stripes while it is written, so that
+            // very large images (for example, a big drawing exported at
+            // 1200 dpi) do not need to be kept in memory.
             try {
-                bufferedImage = new BufferedImage(width, height,
-                                          BufferedImage.TYPE_INT_RGB);
-
-                // Create a graphics contents on the buffered image
-                Graphics2D g2d =
-                    (Graphics2D)bufferedImage.createGraphics();
-
-                if(antiAlias) {
-                    g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-                    g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                        RenderingHints.VALUE_ANTIALIAS_ON);
+                if("jpg".equals(format) && (long)width*height>
+                    Integer.MAX_VALUE)
+                {
+                    throw new IOException(
+                        "Image too large for the JPEG format");
+                }
+                StripedImage image=new StripedImage(pp, m, width, height,
+                    antiAlias, renderThreads);
+                try {
+                    if(FileUtils.isCompressedName(file.getName())) {
+                        OutputStream out=FileUtils.openOutput(file);
+                        try {
+                            ImageIO.write(image, format, out);
+                        } finally {
+                            out.close();
+                        }
+                    } else {
+                        ImageIO.write(image, format, file);
+                    }
+                } catch (IOException|RuntimeException ex) {
+                    deleteIncompleteFile(file);
+                    throw ex;
+                } finally {
+                    image.dispose();
                 }
-                g2d.setColor(Color.white);
-                g2d.fillRect(0,0, width, height);
-                // Save bitmap
-                Drawing drawingAgent = new Drawing(pp);
-                Graphics2DSwing graphicSwing=new Graphics2DSwing(g2d);
-                // This is important for taking into account the dashing size
-                graphicSwing.setZoom(m.getXMagnitude());
-                drawingAgent.draw(graphicSwing,m);
-
-                ImageIO.write(bufferedImage, format, file);
-                // Graphics context no longer needed so dispose it
-                g2d.dispose();
             } finally {
                 pp.setLayers(ol);
             }
@@ -274,12 +290,18 @@ public final class ExportGraphic
         For example, if the input name is example.txt and the index is 5,
         the created name should be example_5.txt. If the input name does
         not contain an extension, the "_5" will be added to the name.
+        The ".gz" suffix of compressed files is kept at the end of the name,
+        so that example.eps.gz becomes example_5.eps.gz.
         @param name the template name.
         @param index the index.
         @return the new name containing the index separated by an underscore.
     */
     private static String addIndexInFilename(String name, int index)
     {
+        if(name.toLowerCase(Locale.US).endsWith(".gz")) {
+            return addIndexInFilename(name.substring(0, name.length()-3),
+                index)+name.substring(name.length()-3);
+        }
         int dotpos=name.lastIndexOf('.');
         if(dotpos<0) {
             return name+"_"+index;
@@ -298,7 +320,9 @@ public final class ExportGraphic
         } else if("pgf".equals(format)) {
             ei = new ExportPGF(file);
         } else if("pdf".equals(format)) {
-            ei = new ExportPDF(file, new GraphicsNull());
+            ExportPDF ep = new ExportPDF(file, new GraphicsNull());
+            ep.setCompressed(compressPDF);
+            ei = ep;
         } else if("scr".equals(format)) {
             ei = new ExportEagle(file);
         } else if("pcb".equals(format)) {
@@ -337,27 +361,58 @@ public final class ExportGraphic
 
         System.out.println("SplitLayer: "+splitLayer);
         if(splitLayer) {
-            for(int i=0; i<16;++i) {
-                if(!pp.containsLayer(i)) {   // Don't export empty layers.
-                    break;
+            // The files already written are deleted if a layer fails.
+            List<File> written=new ArrayList<File>();
+            // The same object is used for all the layers, so that only the
+            // primitives which may give something are examined for each one
+            // after layer 0.
+            Export e = new Export(pp);
+            try {
+                for(int i=0; i<16;++i) {
+                    if(!pp.containsLayer(i)) {   // Don't export empty layers.
+                        break;
+                    }
+                    // Create a new file and export the current layer.
+                    File layerFile=new File(addIndexInFilename(
+                        file.toString(),i));
+                    ei=createExportInterface(format, layerFile, ext);
+                    written.add(layerFile);
+                    pp.setDrawOnlyLayer(-1);
+                    e.exportHeader(ei, m);
+                    pp.setDrawOnlyLayer(i);
+                    e.exportDrawing(ei, false, m);
+                    ei.exportEnd();
                 }
-                // Create a new file and export the current layer.
-                File layerFile=new File(addIndexInFilename(file.toString(),i));
-                ei=createExportInterface(format, layerFile, ext);
-                Export e = new Export(pp);
+            } catch (IOException|RuntimeException ex) {
+                for(File f : written) {
+                    deleteIncompleteFile(f);
+                }
+                throw ex;
+            } finally {
                 pp.setDrawOnlyLayer(-1);
+            }
+        } else {
+            ei=createExportInterface(format, file,ext);
+            try {
+                Export e = new Export(pp);
                 e.exportHeader(ei, m);
-                pp.setDrawOnlyLayer(i);
                 e.exportDrawing(ei, false, m);
                 ei.exportEnd();
+            } catch (IOException|RuntimeException ex) {
+                deleteIncompleteFile(file);
+                throw ex;
             }
-            pp.setDrawOnlyLayer(-1);
-        } else {
-            ei=createExportInterface(format, file,ext);
-            Export e = new Export(pp);
-            e.exportHeader(ei, m);
-            e.exportDrawing(ei, false, m);
-            ei.exportEnd();
+        }
+    }
+
+    /** Delete a file whose export failed, so that it is not mistaken for a
+        complete one.
+        @param file the file.
+    */
+    private static void deleteIncompleteFile(File file)
+    {
+        if(file.exists() && !file.delete()) {
+            System.err.println("Can not delete the incomplete file "+file);
         }
     }
 }
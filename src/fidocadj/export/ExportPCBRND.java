@@ -3,6 +3,7 @@ package fidocadj.export;
 import java.util.*;
 import java.io.*;
 
+import fidocadj.globals.FileUtils;
 import fidocadj.globals.Globals;
 import fidocadj.layers.LayerDesc;
 import fidocadj.primitives.MacroDesc;
@@ -39,28 +40,28 @@ import fidocadj.graphic.PointDouble;
 
 public final class ExportPCBRND implements ExportInterface
 {
-    private final FileWriter fstream;
+    private final OutputStreamWriter fstream;
     private BufferedWriter out;
-    private static List<String> viaList = new ArrayList<String>();
-    private static List<String> pinList = new ArrayList<String>();
-    private static List<String> footprints = new ArrayList<String>();
-    private static List<String> fpList = new ArrayList<String>();
-    private static List<String> layerEls1 = new ArrayList<String>();
-    private static List<String> layerEls2 = new ArrayList<String>();
-    private static List<String> layerEls3 = new ArrayList<String>();
-    private static List<String> layerEls4 = new ArrayList<String>();
-    private static List<String> layerEls5 = new ArrayList<String>();
-    private static List<String> layerEls6 = new ArrayList<String>();
-    private static List<String> layerEls7 = new ArrayList<String>();
-    private static List<String> layerEls8 = new ArrayList<String>();
-    private static List<String> layerEls9 = new ArrayList<String>();
-    private static List<String> layerEls10 = new ArrayList<String>();
-    private static List<String> layerEls11 = new ArrayList<String>();
-    private static List<String> layerEls12 = new ArrayList<String>();
-    private static List<String> layerEls13 = new ArrayList<String>();
-    private static List<String> layerEls14 = new ArrayList<String>();
-    private static List<String> layerEls15 = new ArrayList<String>();
-    private static List<String> layerEls16 = new ArrayList<String>();
+    private final List<String> viaList = new ArrayList<String>();
+    private final List<String> pinList = new ArrayList<String>();
+    private final List<String> footprints = new ArrayList<String>();
+    private final List<String> fpList = new ArrayList<String>();
+    private final List<String> layerEls1 = new ArrayList<String>();
+    private final List<String> layerEls2 = new ArrayList<String>();
+    private final List<String> layerEls3 = new ArrayList<String>();
+    private final List<String> layerEls4 = new ArrayList<String>();
+    private final List<String> layerEls5 = new ArrayList<String>();
+    private final List<String> layerEls6 = new ArrayList<String>();
+    private final List<String> layerEls7 = new ArrayList<String>();
+    private final List<String> layerEls8 = new ArrayList<String>();
+    private final List<String> layerEls9 = new ArrayList<String>();
+    private final List<String> layerEls10 = new ArrayList<String>();
+    private final List<String> layerEls11 = new ArrayList<String>();
+    private final List<String> layerEls12 = new ArrayList<String>();
+    private final List<String> layerEls13 = new ArrayList<String>();
+    private final List<String> layerEls14 = new ArrayList<String>();
+    private final List<String> layerEls15 = new ArrayList<String>();
+    private final List<String> layerEls16 = new ArrayList<String>();
 
     // Conversion between FidoCadJ units and Eagle units (1/10 inches)
     //static double res=5e-2;
@@ -82,7 +83,7 @@ public final class ExportPCBRND implements ExportInterface
     {
         //macroList = "";
         //junctionList = "";
-        fstream = new FileWriter(f);
+        fstream = new OutputStreamWriter(FileUtils.openOutput(f));
     }
 
     /** Set the multiplication factor to be used for the dashing.
@@ -1394,7 +1395,7 @@ public final class ExportPCBRND implements ExportInterface
         for (String el : elements) {
             out.write(el);
         }
-        elements.clear(); // in case we export again later; it's static.
+        elements.clear();
     }
 
     private void writeFootprints()
@@ -2,8 +2,10 @@ package fidocadj.export;
 
 import java.util.*;
 import java.io.*;
+import java.util.zip.*;
 import javax.swing.*;
 
+import fidocadj.globals.FileUtils;
 import fidocadj.globals.Globals;
 import fidocadj.layers.LayerDesc;
 import fidocadj.primitives.Arrow;
@@ -39,12 +41,17 @@ import fidocadj.graphic.TextInterface;
 
     @author Davide Bucci
 */
-public final class ExportPDF implements ExportInterface, TextInterface
+public final class ExportPDF implements ExportInterface, TextInterface,
+    SharedMacroInterface
 {
-    private final File temp;
-    private final OutputStreamWriter fstream;
-    private final OutputStreamWriter fstreamt;
-    private BufferedWriter out;
+    // The PDF file. The position of each object is obtained from the number
+    // of bytes written.
+    private final CountingOutputStream fout;
+    // The page contents are written in outt, which compresses them (see
+    // startContents). The deflater is null if they are not compressed.
+    private boolean compressed=true;
+    private Deflater deflater;
+    private FilterOutputStream zout;
     private BufferedWriter outt;
     private boolean fontWarning;
     private String userfont;
@@ -75,9 +82,6 @@ public final class ExportPDF implements ExportInterface, TextInterface
     private Map<Integer, Integer> uncodeCharsNeeded;
     private int unicodeCharIndex;
 
-    // The file header
-    private String head;
-
     // An array which will contain String elements representing all the
     // objects present in the PDF file.
     private String obj_PDF[];
@@ -85,8 +89,33 @@ public final class ExportPDF implements ExportInterface, TextInterface
     // The maximum number of objects contained in the PDF file.
     private static final int numOfObjects = 20;
 
-    private String closeObject;
-    private long fileLength;
+    // The object containing the length of the page contents.
+    private static final int lengthObject = 17;
+
+    // The resources (fonts and forms) used by the page and by the forms.
+    private static final int resourcesObject = 18;
+
+    // The Form XObjects defined for the macros are the last objects.
+    private static final int firstFormObject = 19;
+
+    // The position of each object in the file.
+    private long[] offsets;
+
+    // The size of the drawing, used to give a bounding box to the forms.
+    private DimensionG pageSize;
+
+    // The Form XObjects. Each key given by placeMacro() is associated to
+    // the index of the form in formData, or to -1 if the contents of the
+    // macro are empty.
+    private Map<String, Integer> forms;
+    private List<byte[]> formData;
+
+    // The definitions of forms in progress. The last one receives the
+    // output.
+    private Deque<FormDefinition> definitions;
+
+    // The position of the beginning of the page contents.
+    private long streamStart;
 
     private List layerV;
     private ColorInterface actualColor;
@@ -137,6 +166,16 @@ public final class ExportPDF implements ExportInterface, TextInterface
         dashPhase=p;
     }
 
+    /** Choose if the contents of the page and of the forms should be
+        compressed (this is the default). The uncompressed files are bigger,
+        but they can be read and compared as text.
+        @param c true if the contents should be compressed.
+    */
+    public void setCompressed(boolean c)
+    {
+        compressed=c;
+    }
+
     /** Constructor
         @param f the File object in which the export should be done.
         @param gg the graphic object. Mainly required to calculate text sizes
@@ -149,14 +188,10 @@ public final class ExportPDF implements ExportInterface, TextInterface
         gi=gg;
         dashPhase=0;
 
-        fstream =  new OutputStreamWriter(new FileOutputStream(f), encoding);
-
-        temp = File.createTempFile("real",".howto");
-        temp.deleteOnExit();
-
-        fstreamt =  new OutputStreamWriter(new FileOutputStream(temp),
-            encoding);
+        fout = new CountingOutputStream(new BufferedOutputStream(
+            FileUtils.openOutput(f)));
         obj_PDF = new String[numOfObjects];
+        offsets = new long[numOfObjects];
         dt=new DecoratedText(this);
     }
 
@@ -183,15 +218,30 @@ public final class ExportPDF implements ExportInterface, TextInterface
         // We need to save layers informations, since we will use them later.
 
         layerV=la;
-        out = new BufferedWriter(fstream);
+        pageSize=totalSize;
+        forms=new HashMap<String, Integer>();
+        formData=new ArrayList<byte[]>();
+        definitions=new ArrayDeque<FormDefinition>();
 
         fontWarning=false;
-        // To track the block sizes, we will first write all graphic elements
-        // in a temporary file, whose stream is called outt instead of out.
-        // At the end, the contents of the temporary file will be copied in
-        // the definitive destination file.
 
-        outt = new BufferedWriter(fstreamt);
+        // The second line contains some bytes above 127, so that the file is
+        // recognized as binary.
+        writeBytes("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+
+        // All graphic elements are written in the stream of object 8,
+        // compressed on the fly, as they are exported. Its length is known
+        // only at the end, so it is given in a separate object. The objects
+        // which depend on the text exported (the fonts) are written after.
+        offsets[8]=fout.getCount();
+        writeBytes("8 0 obj\n" +
+                "  <<\n" +
+                "    /Length "+lengthObject+" 0 R\n" +
+                filterEntry() +
+                "  >>\n"+
+                "stream\n");
+        streamStart=fout.getCount();
+        startContents(fout);
 
         // A header of the EPS file
 
@@ -203,8 +253,6 @@ public final class ExportPDF implements ExportInterface, TextInterface
 
         int border = 5;
 
-        head = "%PDF-1.4\n";
-
         // Object 5 is a single page of the appropriate size, containing
         // as a child object 4.
         obj_PDF[5]= "5 0 obj\n"+
@@ -319,25 +367,32 @@ public final class ExportPDF implements ExportInterface, TextInterface
         //DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
         //Date date = new Date();
 
-        outt.close();
-        fileLength=temp.length();
-        writeFontDescription();
-
-        obj_PDF[8]="8 0 obj\n" +
-                "  <<\n" +
-                "    /Length "+fileLength+"\n" +
-                "  >>\n"+
-                "  stream\n";
+        // Terminate the page contents, without closing the file.
+        finishContents();
+        long streamLength=fout.getCount()-streamStart;
+        writeBytes("\nendstream\n"+"endobj\n");
 
-        out.write(head+obj_PDF[5]+obj_PDF[6]+obj_PDF[7]+obj_PDF[8]);
+        writeFontDescription();
 
-        // Object 4 is a font container. The objects corresponding to fonts
-        // F1--F8 will be objects 6 to 14 (except object 8).
+        // Object 4 is the page. Its resources are in object 18.
         obj_PDF[4] = "4 0 obj\n"+
                 "<< \n"+
                 "  /Type /Page\n"+
                 "  /Parent 5 0 R\n"+
-                "  /Resources <<\n"+
+                "  /Resources "+resourcesObject+" 0 R\n"+
+                "  /Contents 8 0 R\n"+
+                ">>\n"+
+                "endobj\n";
+
+        // Object 18 is a font container. The objects corresponding to fonts
+        // F1--F8 will be objects 6 to 14 (except object 8). It contains
+        // also the forms X1, X2... defined for the macros.
+        StringBuilder xobjects=new StringBuilder();
+        for(int i=0; i<formData.size(); ++i) {
+            xobjects.append("  /X"+(i+1)+" "+(firstFormObject+i)+" 0 R\n");
+        }
+        obj_PDF[resourcesObject] = resourcesObject+" 0 obj\n"+
+                "<<\n"+
                 "  /Font <<\n"+
                 "  /F1 6 0 R\n"+
                 "  /F2 7 0 R\n"+
@@ -350,8 +405,9 @@ public final class ExportPDF implements ExportInterface, TextInterface
                 "  /F9 15 0 R\n"+
                 ">>\n"+
                 "/ProcSet 2 0 R\n"+
+                "/XObject <<\n"+
+                xobjects+
                 ">>\n"+
-                "  /Contents 8 0 R\n"+
                 ">>\n"+
                 "endobj\n";
 
@@ -377,26 +433,21 @@ public final class ExportPDF implements ExportInterface, TextInterface
                 ">>\n"+
                 "endobj\n";
 
-        BufferedReader br= new BufferedReader(new InputStreamReader(
-                      new FileInputStream(temp), encoding));
-        try{
-            String line = br.readLine();
-            while (line != null) {
-                out.write(line+"\n");
-                line = br.readLine();
+        obj_PDF[lengthObject]=lengthObject+" 0 obj\n"+
+                "  "+streamLength+"\n"+
+                "endobj\n";
+
+        offsets=Arrays.copyOf(offsets, firstFormObject+formData.size());
+        for(int i=1; i<firstFormObject; ++i) {
+            if(i!=8) {
+                writeObject(i);
             }
-        } finally {
-            br.close();
         }
-        closeObject="endstream\n"+"endobj\n";
-
-        out.write(closeObject+obj_PDF[4]+obj_PDF[2]+obj_PDF[1]+
-            obj_PDF[3]+obj_PDF[9]+obj_PDF[10]+obj_PDF[11]+obj_PDF[12]+
-            obj_PDF[13]+obj_PDF[14]+obj_PDF[15]+obj_PDF[16]);
+        writeForms();
 
         writeCrossReferenceTable();
 
-        out.close();
+        fout.close();
 
         if (fontWarning) {
             if (java.awt.GraphicsEnvironment.isHeadless()) {
@@ -544,239 +595,54 @@ public final class ExportPDF implements ExportInterface, TextInterface
 
 
     /** Here we create the cross reference table for the PDF file, as well as
-        the trailer.
-        Order of the objects:
-        header, 5, 6, 7, 8, file, closeObject, 4, 2, 1, 3
-
-        This is probably among the most boring code in FidoCadJ.
+        the trailer. The position of each object has been recorded when it
+        was written.
         @throws IOException if a disaster happens, i.e. a file can not be
             accessed.
     */
     private void writeCrossReferenceTable()  throws IOException
     {
-        out.write("xref \n"+
-            "0 15\n"+
-            "0000000000 65535 f \n"+          // header
-            addLeadZeros(head.length()+
-            obj_PDF[5].length()+
-            obj_PDF[6].length()+
-            obj_PDF[7].length()+
-            obj_PDF[8].length()+
-            fileLength+
-            closeObject.length()+
-            obj_PDF[4].length()+
-            obj_PDF[2].length())+
-            " 00000 n \n"+        // 1
-            addLeadZeros(head.length()+
-            obj_PDF[5].length()+
-            obj_PDF[6].length()+
-            obj_PDF[7].length()+
-            obj_PDF[8].length()+
-            fileLength +
-            closeObject.length()+
-            obj_PDF[4].length())+
-            " 00000 n \n"+        // 2
-            addLeadZeros(head.length() +
-            obj_PDF[5].length()+
-            obj_PDF[6].length()+
-            obj_PDF[7].length()+
-            obj_PDF[8].length()+
-            fileLength +
-            closeObject.length()+
-            obj_PDF[4].length()+
-            obj_PDF[2].length()+
-            obj_PDF[1].length())+
-            " 00000 n \n"+        // 3
-
-            addLeadZeros(head.length()+
-            obj_PDF[5].length()+
-            obj_PDF[6].length()+
-            obj_PDF[7].length()+
-            obj_PDF[8].length()+
-            fileLength +
-            closeObject.length())+
-            " 00000 n \n"+        // 4
-
-            addLeadZeros(head.length())+
-            " 00000 n \n"+        // 5
-
-            addLeadZeros(head.length()+
-            obj_PDF[5].length())+
-            " 00000 n \n"+        // 6
-
-            addLeadZeros(head.length()+
-            obj_PDF[5].length()+
-            obj_PDF[6].length())+
-            " 00000 n \n"+        // 7
-
-            addLeadZeros(head.length()+
-            obj_PDF[5].length()+
-            obj_PDF[6].length()+
-            obj_PDF[7].length())+
-            " 00000 n \n"+        // 8
-
-            addLeadZeros(head.length()+
-            obj_PDF[5].length()+
-            obj_PDF[6].length()+
-            obj_PDF[7].length()+
-            obj_PDF[8].length()+
-            fileLength +
-            closeObject.length()+
-            obj_PDF[4].length()+
-            obj_PDF[2].length()+
-            obj_PDF[1].length()+
-            obj_PDF[3].length())+
-            " 00000 n \n"+        // 9
-
-            addLeadZeros(head.length()+
-            obj_PDF[5].length()+
-            obj_PDF[6].length()+
-            obj_PDF[7].length()+
-            obj_PDF[8].length()+
-            fileLength +
-            closeObject.length()+
-            obj_PDF[4].length()+
-            obj_PDF[2].length()+
-            obj_PDF[1].length()+
-            obj_PDF[3].length()+
-            obj_PDF[9].length())+
-            " 00000 n \n"+        // 10
-
-            addLeadZeros(head.length()+
-            obj_PDF[5].length()+
-            obj_PDF[6].length()+
-            obj_PDF[7].length()+
-            obj_PDF[8].length()+
-            fileLength +
-            closeObject.length()+
-            obj_PDF[4].length()+
-            obj_PDF[2].length()+
-            obj_PDF[1].length()+
-            obj_PDF[3].length()+
-            obj_PDF[9].length()+
-            obj_PDF[10].length())+
-            " 00000 n \n"+        // 11
-
-
-            addLeadZeros(head.length()+
-            obj_PDF[5].length()+
-            obj_PDF[6].length()+
-            obj_PDF[7].length()+
-            obj_PDF[8].length()+
-            fileLength +
-            closeObject.length()+
-            obj_PDF[4].length()+
-            obj_PDF[2].length()+
-            obj_PDF[1].length()+
-            obj_PDF[3].length()+
-            obj_PDF[9].length()+
-            obj_PDF[10].length()+
-            obj_PDF[11].length())+
-            " 00000 n \n"+        // 12
-
-
-            addLeadZeros(head.length()+
-            obj_PDF[5].length()+
-            obj_PDF[6].length()+
-            obj_PDF[7].length()+
-            obj_PDF[8].length()+
-            fileLength +
-            closeObject.length()+
-            obj_PDF[4].length()+
-            obj_PDF[2].length()+
-            obj_PDF[1].length()+
-            obj_PDF[3].length()+
-            obj_PDF[9].length()+
-            obj_PDF[10].length()+
-            obj_PDF[11].length()+
-            obj_PDF[12].length())+
-            " 00000 n \n"+        // 13
-
-            addLeadZeros(head.length()+
-            obj_PDF[5].length()+
-            obj_PDF[6].length()+
-            obj_PDF[7].length()+
-            obj_PDF[8].length()+
-            fileLength +
-            closeObject.length()+
-            obj_PDF[4].length()+
-            obj_PDF[2].length()+
-            obj_PDF[1].length()+
-            obj_PDF[3].length()+
-            obj_PDF[9].length()+
-            obj_PDF[10].length()+
-            obj_PDF[11].length()+
-            obj_PDF[12].length()+
-            obj_PDF[13].length())+
-            " 00000 n \n"+        // 14
-
-            addLeadZeros(head.length()+
-            obj_PDF[5].length()+
-            obj_PDF[6].length()+
-            obj_PDF[7].length()+
-            obj_PDF[8].length()+
-            fileLength +
-            closeObject.length()+
-            obj_PDF[4].length()+
-            obj_PDF[2].length()+
-            obj_PDF[1].length()+
-            obj_PDF[3].length()+
-            obj_PDF[9].length()+
-            obj_PDF[10].length()+
-            obj_PDF[11].length()+
-            obj_PDF[12].length()+
-            obj_PDF[13].length()+
-            obj_PDF[14].length())+
-            " 00000 n \n"+        // 15
-
-            addLeadZeros(head.length()+
-            obj_PDF[5].length()+
-            obj_PDF[6].length()+
-            obj_PDF[7].length()+
-            obj_PDF[8].length()+
-            fileLength +
-            closeObject.length()+
-            obj_PDF[4].length()+
-            obj_PDF[2].length()+
-            obj_PDF[1].length()+
-            obj_PDF[3].length()+
-            obj_PDF[9].length()+
-            obj_PDF[10].length()+
-            obj_PDF[11].length()+
-            obj_PDF[12].length()+
-            obj_PDF[13].length()+
-            obj_PDF[14].length()+
-            obj_PDF[15].length())+
-            " 00000 n \n");       // 16
-
-        out.write("trailer\n"+
+        long xrefPosition=fout.getCount();
+        StringBuilder s=new StringBuilder();
+        s.append("xref\n");
+        s.append("0 "+offsets.length+"\n");
+        s.append("0000000000 65535 f \n");
+        for(int i=1; i<offsets.length; ++i) {
+            s.append(addLeadZeros(offsets[i]));
+            s.append(" 00000 n \n");
+        }
+        s.append("trailer\n"+
             "<<\n"+
-                "  /Size 16\n"+
-                "  /Root 3 0 R\n"+
-                "  /Info 1 0 R\n"+
-                ">>\n"+
-                "startxref\n"+
-                (head.length()+
-            obj_PDF[5].length()+
-            obj_PDF[6].length()+
-            obj_PDF[7].length()+
-            obj_PDF[8].length()+
-            fileLength +
-            closeObject.length()+
-            obj_PDF[4].length()+
-            obj_PDF[2].length()+
-            obj_PDF[1].length()+
-            obj_PDF[3].length()+
-            obj_PDF[9].length()+
-            obj_PDF[10].length()+
-            obj_PDF[11].length()+
-            obj_PDF[12].length()+
-            obj_PDF[13].length()+
-            obj_PDF[14].length()+
-            obj_PDF[15].length()+
-            obj_PDF[16].length())+
-            "\n%%EOF");
+            "  /Size "+offsets.length+"\n"+
+            "  /Root 3 0 R\n"+
+            "  /Info 1 0 R\n"+
+            ">>\n"+
+            "startxref\n"+
+            xrefPosition+
+            "\n%%EOF\n");
+        writeBytes(s.toString());
+    }
+
+    /** Write a string in the file, with the encoding used for the PDF.
+        @param s the string to be written.
+        @throws IOException if a disaster happens, i.e. a file can not be
+            accessed.
+    */
+    private void writeBytes(String s) throws IOException
+    {
+        fout.write(s.getBytes(encoding));
+    }
 
+    /** Write one of the objects contained in obj_PDF and record its position
+        in the file, for the cross reference table.
+        @param n the number of the object.
+        @throws IOException if a disaster happens, i.e. a file can not be
+            accessed.
+    */
+    private void writeObject(int n) throws IOException
+    {
+        offsets[n]=fout.getCount();
+        writeBytes(obj_PDF[n]);
     }
 
 
@@ -1074,6 +940,171 @@ public final class ExportPDF implements ExportInterface, TextInterface
         return false;
     }
 
+    /** Place an instance of a macro, if its contents have already been
+        defined as a Form XObject. Otherwise, start the definition of the
+        form: the output is then redirected to a new stream, until
+        endMacroDefinition() is called.
+
+        @param key identifies the contents of the macro.
+        @param x the x position of the instance, in output units.
+        @param y the y position of the instance, in output units.
+        @return true if the instance has been placed, false if the contents
+            must be exported now.
+        @throws IOException if a disaster happens, i.e. a file can not be
+            accessed.
+    */
+    public boolean placeMacro(String key, double x, double y)
+        throws IOException
+    {
+        Integer n=forms.get(key);
+        if(n!=null) {
+            placeForm(n.intValue(), x, y);
+            return true;
+        }
+        FormDefinition d=new FormDefinition();
+        d.key=key;
+        d.x=x;
+        d.y=y;
+        d.outt=outt;
+        d.zout=zout;
+        d.deflater=deflater;
+        d.actualColor=actualColor;
+        d.actualWidth=actualWidth;
+        d.currentDash=currentDash;
+        d.currentPhase=currentPhase;
+        definitions.push(d);
+
+        // The form starts with the graphic state of the place where it is
+        // used, so color, width and dashing must be always specified.
+        actualColor=null;
+        actualWidth=-1;
+        currentDash=-1;
+        currentPhase=-1;
+        startContents(d.data);
+        return false;
+    }
+
+    /** Terminate the definition of a Form XObject, started by placeMacro(),
+        and place the instance which caused the definition.
+        @throws IOException if a disaster happens, i.e. a file can not be
+            accessed.
+    */
+    public void endMacroDefinition()
+        throws IOException
+    {
+        boolean empty=finishContents()==0;
+
+        FormDefinition d=definitions.pop();
+        outt=d.outt;
+        zout=d.zout;
+        deflater=d.deflater;
+        actualColor=d.actualColor;
+        actualWidth=d.actualWidth;
+        currentDash=d.currentDash;
+        currentPhase=d.currentPhase;
+
+        int n=-1;
+        if(!empty) {
+            n=formData.size();
+            formData.add(d.data.toByteArray());
+        }
+        forms.put(d.key, Integer.valueOf(n));
+        placeForm(n, d.x, d.y);
+    }
+
+    /** Start the contents of a stream object (the page or a form). The
+        contents written in outt are compressed, unless the compression has
+        been disabled with setCompressed().
+        @param o the stream receiving the contents.
+        @throws IOException if a disaster happens, i.e. a file can not be
+            accessed.
+    */
+    private void startContents(OutputStream o)
+        throws IOException
+    {
+        if(compressed) {
+            deflater=new Deflater();
+            zout=new DeflaterOutputStream(o, deflater);
+        } else {
+            deflater=null;
+            zout=new CountingOutputStream(o);
+        }
+        outt=new BufferedWriter(new OutputStreamWriter(zout, encoding));
+    }
+
+    /** Terminate the contents of a stream object, without closing the
+        stream receiving them.
+        @return the number of bytes of the contents, before compression.
+        @throws IOException if a disaster happens, i.e. a file can not be
+            accessed.
+    */
+    private long finishContents()
+        throws IOException
+    {
+        outt.flush();
+        if(deflater==null) {
+            return ((CountingOutputStream)zout).getCount();
+        }
+        ((DeflaterOutputStream)zout).finish();
+        long n=deflater.getBytesRead();
+        deflater.end();
+        return n;
+    }
+
+    /** Get the entry of the dictionary of a stream object which gives its
+        compression.
+        @return the entry, or an empty string if the contents are not
+            compressed.
+    */
+    private String filterEntry()
+    {
+        return compressed ? "    /Filter /FlateDecode\n" : "";
+    }
+
+    /** Place a Form XObject in the current output.
+        @param n the index of the form, or -1 if it is empty.
+        @param x the x position of the origin of the form.
+        @param y the y position of the origin of the form.
+        @throws IOException if a disaster happens, i.e. a file can not be
+            accessed.
+    */
+    private void placeForm(int n, double x, double y)
+        throws IOException
+    {
+        if(n>=0) {
+            outt.write("q 1 0 0 1 "+Globals.roundTo(x)+" "+Globals.roundTo(y)+
+                " cm /X"+(n+1)+" Do Q\n");
+        }
+    }
+
+    /** Write the Form XObjects defined for the macros. They share the
+        resources of the page. Their contents can not go outside the page,
+        so the bounding box is large enough to contain it wherever the
+        form is placed.
+        @throws IOException if a disaster happens, i.e. a file can not be
+            accessed.
+    */
+    private void writeForms()
+        throws IOException
+    {
+        double b=2.0*(pageSize.width+pageSize.height);
+        String bbox=" /BBox ["+(-b)+" "+(-b)+" "+b+" "+b+"]\n";
+        for(int i=0; i<formData.size(); ++i) {
+            byte[] data=formData.get(i);
+            offsets[firstFormObject+i]=fout.getCount();
+            writeBytes((firstFormObject+i)+" 0 obj\n"+
+                "  << /Type /XObject /Subtype /Form\n"+
+                "   "+bbox+
+                "    /Resources "+resourcesObject+" 0 R\n"+
+                "    /Length "+data.length+"\n"+
+                filterEntry()+
+                "  >>\n"+
+                "stream\n");
+            fout.write(data);
+            writeBytes("\nendstream\n"+"endobj\n");
+        }
+    }
+
     /** Called when exporting an Oval primitive. Specify the bounding box.
 
         @param x1 the x position of the first corner
@@ -1548,4 +1579,60 @@ public final class ExportPDF implements ExportInterface, TextInterface
             System.err.println("Can not write to file in EPS export.");
         }
     }
-}
\ No newline at end of file
+
+    /** An output stream which counts the bytes written, to obtain the
+        position of the objects in the PDF file.
+    */
+    private static final class CountingOutputStream
+        extends FilterOutputStream
+    {
+        private long count;
+
+        /** Constructor.
+            @param o the stream in which the bytes are written.
+        */
+        CountingOutputStream(OutputStream o)
+        {
+            super(o);
+        }
+
+        /** Get the number of bytes written so far.
+            @return the number of bytes.
+        */
+        long getCount()
+        {
+            return count;
+        }
+
+        @Override public void write(int b) throws IOException
+        {
+            out.write(b);
+            ++count;
+        }
+
+        @Override public void write(byte[] b, int off, int len)
+            throws IOException
+        {
+            out.write(b, off, len);
+            count+=len;
+        }
+    }
+
+    /** A Form XObject being defined, with the state of the output to be
+        restored at the end of the definition.
+    */
+    private static final class FormDefinition
+    {
+        final ByteArrayOutputStream data=new ByteArrayOutputStream();
+        String key;
+        double x;
+        double y;
+        BufferedWriter outt;
+        FilterOutputStream zout;
+        Deflater deflater;
+        ColorInterface actualColor;
+        double actualWidth;
+        int currentDash;
+        float currentPhase;
+    }
+}
@@ -3,6 +3,7 @@ package fidocadj.export;
 import java.util.*;
 import java.io.*;
 
+import fidocadj.globals.FileUtils;
 import fidocadj.globals.Globals;
 import fidocadj.layers.LayerDesc;
 import fidocadj.primitives.Arrow;
@@ -60,7 +61,7 @@ import fidocadj.graphic.PointDouble;
 
 public final class ExportPGF implements ExportInterface
 {
-    private final FileWriter fstream;
+    private final OutputStreamWriter fstream;
     private BufferedWriter out;
     private List layerV;
     private ColorInterface actualColor;
@@ -125,7 +126,7 @@ public final class ExportPGF implements ExportInterface
     public ExportPGF (File f) throws IOException
     {
         actualColor=null;
-        fstream = new FileWriter(f);
+        fstream = new OutputStreamWriter(FileUtils.openOutput(f));
     }
 
     /** Called at the beginning of the export phase. Ideally, in this routine
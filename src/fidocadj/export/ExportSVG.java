@@ -3,6 +3,7 @@ package fidocadj.export;
 import java.util.*;
 import java.io.*;
 
+import fidocadj.globals.FileUtils;
 import fidocadj.globals.Globals;
 import fidocadj.layers.LayerDesc;
 import fidocadj.primitives.Arrow;
@@ -40,7 +41,8 @@ import fidocadj.graphic.TextInterface;
     @author Davide Bucci
 */
 
-public final class ExportSVG implements ExportInterface, TextInterface
+public final class ExportSVG implements ExportInterface, TextInterface,
+    SharedMacroInterface
 {
     //private File fileExp;
     final private OutputStreamWriter fstream;
@@ -60,6 +62,25 @@ public final class ExportSVG implements ExportInterface, TextInterface
     private boolean isItalic;
     private boolean isBold;
 
+    // The primitives of each layer are written in a group which gives
+    // the color of the layer. This is the layer of the group currently
+    // open, or -1 if there is none.
+    private int currentLayer=-1;
+
+    // The symbols defined for the macros. Each key given by placeMacro() is
+    // associated to the number of the symbol, or to -1 if the contents of
+    // the macro are empty.
+    private Map<String, Integer> symbols;
+    private int symbolCount;
+
+    // The definitions of symbols in progress. The last one receives the
+    // output.
+    private Deque<SymbolDefinition> definitions;
+
+    // Symbols already defined, to be written before the next element
+    // outside any definition.
+    private StringBuilder pendingSymbols;
+
     // A graphic interface object is used here to get information about the
     // size of the different glyphs in the font.
     private final GraphicsInterface gi;
@@ -122,7 +143,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
     public ExportSVG (File f, GraphicsInterface g) throws IOException
     {
         gi=g;
-        fstream = new OutputStreamWriter(new FileOutputStream(f),
+        fstream = new OutputStreamWriter(FileUtils.openOutput(f),
             Globals.encoding);
         dt = new DecoratedText(this);
     }
@@ -149,6 +170,10 @@ public final class ExportSVG implements ExportInterface, TextInterface
 
         layerV=la;
         out = new BufferedWriter(fstream);
+        symbols=new HashMap<String, Integer>();
+        symbolCount=0;
+        definitions=new ArrayDeque<SymbolDefinition>();
+        pendingSymbols=new StringBuilder();
         //numberPath=0;
 
         int wi=(int)totalSize.width;
@@ -175,6 +200,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
     public void exportEnd()
         throws IOException
     {
+        selectLayer(-1);
         out.write("</svg>");
         out.close();
     }
@@ -202,6 +228,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
     {
         LayerDesc l=(LayerDesc)layerV.get(layer);
         c=l.getColor();
+        selectLayer(layer);
         this.isItalic=isItalic;
         this.isBold=isBold;
         this.fontname=fontname;
@@ -271,6 +298,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
     {
         LayerDesc l=(LayerDesc)layerV.get(layer);
         c=l.getColor();
+        selectLayer(layer);
 
         strokeWidth=sW;
 
@@ -297,7 +325,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
         out.write("<path d=\"M "+cLe(x1)+","+cLe(y1)+" C "+
                   cLe(x2)+ ","+cLe(y2)+" "+cLe(x3)+","+cLe(y3)+" "+cLe(x4)+
                   ","+cLe(y4)+"\" ");
-        checkColorAndWidth("fill=\"none\"", dashStyle);
+        checkColorAndWidth("", dashStyle);
     }
 
     /** Called when exporting a Connection primitive.
@@ -314,14 +342,12 @@ public final class ExportSVG implements ExportInterface, TextInterface
     {
         LayerDesc l=(LayerDesc)layerV.get(layer);
         c=l.getColor();
+        selectLayer(layer);
         strokeWidth = cLe(0.33);
 
         out.write("<circle cx=\""+cLe(x)+"\" cy=\""+cLe(y)+"\""+
-            " r=\""+cLe(nodeSize/2.0)+"\" style=\"stroke:#"+
-                  convertToHex2(c.getRed())+
-                  convertToHex2(c.getGreen())+
-                  convertToHex2(c.getBlue())+";stroke-width:"+strokeWidth+
-                  "\" fill=\"#"+
+            " r=\""+cLe(nodeSize/2.0)+"\" style=\"stroke-width:"+
+                  strokeWidth+"\" fill=\"#"+
                   convertToHex2(c.getRed())+
                   convertToHex2(c.getGreen())+
                   convertToHex2(c.getBlue())+"\"/>\n");
@@ -363,6 +389,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
     {
         LayerDesc l=(LayerDesc)layerV.get(layer);
         c=l.getColor();
+        selectLayer(layer);
         strokeWidth=sW;
 
         double xstart=x1;
@@ -392,7 +419,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
         }
         out.write("<line x1=\""+cLe(xstart)+"\" y1=\""+cLe(ystart)+"\" x2=\""+
             cLe(xend)+"\" y2=\""+cLe(yend)+"\" ");
-        checkColorAndWidth("fill=\"none\"", dashStyle);
+        checkColorAndWidth("", dashStyle);
     }
 
     /** Called when exporting a Macro call.
@@ -427,10 +454,98 @@ public final class ExportSVG implements ExportInterface, TextInterface
         int fontSize, Map m)
         throws IOException
     {
-        // The macro will be expanded into primitives.
+        // The macro will be expanded into primitives, which may be shared
+        // by several instances (see placeMacro).
+        return false;
+    }
+
+    /** Place an instance of a macro, if a symbol has already been defined
+        for its contents. Otherwise, start the definition of the symbol: the
+        output is then redirected to a buffer, until endMacroDefinition() is
+        called.
+
+        @param key identifies the contents of the macro.
+        @param x the x position of the instance, in output units.
+        @param y the y position of the instance, in output units.
+        @return true if the instance has been placed, false if the contents
+            must be exported now.
+        @throws IOException if a disaster happens, i.e. a file can not be
+            accessed.
+    */
+    public boolean placeMacro(String key, double x, double y)
+        throws IOException
+    {
+        Integer n=symbols.get(key);
+        if(n!=null) {
+            useSymbol(n.intValue(), x, y);
+            return true;
+        }
+        SymbolDefinition d=new SymbolDefinition();
+        d.key=key;
+        d.x=x;
+        d.y=y;
+        d.out=out;
+        d.currentLayer=currentLayer;
+        d.currentPhase=currentPhase;
+        definitions.push(d);
+
+        // The symbol contains its own groups, since it is drawn with the
+        // style of the place where it is used.
+        out=new BufferedWriter(d.data);
+        currentLayer=-1;
+        currentPhase=-1;
         return false;
     }
 
+    /** Terminate the definition of a symbol, started by placeMacro(), and
+        place the instance which caused the definition. The symbol is
+        written before the first instance outside any other symbol.
+        @throws IOException if a disaster happens, i.e. a file can not be
+            accessed.
+    */
+    public void endMacroDefinition()
+        throws IOException
+    {
+        selectLayer(-1);
+        out.flush();
+        SymbolDefinition d=definitions.pop();
+        out=d.out;
+        currentLayer=d.currentLayer;
+        currentPhase=d.currentPhase;
+
+        String contents=d.data.toString();
+        int n=-1;
+        if(contents.length()>0) {
+            n=++symbolCount;
+            pendingSymbols.append("<symbol id=\"m"+n+
+                "\" overflow=\"visible\">\n");
+            pendingSymbols.append(contents);
+            pendingSymbols.append("</symbol>\n");
+        }
+        symbols.put(d.key, Integer.valueOf(n));
+        useSymbol(n, d.x, d.y);
+    }
+
+    /** Write an instance of a symbol in the current output.
+        @param n the number of the symbol, or -1 if it is empty.
+        @param x the x position of the instance.
+        @param y the y position of the instance.
+        @throws IOException if a disaster happens, i.e. a file can not be
+            accessed.
+    */
+    private void useSymbol(int n, double x, double y)
+        throws IOException
+    {
+        if(n<0) {
+            return;
+        }
+        if(definitions.isEmpty() && pendingSymbols.length()>0) {
+            out.write(pendingSymbols.toString());
+            pendingSymbols.setLength(0);
+        }
+        out.write("<use xlink:href=\"#m"+n+"\" x=\""+cLe(x)+"\" y=\""+
+            cLe(y)+"\"/>\n");
+    }
 
     /** Called when exporting an Oval primitive. Specify the bounding box.
 
@@ -452,6 +567,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
     {
         LayerDesc l=(LayerDesc)layerV.get(layer);
         c=l.getColor();
+        selectLayer(layer);
         String fillPattern="";
         strokeWidth=sW;
         if(isFilled) {
@@ -460,8 +576,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
                   convertToHex2(c.getGreen())+
                   convertToHex2(c.getBlue())+"\"";
         } else {
-            fillPattern="fill=\"none\"";
-
+            fillPattern="";
         }
 
         out.write("<ellipse cx=\""+cLe((x1+x2)/2.0)+"\" cy=\""+
@@ -488,13 +603,11 @@ public final class ExportSVG implements ExportInterface, TextInterface
     {
         LayerDesc l=(LayerDesc)layerV.get(layer);
         c=l.getColor();
+        selectLayer(layer);
 
         out.write("<line x1=\""+cLe(x1)+"\" y1=\""+cLe(y1)+"\" x2=\""+
-            cLe(x2)+"\" y2=\""+cLe(y2)+"\" style=\"stroke:#"+
-                  convertToHex2(c.getRed())+
-                  convertToHex2(c.getGreen())+
-                  convertToHex2(c.getBlue())+
-                  ";stroke-linejoin:round;stroke-linecap:round"+
+            cLe(x2)+"\" y2=\""+cLe(y2)+"\" style=\""+
+                  "stroke-linejoin:round;stroke-linecap:round"+
                   ";stroke-width:"+width+
                   "\"/>\n");
     }
@@ -525,6 +638,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
 
         LayerDesc l=(LayerDesc)layerV.get(layer);
         c=l.getColor();
+        selectLayer(layer);
 
         if(onlyHole) {
             // ... then, drill the hole!
@@ -542,11 +656,8 @@ public final class ExportSVG implements ExportInterface, TextInterface
                     out.write("<rect x=\""+xdd+"\" y=\""+
                         ydd+    "\" rx=\"0\" ry=\"0\" "+
                         "width=\""+cLe(six)+"\" height=\""+
-                        cLe(siy)+"\" style=\"stroke:#"+
-                        convertToHex2(c.getRed())+
-                        convertToHex2(c.getGreen())+
-                        convertToHex2(c.getBlue())+
-                        ";stroke-width:"+strokeWidth+"\" fill=\"#"+
+                        cLe(siy)+"\" style=\"stroke-width:"+
+                        strokeWidth+"\" fill=\"#"+
                         convertToHex2(c.getRed())+
                         convertToHex2(c.getGreen())+
                         convertToHex2(c.getBlue())+"\"/>\n");
@@ -559,11 +670,8 @@ public final class ExportSVG implements ExportInterface, TextInterface
                     out.write("<rect x=\""+xdd+"\" y=\""+ydd+
                         "\" rx=\""+rd+"\" ry=\""+rd+"\" "+
                         "width=\""+cLe(six)+"\" height=\""+
-                        cLe(siy)+"\" style=\"stroke:#"+
-                        convertToHex2(c.getRed())+
-                        convertToHex2(c.getGreen())+
-                        convertToHex2(c.getBlue())+
-                        ";stroke-width:"+strokeWidth+"\" fill=\"#"+
+                        cLe(siy)+"\" style=\"stroke-width:"+
+                        strokeWidth+"\" fill=\"#"+
                         convertToHex2(c.getRed())+
                         convertToHex2(c.getGreen())+
                         convertToHex2(c.getBlue())+"\"/>\n");
@@ -572,10 +680,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
                 default:
                     out.write("<ellipse cx=\""+cLe(x)+"\" cy=\""+cLe(y)+"\""+
                         " rx=\""+cLe(six/2.0)+"\" ry=\""+cLe(siy/2.0)+
-                        "\" style=\"stroke:#"+
-                        convertToHex2(c.getRed())+
-                        convertToHex2(c.getGreen())+
-                        convertToHex2(c.getBlue())+";stroke-width:"+
+                        "\" style=\"stroke-width:"+
                         cLe(strokeWidth)+
                         "\" fill=\"#"+
                         convertToHex2(c.getRed())+
@@ -603,6 +708,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
     {
         LayerDesc l=(LayerDesc)layerV.get(layer);
         c=l.getColor();
+        selectLayer(layer);
         String fillPattern="";
         strokeWidth=sW;
         if(isFilled) {
@@ -611,8 +717,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
                   convertToHex2(c.getGreen())+
                   convertToHex2(c.getBlue())+"\"";
         } else {
-            fillPattern="fill=\"none\"";
-
+            fillPattern="";
         }
         int i;
 
@@ -679,6 +784,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
         strokeWidth=sW;
         LayerDesc l=(LayerDesc)layerV.get(layer);
         c=l.getColor();
+        selectLayer(layer);
         String fillPattern="";
 
         if(isFilled) {
@@ -687,8 +793,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
                   convertToHex2(c.getGreen())+
                   convertToHex2(c.getBlue())+"\"";
         } else {
-            fillPattern="fill=\"none\"";
-
+            fillPattern="";
         }
 
         out.write("<rect x=\""+cLe(Math.min(x1,x2))+"\" y=\""+
@@ -712,44 +817,57 @@ public final class ExportSVG implements ExportInterface, TextInterface
         return s;
     }
 
-    //private Color oc;
-    //private double owl;
-    //private String ofp;
-    //private int ods;
-
-
     /** This routine ensures that the following items will be drawn with the
-        correct stroke pattern and color.
-        TODO: it is not currently working. Improve this.
+        correct stroke pattern and fill. The color of the stroke and the
+        fill rule are given by the group of the layer.
+        @param fillPattern the fill attribute, or an empty string if the
+            element is not filled.
+        @param dashStyle the dashing style.
         @throws IOException if a disaster happens, i.e. a file can not be
             accessed.
     */
     private void checkColorAndWidth(String fillPattern, int dashStyle)
         throws IOException
     {
+        out.write("style=\"stroke-width:"+strokeWidth);
 
-        // Write only if necessary, to save space.
-        // It does not work...
-
-        //if(oc!=c || owl!=wl || !fillPattern.equals(ofp) || ods!=dashStyle) {
-        //if(true) {
-        {
-            out.write("style=\"stroke:#"+
-                convertToHex2(c.getRed())+
-                convertToHex2(c.getGreen())+
-                convertToHex2(c.getBlue()));
+        if (dashStyle>0) {
+            out.write(";stroke-dasharray: "+sDash[dashStyle]);
+        }
 
-            if (dashStyle>0) {
-                out.write(";stroke-dasharray: "+sDash[dashStyle]);
-            }
+        if (currentPhase!=dashPhase) {
+            currentPhase=dashPhase;
+            out.write(";stroke-dashoffset: "+dashPhase);
+        }
 
-            if (currentPhase!=dashPhase) {
-                currentPhase=dashPhase;
-                out.write(";stroke-dashoffset: "+dashPhase);
-            }
+        out.write("\" " + fillPattern + "/>\n");
+    }
 
-            out.write(";stroke-width:"+strokeWidth+
-                  ";fill-rule: evenodd;\" " + fillPattern + "/>\n");
+    /** Write the primitives which follow in the group of the given layer,
+        opening it if needed. The group gives the stroke color of the layer
+        and the default fill, so that it is not repeated for each element.
+        The texts must not be stroked, so they specify stroke="none".
+        @param layer the layer, or -1 to close the current group.
+        @throws IOException if a disaster happens, i.e. a file can not be
+            accessed.
+    */
+    private void selectLayer(int layer)
+        throws IOException
+    {
+        if(layer==currentLayer) {
+            return;
+        }
+        if(currentLayer>=0) {
+            out.write("</g>\n");
+        }
+        currentLayer=layer;
+        if(layer>=0) {
+            ColorInterface lc=((LayerDesc)layerV.get(layer)).getColor();
+            out.write("<g stroke=\"#"+
+                convertToHex2(lc.getRed())+
+                convertToHex2(lc.getGreen())+
+                convertToHex2(lc.getBlue())+
+                "\" fill=\"none\" fill-rule=\"evenodd\">\n");
         }
     }
 
@@ -817,7 +935,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
                   convertToHex2(c.getGreen())+
                   convertToHex2(c.getBlue())+"\"";
         } else {
-            fillPattern="fill=\"none\"";
+            fillPattern="";
         }
 
         checkColorAndWidth(fillPattern,0);
@@ -834,7 +952,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
             y4 = y - h*Math.cos(alpha);
             out.write("<line x1=\""+cLe(x3)+"\" y1=\""+cLe(y3)+"\" x2=\""+
                 cLe(x4)+"\" y2=\""+cLe(y4)+"\" ");
-            checkColorAndWidth("fill=\"none\"", 0);
+            checkColorAndWidth("", 0);
         }
         return new PointPr(x0,y0);
     }
@@ -883,7 +1001,7 @@ public final class ExportSVG implements ExportInterface, TextInterface
                 "\" font-style=\""+
                 (isItalic?"italic":"")+"\" font-weigth=\""+
                 (isBold?"bold":"")+"\" "+
-                "fill=\"#"+
+                "stroke=\"none\" fill=\"#"+
                     convertToHex2(c.getRed())+
                     convertToHex2(c.getGreen())+
                     convertToHex2(c.getBlue())+"\""+
@@ -901,4 +1019,18 @@ public final class ExportSVG implements ExportInterface, TextInterface
             System.err.println("Can not write to file in SVG export.");
         }
     }
-}
\ No newline at end of file
+
+    /** A symbol being defined, with the state of the output to be restored
+        at the end of the definition.
+    */
+    private static final class SymbolDefinition
+    {
+        final StringWriter data=new StringWriter();
+        String key;
+        double x;
+        double y;
+        BufferedWriter out;
+        int currentLayer;
+        float currentPhase;
+    }
+}
@@ -0,0 +1,70 @@
+package fidocadj.export;
+
+import java.io.*;
+
+/** SharedMacroInterface.java
+
+    Interface implemented by the export filters which can define the
+    contents of a macro once and then place it several times, for example
+    with the Form XObjects of PDF. The output then grows with the number of
+    different macros used in the drawing, not with the number of their
+    instances.
+
+    When a macro is exported, its contents are identified by a key. If the
+    contents corresponding to the key have already been defined, the
+    filter simply places them at the position of the instance. Otherwise,
+    the contents are exported through the ExportInterface methods, with
+    coordinates relative to the position of the instance, and
+    endMacroDefinition() is called at the end. Definitions may be nested,
+    since a macro may contain other macros.
+
+<pre>
+
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2008-2023 by Davide Bucci
+   </pre>
+
+    @author Davide Bucci
+*/
+
+public interface SharedMacroInterface
+{
+    /** Place an instance of a macro, if its contents have already been
+        defined. Otherwise, start the definition of the contents.
+
+        @param key identifies the contents of the macro. Two instances
+            having the same key must give the same output, apart from their
+            position.
+        @param x the x position of the instance, in output units.
+        @param y the y position of the instance, in output units.
+        @return true if the instance has been placed, false if the contents
+            must be exported now, relative to the position of the instance,
+            and followed by a call to endMacroDefinition().
+        @throws IOException if an error occurs.
+    */
+    boolean placeMacro(String key, double x, double y)
+        throws IOException;
+
+    /** Called at the end of the definition of the contents of a macro
+        started by placeMacro(). The instance which caused the definition
+        is placed as well.
+        @throws IOException if an error occurs.
+    */
+    void endMacroDefinition()
+        throws IOException;
+}
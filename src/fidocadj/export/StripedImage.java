@@ -0,0 +1,515 @@
+package fidocadj.export;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import fidocadj.circuit.controllers.ParserActions;
+import fidocadj.circuit.model.DrawingModel;
+import fidocadj.circuit.views.Drawing;
+import fidocadj.geom.MapCoordinates;
+import fidocadj.globals.Globals;
+import fidocadj.graphic.swing.Graphics2DSwing;
+
+/**
+    A raster image of a drawing which is rendered in horizontal stripes, only
+    when its pixels are requested. Only one stripe is kept in memory, so that
+    the memory needed does not depend on the height of the image. The image
+    writers read the pixels from the top to the bottom, so each stripe is
+    normally rendered only once.
+
+    The PNG writer reads the image row by row with getData(Rectangle). The
+    JPEG writer needs a raster covering the whole image: it is given a
+    raster whose pixels are themselves obtained from the stripes.
+
+    If several threads are available, the stripes following the one being
+    written are rendered in advance, each thread employing its own copy of
+    the drawing (the primitives keep some data about the last time they
+    have been drawn, so the same primitive can not be drawn by two threads
+    at the same time).
+
+    <pre>
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2007-2023 by Davide Bucci
+    </pre>
+
+    @author Davide Bucci
+*/
+final class StripedImage implements RenderedImage
+{
+    // Maximum number of pixels contained in a stripe (16 MB of memory).
+    private static final int STRIPE_PIXELS=1<<22;
+
+    // Masks of the color components, as in BufferedImage.TYPE_INT_RGB.
+    private static final int[] MASKS={0xFF0000, 0xFF00, 0xFF};
+
+    private final DrawingModel drawing;
+    private final MapCoordinates coordinates;
+    private final boolean antiAlias;
+    private final int width;
+    private final int height;
+    private final int stripeHeight;
+    private final int overlap;
+    private final ColorModel colorModel;
+
+    // Index of the last stripe rendered (or -1), its raster placed at its
+    // position in the image, its pixels and the position of the first
+    // pixel of the stripe in the array.
+    private int currentIndex;
+    private Raster currentRaster;
+    private int[] currentPixels;
+    private int currentOffset;
+
+    // View used to render the stripes in the calling thread, or null if
+    // they are rendered in parallel.
+    private final View view;
+
+    // Threads rendering the stripes in parallel, and the views they use
+    // (each one is created by the first thread needing it).
+    private final int threads;
+    private ExecutorService executor;
+    private final BlockingQueue<View> views;
+
+    // Stripes being rendered in parallel, and the index of the first stripe
+    // which has not been requested yet.
+    private final Map<Integer, Future<BufferedImage>> pending;
+    private int nextSubmitted;
+
+    /** A drawing which can be rendered, with its own coordinate mapping.
+    */
+    private static final class View
+    {
+        final Drawing drawingAgent;
+        final MapCoordinates coordinates;
+
+        View(DrawingModel pp, MapCoordinates m)
+        {
+            drawingAgent=new Drawing(pp);
+            coordinates=m;
+        }
+    }
+
+    /** Standard constructor. Nothing is rendered at this time.
+        @param pp the drawing to be rendered. It should not be modified
+            until the image has been written.
+        @param m the coordinate mapping to be used.
+        @param w the width of the image, in pixels.
+        @param h the height of the image, in pixels.
+        @param aa true if the anti alias should be used.
+        @param t the number of threads which may be employed.
+    */
+    StripedImage(DrawingModel pp, MapCoordinates m, int w, int h,
+        boolean aa, int t)
+    {
+        drawing=pp;
+        coordinates=m;
+        antiAlias=aa;
+        width=w;
+        height=h;
+        stripeHeight=Math.max(1, Math.min(h, STRIPE_PIXELS/Math.max(1, w)));
+        colorModel=new DirectColorModel(24, MASKS[0], MASKS[1], MASKS[2]);
+        currentIndex=-1;
+
+        // The primitives are not drawn when their outline (without the
+        // thickness of the lines) is outside the clip region. Each stripe
+        // is thus rendered with a few more rows above and below, so that
+        // the lines crossing its borders are drawn completely.
+        overlap=(int)Math.ceil(Math.max(Globals.lineWidth,
+            Globals.lineWidthCircles)*m.getXMagnitude())+2;
+
+        threads=Math.min(t, getNumYTiles());
+        views=new LinkedBlockingQueue<View>();
+        pending=new HashMap<Integer, Future<BufferedImage>>();
+        if(threads>1) {
+            view=null;
+        } else {
+            view=new View(pp, m);
+            // If the image is rendered in several stripes, the primitives
+            // which do not touch the current stripe can be skipped.
+            view.drawingAgent.setCulling(getNumYTiles()>1);
+        }
+    }
+
+    /** Stop the threads rendering the stripes, if any. The image can not be
+        used any longer.
+    */
+    void dispose()
+    {
+        if(executor!=null) {
+            executor.shutdownNow();
+            executor=null;
+        }
+        pending.clear();
+        views.clear();
+    }
+
+    /** Make sure that the stripe having the given index is the current
+        one, rendering it if needed.
+        @param index the index of the stripe.
+    */
+    private void selectStripe(int index)
+    {
+        if(index==currentIndex) {
+            return;
+        }
+        // A thread which has been interrupted (for example because its job
+        // has been cancelled) does not render the image any longer.
+        if(Thread.currentThread().isInterrupted()) {
+            throw new IllegalStateException("Rendering interrupted");
+        }
+        // Let the previous stripe be freed before rendering.
+        currentRaster=null;
+        currentPixels=null;
+        currentIndex=-1;
+
+        BufferedImage stripe;
+        if(view==null) {
+            stripe=waitForStripe(index);
+        } else {
+            stripe=renderStripe(view, index);
+        }
+
+        int y0=index*stripeHeight;
+        int top=Math.min(overlap, y0);
+        currentRaster=stripe.getRaster().createChild(0, top, width,
+            Math.min(stripeHeight, height-y0), 0, y0, null);
+        currentPixels=((DataBufferInt)stripe.getRaster().getDataBuffer())
+            .getData();
+        currentOffset=top*width;
+        currentIndex=index;
+    }
+
+    /** Obtain a stripe rendered in parallel. The rendering of the following
+        stripes is started, so that all the threads are busy, but not more
+        since each stripe rendered takes some memory.
+        @param index the index of the stripe.
+        @return the image containing the stripe and the rows around it.
+    */
+    private BufferedImage waitForStripe(int index)
+    {
+        if(executor==null) {
+            executor=Executors.newFixedThreadPool(threads, (r) -> {
+                Thread th=new Thread(r, "FidoCadJ stripe renderer");
+                th.setDaemon(true);
+                return th;
+            });
+        }
+        // The stripes are normally requested in order: the previous ones
+        // will not be needed any longer.
+        Iterator<Map.Entry<Integer, Future<BufferedImage>>> i=
+            pending.entrySet().iterator();
+        while(i.hasNext()) {
+            Map.Entry<Integer, Future<BufferedImage>> e=i.next();
+            if(e.getKey().intValue()<index) {
+                e.getValue().cancel(false);
+                i.remove();
+            }
+        }
+        if(nextSubmitted<=index) {
+            nextSubmitted=index;
+        }
+        int last=Math.min(getNumYTiles(), index+threads);
+        for(; nextSubmitted<last; ++nextSubmitted) {
+            pending.put(Integer.valueOf(nextSubmitted),
+                submitStripe(nextSubmitted));
+        }
+        Future<BufferedImage> f=pending.remove(Integer.valueOf(index));
+        if(f==null) {
+            // Requested again: it must be rendered once more.
+            f=submitStripe(index);
+        }
+        try {
+            return f.get();
+        } catch (InterruptedException eE) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Rendering interrupted", eE);
+        } catch (ExecutionException eE) {
+            Throwable cause=eE.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /** Start rendering a stripe in one of the threads.
+        @param index the index of the stripe.
+        @return the result of the rendering.
+    */
+    private Future<BufferedImage> submitStripe(final int index)
+    {
+        return executor.submit(() -> {
+            // There are no more views than threads, so that each view is
+            // employed by a single thread at a time.
+            View v=views.poll();
+            if(v==null) {
+                v=createView();
+            }
+            try {
+                return renderStripe(v, index);
+            } finally {
+                views.add(v);
+            }
+        });
+    }
+
+    /** Create a view employing a copy of the drawing. The drawing is only
+        read, so that several copies can be created at the same time.
+        @return the view.
+    */
+    private View createView()
+    {
+        DrawingModel copy=new ParserActions(drawing).createDrawingCopy();
+        View v=new View(copy, new MapCoordinates(coordinates));
+        v.drawingAgent.setCulling(true);
+        return v;
+    }
+
+    /** Render a stripe, with the rows around it needed to draw completely
+        the primitives crossing its borders. The graphic context is
+        translated so that the rows are rendered exactly as the same part of
+        a single image containing the whole drawing.
+        @param v the view to be employed.
+        @param index the index of the stripe.
+        @return the image containing the rows.
+    */
+    private BufferedImage renderStripe(View v, int index)
+    {
+        int y0=index*stripeHeight;
+        int h=Math.min(stripeHeight, height-y0);
+        int top=Math.min(overlap, y0);
+        int bottom=Math.min(overlap, height-y0-h);
+        y0-=top;
+        h+=top+bottom;
+
+        BufferedImage stripe=new BufferedImage(width, h,
+            BufferedImage.TYPE_INT_RGB);
+
+        // Create a graphics contents on the buffered image
+        Graphics2D g2d=stripe.createGraphics();
+
+        if(antiAlias) {
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        }
+        g2d.setColor(Color.white);
+        g2d.fillRect(0, 0, width, h);
+        g2d.translate(0, -y0);
+
+        Graphics2DSwing graphicSwing=new Graphics2DSwing(g2d);
+        // This is important for taking into account the dashing size
+        graphicSwing.setZoom(v.coordinates.getXMagnitude());
+        v.drawingAgent.draw(graphicSwing, v.coordinates);
+
+        // Graphics context no longer needed so dispose it
+        g2d.dispose();
+        return stripe;
+    }
+
+    /** Get the raster of a stripe, placed at its position in the image.
+        @param index the index of the stripe.
+        @return the raster.
+    */
+    private Raster getStripeRaster(int index)
+    {
+        selectStripe(index);
+        return currentRaster;
+    }
+
+    /** Copy into a raster the pixels of all the stripes it intersects.
+    */
+    private void copyStripes(WritableRaster raster)
+    {
+        int first=Math.max(0, raster.getMinY()/stripeHeight);
+        int last=Math.min(getNumYTiles()-1,
+            (raster.getMinY()+raster.getHeight()-1)/stripeHeight);
+        for(int i=first; i<=last; ++i) {
+            raster.setRect(getStripeRaster(i));
+        }
+    }
+
+    /** Get a part of the image. The pixels are copied from the stripes.
+        @param rect the region of the image.
+        @return a raster containing the pixels.
+    */
+    @Override public Raster getData(Rectangle rect)
+    {
+        WritableRaster raster=Raster.createPackedRaster(DataBuffer.TYPE_INT,
+            rect.width, rect.height, MASKS, new Point(rect.x, rect.y));
+        copyStripes(raster);
+        return raster;
+    }
+
+    /** Get the whole image. If the image is made of a single stripe, it is
+        returned directly. Otherwise, the pixels of the raster are obtained
+        from the stripes only when they are read, so that the memory needed
+        is still that of a stripe.
+        @return a raster containing the image.
+    */
+    @Override public Raster getData()
+    {
+        if(getNumYTiles()==1) {
+            return getStripeRaster(0);
+        }
+        if((long)width*height>Integer.MAX_VALUE) {
+            throw new RasterFormatException("Image too large");
+        }
+        return Raster.createRaster(new SinglePixelPackedSampleModel(
+            DataBuffer.TYPE_INT, width, height, MASKS), new StripeBuffer(),
+            null);
+    }
+
+    /** Copy the image into a raster.
+        @param raster the raster, or null to create a new one.
+        @return the raster.
+    */
+    @Override public WritableRaster copyData(WritableRaster raster)
+    {
+        WritableRaster r=raster;
+        if(r==null) {
+            r=Raster.createPackedRaster(DataBuffer.TYPE_INT, width, height,
+                MASKS, null);
+        }
+        copyStripes(r);
+        return r;
+    }
+
+    /** Get a tile of the image. Each tile is a stripe.
+        @param tileX the horizontal index of the tile (always 0).
+        @param tileY the vertical index of the tile.
+        @return the raster of the stripe.
+    */
+    @Override public Raster getTile(int tileX, int tileY)
+    {
+        return getStripeRaster(tileY);
+    }
+
+    @Override public int getWidth()
+    {
+        return width;
+    }
+
+    @Override public int getHeight()
+    {
+        return height;
+    }
+
+    @Override public int getMinX()
+    {
+        return 0;
+    }
+
+    @Override public int getMinY()
+    {
+        return 0;
+    }
+
+    @Override public int getNumXTiles()
+    {
+        return 1;
+    }
+
+    @Override public int getNumYTiles()
+    {
+        return (height+stripeHeight-1)/stripeHeight;
+    }
+
+    @Override public int getMinTileX()
+    {
+        return 0;
+    }
+
+    @Override public int getMinTileY()
+    {
+        return 0;
+    }
+
+    @Override public int getTileWidth()
+    {
+        return width;
+    }
+
+    @Override public int getTileHeight()
+    {
+        return stripeHeight;
+    }
+
+    @Override public int getTileGridXOffset()
+    {
+        return 0;
+    }
+
+    @Override public int getTileGridYOffset()
+    {
+        return 0;
+    }
+
+    @Override public ColorModel getColorModel()
+    {
+        return colorModel;
+    }
+
+    @Override public SampleModel getSampleModel()
+    {
+        return new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT,
+            width, stripeHeight, MASKS);
+    }
+
+    @Override public Vector<RenderedImage> getSources()
+    {
+        return null;
+    }
+
+    @Override public Object getProperty(String name)
+    {
+        return Image.UndefinedProperty;
+    }
+
+    @Override public String[] getPropertyNames()
+    {
+        return null;
+    }
+
+    /** The pixels of the whole image, read from the stripes. The image can
+        not be modified.
+    */
+    private final class StripeBuffer extends DataBuffer
+    {
+        StripeBuffer()
+        {
+            super(DataBuffer.TYPE_INT, width*height);
+        }
+
+        @Override public int getElem(int bank, int i)
+        {
+            int index=i/width/stripeHeight;
+            selectStripe(index);
+            return currentPixels[currentOffset+i-index*stripeHeight*width];
+        }
+
+        @Override public void setElem(int bank, int i, int val)
+        {
+            throw new UnsupportedOperationException("Read only image");
+        }
+    }
+}
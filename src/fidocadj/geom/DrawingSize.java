@@ -4,6 +4,7 @@ import fidocadj.circuit.model.DrawingModel;
 import fidocadj.circuit.views.Drawing;
 import fidocadj.graphic.PointG;
 import fidocadj.graphic.DimensionG;
+import fidocadj.graphic.RectangleG;
 import fidocadj.graphic.nil.GraphicsNull;
 
 
@@ -62,12 +63,8 @@ public final class DrawingSize
         m.setXCenter(0);
         m.setYCenter(0);
 
-        // force an in-depth recalculation
-        dm.setChanged(true);
-        Drawing drawingAgent = new Drawing(dm);
-        drawingAgent.draw(new GraphicsNull(),m);
+        trackDrawing(dm, m);
         dm.getImgCanvas().trackExtremePoints(m);
-        dm.setChanged(true);
 
         // Calculate image size
         if(countMin) {
@@ -110,19 +107,13 @@ public final class DrawingSize
         int originx;
         int originy;
 
-        // force an in-depth recalculation
-        dm.setChanged(true);
         MapCoordinates m=new MapCoordinates();
         m.setMagnitudes(unitperpixel, unitperpixel);
         m.setXCenter(0);
         m.setYCenter(0);
 
-        // Draw the image. In this way, the min and max coordinates will be
-        // tracked.
-        Drawing drawingAgent = new Drawing(dm);
-        dm.getImgCanvas().trackExtremePoints(m);
-        drawingAgent.draw(new GraphicsNull(), m);
-        dm.setChanged(true);
+        // The min and max coordinates of the drawing are tracked.
+        trackDrawing(dm, m);
 
         // Verify that the image size is correct
         if (m.getXMax() >= m.getXMin() &&
@@ -138,6 +129,38 @@ public final class DrawingSize
         return new PointG(originx, originy);
     }
 
+    /** Track the region occupied by the drawing in the given coordinate
+        mapping. The model keeps the extent of what is drawn up to date, so
+        nothing is drawn again if the drawing has not changed, and the
+        coordinates calculated by the primitives for the screen are not
+        invalidated. At unit zoom, the region is exactly the one tracked
+        while drawing everything. At other zooms, the region is scaled:
+        the text might be a little smaller or larger when it is drawn,
+        since the size of the fonts is rounded.
+        @param dm the model containing the drawing.
+        @param m the coordinate mapping, with the origin mapped to zero.
+    */
+    private static void trackDrawing(DrawingModel dm, MapCoordinates m)
+    {
+        if(dm.getDrawOnlyLayer()>=0 || dm.getDrawOnlyPads()) {
+            // Only a part of the drawing is considered: draw it, forcing an
+            // in-depth recalculation.
+            dm.setChanged(true);
+            Drawing drawingAgent = new Drawing(dm);
+            drawingAgent.draw(new GraphicsNull(),m);
+            dm.setChanged(true);
+            return;
+        }
+        RectangleG r=dm.getDrawnExtent();
+        if(r!=null) {
+            double zx=m.getXMagnitude();
+            double zy=m.getYMagnitude();
+            m.trackPoint(Math.floor(r.x*zx), Math.floor(r.y*zy));
+            m.trackPoint(Math.ceil((r.x+r.width)*zx),
+                Math.ceil((r.y+r.height)*zy));
+        }
+    }
+
     /** Calculate the zoom to fit the given size in pixel (i.e. the viewport
         size).
         @param dm the current drawing model.
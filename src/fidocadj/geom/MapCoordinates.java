@@ -99,6 +99,31 @@ public class MapCoordinates
         stack = new ArrayDeque<MapCoordinates>();
     }
 
+    /** Create a copy of a coordinate mapping, except for the stack of the
+        saved states. The copy can then be used independently of the
+        original, for example by another thread.
+        @param m the coordinate mapping to be copied.
+    */
+    public MapCoordinates(MapCoordinates m)
+    {
+        this();
+        xCenter=m.xCenter;
+        yCenter=m.yCenter;
+        xMagnitude=m.xMagnitude;
+        yMagnitude=m.yMagnitude;
+        orientation=m.orientation;
+        mirror=m.mirror;
+        isMacro=m.isMacro;
+        snapActive=m.snapActive;
+        xMin=m.xMin;
+        xMax=m.xMax;
+        yMin=m.yMin;
+        yMax=m.yMax;
+
+        xGridStep=m.xGridStep;
+        yGridStep=m.yGridStep;
+    }
+
     /** Change the current orientation.
         @param o the wanted orientation (comprised between 0 and 3).
         NOTE: if o is greater than 3, it will be truncated to 3.
@@ -138,23 +163,7 @@ public class MapCoordinates
     */
     public void push()
     {
-        MapCoordinates m = new MapCoordinates();
-        m.xCenter=xCenter;
-        m.yCenter=yCenter;
-        m.xMagnitude=xMagnitude;
-        m.yMagnitude=yMagnitude;
-        m.orientation=orientation;
-        m.mirror=mirror;
-        m.isMacro=isMacro;
-        m.snapActive=snapActive;
-        m.xMin=xMin;
-        m.xMax=xMax;
-        m.yMin=yMin;
-        m.yMax=yMax;
-
-        m.xGridStep=xGridStep;
-        m.yGridStep=yGridStep;
-        stack.addFirst(m);
+        stack.addFirst(new MapCoordinates(this));
     }
 
     /** Pop from a stack the coordinate state.
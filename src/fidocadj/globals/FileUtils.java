@@ -2,6 +2,10 @@ package fidocadj.globals;
 
 import java.io.*;
 import java.util.*;
+import java.util.zip.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.Paths;
 
 /** The FileUtils class contains methods for file and directory handling,
     which comprises reading a file, copying or deleting a directory
@@ -37,19 +41,20 @@ public final class FileUtils
         // nothing
     }
 
-    /** Read an input file.
+    /** Read an input file. If the file is compressed with gzip, it is
+        decompressed on the fly.
         @param filename the complete path and filename of the file to read.
         @return the file contents.
         @throws IOException if the file access fails.
     */
     public static String readFile(String filename) throws IOException
     {
-        FileReader input = null;
+        Reader input = null;
         BufferedReader bufRead = null;
         StringBuffer txt=new StringBuffer("");
 
         try {
-            input=new FileReader(filename);
+            input=new InputStreamReader(openInput(new File(filename)));
             bufRead =  new BufferedReader(input);
             String line="";
             txt = new StringBuffer(bufRead.readLine());
@@ -68,6 +73,117 @@ public final class FileUtils
         return txt.toString();
     }
 
+    /** Check if a file name corresponds to a file compressed with gzip,
+        such as drawing.fcdz, image.svgz or image.eps.gz.
+        @param name the file name.
+        @return true if the file should be compressed.
+    */
+    public static boolean isCompressedName(String name)
+    {
+        String n=name.toLowerCase(Locale.US);
+        return n.endsWith(".gz") || n.endsWith(".svgz")
+            || n.endsWith(".fcdz");
+    }
+
+    /** Obtain the name of the compressed version of a file. For example,
+        drawing.fcd becomes drawing.fcdz, image.svg becomes image.svgz and
+        image.eps becomes image.eps.gz.
+        @param name the file name.
+        @return the name of the compressed file.
+    */
+    public static String compressedName(String name)
+    {
+        if(isCompressedName(name)) {
+            return name;
+        }
+        String n=name.toLowerCase(Locale.US);
+        if(n.endsWith(".fcd") || n.endsWith(".svg")) {
+            return name+"z";
+        }
+        return name+".gz";
+    }
+
+    /** Open a file to be written. If the name of the file indicates that it
+        is compressed (see isCompressedName), the data are compressed with
+        gzip on the fly.
+        @param file the file to be written.
+        @return the stream to be used for writing the file. It must be closed
+            to complete the compressed file.
+        @throws IOException if the file can not be created.
+    */
+    public static OutputStream openOutput(File file) throws IOException
+    {
+        OutputStream out=new FileOutputStream(file);
+        if(isCompressedName(file.getName())) {
+            try {
+                out=new GZIPOutputStream(out, 65536);
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+        }
+        return out;
+    }
+
+    /** Open a file to be read. If the file is compressed with gzip, it is
+        decompressed on the fly. The compression is detected from the
+        contents of the file and not from its name.
+        @param file the file to be read.
+        @return the stream to be used for reading the file.
+        @throws IOException if the file can not be opened.
+    */
+    public static InputStream openInput(File file) throws IOException
+    {
+        InputStream in=new BufferedInputStream(new FileInputStream(file),
+            65536);
+        try {
+            in.mark(2);
+            int b0=in.read();
+            int b1=in.read();
+            in.reset();
+            if(b0==(GZIPInputStream.GZIP_MAGIC & 0xFF)
+                && b1==(GZIPInputStream.GZIP_MAGIC >> 8))
+            {
+                in=new GZIPInputStream(in, 65536);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+
+    /** Open a file to be read as a channel. If the file is compressed with
+        gzip, it is decompressed on the fly. Otherwise, the returned channel
+        is a FileChannel, so that its size is known before reading it.
+        @param filename the complete path and filename of the file to read.
+        @return the channel to be used for reading the file.
+        @throws IOException if the file can not be opened.
+    */
+    public static ReadableByteChannel openChannel(String filename)
+        throws IOException
+    {
+        FileChannel ch=FileChannel.open(Paths.get(filename));
+        try {
+            ByteBuffer magic=ByteBuffer.allocate(2);
+            while(magic.hasRemaining() && ch.read(magic)>=0) {
+                // Read the first two bytes, if they are present.
+            }
+            ch.position(0);
+            if(magic.position()==2
+                && (magic.get(0) & 0xFF)==(GZIPInputStream.GZIP_MAGIC & 0xFF)
+                && (magic.get(1) & 0xFF)==(GZIPInputStream.GZIP_MAGIC >> 8))
+            {
+                return Channels.newChannel(new GZIPInputStream(
+                    Channels.newInputStream(ch), 65536));
+            }
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        return ch;
+    }
+
     /** Copy a directory recursively.
 
         http://subversivebytes.wordpress.com/2012/11/05/java-copy-directory-
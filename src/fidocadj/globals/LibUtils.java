@@ -114,9 +114,9 @@ public final class LibUtils
             sb.append(" ");
             sb.append(md.name.trim());
             sb.append("]");
-            u = md.description.codePointAt(0) == '\n'?1:0;
+            u = md.getDescription().codePointAt(0) == '\n'?1:0;
             sb.append("\n");
-            sb.append(md.description.substring(u));
+            sb.append(md.getDescription().substring(u));
             sb.append("\n");
         }
         return sb.toString();
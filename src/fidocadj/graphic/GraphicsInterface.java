@@ -109,6 +109,13 @@ public interface GraphicsInterface
                        int width,
                        int height);
 
+    /** Get the bounds of the region which needs to be updated (see
+        hitClip).
+        @return the bounds of the region, or null if everything should be
+            drawn.
+    */
+    RectangleG getClipBounds();
+
     /** Draw a segment between two points
         @param x1 first coordinate x value
         @param y1 first coordinate y value
@@ -176,6 +183,12 @@ public interface GraphicsInterface
     */
     void setAlpha(float alpha);
 
+    /** Get the transparency (alpha) of the current color.
+        @return the transparency, between 0.0 (transparent) and 1.0
+            (fully opaque).
+    */
+    float getAlpha();
+
     /** Draw a completely filled oval in the current graphic context.
         @param x the x coordinate of the starting point.
         @param y the y coordinate of the starting point.
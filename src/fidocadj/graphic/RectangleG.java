@@ -108,6 +108,47 @@ public class RectangleG
         return px >= x && px <= x + width && py >= y && py <= y + height;
     }
 
+    /**
+     * Enlarges this rectangle so that it contains the given point.
+     *
+     * @param px the x-coordinate of the point to be included
+     * @param py the y-coordinate of the point to be included
+     */
+    public void add(int px, int py)
+    {
+        int x2 = Math.max(x + width, px);
+        int y2 = Math.max(y + height, py);
+        x = Math.min(x, px);
+        y = Math.min(y, py);
+        width = x2 - x;
+        height = y2 - y;
+    }
+
+    /**
+     * Enlarges this rectangle so that it contains the given rectangle.
+     *
+     * @param other the rectangle to be included
+     */
+    public void add(RectangleG other)
+    {
+        add(other.x, other.y);
+        add(other.x + other.width, other.y + other.height);
+    }
+
+    /**
+     * Enlarges this rectangle by the given amount on each side.
+     *
+     * @param h the amount added on the left and on the right sides
+     * @param v the amount added on the top and on the bottom sides
+     */
+    public void grow(int h, int v)
+    {
+        x -= h;
+        y -= v;
+        width += 2 * h;
+        height += 2 * v;
+    }
+
     /**
      * Checks whether this rectangle intersects with another SelectionRectangle.
      *
@@ -11,6 +11,7 @@ import fidocadj.graphic.ShapeInterface;
 import fidocadj.graphic.TextInterface;
 import fidocadj.graphic.PolygonInterface;
 import fidocadj.graphic.ColorInterface;
+import fidocadj.graphic.RectangleG;
 
 
 /**         SWING VERSION
@@ -181,6 +182,15 @@ public class GraphicsNull implements GraphicsInterface, TextInterface
         return false;
     }
 
+    /** Get the bounds of the region which needs to be updated (see
+        hitClip). Nothing needs to be updated.
+        @return an empty region.
+    */
+    public RectangleG getClipBounds()
+    {
+        return new RectangleG(0,0,0,0);
+    }
+
     /** Draw a segment between two points
         @param x1 first coordinate x value
         @param y1 first coordinate y value
@@ -288,6 +298,14 @@ public class GraphicsNull implements GraphicsInterface, TextInterface
         // nothing to do
     }
 
+    /** Get the transparency (alpha) of the current color.
+        @return always 1.0 (fully opaque).
+    */
+    public float getAlpha()
+    {
+        return 1.0f;
+    }
+
     /** Draw a completely filled oval in the current graphic context.
         @param x the x coordinate of the starting point.
         @param y the y coordinate of the starting point.
@@ -9,6 +9,7 @@ import fidocadj.globals.Globals;
 import fidocadj.layers.LayerDesc;
 import fidocadj.graphic.DecoratedText;
 import fidocadj.graphic.ColorInterface;
+import fidocadj.graphic.RectangleG;
 import fidocadj.graphic.PolygonInterface;
 import fidocadj.graphic.ShapeInterface;
 import fidocadj.graphic.TextInterface;
@@ -321,6 +322,17 @@ public class Graphics2DSwing implements GraphicsInterface, TextInterface
         return g.hitClip(x,y,width,height);
     }
 
+    /** Get the bounds of the region which needs to be updated (see
+        hitClip).
+        @return the bounds of the region, or null if everything should be
+            drawn.
+    */
+    public RectangleG getClipBounds()
+    {
+        Rectangle r=g.getClipBounds();
+        return r==null?null:new RectangleG(r.x, r.y, r.width, r.height);
+    }
+
     /** Draw a segment between two points.
         @param x1 first coordinate x value.
         @param y1 first coordinate y value.
@@ -441,6 +453,19 @@ public class Graphics2DSwing implements GraphicsInterface, TextInterface
             alpha));
     }
 
+    /** Get the transparency (alpha) of the current color.
+        @return the transparency, between 0.0 (transparent) and 1.0
+            (fully opaque).
+    */
+    public float getAlpha()
+    {
+        Composite c=g.getComposite();
+        if(c instanceof AlphaComposite) {
+            return ((AlphaComposite)c).getAlpha();
+        }
+        return 1.0f;
+    }
+
     /** Draw a completely filled oval in the current graphic context.
         @param x the x coordinate of the starting point.
         @param y the y coordinate of the starting point.
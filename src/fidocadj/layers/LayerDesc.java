@@ -76,6 +76,23 @@ public class LayerDesc
 
     }
 
+    /** Copy constructor: the copy has its own color, so that modifying one
+        of the layers does not modify the other.
+        @param l the layer to be copied.
+    */
+    public LayerDesc(LayerDesc l)
+    {
+        ColorInterface c=l.layerColor;
+        if(c!=null) {
+            layerColor=c.black();
+            layerColor.setRGB(c.getRGB());
+        }
+        isVisible=l.isVisible;
+        isModified=l.isModified;
+        layerDescription=l.layerDescription;
+        alpha=l.alpha;
+    }
+
     /** This method allows to obtain the color in which this layer should be
         drawn.
 
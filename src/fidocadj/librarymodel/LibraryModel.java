@@ -392,6 +392,7 @@ public class LibraryModel
 
         oldKey = getPlainMacroKey(macro);
         macro.key = createMacroKey(macro.filename,newKey);
+        invalidatePrototypes();
         save();
         saveLibraryState();
         fireKeyChanged(getParentNode(macro),macro,oldKey);
@@ -404,7 +405,7 @@ public class LibraryModel
     {
         return new MacroDesc(macro.key,
            macro.name,
-           macro.description,
+           macro.getDescription(),
            macro.category,
            macro.library,
            macro.filename);
@@ -478,6 +479,21 @@ public class LibraryModel
                 m.key = createMacroKey(library.getFilename(),plainKey);
             }
         }
+        invalidatePrototypes();
+    }
+
+    /**
+        Discards the parsed contents of the macros, shared among their
+        instances. Since macros can contain other macros, when something
+        changes in the library all of them are concerned. The size of the
+        macros in the drawing may change, too.
+    */
+    private void invalidatePrototypes()
+    {
+        for(MacroDesc md:masterLibrary.values()) {
+            md.invalidatePrototype();
+        }
+        drawingModel.invalidateSpatialIndex();
     }
 
     /**
@@ -655,6 +671,7 @@ public class LibraryModel
                 }
             }
         }
+        invalidatePrototypes();
     }
 
     private void updateLibraries()
@@ -687,6 +704,7 @@ public class LibraryModel
             }
             category.addMacro(md);
         }
+        invalidatePrototypes();
         fireChanged();
     }
 
@@ -527,7 +527,7 @@ public class MacroTree extends JPanel
 
                     if(md!=null) {
                         previewPanel.getParserActions().parseString(
-                            new StringBuffer(md.description));
+                            new StringBuffer(md.getDescription()));
                         MapCoordinates m =
                             DrawingSize.calculateZoomToFit(
                                 previewPanel.getDrawingModel(),
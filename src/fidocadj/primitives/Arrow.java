@@ -84,6 +84,18 @@ public final class Arrow
         return arrowStart || arrowEnd;
     }
 
+    /** Get the maximum distance from the tip at which the arrows may
+        extend. Useful to calculate the bounding box of a primitive.
+        @return the distance in logical units, or 0 if there are no arrows.
+    */
+    public int getArrowExtent()
+    {
+        if(!atLeastOneArrow()) {
+            return 0;
+        }
+        return (int)Math.ceil(Math.abs(arrowLength)+Math.abs(arrowHalfWidth));
+    }
+
     /** Create the string describing the arrow. If the arrowLength and
         arrowHalfWidth differs from an integer less than a given tolerance
         (constant roundTolerance in the class definition), the sizes are
@@ -205,18 +217,18 @@ public final class Arrow
         @return the index of the token following the one which has been just
         read.
     */
-    public int parseTokens(String[] tokens, int startIndex)
+    public int parseTokens(TokenLine tokens, int startIndex)
     {
         int i=startIndex;
-        int arrows = Integer.parseInt(tokens[i++]);
+        int arrows = tokens.getInt(i++);
         arrowStart = (arrows & 0x01) !=0;
         arrowEnd = (arrows & 0x02) !=0;
 
-        arrowStyle = Integer.parseInt(tokens[i++]);
+        arrowStyle = tokens.getInt(i++);
         // These rounding operations should be removed in version
         // 0.24.8 (see Issue #111).
-        arrowLength = Float.parseFloat(tokens[i++]);
-        arrowHalfWidth= Float.parseFloat(tokens[i++]);
+        arrowLength = tokens.getFloat(i++);
+        arrowHalfWidth= tokens.getFloat(i++);
         return i;
     }
 
@@ -15,6 +15,7 @@ import fidocadj.graphic.PointG;
 import fidocadj.graphic.DimensionG;
 import fidocadj.graphic.GraphicsInterface;
 import fidocadj.graphic.RectangleG;
+import fidocadj.graphic.nil.GraphicsNull;
 
 /** GraphicPrimitive is an abstract class implementing the basic behaviour
     of a graphic primitive, which should be derived from it.
@@ -89,8 +90,6 @@ public abstract class GraphicPrimitive
 
     // Some caching data
     private LayerDesc currentLayer;
-    private float alpha;
-    private static float oldalpha=1.0f;
     private int old_layer=-1;
 
     // Those are data which are kept for the fast redraw of this primitive.
@@ -115,6 +114,10 @@ public abstract class GraphicPrimitive
     private int x3;         // NOPMD
     private int y3;         // NOPMD
 
+    // Used only to measure the name and value strings when the bounding
+    // box of a primitive is calculated. Shared between all primitives.
+    private static GraphicsNull textMeasure;
+
     /* At first, non abstract methods */
 
     /** Standard constructor.
@@ -488,74 +491,74 @@ public abstract class GraphicPrimitive
 
     /** Reads the TY line describing the "value" field
         @param tokens the array of tokens to be parsed
-        @param nn the number of tokens to be parsed.
         @throws IOException if something goes wrong, for example there is
             an invalid primitive found at an incongruous place (probably a
             programming error).
     */
-    public void setValue(String[] tokens, int nn)
+    public void setValue(TokenLine tokens)
         throws IOException
     {
+        int nn=tokens.size();
         StringBuffer txtb=new StringBuffer();
         int j=8;
         changed=true;
-        if ("TY".equals(tokens[0])) {   // Text (advanced)
+        if (tokens.is(0, "TY")) {   // Text (advanced)
             if (nn<9) {
                 throw new IOException("Bad arguments on TY");
             }
 
             virtualPoint[getValueVirtualPointNumber()].x=
-                Integer.parseInt(tokens[1]);
+                tokens.getInt(1);
             virtualPoint[getValueVirtualPointNumber()].y=
-                Integer.parseInt(tokens[2]);
+                tokens.getInt(2);
 
-            if("*".equals(tokens[8])) {
+            if(tokens.is(8, "*")) {
                 macroFont = Globals.defaultTextFont;
             } else {
-                macroFont = tokens[8].replaceAll("\\+\\+"," ");
+                macroFont = tokens.get(8).replaceAll("\\+\\+"," ");
             }
 
             // Adding the following line should fix bug #3522962
-            setMacroFontSize(Integer.parseInt(tokens[4]));
+            setMacroFontSize(tokens.getInt(4));
 
             while(j<nn-1){
-                txtb.append(tokens[++j]);
+                txtb.append(tokens.get(++j));
                 if (j<nn-1) {
                     txtb.append(" ");
                 }
             }
             value=txtb.toString();
         } else {
-            throw new IOException("Invalid primitive: "+tokens[0]+
+            throw new IOException("Invalid primitive: "+tokens.get(0)+
                                           " programming error?");
         }
     }
 
     /** Reads the TY line describing the "name" field
         @param tokens the array of tokens to be parsed
-        @param nn the number of tokens to be parsed.
         @throws IOException if something goes wrong, for example there is
             an invalid primitive found at an incongruous place (probably a
             programming error).
     */
-    public void setName(String[] tokens, int nn)
+    public void setName(TokenLine tokens)
         throws IOException
     {
+        int nn=tokens.size();
         StringBuffer txtb=new StringBuffer();
         int j=8;
         changed=true;
-        if ("TY".equals(tokens[0])) {   // Text (advanced)
+        if (tokens.is(0, "TY")) {   // Text (advanced)
             if (nn<9) {
                 throw new IOException("bad arguments on TY");
             }
 
             virtualPoint[getNameVirtualPointNumber()].x=
-                Integer.parseInt(tokens[1]);
+                tokens.getInt(1);
             virtualPoint[getNameVirtualPointNumber()].y=
-                Integer.parseInt(tokens[2]);
+                tokens.getInt(2);
 
             while(j<nn-1) {
-                txtb.append(tokens[++j]);
+                txtb.append(tokens.get(++j));
                 if (j<nn-1) {
                     txtb.append(" ");
                 }
@@ -563,7 +566,7 @@ public abstract class GraphicPrimitive
             name=txtb.toString();
 
         } else {
-            throw new IOException("Invalid primitive:"+tokens[0]+
+            throw new IOException("Invalid primitive:"+tokens.get(0)+
                                           " programming error?");
         }
     }
@@ -716,6 +719,23 @@ public abstract class GraphicPrimitive
         return layer;
     }
 
+    /** Parse a token and interpret it as a layer indication.
+        If this is correct, the layer is saved in the current primitive.
+        @param tokens the tokens being parsed.
+        @param i the index of the token which corresponds to the layer.
+    */
+    public void parseLayer(TokenLine tokens, int i)
+    {
+        int l;
+        try {
+            l=tokens.getInt(i);
+        } catch (NumberFormatException e) {
+            // We are unable to get the layer. Just suppose it's zero.
+            l=0;
+        }
+        setLayer(l);
+    }
+
     /** Parse the current string and interpret it as a layer indication.
         If this is correct, the layer is saved in the current primitive.
         @param token the token which corresponds to the layer.
@@ -787,10 +807,13 @@ public abstract class GraphicPrimitive
             // We change the color for selected objects
             g.activateSelectColor(getCurrentLayer());
         } else {
-            if(g.getColor()!=getCurrentLayer().getColor() || oldalpha!=alpha) {
+            // The current alpha is asked to the graphic context, since
+            // several of them may be in use at the same time.
+            float alpha=getCurrentLayer().getAlpha();
+            if(g.getColor()!=getCurrentLayer().getColor()
+                || g.getAlpha()!=alpha)
+            {
                 g.setColor(getCurrentLayer().getColor());
-                alpha=getCurrentLayer().getAlpha();
-                oldalpha = alpha;
                 g.setAlpha(alpha);
             }
         }
@@ -1063,12 +1086,11 @@ public abstract class GraphicPrimitive
         That routine also sets the correct layer.
         An IOException is thrown if there is an error.
 
-        @param tokens the tokens to be processed. tokens[0] should be the
+        @param tokens the tokens to be processed. The first one should be the
         command of the actual primitive.
-        @param nn the number of tokens present in the array.
         @throws IOException if something goes wrong.
     */
-    public abstract void parseTokens(String[] tokens, int nn)
+    public abstract void parseTokens(TokenLine tokens)
         throws IOException;
 
     /** Gets the distance (in primitive's coordinates space) between a
@@ -1165,6 +1187,108 @@ public abstract class GraphicPrimitive
         return new PointG(qx,qy);
     }
 
+    /** Get a bounding box of the primitive, in logical units. The box is
+        conservative: it contains everything which may be drawn by the
+        primitive, as well as every point for which getDistanceToPoint may
+        return a very small distance, including the name and value strings.
+        It is calculated without drawing anything, so it can be used to
+        index the primitives of a drawing.
+        @return a new rectangle containing the primitive.
+    */
+    public RectangleG getBoundingBox()
+    {
+        RectangleG r=null;
+        for (int i = 0; i < getControlPointNumber(); i++) {
+            if (i == getNameVirtualPointNumber()
+                    || i == getValueVirtualPointNumber())
+            {
+                continue;
+            }
+            if(r==null) {
+                r=new RectangleG(virtualPoint[i].x,virtualPoint[i].y,0,0);
+            } else {
+                r.add(virtualPoint[i].x,virtualPoint[i].y);
+            }
+        }
+        if(r==null) {
+            r=new RectangleG(virtualPoint[0].x,virtualPoint[0].y,0,0);
+        }
+        int margin=getBoundingMargin();
+        r.grow(margin, margin);
+        addTextToBoundingBox(r);
+        return r;
+    }
+
+    /** Get the margin to be added around the control points to obtain
+        the bounding box of the primitive. Primitives having a thickness or
+        decorations (such as arrows) should increase it.
+        @return the margin, in logical units.
+    */
+    protected int getBoundingMargin()
+    {
+        return 1;
+    }
+
+    /** Enlarge the given rectangle so that it contains the name and value
+        strings, if they are defined. The size of the text on the screen
+        depends a little on the zoom (rounding of the font size and hinting),
+        therefore the estimate is generous.
+        @param r the rectangle to be enlarged.
+    */
+    protected void addTextToBoundingBox(RectangleG r)
+    {
+        if(!hasName() && !hasValue()) {
+            return;
+        }
+        int size=(int)(macroFontSize*12/7.0+.5);
+        int[] nameSize=measureText(macroFont,size,false,false,name,false);
+        int[] valueSize=measureText(macroFont,size,false,false,value,false);
+        int tw1=nameSize[0];
+        int tw2=valueSize[0];
+        int tth=nameSize[1];
+        int slack=macroFontSize*2+2;
+        tth=Math.max(2*tth+slack, t_th);
+        if(hasName()) {
+            PointG p=virtualPoint[getNameVirtualPointNumber()];
+            r.add(p.x, p.y);
+            r.add(p.x+Math.max(2*tw1+slack, t_w1), p.y+tth);
+        }
+        if(hasValue()) {
+            PointG p=virtualPoint[getValueVirtualPointNumber()];
+            r.add(p.x, p.y);
+            r.add(p.x+Math.max(2*tw2+slack, t_w2), p.y+tth);
+        }
+    }
+
+    /** Measure a string without drawing it, at unit zoom.
+        @param font the name of the font.
+        @param size the size of the font, in pixels.
+        @param isItalic true if the font is italic.
+        @param isBold true if the font is bold.
+        @param s the string to be measured (it may be null).
+        @param decorated true if the string may contain the decorations
+            (subscripts, superscripts...) handled by DecoratedText.
+        @return an array containing the width and the height of the string.
+    */
+    protected static synchronized int[] measureText(String font, int size,
+        boolean isItalic, boolean isBold, String s, boolean decorated)
+    {
+        if(textMeasure==null) {
+            textMeasure=new GraphicsNull();
+        }
+        textMeasure.setFont(font, size, isItalic, isBold);
+        int[] r=new int[2];
+        if(s!=null && s.length()>0) {
+            if(decorated) {
+                r[0]=new DecoratedText(textMeasure).getDecoratedStringWidth(s);
+            } else {
+                r[0]=textMeasure.getStringWidth(s);
+            }
+        }
+        r[1]=textMeasure.getFontAscent()+textMeasure.getFontDescent();
+        return r;
+    }
+
     /** Check wether we are very close to an integer value. In this case,
         the output will be done as an integer. This improves backward
         compatibility in cases where the fractional part is not needed.
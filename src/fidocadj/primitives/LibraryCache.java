@@ -0,0 +1,345 @@
+package fidocadj.primitives;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+    Persistent cache of the library indexes (see LibraryIndex). It is kept
+    in a single binary file in the user configuration directory and it
+    contains, for each library, the size, the modification time and a hash
+    of the library text, as well as the description of all the macros
+    (except their contents). A library which has not been changed since it
+    was indexed is thus loaded without reading it.
+
+    The cache is read completely the first time it is needed. It must be
+    written explicitly with save() when the libraries have been loaded;
+    this is done only by the graphical user interface, so that the
+    conversions from the command line do not modify the cache.
+    If the cache can not be read or written, the libraries are simply read
+    each time.
+
+    <pre>
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2008-2023 by Davide Bucci
+    </pre>
+
+    @author Davide Bucci
+*/
+public final class LibraryCache
+{
+    // Identification of the file format. The version must be changed each
+    // time the format or the way the libraries are indexed are changed.
+    private static final int MAGIC=0x46434A4C;
+    private static final int VERSION=1;
+
+    // Name of the cache file.
+    private static final String CACHE_FILE="libraries.cache";
+
+    // Value of the hash when it is not known.
+    static final long NO_HASH=-1;
+
+    // Singleton instance
+    private static final LibraryCache INSTANCE=new LibraryCache();
+
+    // The entries of the cache, identified by the location of the library,
+    // or null if the cache file has not been read yet.
+    private Map<String, Entry> entries;
+
+    // True if the cache has been modified since it was read.
+    private boolean modified;
+
+    /** The index of a library, as it is stored in the cache.
+    */
+    static final class Entry
+    {
+        String prefix;
+        long size;
+        long time;
+        long hash;
+        String error;   // Message of the error found in the library, or null
+        String[] keys;
+        String[] names;
+        String[] categories;
+        String[] libraries;
+        String[] filenames;
+        int[] starts;   // Position of the description in the library text
+        int[] ends;
+    }
+
+    /** Private constructor, for Singleton pattern.
+    */
+    private LibraryCache()
+    {
+        // Nothing to do.
+    }
+
+    /** Find the index of a library in the cache. It is found if the prefix
+        and the size are the same, and the modification time or the hash
+        are the same. If only the hash matches, the modification time
+        stored is updated.
+        @param location the location of the library, as an URL.
+        @param prefix the prefix added to the keys of the macros.
+        @param size the size of the library, in bytes.
+        @param time the modification time of the library.
+        @param hash the hash of the library text, or NO_HASH if it is not
+            known yet.
+        @return the entry of the cache, or null if it is not present or
+            not valid.
+    */
+    static Entry find(String location, String prefix, long size, long time,
+        long hash)
+    {
+        synchronized(INSTANCE) {
+            Entry e=INSTANCE.getEntries().get(location);
+            if(e==null || !e.prefix.equals(prefix) || e.size!=size) {
+                return null;
+            }
+            if(e.time==time) {
+                return e;
+            }
+            if(hash!=NO_HASH && e.hash==hash) {
+                e.time=time;
+                INSTANCE.modified=true;
+                return e;
+            }
+            return null;
+        }
+    }
+
+    /** Store the index of a library in the cache.
+        @param location the location of the library, as an URL.
+        @param e the index.
+    */
+    static void put(String location, Entry e)
+    {
+        synchronized(INSTANCE) {
+            INSTANCE.getEntries().put(location, e);
+            INSTANCE.modified=true;
+        }
+    }
+
+    /** Write the cache file, if something has changed. The libraries which
+        are files no longer present are removed from the cache.
+    */
+    public static void save()
+    {
+        synchronized(INSTANCE) {
+            if(!INSTANCE.modified) {
+                return;
+            }
+            Iterator<String> i=INSTANCE.entries.keySet().iterator();
+            while(i.hasNext()) {
+                String location=i.next();
+                try {
+                    if(location.startsWith("file:") &&
+                        !new File(new URI(location)).exists())
+                    {
+                        i.remove();
+                    }
+                } catch (URISyntaxException | IllegalArgumentException eE) {
+                    i.remove();
+                }
+            }
+            try {
+                INSTANCE.write();
+                INSTANCE.modified=false;
+            } catch (IOException eE) {
+                System.out.println("Could not write the library cache: "+eE);
+            }
+        }
+    }
+
+    /** Get the entries, reading the cache file if needed.
+    */
+    private Map<String, Entry> getEntries()
+    {
+        if(entries==null) {
+            entries=new HashMap<String, Entry>();
+            try {
+                read();
+            } catch (IOException | RuntimeException eE) {
+                // The cache is not valid: it will be built again from the
+                // libraries and replaced when it is saved.
+                System.out.println("Invalid library cache: "+eE);
+                entries.clear();
+                modified=true;
+            }
+        }
+        return entries;
+    }
+
+    /** Get the file containing the cache, in the configuration directory
+        of the user, following the conventions of each operating system.
+    */
+    private static File getCacheFile()
+    {
+        String os=System.getProperty("os.name", "").toLowerCase(
+            Locale.forLanguageTag("en"));
+        String home=System.getProperty("user.home");
+        String appData=System.getenv("APPDATA");
+        String xdg=System.getenv("XDG_CONFIG_HOME");
+        File dir;
+        if(os.startsWith("windows") && appData!=null) {
+            dir=new File(appData, "FidoCadJ");
+        } else if(os.startsWith("mac")) {
+            dir=new File(home, "Library/Application Support/FidoCadJ");
+        } else if(xdg!=null && xdg.length()>0) {
+            dir=new File(xdg, "fidocadj");
+        } else {
+            dir=new File(home, ".config/fidocadj");
+        }
+        return new File(dir, CACHE_FILE);
+    }
+
+    /** Read the cache file. The file is read in memory, so that the number
+        of elements stored in it can be checked against the number of bytes
+        which remain to be read.
+        @throws IOException if the file can not be read or if it is not
+            valid.
+    */
+    private void read()
+        throws IOException
+    {
+        File f=getCacheFile();
+        if(!f.exists()) {
+            return;
+        }
+        if(f.length()>Integer.MAX_VALUE) {
+            throw new IOException("Library cache too big");
+        }
+        byte[] b=new byte[(int)f.length()];
+        DataInputStream in=new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(b);
+        } finally {
+            in.close();
+        }
+        in=new DataInputStream(new ByteArrayInputStream(b));
+        try {
+            if(in.readInt()!=MAGIC || in.readInt()!=VERSION) {
+                return;
+            }
+            // Each library needs at least 33 bytes.
+            int n=readCount(in, 33);
+            for(int i=0; i<n; ++i) {
+                String location=in.readUTF();
+                Entry e=new Entry();
+                e.prefix=in.readUTF();
+                e.size=in.readLong();
+                e.time=in.readLong();
+                e.hash=in.readLong();
+                e.error=in.readBoolean()?in.readUTF():null;
+                // Each macro needs at least 18 bytes.
+                int m=readCount(in, 18);
+                e.keys=new String[m];
+                e.names=new String[m];
+                e.categories=new String[m];
+                e.libraries=new String[m];
+                e.filenames=new String[m];
+                e.starts=new int[m];
+                e.ends=new int[m];
+                for(int j=0; j<m; ++j) {
+                    e.keys[j]=in.readUTF();
+                    e.names[j]=in.readUTF();
+                    e.categories[j]=in.readUTF();
+                    e.libraries[j]=in.readUTF();
+                    e.filenames[j]=in.readUTF();
+                    e.starts[j]=in.readInt();
+                    e.ends[j]=in.readInt();
+                    if(e.starts[j]<0 || e.ends[j]>e.size) {
+                        throw new IOException("Invalid macro position");
+                    }
+                }
+                entries.put(location, e);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Read the number of elements stored in the cache file, and check
+        that there are enough bytes left to contain them.
+        @param in the stream on the contents of the file.
+        @param minSize the minimum number of bytes needed for each element.
+        @return the number of elements.
+        @throws IOException if the number is not valid.
+    */
+    private static int readCount(DataInputStream in, int minSize)
+        throws IOException
+    {
+        int n=in.readInt();
+        if(n<0 || n>in.available()/minSize) {
+            throw new IOException("Invalid count: "+n);
+        }
+        return n;
+    }
+
+    /** Write the cache file. A temporary file is written, then renamed, so
+        that another instance of the program never reads an incomplete
+        cache.
+    */
+    private void write()
+        throws IOException
+    {
+        File f=getCacheFile();
+        File dir=f.getParentFile();
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can not create "+dir);
+        }
+        File tmp=File.createTempFile("libraries", ".tmp", dir);
+        DataOutputStream out=new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for(Map.Entry<String, Entry> me: entries.entrySet()) {
+                Entry e=me.getValue();
+                out.writeUTF(me.getKey());
+                out.writeUTF(e.prefix);
+                out.writeLong(e.size);
+                out.writeLong(e.time);
+                out.writeLong(e.hash);
+                out.writeBoolean(e.error!=null);
+                if(e.error!=null) {
+                    out.writeUTF(e.error);
+                }
+                out.writeInt(e.keys.length);
+                for(int j=0; j<e.keys.length; ++j) {
+                    out.writeUTF(e.keys[j]);
+                    out.writeUTF(e.names[j]);
+                    out.writeUTF(e.categories[j]);
+                    out.writeUTF(e.libraries[j]);
+                    out.writeUTF(e.filenames[j]);
+                    out.writeInt(e.starts[j]);
+                    out.writeInt(e.ends[j]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if(!tmp.renameTo(f)) {
+            // On some systems, an existing file is not replaced.
+            if(!f.delete() || !tmp.renameTo(f)) {
+                tmp.delete();
+                throw new IOException("Can not write "+f);
+            }
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package fidocadj.primitives;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import fidocadj.globals.Globals;
+
+/**
+    Index of the macros contained in a library. When a library is read,
+    only the key, the name, the category and the library name of each macro
+    are stored, as well as the position of the description in the library
+    text. The description is read the first time it is needed (see
+    MacroDesc.getDescription()). The text of a library read from a file is
+    not kept in memory: the description is read again from the file.
+
+    The indexes of the libraries read from a file or from the jar are kept
+    in the LibraryCache, so that a library which has not been changed does
+    not even need to be read.
+
+    <pre>
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2008-2023 by Davide Bucci
+    </pre>
+
+    @author Davide Bucci
+*/
+public final class LibraryIndex
+{
+    private static final Charset CHARSET=Charset.forName(Globals.encoding);
+
+    // The prefix added to the keys of the macros.
+    private final String prefix;
+
+    // The file containing the library, or null if the text is kept in
+    // memory.
+    private final File file;
+
+    // Size and modification time of the file when it was read. If they
+    // change, the positions of the descriptions are no longer valid.
+    private final long fileSize;
+    private final long fileTime;
+
+    // The resource containing the library, if it is not a file. It is read
+    // only when a description is needed, if the index comes from the cache.
+    private final URL url;
+
+    // The text of the library, if it is not read from a file.
+    private byte[] data;
+
+    // The macros found, in the order they appear in the library.
+    private final List<MacroDesc> macros;
+
+    // The error which stopped the scanning of the library, or null.
+    private IOException error;
+
+    /** Create the index of a library contained in a file. The file is read
+        and scanned.
+        @param f the file.
+        @param p the prefix to be added to the keys of the macros.
+        @return the index. If the library is not valid, it contains the
+            macros found before the error (see getError()).
+        @throws IOException if the file can not be read.
+    */
+    public static LibraryIndex fromFile(File f, String p)
+        throws IOException
+    {
+        // The size and the time are taken before reading, so that a change
+        // during the reading is detected later.
+        long size=f.length();
+        long time=f.lastModified();
+        String location=f.getAbsoluteFile().toURI().toString();
+        LibraryCache.Entry e=LibraryCache.find(location, p, size, time,
+            LibraryCache.NO_HASH);
+        if(e!=null) {
+            return new LibraryIndex(e, f, null);
+        }
+        byte[] text=readAll(new FileInputStream(f));
+        long hash=hash(text);
+        e=LibraryCache.find(location, p, size, time, hash);
+        if(e!=null) {
+            return new LibraryIndex(e, f, null);
+        }
+        LibraryIndex index=new LibraryIndex(p, f, size, time, null, null);
+        index.scan(text, text.length);
+        LibraryCache.put(location, index.toCacheEntry(hash));
+        return index;
+    }
+
+    /** Create the index of a library contained in a resource, for example
+        a library contained in the jar file. The text is kept in memory.
+        @param u the URL of the resource.
+        @param p the prefix to be added to the keys of the macros.
+        @return the index. If the library is not valid, it contains the
+            macros found before the error (see getError()).
+        @throws IOException if the resource can not be read.
+    */
+    public static LibraryIndex fromURL(URL u, String p)
+        throws IOException
+    {
+        URLConnection c=u.openConnection();
+        long size=c.getContentLengthLong();
+        long time=c.getLastModified();
+        String location=u.toExternalForm();
+
+        // If the size and the time are not known, the cache can not be used.
+        boolean cacheable=size>=0 && time>0;
+        LibraryCache.Entry e=null;
+        if(cacheable) {
+            e=LibraryCache.find(location, p, size, time,
+                LibraryCache.NO_HASH);
+        }
+        if(e!=null) {
+            return new LibraryIndex(e, null, u);
+        }
+        byte[] text=readAll(c.getInputStream());
+        LibraryIndex index=new LibraryIndex(p, null, size, time, u, text);
+        index.scan(text, text.length);
+        if(cacheable && text.length==size) {
+            LibraryCache.put(location, index.toCacheEntry(hash(text)));
+        }
+        return index;
+    }
+
+    /** Create the index of a library whose text is kept in memory.
+        @param text the text of the library, in the standard encoding.
+        @param p the prefix to be added to the keys of the macros.
+        @return the index. If the library is not valid, it contains the
+            macros found before the error (see getError()).
+    */
+    public static LibraryIndex fromBytes(byte[] text, String p)
+    {
+        LibraryIndex index=new LibraryIndex(p, null, 0, 0, null, text);
+        index.scan(text, text.length);
+        return index;
+    }
+
+    /** Standard constructor. Creates an empty index.
+    */
+    private LibraryIndex(String p, File f, long size, long time, URL u,
+        byte[] d)
+    {
+        prefix=p;
+        file=f;
+        fileSize=size;
+        fileTime=time;
+        url=u;
+        data=d;
+        macros=new ArrayList<MacroDesc>();
+    }
+
+    /** Create an index from an entry of the cache.
+        @param e the entry.
+        @param f the file containing the library, or null.
+        @param u the resource containing the library, if it is not a file.
+    */
+    private LibraryIndex(LibraryCache.Entry e, File f, URL u)
+    {
+        this(e.prefix, f, e.size, e.time, u, null);
+        for(int i=0; i<e.keys.length; ++i) {
+            MacroDesc md=new MacroDesc(e.keys[i], e.names[i], "",
+                e.categories[i], e.libraries[i], e.filenames[i]);
+            if(e.ends[i]>e.starts[i]) {
+                md.extendSource(this, e.starts[i], e.ends[i]);
+            }
+            macros.add(md);
+        }
+        if(e.error!=null) {
+            error=new IOException(e.error);
+        }
+    }
+
+    /** Create the entry of the cache describing this index.
+        @param hash the hash of the library text.
+        @return the entry.
+    */
+    private LibraryCache.Entry toCacheEntry(long hash)
+    {
+        LibraryCache.Entry e=new LibraryCache.Entry();
+        int n=macros.size();
+        e.prefix=prefix;
+        e.size=fileSize;
+        e.time=fileTime;
+        e.hash=hash;
+        e.error=error==null?null:String.valueOf(error.getMessage());
+        e.keys=new String[n];
+        e.names=new String[n];
+        e.categories=new String[n];
+        e.libraries=new String[n];
+        e.filenames=new String[n];
+        e.starts=new int[n];
+        e.ends=new int[n];
+        for(int i=0; i<n; ++i) {
+            MacroDesc md=macros.get(i);
+            e.keys[i]=md.key;
+            e.names[i]=md.name;
+            e.categories[i]=md.category;
+            e.libraries[i]=md.library;
+            e.filenames[i]=md.filename;
+            e.starts[i]=md.getSourceStart();
+            e.ends[i]=md.getSourceEnd();
+        }
+        return e;
+    }
+
+    /** Calculate the hash of the text of a library.
+    */
+    private static long hash(byte[] text)
+    {
+        CRC32 crc=new CRC32();
+        crc.update(text, 0, text.length);
+        return crc.getValue();
+    }
+
+    /** Get the macros of the library, in the order they appear. If more
+        than one macro has the same key, the last one should be used.
+        @return the list of macros (not to be modified).
+    */
+    public List<MacroDesc> getMacros()
+    {
+        return Collections.unmodifiableList(macros);
+    }
+
+    /** Get the error found while reading the library.
+        @return the error which stopped the reading, or null if the library
+            is valid.
+    */
+    public IOException getError()
+    {
+        return error;
+    }
+
+    /** Read all the contents of a stream, then close it.
+    */
+    private static byte[] readAll(InputStream in)
+        throws IOException
+    {
+        try {
+            ByteArrayOutputStream out=new ByteArrayOutputStream();
+            byte[] buffer=new byte[8192];
+            int n;
+            while((n=in.read(buffer))>=0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Scan the text of the library. The lines starting with '{' define a
+        category, the lines starting with '[' define a macro and all the
+        others are part of the description of the last macro defined. The
+        descriptions are not decoded. If a category or a macro name is not
+        terminated, the scanning stops and the error is recorded.
+        @param text the text of the library.
+        @param len the number of bytes to be considered.
+    */
+    private void scan(byte[] text, int len)
+    {
+        try {
+            scanLines(text, len);
+        } catch (IOException eE) {
+            error=eE;
+        }
+    }
+
+    /** Scan the text of the library (see scan()).
+        @throws IOException if a category or a macro name is not terminated.
+    */
+    private void scanLines(byte[] text, int len)
+        throws IOException
+    {
+        String macroName="";
+        String longName="";
+        String categoryName="";
+        String libraryName="";
+        MacroDesc macroDesc=null;
+        int i;
+        int p=0;
+
+        while(p<len) {
+            // Find the line and avoid leading and trailing spaces. A line
+            // may be terminated by \n, \r or \r\n.
+            int start=p;
+            while(p<len && text[p]!='\n' && text[p]!='\r') {
+                ++p;
+            }
+            int end=p;
+            if(p<len && text[p]=='\r' && p+1<len && text[p+1]=='\n') {
+                ++p;
+            }
+            ++p;
+            while(start<end && (text[start]&0xFF)<=' ') {
+                ++start;
+            }
+            while(end>start && (text[end-1]&0xFF)<=' ') {
+                --end;
+            }
+
+            // Avoid processing shorter lines. A non ASCII character takes
+            // more than one byte.
+            if (end-start<=1 || end-start<=4 &&
+                new String(text, start, end-start, CHARSET).length()<=1)
+            {
+                continue;
+            }
+
+            // A category
+            if(text[start]=='{') {
+                String line=new String(text, start, end-start, CHARSET);
+                categoryName="";
+                StringBuffer temp=new StringBuffer(25);
+                for(i=1; i<line.length()&&line.charAt(i)!='}'; ++i){
+                    temp.append(line.charAt(i));
+                }
+                categoryName=temp.toString().trim();
+                if(i==line.length()) {
+                    IOException e=new IOException(
+                        "Category non terminated with }.");
+                    throw e;
+                }
+                continue;
+            }
+
+            // A macro
+            if(text[start]=='[') {
+                String line=new String(text, start, end-start, CHARSET);
+                macroName="";
+
+                longName="";
+                StringBuffer temp=new StringBuffer(25);
+                for(i=1; line.charAt(i)!=' ' &&
+                         line.charAt(i)!=']' &&
+                         i<line.length(); ++i)
+                {
+                    temp.append(line.charAt(i));
+                }
+                macroName=temp.toString().trim();
+                int j;
+                temp=new StringBuffer(25);
+                for(j=i; j<line.length()&&line.charAt(j)!=']'; ++j){
+                    temp.append(line.charAt(j));
+                }
+                longName=temp.toString();
+                if(j==line.length()) {
+                    IOException e=new IOException(
+                        "Macro name non terminated with ].");
+                    throw e;
+                }
+
+                if ("FIDOLIB".equals(macroName)) {
+                    libraryName = longName.trim();
+                    macroDesc=null;
+                } else {
+                    if(!"".equals(prefix)) {
+                        macroName=prefix+"."+macroName;
+                    }
+
+                    // NOTE: in FidoCAD, the macro prefix is somewhat case
+                    // insensitive, since it indicates a file name and in
+                    // Windows all file names are case insensitive. Under
+                    // other operating systems, we need to be waaay much
+                    // careful, hence we convert the macro name to lower case.
+                    macroName=macroName.toLowerCase(
+                                        Locale.forLanguageTag("en"));
+                    macroDesc=new MacroDesc(macroName,"","","","", prefix);
+                    macros.add(macroDesc);
+                }
+                continue;
+            }
+
+            // A line of the description of the current macro. If it follows
+            // the library name, the rest of the library is ignored.
+            if(!"".equals(macroName)) {
+                if(macroDesc==null) {
+                    return;
+                }
+                macroDesc.name = longName;
+                macroDesc.key = macroName;
+                macroDesc.category = categoryName;
+                macroDesc.library = libraryName;
+                macroDesc.filename = prefix;
+                macroDesc.extendSource(this, start, end);
+            }
+        }
+    }
+
+    /** Read the description of a macro. The lines of the description are
+        separated by \n and each one is preceded by \n. The lines defining
+        a category or the library name, which may be found in the middle of
+        the description, are skipped.
+        @param md the macro.
+        @param start the position of the first byte of the description in
+            the library text.
+        @param end the position following the last byte of the description.
+        @return the description.
+    */
+    String readDescription(MacroDesc md, int start, int end)
+    {
+        String text;
+        synchronized(this) {
+            try {
+                if(data==null && url!=null) {
+                    data=readAll(url.openStream());
+                }
+                if(data!=null) {
+                    text=new String(data, start, end-start, CHARSET);
+                } else if(file.length()!=fileSize ||
+                    file.lastModified()!=fileTime)
+                {
+                    // The library has been changed: the positions are no
+                    // longer valid, a new index is needed.
+                    return readChangedDescription(md.key);
+                } else {
+                    byte[] b=new byte[end-start];
+                    RandomAccessFile raf=new RandomAccessFile(file, "r");
+                    try {
+                        raf.seek(start);
+                        raf.readFully(b);
+                    } finally {
+                        raf.close();
+                    }
+                    text=new String(b, CHARSET);
+                }
+            } catch (IOException eE) {
+                System.out.println("Problems reading library: "+
+                    (file==null?url:file)+" "+eE);
+                return "";
+            }
+        }
+
+        StringBuilder description=new StringBuilder(text.length()+1);
+        int p=0;
+        while(p<text.length()) {
+            int e=p;
+            while(e<text.length() && text.charAt(e)!='\n' &&
+                text.charAt(e)!='\r')
+            {
+                ++e;
+            }
+            String line=text.substring(p, e).trim();
+            p=e+1;
+            if(line.length()<=1 || line.charAt(0)=='{' ||
+                line.charAt(0)=='[')
+            {
+                continue;
+            }
+            description.append('\n');
+            description.append(line);
+        }
+        return description.toString();
+    }
+
+    /** Read the description of a macro, from a library file which has been
+        modified after it was indexed.
+        @param key the key of the macro.
+        @return the description, or an empty string if the macro is no
+            longer present.
+        @throws IOException if the file can not be read.
+    */
+    private String readChangedDescription(String key)
+        throws IOException
+    {
+        byte[] text=readAll(new FileInputStream(file));
+        // If there is an error, the macros found before it are used.
+        LibraryIndex index=fromBytes(text, prefix);
+        String description="";
+        for(MacroDesc md: index.macros) {
+            if(md.key.equals(key)) {
+                description=md.getDescription();
+            }
+        }
+        return description;
+    }
+}
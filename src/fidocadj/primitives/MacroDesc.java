@@ -1,4 +1,9 @@
 package fidocadj.primitives;
+
+import java.util.*;
+
+import fidocadj.circuit.model.DrawingModel;
+
 /** Class MacroDesc provides a standard description of the macro. It provides
     its name, its description and its category
 
@@ -26,7 +31,7 @@ public class MacroDesc
 {
     public String name;         // The one which is shown
     public String key;          // Unequivocally used to identify the macro
-    public String description;  // The list of commands included in the macro
+    private String description; // The list of commands included in the macro
     public String category;     // The category on which the macro is put
     public String library;      // The library name
     public String filename;     // The library file name
@@ -36,6 +41,22 @@ public class MacroDesc
     // when an existing library is already present with a different filename.
     // This is a legacy from previous versions of FidoCadJ.
 
+    // Parsed version of the description. It is shared by all the instances
+    // of the macro (see PrimitiveMacro), so that the description is parsed
+    // only once. The source string is kept to detect when the description
+    // has been changed and the prototype must be rebuilt.
+    DrawingModel prototype;
+    String prototypeSource;
+
+    // If the description has not been read yet, the library containing it
+    // and its position in the text of the library.
+    private LibraryIndex source;
+    private int sourceStart;
+    private int sourceEnd;
+
+    // If this is a copy, the description from which the text is obtained.
+    private final MacroDesc original;
+
     /** Standard constructor. Give the macro's name, description and category.
         @param ke the key to be used.
         @param na the name of the macro.
@@ -54,6 +75,105 @@ public class MacroDesc
         library = lib;
         filename = fn;
         level = 0;
+        original = null;
+    }
+
+    /** Create a copy of a macro description. The copy shares the text of
+        the description with the original, but not its parsed version (see
+        PrimitiveMacro). The instances of the macro contained in drawings
+        employing different copies can thus be drawn at the same time by
+        different threads.
+        @param m the description to be copied.
+    */
+    public MacroDesc(MacroDesc m)
+    {
+        name = m.name;
+        key = m.key;
+        category = m.category;
+        library = m.library;
+        filename = m.filename;
+        level = m.level;
+        original = m;
+    }
+
+    /** Copy a library, so that the parsed contents of its macros are not
+        shared with the original. See MacroDesc(MacroDesc).
+        @param l the library.
+        @return the copy.
+    */
+    public static Map<String, MacroDesc> copyLibrary(Map<String, MacroDesc> l)
+    {
+        Map<String, MacroDesc> r = new TreeMap<String, MacroDesc>();
+        for (Map.Entry<String, MacroDesc> e : l.entrySet()) {
+            r.put(e.getKey(), new MacroDesc(e.getValue()));
+        }
+        return r;
+    }
+
+    /** Get the description of the macro, that is to say the list of the
+        commands it contains. If the macro comes from a library, the
+        description is read the first time it is needed.
+        @return the description.
+    */
+    public String getDescription()
+    {
+        if(original!=null) {
+            return original.getDescription();
+        }
+        synchronized(this) {
+            if(source!=null) {
+                description=source.readDescription(this, sourceStart,
+                    sourceEnd);
+                source=null;
+            }
+            return description;
+        }
+    }
+
+    /** Add a line to the description, which will be read from the library
+        when it is needed.
+        @param index the library.
+        @param start the position of the line in the library text.
+        @param end the position following the last character of the line.
+    */
+    void extendSource(LibraryIndex index, int start, int end)
+    {
+        if(source==null) {
+            source=index;
+            sourceStart=start;
+        }
+        sourceEnd=end;
+    }
+
+    /** Get the position of the description in the library text.
+        @return the position of the first byte, or 0 if the macro has no
+            description in a library.
+    */
+    int getSourceStart()
+    {
+        return sourceStart;
+    }
+
+    /** Get the end of the description in the library text.
+        @return the position following the last byte, or 0 if the macro
+            has no description in a library.
+    */
+    int getSourceEnd()
+    {
+        return sourceEnd;
+    }
+
+    /** Discard the parsed version of the macro, shared among all instances.
+        It will be rebuilt the next time an instance needs it. This should be
+        called whenever the library is modified in a way that may affect the
+        macro contents (for example, if the key of a nested macro changes).
+    */
+    public void invalidatePrototype()
+    {
+        synchronized(this) {
+            prototype = null;
+            prototypeSource = null;
+        }
     }
 
     /** Provide a text describing the macro, usually for debug purposes.
@@ -285,41 +285,41 @@ public final class PrimitiveAdvText extends GraphicPrimitive
      * the called primitive is correct. That routine also sets the current
      * layer.
      *
-     * @param tokens the tokens to be processed. tokens[0] should be the command
-     * of the actual primitive.
-     * @param nn the number of tokens present in the array.
+     * @param tokens the tokens to be processed. The first one should be the
+     * command of the actual primitive.
      *
      * @throws IOException if the arguments are incorrect or a problem occurs.
      */
     @Override
-    public void parseTokens(String[] tokens, int nn) throws IOException
+    public void parseTokens(TokenLine tokens) throws IOException
     {
+        int nn=tokens.size();
         // assert it is the correct primitive
         changed = true;
         recalcSize = true;
 
-        if ("TY".equals(tokens[0])) {   // Text (advanced)
+        if (tokens.is(0, "TY")) {   // Text (advanced)
             if (nn < 9) {
                 throw new IOException("bad arguments on TY");
             }
 
-            virtualPoint[0].x = Integer.parseInt(tokens[1]);
-            virtualPoint[0].y = Integer.parseInt(tokens[2]);
+            virtualPoint[0].x = tokens.getInt(1);
+            virtualPoint[0].y = tokens.getInt(2);
             // We may accept non-integer data in the future.
-            siy = (int) Math.round(Double.parseDouble(tokens[3]));
-            six = (int) Math.round(Double.parseDouble(tokens[4]));
+            siy = (int) Math.round(tokens.getDouble(3));
+            six = (int) Math.round(tokens.getDouble(4));
             checkSizes();
-            o = Integer.parseInt(tokens[5]);
-            sty = Integer.parseInt(tokens[6]);
-            parseLayer(tokens[7]);
+            o = tokens.getInt(5);
+            sty = tokens.getInt(6);
+            parseLayer(tokens, 7);
 
             int j = 8;
             StringBuffer txtb = new StringBuffer();
 
-            if ("*".equals(tokens[8])) {
+            if (tokens.is(8, "*")) {
                 fontName = Globals.defaultTextFont;
             } else {
-                fontName = tokens[8].replaceAll("\\+\\+", " ");
+                fontName = tokens.get(8).replaceAll("\\+\\+", " ");
             }
 
             /*
@@ -327,20 +327,20 @@ public final class PrimitiveAdvText extends GraphicPrimitive
              1 typographical point is 1/72 of an inch.
              */
             while (j < nn - 1) {
-                txtb.append(tokens[++j]);
+                txtb.append(tokens.get(++j));
                 if (j < nn - 1) {
                     txtb.append(" ");
                 }
             }
             txt = txtb.toString();
         } else {
-            if ("TE".equals(tokens[0])) {    // Text (simple)
+            if (tokens.is(0, "TE")) {    // Text (simple)
                 if (nn < 4) {
                     throw new IOException("bad arguments on TE");
                 }
 
-                virtualPoint[0].x = Integer.parseInt(tokens[1]);
-                virtualPoint[0].y = Integer.parseInt(tokens[2]);
+                virtualPoint[0].x = tokens.getInt(1);
+                virtualPoint[0].y = tokens.getInt(2);
                 // Default sizes and styles
                 six = 3;
                 siy = 4;
@@ -351,7 +351,7 @@ public final class PrimitiveAdvText extends GraphicPrimitive
                 txt = "";
 
                 while (j < nn - 1) {
-                    txt += tokens[++j] + " ";
+                    txt += tokens.get(++j) + " ";
                 }
 
                 // In the original simple text primitive, the layer was not
@@ -386,6 +386,35 @@ public final class PrimitiveAdvText extends GraphicPrimitive
         }
     }
 
+    /**
+     * Get a bounding box of the primitive, in logical units. The text may be
+     * rotated and mirrored, and its size on the screen depends a little on
+     * the zoom, so the box is a generous square centered on the anchor point
+     * which contains the text in every orientation.
+     *
+     * @return a new rectangle containing the primitive.
+     */
+    @Override
+    public RectangleG getBoundingBox()
+    {
+        RectangleG r = new RectangleG(virtualPoint[0].x, virtualPoint[0].y,
+                0, 0);
+        if (txt.length() == 0) {
+            return r;
+        }
+        int[] size = measureText(fontName, (int) (six * 12.0 / 7.0 + .5),
+                (sty & TEXT_ITALIC) != 0, (sty & TEXT_BOLD) != 0, txt, true);
+        double stretch = 1.0;
+        if (six != 0) {
+            stretch = Math.max(stretch,
+                    (double) siy / (double) six * 22.0 / 40.0);
+        }
+        int radius = (int) Math.ceil(2 * (size[0] + size[1] * stretch))
+                + 2 * six + 2;
+        r.grow(radius, radius);
+        return r;
+    }
+
     /**
      * Gets the distance (in primitive's coordinates space) between a given
      * point and the primitive. When it is reasonable, the behaviour can be
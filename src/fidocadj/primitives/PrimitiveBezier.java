@@ -328,40 +328,40 @@ public final class PrimitiveBezier extends GraphicPrimitive
         Obviously, that routine should be called *after* having recognized
         that the called primitive is correct.
         That routine also sets the current layer.
-        @param tokens the tokens to be processed. tokens[0] should be the
+        @param tokens the tokens to be processed. The first one should be the
         command of the actual primitive.
-        @param nn the number of tokens present in the array.
         @throws IOException if the arguments are incorrect or the primitive
             is invalid.
     */
-    public void parseTokens(String[] tokens, int nn)
+    public void parseTokens(TokenLine tokens)
         throws IOException
     {
+        int nn=tokens.size();
         changed=true;
 
         // assert it is the correct primitive
-        if ("BE".equals(tokens[0])) {   // Bézier
+        if (tokens.is(0, "BE")) {   // Bézier
             if (nn<9) {
                 throw new IOException("Bad arguments on BE");
             }
             // Parse the coordinates of all points of the Bézier curve
-            int x1 = virtualPoint[0].x=Integer.parseInt(tokens[1]);
-            int y1 = virtualPoint[0].y=Integer.parseInt(tokens[2]);
-            virtualPoint[1].x=Integer.parseInt(tokens[3]);
-            virtualPoint[1].y=Integer.parseInt(tokens[4]);
-            virtualPoint[2].x=Integer.parseInt(tokens[5]);
-            virtualPoint[2].y=Integer.parseInt(tokens[6]);
-            virtualPoint[3].x=Integer.parseInt(tokens[7]);
-            virtualPoint[3].y=Integer.parseInt(tokens[8]);
+            int x1 = virtualPoint[0].x=tokens.getInt(1);
+            int y1 = virtualPoint[0].y=tokens.getInt(2);
+            virtualPoint[1].x=tokens.getInt(3);
+            virtualPoint[1].y=tokens.getInt(4);
+            virtualPoint[2].x=tokens.getInt(5);
+            virtualPoint[2].y=tokens.getInt(6);
+            virtualPoint[3].x=tokens.getInt(7);
+            virtualPoint[3].y=tokens.getInt(8);
             virtualPoint[getNameVirtualPointNumber()].x=x1+5;
             virtualPoint[getNameVirtualPointNumber()].y=y1+5;
             virtualPoint[getValueVirtualPointNumber()].x=x1+5;
             virtualPoint[getValueVirtualPointNumber()].y=y1+10;
-            if(nn>9) { parseLayer(tokens[9]); }
+            if(nn>9) { parseLayer(tokens, 9); }
 
-            if(nn>10 && "FCJ".equals(tokens[10])) {
+            if(nn>10 && tokens.is(10, "FCJ")) {
                 int i=arrowData.parseTokens(tokens, 11);
-                dashStyle = checkDashStyle(Integer.parseInt(tokens[i]));
+                dashStyle = checkDashStyle(tokens.getInt(i));
             }
         } else {
             throw new IOException("Invalid primitive: "+
@@ -369,6 +369,16 @@ public final class PrimitiveBezier extends GraphicPrimitive
         }
     }
 
+    /** Get the margin to be added around the control points to obtain
+        the bounding box of the primitive.
+        @return the margin, in logical units.
+    */
+    @Override
+    protected int getBoundingMargin()
+    {
+        return super.getBoundingMargin()+arrowData.getArrowExtent();
+    }
+
     /** Gets the distance (in primitive's coordinates space) between a
         given point and the primitive.
         When it is reasonable, the behaviour can be binary (polygons,
@@ -682,20 +682,20 @@ public final class PrimitiveComplexCurve
         Obviously, that routine should be called *after* having recognized
         that the called primitive is correct.
         That routine also sets the current layer.
-        @param tokens the tokens to be processed. tokens[0] should be the
+        @param tokens the tokens to be processed. The first one should be the
         command of the actual primitive.
-        @param nn the number of tokens present in the array.
         @throws IOException it parsing goes wrong, parameters can not be read
             or primitive is incorrect.
     */
-    public void parseTokens(String[] tokens, int nn)
+    public void parseTokens(TokenLine tokens)
         throws IOException
     {
+        int nn=tokens.size();
         changed=true;
 
         // assert it is the correct primitive
 
-        if ("CP".equals(tokens[0])||"CV".equals(tokens[0])) {
+        if (tokens.is(0, "CP")||tokens.is(0, "CV")) {
             if (nn<6) {
                 throw  new IOException("Bad arguments on CP/CV");
             }
@@ -707,7 +707,7 @@ public final class PrimitiveComplexCurve
             int y1 = 0;
 
             // The first token says if the spline is opened or closed
-            if("1".equals(tokens[j])) {
+            if(tokens.is(j, "1")) {
                 isClosed = true;
             } else {
                 isClosed = false;
@@ -716,16 +716,16 @@ public final class PrimitiveComplexCurve
 
             // Then we have the points defining the curve
             while(j<nn-1) {
-                if (j+1<nn-1 && "FCJ".equals(tokens[j+1])) {
+                if (j+1<nn-1 && tokens.is(j+1, "FCJ")) {
                     break;
                 }
-                x1 =Integer.parseInt(tokens[j++]);
+                x1 =tokens.getInt(j++);
 
                 // Check if the following point is available
                 if(j>=nn-1) {
                     throw new IOException("bad arguments on CP/CV");
                 }
-                y1 =Integer.parseInt(tokens[j++]);
+                y1 =tokens.getInt(j++);
                 ++i;
                 addPoint(x1,y1);
             }
@@ -739,13 +739,13 @@ public final class PrimitiveComplexCurve
 
             // And we check finally for extensions (FCJ)
             if(nn>j) {
-                parseLayer(tokens[j++]);
+                parseLayer(tokens, j++);
                 if(nn>j) {
-                    if ("FCJ".equals(tokens[j])) {
+                    if (tokens.is(j, "FCJ")) {
                         ++j;
                         j=arrowData.parseTokens(tokens, j);
                         dashStyle =
-                            checkDashStyle(Integer.parseInt(tokens[j++]));
+                            checkDashStyle(tokens.getInt(j++));
                     } else {
                         ++j;
                     }
@@ -753,13 +753,13 @@ public final class PrimitiveComplexCurve
             }
 
             // See if the curve should be filled (command CP) or empty (CV)
-            if ("CP".equals(tokens[0])) {
+            if (tokens.is(0, "CP")) {
                 isFilled=true;
             } else {
                 isFilled=false;
             }
         } else {
-            throw new IOException("CP/CV: Invalid primitive:"+tokens[0]+
+            throw new IOException("CP/CV: Invalid primitive:"+tokens.get(0)+
                                           " programming error?");
         }
     }
@@ -847,6 +847,39 @@ public final class PrimitiveComplexCurve
     }
 
 
+    /** Get the margin to be added around the control points to obtain
+        the bounding box of the primitive.
+        @return the margin, in logical units.
+    */
+    @Override
+    protected int getBoundingMargin()
+    {
+        return super.getBoundingMargin()+arrowData.getArrowExtent();
+    }
+
+    /** Get a bounding box of the primitive, in logical units. A spline
+        may go beyond its control points, so the curve is calculated.
+        @return a new rectangle containing the primitive.
+    */
+    @Override
+    public RectangleG getBoundingBox()
+    {
+        RectangleG r=super.getBoundingBox();
+        if(nPoints<2) {
+            return r;
+        }
+        CurveStorage c = createComplexCurve(new MapCoordinates());
+        if(c==null) {
+            return r;
+        }
+        int margin=getBoundingMargin();
+        for (PointDouble ppp : c.pp) {
+            r.add((int)Math.floor(ppp.x)-margin, (int)Math.floor(ppp.y)-margin);
+            r.add((int)Math.ceil(ppp.x)+margin, (int)Math.ceil(ppp.y)+margin);
+        }
+        return r;
+    }
+
     /** Gets the distance (in primitive's coordinates space) between a
         given point and the primitive.
         When it is reasonable, the behaviour can be binary (ComplexCurves,
@@ -157,31 +157,31 @@ public final class PrimitiveConnection
         Obviously, that routine should be called *after* having recognized
         that the called primitive is correct.
         That routine also sets the current layer.
-        @param tokens the tokens to be processed. tokens[0] should be the
+        @param tokens the tokens to be processed. The first one should be the
         command of the actual primitive.
-        @param nn the number of tokens present in the array
         @throws IOException if the arguments are incorrect or the primitive
             is invalid.
     */
-    public void parseTokens(String[] tokens, int nn)
+    public void parseTokens(TokenLine tokens)
         throws IOException
     {
+        int nn=tokens.size();
         changed=true;
 
-        if ("SA".equals(tokens[0])) {   // Connection
+        if (tokens.is(0, "SA")) {   // Connection
             if (nn<3)  {
                 throw new IOException("Bad arguments on SA");
             }
             // Load the points in the virtual points associated to the
             // current primitive.
 
-            int x1 = virtualPoint[0].x=Integer.parseInt(tokens[1]);
-            int y1 = virtualPoint[0].y=Integer.parseInt(tokens[2]);
+            int x1 = virtualPoint[0].x=tokens.getInt(1);
+            int y1 = virtualPoint[0].y=tokens.getInt(2);
             virtualPoint[getNameVirtualPointNumber()].x=x1+5;
             virtualPoint[getNameVirtualPointNumber()].y=y1+5;
             virtualPoint[getValueVirtualPointNumber()].x=x1+5;
             virtualPoint[getValueVirtualPointNumber()].y=y1+10;
-            if(nn>3) { parseLayer(tokens[3]); }
+            if(nn>3) { parseLayer(tokens, 3); }
 
 
         } else {
@@ -190,6 +190,17 @@ public final class PrimitiveConnection
         }
     }
 
+    /** Get the margin to be added around the control points to obtain
+        the bounding box of the primitive.
+        @return the margin, in logical units.
+    */
+    @Override
+    protected int getBoundingMargin()
+    {
+        return super.getBoundingMargin()+
+            (int)Math.ceil(Globals.diameterConnection/2.0);
+    }
+
     /** Gets the distance (in primitive's coordinates space) between a
         given point and the primitive.
         When it is reasonable, the behaviour can be binary (polygons,
@@ -287,49 +287,59 @@ public final class PrimitiveLine extends GraphicPrimitive
         that the called primitive is correct.
         That routine also sets the current layer.
 
-        @param tokens the tokens to be processed. tokens[0] should be the
+        @param tokens the tokens to be processed. The first one should be the
         command of the actual primitive.
-        @param nn the number of tokens present in the array.
         @throws IOException if the arguments are incorrect or the primitive
             is invalid.
 
     */
-    public void parseTokens(String[] tokens, int nn)
+    public void parseTokens(TokenLine tokens)
         throws IOException
     {
+        int nn=tokens.size();
         changed=true;
         // assert it is the correct primitive
-        if ("LI".equals(tokens[0])) {   // Line
+        if (tokens.is(0, "LI")) {   // Line
             if (nn<5) {
                 throw new IOException("Bad arguments on LI");
             }
             // Load the points in the virtual points associated to the
             // current primitive.
 
-            int x1 = virtualPoint[0].x=Integer.parseInt(tokens[1]);
-            int y1 = virtualPoint[0].y=Integer.parseInt(tokens[2]);
-            virtualPoint[1].x=Integer.parseInt(tokens[3]);
-            virtualPoint[1].y=Integer.parseInt(tokens[4]);
+            int x1 = virtualPoint[0].x=tokens.getInt(1);
+            int y1 = virtualPoint[0].y=tokens.getInt(2);
+            virtualPoint[1].x=tokens.getInt(3);
+            virtualPoint[1].y=tokens.getInt(4);
 
             virtualPoint[getNameVirtualPointNumber()].x=x1+5;
             virtualPoint[getNameVirtualPointNumber()].y=y1+5;
             virtualPoint[getValueVirtualPointNumber()].x=x1+5;
             virtualPoint[getValueVirtualPointNumber()].y=y1+10;
 
-            if(nn>5) { parseLayer(tokens[5]); }
+            if(nn>5) { parseLayer(tokens, 5); }
 
             // FidoCadJ extensions
 
-            if(nn>6 && "FCJ".equals(tokens[6])) {
+            if(nn>6 && tokens.is(6, "FCJ")) {
                 int i=arrowData.parseTokens(tokens, 7);
-                dashStyle = checkDashStyle(Integer.parseInt(tokens[i]));
+                dashStyle = checkDashStyle(tokens.getInt(i));
             }
         } else {
-            throw new IOException("LI: Invalid primitive:"+tokens[0]+
+            throw new IOException("LI: Invalid primitive:"+tokens.get(0)+
                                           " programming error?");
         }
     }
 
+    /** Get the margin to be added around the control points to obtain
+        the bounding box of the primitive.
+        @return the margin, in logical units.
+    */
+    @Override
+    protected int getBoundingMargin()
+    {
+        return super.getBoundingMargin()+arrowData.getArrowExtent();
+    }
+
     /** Gets the distance (in primitive's coordinates space) between a
         given point and the primitive.
         When it is reasonable, the behaviour can be binary (polygons,
@@ -5,9 +5,11 @@ import java.util.*;
 
 import fidocadj.dialogs.controls.ParameterDescription;
 import fidocadj.export.ExportInterface;
+import fidocadj.export.SharedMacroInterface;
 import fidocadj.geom.MapCoordinates;
 import fidocadj.globals.Globals;
 import fidocadj.graphic.GraphicsInterface;
+import fidocadj.graphic.RectangleG;
 import fidocadj.circuit.controllers.SelectionActions;
 import fidocadj.circuit.controllers.EditorActions;
 import fidocadj.circuit.controllers.ParserActions;
@@ -46,24 +48,29 @@ public final class PrimitiveMacro extends GraphicPrimitive
 {
     static final int N_POINTS=3;
     private final Map<String, MacroDesc> library;
-    private final List<LayerDesc> layers;
+    private List<LayerDesc> layers;
     private int o;              // Macro orientation
     private boolean m;          // Macro mirroring
     private boolean drawOnlyPads;
     private int drawOnlyLayer;
     private boolean alreadyExported;
-    private DrawingModel macro;
-    private final MapCoordinates macroCoord;
-    private boolean selected;
     private String macroName;
     private String macroDesc;
     private boolean exportInvisible;
 
-    private Drawing drawingAgent;
+    // The library entry of the macro. Its parsed contents are shared by all
+    // the instances of the same macro. It is null if the description has
+    // been given explicitly via setMacroDesc().
+    private MacroDesc descriptor;
 
-    // Stored data for caching
-    private int x1;             // NOPMD
-    private int y1;             // NOPMD
+    // Parsed contents, used only when the description does not come from
+    // the library (see setMacroDesc()).
+    private DrawingModel privateMacro;
+    private String privateMacroSource;
+
+    // Caching of the holes information for the current contents.
+    private DrawingModel holesChecked;
+    private boolean holes;
 
     /** Some layers may be shown or hidden by the user. Therefore, in some
         cases they may be exported or not. Set if invisible layers should be
@@ -98,13 +105,9 @@ public final class PrimitiveMacro extends GraphicPrimitive
         layers=l;
         drawOnlyPads=false;
         drawOnlyLayer=-1;
-        macro=new DrawingModel();
-        macroCoord=new MapCoordinates();
         changed=true;
 
         initPrimitive(-1, f, size);
-
-        macroStore(layers);
     }
 
     /** Constructor.
@@ -138,8 +141,6 @@ public final class PrimitiveMacro extends GraphicPrimitive
         library=lib;
         layers=l;
         String key=keyT.toLowerCase(Locale.forLanguageTag("en"));
-        macro=new DrawingModel();
-        macroCoord=new MapCoordinates();
         changed=true;
         setMacroFontSize(macroS);
         o=oo;
@@ -164,11 +165,10 @@ public final class PrimitiveMacro extends GraphicPrimitive
             throw new IOException("Unrecognized macro "
                                           + key);
         }
-        macroDesc = macro.description;
+        descriptor = macro;
+        macroDesc = macro.getDescription();
         macroName = key;
         macroFont = macroF;
-
-        macroStore(layers);
     }
 
 
@@ -180,49 +180,110 @@ public final class PrimitiveMacro extends GraphicPrimitive
     */
     public boolean containsLayer(int l)
     {
-        return macro.containsLayer(l);
+        DrawingModel macro=getMacro();
+        return macro!=null && macro.containsLayer(l);
     }
 
-    /** Draw the macro contents.
-        @param g the graphic context.
-        @param coordSys the coordinate system.
-        @param layerV the vector containing all layers.
+    /** Obtain the parsed contents of the macro. If the description comes
+        from the library, the contents are parsed only once and shared
+        between all the instances of the same macro (flyweight). Each
+        instance keeps only its position, orientation, mirroring, name and
+        value. The shared contents are rebuilt if the description in the
+        library changes or if the library invalidates them.
+        @return the parsed contents, or null if no description is available.
     */
-    private void drawMacroContents(GraphicsInterface g, MapCoordinates coordSys)
+    private DrawingModel getMacro()
+    {
+        DrawingModel macro;
+
+        if(descriptor!=null) {
+            synchronized(descriptor) {
+                // The library has the last word on the description.
+                macroDesc = descriptor.getDescription();
+                if(descriptor.prototype==null
+                    || descriptor.prototypeSource!=macroDesc) // NOPMD
+                {
+                    descriptor.prototype=macroStore(macroDesc);
+                    descriptor.prototypeSource=macroDesc;
+                }
+                macro=descriptor.prototype;
+            }
+        } else if (macroDesc!=null) {
+            if(privateMacro==null || privateMacroSource!=macroDesc) { // NOPMD
+                privateMacro=macroStore(macroDesc);
+                privateMacroSource=macroDesc;
+            }
+            macro=privateMacro;
+        } else {
+            return null;
+        }
+
+        // The same contents may be shared by drawings employing different
+        // layer descriptions.
+        if(macro.getLayers()!=layers) {    // NOPMD
+            macro.setLayers(layers);
+        }
+        return macro;
+    }
+
+    /** Prepare a coordinate system for the contents of the macro, by
+        taking into account the position, orientation and mirroring of the
+        current instance.
+        @param coordSys the coordinate system used for the drawing containing
+            the macro.
+        @return the coordinate system to be used for the macro contents.
+    */
+    private MapCoordinates createMacroCoord(MapCoordinates coordSys)
     {
         /* in the macro primitive, the the virtual point represents
            the position of the reference point of the macro to be drawn. */
-        if(changed) {
-            changed = false;
-            x1=virtualPoint[0].x;
-            y1=virtualPoint[0].y;
-
-            macroCoord.setXMagnitude(coordSys.getXMagnitude());
-            macroCoord.setYMagnitude(coordSys.getYMagnitude());
-
-            macroCoord.setXCenter(coordSys.mapXr(x1,y1));
-            macroCoord.setYCenter(coordSys.mapYr(x1,y1));
-            macroCoord.setOrientation((o+coordSys.getOrientation())%4);
-            macroCoord.mirror=m ^ coordSys.mirror;
-            macroCoord.isMacro=true;
-            macroCoord.resetMinMax();
-
-            macro.setChanged(true);
+        int x1=virtualPoint[0].x;
+        int y1=virtualPoint[0].y;
+
+        MapCoordinates macroCoord=new MapCoordinates();
+
+        macroCoord.setXMagnitude(coordSys.getXMagnitude());
+        macroCoord.setYMagnitude(coordSys.getYMagnitude());
+
+        macroCoord.setXCenter(coordSys.mapXr(x1,y1));
+        macroCoord.setYCenter(coordSys.mapYr(x1,y1));
+        macroCoord.setOrientation((o+coordSys.getOrientation())%4);
+        macroCoord.mirror=m ^ coordSys.mirror;
+        macroCoord.isMacro=true;
+        return macroCoord;
+    }
+
+    /** Since the contents of the macro may be shared, align the selection
+        state of its primitives with the one of the current instance.
+        @param macro the macro contents.
+    */
+    private void selectMacro(DrawingModel macro)
+    {
+        List<GraphicPrimitive> v=macro.getPrimitiveVector();
+        if(!v.isEmpty() && v.get(0).isSelected()!=isSelected()) {
+            new SelectionActions(macro).setSelectionAll(isSelected());
         }
+    }
 
-        if(isSelected()) {
-            new SelectionActions(macro).setSelectionAll(true);
-            selected = true;
-        } else if (selected) {
-            new SelectionActions(macro).setSelectionAll(false);
-            selected = false;
+    /** Draw the macro contents.
+        @param g the graphic context.
+        @param coordSys the coordinate system.
+    */
+    private void drawMacroContents(GraphicsInterface g, MapCoordinates coordSys)
+    {
+        DrawingModel macro=getMacro();
+        if(macro==null) {
+            return;
         }
+        MapCoordinates macroCoord=createMacroCoord(coordSys);
 
-        macro.setDrawOnlyLayer(drawOnlyLayer);
-        macro.setDrawOnlyPads(drawOnlyPads);
+        synchronized(macro) {
+            selectMacro(macro);
+            macro.setDrawOnlyLayer(drawOnlyLayer);
+            macro.setDrawOnlyPads(drawOnlyPads);
 
-        drawingAgent = new Drawing(macro);
-        drawingAgent.draw(g,macroCoord);
+            new Drawing(macro).draw(g,macroCoord);
+        }
 
         if (macroCoord.getXMax()>macroCoord.getXMin() &&
             macroCoord.getYMax()>macroCoord.getYMin())
@@ -232,32 +293,20 @@ public final class PrimitiveMacro extends GraphicPrimitive
         }
     }
 
-    /** Specifies that the current primitive has been modified or not.
-        If it is true, during the redraw all parameters should be calulated
-        from scratch.
-        @param c the value of the parameter.
+    /** Parse the given description of the macro.
+        @param desc the description to be parsed.
+        @return the parsed contents.
     */
-    public void setChanged(boolean c)
-    {
-        super.setChanged(c);
-        macro.setChanged(c);
-    }
-
-    /** Parse and store the tokenized version of the macro.
-        @layerV the array containing the layer description to be inherited.
-
-    */
-    private void macroStore(List<LayerDesc> layerV)
+    private DrawingModel macroStore(String desc)
     {
+        DrawingModel macro=new DrawingModel();
         macro.setLibrary(library);          // Inherit the library
-        macro.setLayers(layerV);    // Inherit the layers
-        changed=true;
+        macro.setLayers(layers);            // Inherit the layers
 
-        if (macroDesc!=null) {
-            ParserActions pa = new ParserActions(macro);
-            pa.parseString(new StringBuffer(macroDesc));
-            // Recursive call
-        }
+        ParserActions pa = new ParserActions(macro);
+        pa.parseString(new StringBuffer(desc));
+        // Recursive call
+        return macro;
     }
 
     /** Set the layer vector.
@@ -265,7 +314,7 @@ public final class PrimitiveMacro extends GraphicPrimitive
     */
     public void setLayers(List<LayerDesc> layerV)
     {
-        macro.setLayers(layerV);
+        layers=layerV;
     }
 
     /** Draw the graphic primitive on the given graphic context.
@@ -309,7 +358,8 @@ public final class PrimitiveMacro extends GraphicPrimitive
     */
     public int getMaxLayer()
     {
-        return macro.getMaxLayer();
+        DrawingModel macro=getMacro();
+        return macro==null ? 0 : macro.getMaxLayer();
     }
 
     /** Parse a token array and store the graphic data for a given primitive
@@ -317,39 +367,39 @@ public final class PrimitiveMacro extends GraphicPrimitive
         that the called primitive is correct.
         That routine also sets the current layer.
 
-        @param tokens the tokens to be processed. tokens[0] should be the
+        @param tokens the tokens to be processed. The first one should be the
         command of the actual primitive.
-        @param nn the number of tokens present in the array
         @throws IOException if the arguments are incorrect or the primitive
             is invalid.
     */
-    public void parseTokens(String[] tokens, int nn)
+    public void parseTokens(TokenLine tokens)
         throws IOException
     {
+        int nn=tokens.size();
         // assert it is the correct primitive
         changed=true;
-        if ("MC".equals(tokens[0])) {   // Line
+        if (tokens.is(0, "MC")) {   // Line
             if (nn<6) {
                 throw new IOException("Bad arguments on MC");
             }
             // Load the points in the virtual points associated to the
             // current primitive.
 
-            virtualPoint[0].x=Integer.parseInt(tokens[1]);
-            virtualPoint[0].y=Integer.parseInt(tokens[2]);
+            virtualPoint[0].x=tokens.getInt(1);
+            virtualPoint[0].y=tokens.getInt(2);
             virtualPoint[1].x=virtualPoint[0].x+10;
             virtualPoint[1].y=virtualPoint[0].y+10;
             virtualPoint[2].x=virtualPoint[0].x+10;
             virtualPoint[2].y=virtualPoint[0].y+5;
-            o=Integer.parseInt(tokens[3]);  // orientation
-            m=Integer.parseInt(tokens[4])==1;  // mirror
-            macroName=tokens[5];
+            o=tokens.getInt(3);  // orientation
+            m=tokens.getInt(4)==1;  // mirror
+            macroName=tokens.get(5);
 
             // This is useful when a filename contains spaces. However, it does
             // not work when there are two or more consecutive spaces.
 
             for (int i=6; i<nn; ++i) {
-                macroName+=" "+tokens[i];
+                macroName+=" "+tokens.get(i);
             }
 
             // The macro key recognition is made case insensitive by converting
@@ -357,18 +407,19 @@ public final class PrimitiveMacro extends GraphicPrimitive
 
             macroName=macroName.toLowerCase(Locale.forLanguageTag("en"));
 
-            // Let's see if the macro is recognized and store it.
+            // Let's see if the macro is recognized and store it. The
+            // contents will be parsed only when they are needed.
             MacroDesc macro=(MacroDesc)library.get(macroName);
 
             if (macro==null){
                 throw new IOException("Unrecognized macro '"
                                               + macroName+"'");
             }
-            macroDesc = macro.description;
-            macroStore(layers);
+            descriptor = macro;
+            macroDesc = macro.getDescription();
 
         } else {
-            throw new IOException("MC: Invalid primitive:"+tokens[0]+
+            throw new IOException("MC: Invalid primitive:"+tokens.get(0)+
                                           " programming error?");
         }
 
@@ -381,7 +432,21 @@ public final class PrimitiveMacro extends GraphicPrimitive
     */
     public boolean needsHoles()
     {
-        return drawingAgent.getNeedHoles();
+        DrawingModel macro=getMacro();
+        if(macro==null) {
+            return false;
+        }
+        if(holesChecked!=macro) {  // NOPMD
+            holes=false;
+            for(GraphicPrimitive g: macro.getPrimitiveVector()) {
+                if(g.needsHoles()) {
+                    holes=true;
+                    break;
+                }
+            }
+            holesChecked=macro;
+        }
+        return holes;
     }
 
     /** Gets the distance (in primitive's coordinates space) between a
@@ -471,17 +536,80 @@ public final class PrimitiveMacro extends GraphicPrimitive
             }
         }
 
-        if (macroDesc==null) {
+        DrawingModel macro=getMacro();
+        if (macro==null) {
             System.out.println("1-Unrecognized macro "+
                     "WARNING this can be a programming problem...");
         } else {
-            SelectionActions sa = new SelectionActions(macro);
-            EditorActions edt=new EditorActions(macro, sa, null);
-            return Math.min(edt.distancePrimitive(vx, vy), dt);
+            synchronized(macro) {
+                SelectionActions sa = new SelectionActions(macro);
+                EditorActions edt=new EditorActions(macro, sa, null);
+                return Math.min(edt.distancePrimitive(vx, vy), dt);
+            }
         }
         return Integer.MAX_VALUE;
     }
 
+    /** Get a bounding box of the primitive, in logical units. The extent
+        of the macro contents is transformed as the macro is placed in the
+        drawing (orientation and mirroring).
+        @return a new rectangle containing the primitive.
+    */
+    public RectangleG getBoundingBox()
+    {
+        int x1=virtualPoint[0].x;
+        int y1=virtualPoint[0].y;
+        RectangleG r=new RectangleG(x1,y1,0,0);
+
+        DrawingModel macro=getMacro();
+        RectangleG b=null;
+        if(macro!=null) {
+            b=macro.getExtent();
+        }
+        if(b!=null) {
+            // Transform two opposite corners of the extent, expressed with
+            // respect to the origin of the macro (100, 100).
+            int[] xc={b.x-100, b.x+b.width-100};
+            int[] yc={b.y-100, b.y+b.height-100};
+            for(int i=0; i<2; ++i) {
+                int dx=xc[i];
+                int dy=yc[i];
+                int tx;
+                int ty;
+                switch(o) {
+                    case 1:
+                        tx=-dy;
+                        ty=dx;
+                        break;
+                    case 2:
+                        tx=-dx;
+                        ty=-dy;
+                        break;
+                    case 3:
+                        tx=dy;
+                        ty=-dx;
+                        break;
+                    default:
+                        tx=dx;
+                        ty=dy;
+                        break;
+                }
+                // Mirroring is applied horizontally, after the rotation.
+                if(m) {
+                    tx=-tx;
+                }
+                if(i==0) {
+                    r=new RectangleG(x1+tx,y1+ty,0,0);
+                } else {
+                    r.add(x1+tx,y1+ty);
+                }
+            }
+            r.add(x1,y1);
+        }
+        addTextToBoundingBox(r);
+        return r;
+    }
+
     /** Select the primitive if one of its virtual point is in the specified
         rectangular region (given in logical coordinates).
         @param px the x coordinate of the top left point.
@@ -494,9 +622,17 @@ public final class PrimitiveMacro extends GraphicPrimitive
     {
         // Here is a trick: if there is at least one active layer,
         // distancePrimitive will return a value less than the maximum.
-        SelectionActions sa = new SelectionActions(macro);
-        EditorActions edt=new EditorActions(macro, sa, null);
-        if (edt.distancePrimitive(0, 0)<Integer.MAX_VALUE) {
+        DrawingModel macro=getMacro();
+        if(macro==null) {
+            return false;
+        }
+        int d;
+        synchronized(macro) {
+            SelectionActions sa = new SelectionActions(macro);
+            EditorActions edt=new EditorActions(macro, sa, null);
+            d=edt.distancePrimitive(0, 0);
+        }
+        if (d<Integer.MAX_VALUE) {
             return super.selectRect(px, py, w, h);
         } else {
             return false;
@@ -645,6 +781,15 @@ public final class PrimitiveMacro extends GraphicPrimitive
         alreadyExported=false;
     }
 
+    /** Check whether the export filter has written the macro as a whole,
+        without expanding it, since the last call to resetExport().
+        @return true if the macro has been written as a whole.
+    */
+    public boolean isExportedWhole()
+    {
+        return alreadyExported;
+    }
+
     /** Each graphic primitive should call the appropriate exporting method
         of the export interface specified.
         @param exp the export interface that should be used.
@@ -676,36 +821,54 @@ public final class PrimitiveMacro extends GraphicPrimitive
             alreadyExported = true;
             return;
         }
-        /* in the macro primitive, the virtual point represents
-           the position of the reference point of the macro to be drawn. */
-
-        int x1=virtualPoint[0].x;
-        int y1=virtualPoint[0].y;
-
-        MapCoordinates macroCoord=new MapCoordinates();
-
-        macroCoord.setXMagnitude(cs.getXMagnitude());
-        macroCoord.setYMagnitude(cs.getYMagnitude());
-
-        macroCoord.setXCenter(cs.mapXr(x1,y1));
-        macroCoord.setYCenter(cs.mapYr(x1,y1));
-
-        macroCoord.setOrientation((o+cs.getOrientation())%4);
-        macroCoord.mirror=m ^ cs.mirror;
-        macroCoord.isMacro=true;
-
-        macro.setDrawOnlyLayer(drawOnlyLayer);
-
-        if(isSelected()) {
-            new SelectionActions(macro).setSelectionAll(true);
+        DrawingModel macro=getMacro();
+        if(macro!=null) {
+            MapCoordinates macroCoord=createMacroCoord(cs);
+            synchronized(macro) {
+                selectMacro(macro);
+                macro.setDrawOnlyLayer(drawOnlyLayer);
+                macro.setDrawOnlyPads(drawOnlyPads);
+                if(exp instanceof SharedMacroInterface) {
+                    exportShared(exp, macro, macroCoord);
+                } else {
+                    new Export(macro).exportDrawing(exp, exportInvisible,
+                        macroCoord);
+                }
+            }
         }
-
-        macro.setDrawOnlyPads(drawOnlyPads);
-        new Export(macro).exportDrawing(exp, exportInvisible, macroCoord);
         exportText(exp, cs, drawOnlyLayer);
 
     }
 
+    /** Export the macro contents through an export filter which can define
+        them once and place them for all the instances having the same
+        contents, orientation and mirroring. The contents are exported
+        relative to the reference point of the macro.
+        @param exp the export filter, implementing SharedMacroInterface.
+        @param macro the macro contents.
+        @param macroCoord the coordinate system of the macro.
+        @throws IOException if an error occurs.
+    */
+    private void exportShared(ExportInterface exp, DrawingModel macro,
+        MapCoordinates macroCoord)
+        throws IOException
+    {
+        SharedMacroInterface sm=(SharedMacroInterface)exp;
+        // Everything which changes the output must be part of the key.
+        String key=macroCoord.getOrientation()+" "+macroCoord.mirror+" "+
+            macroCoord.getXMagnitude()+" "+macroCoord.getYMagnitude()+" "+
+            drawOnlyLayer+" "+drawOnlyPads+" "+exportInvisible+"\n"+
+            macroDesc;
+        if(!sm.placeMacro(key, macroCoord.getXCenter(),
+            macroCoord.getYCenter()))
+        {
+            macroCoord.setXCenter(0);
+            macroCoord.setYCenter(0);
+            new Export(macro).exportDrawing(exp, exportInvisible, macroCoord);
+            sm.endMacroDefinition();
+        }
+    }
+
     /** Get the number of the virtual point associated to the Name property
         @return the number of the virtual point associated to the Name property
     */
@@ -735,6 +898,9 @@ public final class PrimitiveMacro extends GraphicPrimitive
     */
     public void setMacroDesc(String macroDesc)
     {
+        // The description does not come from the library anymore.
+        descriptor = null;
         this.macroDesc = macroDesc;
+        changed = true;
     }
 }
\ No newline at end of file
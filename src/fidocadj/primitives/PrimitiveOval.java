@@ -192,28 +192,28 @@ public final class PrimitiveOval extends GraphicPrimitive
      that the called primitive is correct.
      That routine also sets the current layer.
 
-     @param tokens the tokens to be processed. tokens[0] should be the
+     @param tokens the tokens to be processed. The first one should be the
      command of the actual primitive.
-     @param nn the number of tokens present in the array
 
      @throws IOException if the arguments are incorrect or the primitive
      is invalid.
      */
     @Override
-    public void parseTokens(String[] tokens, int nn)
+    public void parseTokens(TokenLine tokens)
             throws IOException
     {
+        int nn=tokens.size();
         changed = true;
 
         // assert it is the correct primitive
-        if ("EV".equals(tokens[0]) || "EP".equals(tokens[0])) {   // Oval
+        if (tokens.is(0, "EV") || tokens.is(0, "EP")) {   // Oval
             if (nn < 5) {
                 throw new IOException("Bad arguments on EV/EP");
             }
-            int x1 = virtualPoint[0].x = Integer.parseInt(tokens[1]);
-            int y1 = virtualPoint[0].y = Integer.parseInt(tokens[2]);
-            virtualPoint[1].x = Integer.parseInt(tokens[3]);
-            virtualPoint[1].y = Integer.parseInt(tokens[4]);
+            int x1 = virtualPoint[0].x = tokens.getInt(1);
+            int y1 = virtualPoint[0].y = tokens.getInt(2);
+            virtualPoint[1].x = tokens.getInt(3);
+            virtualPoint[1].y = tokens.getInt(4);
 
             virtualPoint[getNameVirtualPointNumber()].x = x1 + 5;
             virtualPoint[getNameVirtualPointNumber()].y = y1 + 5;
@@ -221,16 +221,16 @@ public final class PrimitiveOval extends GraphicPrimitive
             virtualPoint[getValueVirtualPointNumber()].y = y1 + 10;
 
             if (nn > 5) {
-                parseLayer(tokens[5]);
+                parseLayer(tokens, 5);
             }
 
-            isFilled = "EP".equals(tokens[0]);
+            isFilled = tokens.is(0, "EP");
 
-            if (nn > 6 && "FCJ".equals(tokens[6])) {
-                dashStyle = checkDashStyle(Integer.parseInt(tokens[7]));
+            if (nn > 6 && tokens.is(6, "FCJ")) {
+                dashStyle = checkDashStyle(tokens.getInt(7));
             }
         } else {
-            throw new IOException("EV/EP: Invalid primitive:" + tokens[0]
+            throw new IOException("EV/EP: Invalid primitive:" + tokens.get(0)
                     + " programming error?");
         }
     }
@@ -337,8 +337,16 @@ public final class PrimitiveOval extends GraphicPrimitive
                 return 1000;
             }
         } else {
-            return GeometricDistances.pointToEllipse(xa, ya,
-                    xb - xa, yb - ya, px, py);
+            // The distance from the ellipse is approximated and it may be
+            // very small even far from a thin ellipse. It should never be
+            // less than the distance from the rectangle containing it,
+            // otherwise the spatial index of the drawing would not find
+            // the ellipse.
+            int dx = Math.max(0, Math.max(xa - px, px - xb));
+            int dy = Math.max(0, Math.max(ya - py, py - yb));
+            return Math.max(GeometricDistances.pointToEllipse(xa, ya,
+                    xb - xa, yb - ya, px, py),
+                    (int)Math.hypot(dx, dy));
         }
     }
 
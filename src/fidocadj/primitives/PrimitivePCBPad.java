@@ -215,20 +215,20 @@ public final class PrimitivePCBPad extends GraphicPrimitive
         that the called primitive is correct.
         That routine also sets the current layer.
 
-        @param tokens the tokens to be processed. tokens[0] should be the
+        @param tokens the tokens to be processed. The first one should be the
         command of the actual primitive.
-        @param nn the number of tokens present in the array.
         @throws IOException if the arguments are incorrect or the primitive
             is invalid.
     */
-    public void parseTokens(String[] tokens, int nn)
+    public void parseTokens(TokenLine tokens)
         throws IOException
     {
+        int nn=tokens.size();
         changed=true;
 
         // assert it is the correct primitive
 
-        if ("PA".equals(tokens[0])) {   // PCB Area pad
+        if (tokens.is(0, "PA")) {   // PCB Area pad
             /* Example PA 752 50 15 15 4 1 1 */
 
             if (nn<7)  {
@@ -237,21 +237,21 @@ public final class PrimitivePCBPad extends GraphicPrimitive
             // Load the points in the virtual points associated to the
             // current primitive.
 
-            int x1 = virtualPoint[0].x=Integer.parseInt(tokens[1]);
-            int y1 = virtualPoint[0].y=Integer.parseInt(tokens[2]);
+            int x1 = virtualPoint[0].x=tokens.getInt(1);
+            int y1 = virtualPoint[0].y=tokens.getInt(2);
             virtualPoint[getNameVirtualPointNumber()].x=x1+5;
             virtualPoint[getNameVirtualPointNumber()].y=y1+5;
             virtualPoint[getValueVirtualPointNumber()].x=x1+5;
             virtualPoint[getValueVirtualPointNumber()].y=y1+10;
-            rx=Integer.parseInt(tokens[3]);
-            ry=Integer.parseInt(tokens[4]);
-            ri=Integer.parseInt(tokens[5]);
-            sty=Integer.parseInt(tokens[6]);
+            rx=tokens.getInt(3);
+            ry=tokens.getInt(4);
+            ri=tokens.getInt(5);
+            sty=tokens.getInt(6);
 
-            if(nn>7) { parseLayer(tokens[7]); }
+            if(nn>7) { parseLayer(tokens, 7); }
 
         } else {
-            throw new IOException("PA: Invalid primitive:"+tokens[0]+
+            throw new IOException("PA: Invalid primitive:"+tokens.get(0)+
                                           " programming error?");
         }
     }
@@ -358,6 +358,16 @@ public final class PrimitivePCBPad extends GraphicPrimitive
         ry=swap;
     }
 
+    /** Get the margin to be added around the control points to obtain
+        the bounding box of the primitive.
+        @return the margin, in logical units.
+    */
+    @Override
+    protected int getBoundingMargin()
+    {
+        return super.getBoundingMargin()+Math.max(Math.max(rx,ry),ri)/2+1;
+    }
+
     /** Gets the distance (in primitive's coordinates space) between a
         given point and the primitive.
         When it is reasonable, the behaviour can be binary (polygons,
@@ -335,19 +335,19 @@ public final class PrimitivePolygon extends GraphicPrimitive
         that the called primitive is correct.
         That routine also sets the current layer.
 
-        @param tokens the tokens to be processed. tokens[0] should be the
+        @param tokens the tokens to be processed. The first one should be the
         command of the actual primitive.
-        @param nn the number of tokens present in the array
         @throws IOException if the arguments are incorrect or the primitive
             is invalid.
     */
-    public void parseTokens(String[] tokens, int nn)
+    public void parseTokens(TokenLine tokens)
         throws IOException
     {
+        int nn=tokens.size();
         changed=true;
 
         // assert it is the correct primitive
-        if ("PP".equals(tokens[0])||"PV".equals(tokens[0])) {
+        if (tokens.is(0, "PP")||tokens.is(0, "PV")) {
             if (nn<6) {
                 throw new IOException("Bad arguments on PP/PV");
             }
@@ -359,11 +359,11 @@ public final class PrimitivePolygon extends GraphicPrimitive
             int y1 = 0;
 
             while(j<nn-1){
-                if (j+1<nn-1 && "FCJ".equals(tokens[j+1])) {
+                if (j+1<nn-1 && tokens.is(j+1, "FCJ")) {
                     break;
                 }
-                x1 = Integer.parseInt(tokens[j++]);
-                y1 = Integer.parseInt(tokens[j++]);
+                x1 = tokens.getInt(j++);
+                y1 = tokens.getInt(j++);
                 ++i;
                 addPoint(x1,y1);
             }
@@ -373,20 +373,20 @@ public final class PrimitivePolygon extends GraphicPrimitive
             virtualPoint[getValueVirtualPointNumber()].x=x1+5;
             virtualPoint[getValueVirtualPointNumber()].y=y1+10;
             if(nn>j) {
-                parseLayer(tokens[j++]);
-                if(j<nn-1 && "FCJ".equals(tokens[j])) {
-                    dashStyle = checkDashStyle(Integer.parseInt(tokens[++j]));
+                parseLayer(tokens, j++);
+                if(j<nn-1 && tokens.is(j, "FCJ")) {
+                    dashStyle = checkDashStyle(tokens.getInt(++j));
                 }
                 ++j;
             }
 
-            if ("PP".equals(tokens[0])) {
+            if (tokens.is(0, "PP")) {
                 isFilled=true;
             } else {
                 isFilled=false;
             }
         } else {
-            throw new IOException("PP/PV: Invalid primitive:"+tokens[0]+
+            throw new IOException("PP/PV: Invalid primitive:"+tokens.get(0)+
                                           " programming error?");
         }
     }
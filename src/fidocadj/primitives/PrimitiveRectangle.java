@@ -199,44 +199,44 @@ public final class PrimitiveRectangle extends GraphicPrimitive
         Obviously, that routine should be called *after* having recognized
         that the called primitive is correct.
         That routine also sets the current layer.
-        @param tokens the tokens to be processed. tokens[0] should be the
+        @param tokens the tokens to be processed. The first one should be the
         command of the actual primitive.
-        @param nn the number of tokens present in the array
         @throws IOException if the arguments are incorrect or the primitive
             is invalid.
     */
-    public void parseTokens(String[] tokens, int nn)
+    public void parseTokens(TokenLine tokens)
         throws IOException
     {
+        int nn=tokens.size();
         changed=true;
         // assert it is the correct primitive
-        if ("RV".equals(tokens[0])||"RP".equals(tokens[0])) {   // Oval
+        if (tokens.is(0, "RV")||tokens.is(0, "RP")) {   // Oval
             if (nn<5) {
                 throw new IOException("Bad arguments on RV/RP");
             }
-            int x1 = virtualPoint[0].x=Integer.parseInt(tokens[1]);
-            int y1 = virtualPoint[0].y=Integer.parseInt(tokens[2]);
-            virtualPoint[1].x=Integer.parseInt(tokens[3]);
-            virtualPoint[1].y=Integer.parseInt(tokens[4]);
+            int x1 = virtualPoint[0].x=tokens.getInt(1);
+            int y1 = virtualPoint[0].y=tokens.getInt(2);
+            virtualPoint[1].x=tokens.getInt(3);
+            virtualPoint[1].y=tokens.getInt(4);
 
             virtualPoint[getNameVirtualPointNumber()].x=x1+5;
             virtualPoint[getNameVirtualPointNumber()].y=y1+5;
             virtualPoint[getValueVirtualPointNumber()].x=x1+5;
             virtualPoint[getValueVirtualPointNumber()].y=y1+10;
-            if(nn>5) { parseLayer(tokens[5]); }
+            if(nn>5) { parseLayer(tokens, 5); }
 
-            if("RP".equals(tokens[0])) {
+            if(tokens.is(0, "RP")) {
                 isFilled=true;
             } else {
                 isFilled=false;
             }
 
-            if(nn>6 && "FCJ".equals(tokens[6])) {
-                dashStyle = checkDashStyle(Integer.parseInt(tokens[7]));
+            if(nn>6 && tokens.is(6, "FCJ")) {
+                dashStyle = checkDashStyle(tokens.getInt(7));
             }
         } else {
             throw new IOException("RV/RP: Invalid primitive: "
-                +tokens[0]+" programming error?");
+                +tokens.get(0)+" programming error?");
         }
     }
 
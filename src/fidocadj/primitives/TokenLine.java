@@ -0,0 +1,338 @@
+package fidocadj.primitives;
+
+/**
+    A line of a FidoCadJ drawing, split into tokens. The characters of all
+    the tokens are kept in a single buffer, which is reused from a line to
+    the following one, and each token is described by its position in the
+    buffer. The numbers are decoded directly from the characters, so that
+    no String needs to be created for them. A String is created only when
+    a token is requested as such.
+
+    <pre>
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2007-2023 by Davide Bucci
+    </pre>
+
+    @author Davide Bucci
+*/
+public final class TokenLine
+{
+    // The characters of all the tokens, one after the other.
+    private char[] chars;
+    // Number of characters used in the buffer.
+    private int length;
+
+    // Position of the first character of each token and position following
+    // the last one.
+    private int[] starts;
+    private int[] ends;
+    // Number of complete tokens.
+    private int count;
+
+    // Strings already created for the tokens, or null.
+    private String[] strings;
+
+    /** Standard constructor. Creates an empty line.
+    */
+    public TokenLine()
+    {
+        chars=new char[256];
+        starts=new int[16];
+        ends=new int[16];
+        strings=new String[16];
+    }
+
+    /** Create a line containing the given tokens.
+        @param tokens the tokens.
+        @param nn the number of tokens to be considered.
+    */
+    public TokenLine(String[] tokens, int nn)
+    {
+        this();
+        for(int i=0; i<nn; ++i) {
+            String t=tokens[i];
+            for(int k=0; k<t.length(); ++k) {
+                addChar(t.charAt(k));
+            }
+            endToken();
+        }
+    }
+
+    /** Remove all the tokens.
+    */
+    public void clear()
+    {
+        for(int i=0; i<count; ++i) {
+            strings[i]=null;
+        }
+        length=0;
+        count=0;
+    }
+
+    /** Add a character to the token being read.
+        @param c the character.
+    */
+    public void addChar(char c)
+    {
+        if(length==chars.length) {
+            char[] n=new char[chars.length*2];
+            System.arraycopy(chars, 0, n, 0, length);
+            chars=n;
+        }
+        chars[length++]=c;
+    }
+
+    /** Terminate the token being read. The following characters will belong
+        to a new token.
+    */
+    public void endToken()
+    {
+        if(count==starts.length) {
+            int[] s=new int[count*2];
+            int[] e=new int[count*2];
+            String[] t=new String[count*2];
+            System.arraycopy(starts, 0, s, 0, count);
+            System.arraycopy(ends, 0, e, 0, count);
+            System.arraycopy(strings, 0, t, 0, count);
+            starts=s;
+            ends=e;
+            strings=t;
+        }
+        starts[count]=count==0?0:ends[count-1];
+        ends[count]=length;
+        ++count;
+    }
+
+    /** Remove the last token, as well as the characters of the token being
+        read, if any.
+    */
+    public void removeLast()
+    {
+        if(count>0) {
+            --count;
+            length=starts[count];
+            strings[count]=null;
+        }
+    }
+
+    /** Replace the contents of this line with the tokens of another one.
+        @param l the line to be copied.
+    */
+    public void copyFrom(TokenLine l)
+    {
+        clear();
+        append(l);
+    }
+
+    /** Add all the tokens of another line at the end of this one. Any
+        characters read for the current token are discarded.
+        @param l the line to be appended.
+    */
+    public void append(TokenLine l)
+    {
+        length=count==0?0:ends[count-1];
+        for(int i=0; i<l.count; ++i) {
+            for(int k=l.starts[i]; k<l.ends[i]; ++k) {
+                addChar(l.chars[k]);
+            }
+            endToken();
+        }
+    }
+
+    /** Get the number of tokens.
+        @return the number of tokens.
+    */
+    public int size()
+    {
+        return count;
+    }
+
+    /** Get the number of characters of a token.
+        @param i the index of the token.
+        @return the length of the token.
+    */
+    public int length(int i)
+    {
+        return ends[i]-starts[i];
+    }
+
+    /** Get a character of a token.
+        @param i the index of the token.
+        @param k the position of the character in the token.
+        @return the character.
+    */
+    public char charAt(int i, int k)
+    {
+        return chars[starts[i]+k];
+    }
+
+    /** Get the length of the token being read (the characters which have
+        been added after the last token was terminated).
+        @return the number of characters.
+    */
+    public int getPendingLength()
+    {
+        return length-(count==0?0:ends[count-1]);
+    }
+
+    /** Check if a token is equal to the given string.
+        @param i the index of the token. If it does not exist, the result is
+            false.
+        @param s the string.
+        @return true if the token contains exactly the same characters.
+    */
+    public boolean is(int i, String s)
+    {
+        if(i<0 || i>=count || ends[i]-starts[i]!=s.length()) {
+            return false;
+        }
+        for(int k=0, p=starts[i]; k<s.length(); ++k, ++p) {
+            if(chars[p]!=s.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Get a token as a string.
+        @param i the index of the token.
+        @return the token, or null if it does not exist.
+    */
+    public String get(int i)
+    {
+        if(i<0 || i>=count) {
+            return null;
+        }
+        if(strings[i]==null) {
+            strings[i]=new String(chars, starts[i], ends[i]-starts[i]);
+        }
+        return strings[i];
+    }
+
+    /** Decode a token containing an integer number. The result is the same
+        of Integer.parseInt(), but the usual cases are handled without
+        creating a String.
+        @param i the index of the token.
+        @return the number.
+        @throws NumberFormatException if the token does not exist or it is
+            not a valid integer.
+    */
+    public int getInt(int i)
+    {
+        if(i<0 || i>=count) {
+            throw new NumberFormatException("Missing token "+i);
+        }
+        int p=starts[i];
+        int e=ends[i];
+        boolean negative=false;
+        if(p<e && (chars[p]=='-' || chars[p]=='+')) {
+            negative=chars[p]=='-';
+            ++p;
+        }
+        // The digits are accumulated as a negative number, as it is done by
+        // Integer.parseInt(), to handle correctly Integer.MIN_VALUE.
+        int limit=negative?Integer.MIN_VALUE:-Integer.MAX_VALUE;
+        int multmin=limit/10;
+        int result=0;
+        if(p==e) {
+            return Integer.parseInt(get(i));
+        }
+        for(; p<e; ++p) {
+            int d=chars[p]-'0';
+            if(d<0 || d>9 || result<multmin || result*10<limit+d) {
+                // Not a plain decimal number, or overflow.
+                return Integer.parseInt(get(i));
+            }
+            result=result*10-d;
+        }
+        return negative?result:-result;
+    }
+
+    /** Decode a token containing a floating point number.
+        @param i the index of the token.
+        @return the number.
+        @throws NumberFormatException if the token does not exist or it is
+            not a valid number.
+    */
+    public float getFloat(int i)
+    {
+        if(isSmallInteger(i)) {
+            return getInt(i);
+        }
+        String s=get(i);
+        if(s==null) {
+            throw new NumberFormatException("Missing token "+i);
+        }
+        return Float.parseFloat(s);
+    }
+
+    /** Decode a token containing a floating point number.
+        @param i the index of the token.
+        @return the number.
+        @throws NumberFormatException if the token does not exist or it is
+            not a valid number.
+    */
+    public double getDouble(int i)
+    {
+        if(isSmallInteger(i)) {
+            return getInt(i);
+        }
+        String s=get(i);
+        if(s==null) {
+            throw new NumberFormatException("Missing token "+i);
+        }
+        return Double.parseDouble(s);
+    }
+
+    /** Check if a token is a positive integer which can be represented
+        exactly by a float.
+    */
+    private boolean isSmallInteger(int i)
+    {
+        if(i<0 || i>=count) {
+            return false;
+        }
+        int p=starts[i];
+        int e=ends[i];
+        if(p==e || e-p>7) {
+            return false;
+        }
+        for(; p<e; ++p) {
+            if(chars[p]<'0' || chars[p]>'9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Convert the line to a string, with the tokens separated by a space.
+        This method is useful mainly for debug purposes.
+        @return the line.
+    */
+    @Override public String toString()
+    {
+        StringBuffer s=new StringBuffer();
+        for(int i=0; i<count; ++i) {
+            if(i>0) {
+                s.append(' ');
+            }
+            s.append(chars, starts[i], ends[i]-starts[i]);
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,220 @@
+package fidocadj.undo;
+
+import java.util.*;
+
+/**
+    Difference between two successive states of a drawing. Each state is
+    seen as a list of primitives, each one described by its text in the
+    FidoCadJ format. The difference is a sequence of operations, each one
+    inserting or removing a primitive at a given position of the list. A
+    modified primitive is removed and then inserted again. Only the
+    primitives involved are stored, so the memory needed grows with the
+    size of the edit and not with the size of the drawing.
+
+    <pre>
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2008-2023 by Davide Bucci
+    </pre>
+
+    @author Davide Bucci
+*/
+public final class DrawingDelta
+{
+    // The operations which transform the older state into the newer one,
+    // in the order they must be done. Each one inserts or removes a
+    // primitive at a position of the list, as it is when the operation is
+    // done.
+    private final int[] positions;
+    private final String[] texts;
+    private final boolean[] insertions;
+
+    /** Standard constructor.
+        @param p the position of the primitive involved in each operation.
+        @param t the description of the primitive inserted or removed.
+        @param ins true for the operations which insert a primitive, false
+            for those which remove it.
+    */
+    public DrawingDelta(int[] p, String[] t, boolean[] ins)
+    {
+        positions=p;
+        texts=t;
+        insertions=ins;
+    }
+
+    /** Compare two states of a drawing. The primitives are identified by a
+        key (normally, the primitive object itself) which is compared by
+        identity. A primitive having the same key in both states is
+        considered unchanged if its description is the same and if it is
+        in the same order with respect to the other unchanged primitives.
+        The difference removes the other primitives of the older state,
+        starting from the last one, then inserts those of the newer state,
+        starting from the first one.
+        @param olderKeys the keys of the primitives in the older state.
+        @param olderTexts the description of the primitives in the older
+            state.
+        @param newerKeys the keys of the primitives in the newer state.
+        @param newerTexts the description of the primitives in the newer
+            state.
+        @return the difference between the two states.
+    */
+    public static DrawingDelta compare(List<?> olderKeys,
+        List<String> olderTexts, List<?> newerKeys, List<String> newerTexts)
+    {
+        Map<Object, Integer> newerPositions=
+            new IdentityHashMap<Object, Integer>(newerKeys.size()*2);
+        int i=0;
+        for(Object k: newerKeys) {
+            newerPositions.put(k, Integer.valueOf(i++));
+        }
+        boolean[] kept=new boolean[newerKeys.size()];
+        List<Integer> removed=new ArrayList<Integer>();
+        int last=-1;
+        i=0;
+        for(Object k: olderKeys) {
+            Integer j=newerPositions.get(k);
+            if(j==null || j.intValue()<=last ||
+                !olderTexts.get(i).equals(newerTexts.get(j.intValue())))
+            {
+                removed.add(Integer.valueOf(i));
+            } else {
+                kept[j.intValue()]=true;
+                last=j.intValue();
+            }
+            ++i;
+        }
+        int n=removed.size();
+        for(boolean k: kept) {
+            if(!k) {
+                ++n;
+            }
+        }
+        int[] p=new int[n];
+        String[] t=new String[n];
+        boolean[] ins=new boolean[n];
+        n=0;
+        for(i=removed.size()-1; i>=0; --i) {
+            p[n]=removed.get(i).intValue();
+            t[n++]=olderTexts.get(removed.get(i).intValue());
+        }
+        for(i=0; i<kept.length; ++i) {
+            if(!kept[i]) {
+                p[n]=i;
+                t[n]=newerTexts.get(i);
+                ins[n++]=true;
+            }
+        }
+        return new DrawingDelta(p, t, ins);
+    }
+
+    /** Check if the two states are identical.
+        @return true if nothing has changed.
+    */
+    public boolean isEmpty()
+    {
+        return positions.length==0;
+    }
+
+    /** Get the number of operations.
+        @return the number of operations.
+    */
+    public int getCount()
+    {
+        return positions.length;
+    }
+
+    /** Get the position of the primitive inserted or removed by an
+        operation.
+        @param i the index of the operation.
+        @return the position after the insertion or before the removal.
+    */
+    public int getPosition(int i)
+    {
+        return positions[i];
+    }
+
+    /** Get the description of the primitive inserted or removed by an
+        operation.
+        @param i the index of the operation.
+        @return the description in the FidoCadJ format.
+    */
+    public String getText(int i)
+    {
+        return texts[i];
+    }
+
+    /** Tell if an operation inserts or removes a primitive.
+        @param i the index of the operation.
+        @return true if the operation inserts a primitive.
+    */
+    public boolean isInsertion(int i)
+    {
+        return insertions[i];
+    }
+
+    /** Transform the newer state into the older one. The operations are
+        done backwards, starting from the last one.
+        @param state the list of the descriptions of the primitives. It
+            must contain the newer state and it is modified.
+    */
+    public void undo(List<String> state)
+    {
+        for(int i=positions.length-1; i>=0; --i) {
+            apply(state, i, !insertions[i]);
+        }
+    }
+
+    /** Transform the older state into the newer one.
+        @param state the list of the descriptions of the primitives. It
+            must contain the older state and it is modified.
+    */
+    public void redo(List<String> state)
+    {
+        for(int i=0; i<positions.length; ++i) {
+            apply(state, i, insertions[i]);
+        }
+    }
+
+    /** Do an operation on a list of descriptions.
+        @param state the list.
+        @param i the index of the operation.
+        @param insert true if the primitive should be inserted, false if it
+            should be removed.
+    */
+    private void apply(List<String> state, int i, boolean insert)
+    {
+        if(insert) {
+            state.add(positions[i], texts[i]);
+        } else {
+            state.remove(positions[i]);
+        }
+    }
+
+    /** Convert to string the difference. This method is useful mainly for
+        debug purposes.
+        @return a String describing the object.
+    */
+    @Override public String toString()
+    {
+        StringBuffer s=new StringBuffer();
+        for(int i=0; i<positions.length; ++i) {
+            s.append(insertions[i]?" +":" -");
+            s.append(positions[i]);
+        }
+        return s.toString().trim();
+    }
+}
@@ -137,6 +137,18 @@ public class UndoManager
         return false;
     }
 
+    /** Get the state corresponding to the current situation, that is the
+        last one pushed or recovered by an undo or redo operation.
+        @return the current state, or null if the buffer is empty.
+    */
+    public UndoState getCurrentState()
+    {
+        if(pointer<1 || pointer>undoBuffer.size()) {
+            return null;
+        }
+        return undoBuffer.get(pointer-1);
+    }
+
     /** Pops the last undo state from the buffer
         @return the recovered state.
         @throws NoSuchElementException if the buffer is empty.
@@ -25,8 +25,12 @@ package fidocadj.undo;
 */
 public class UndoState
 {
-    // Contains a textual description of the drawing
-    public String text;
+    // Contains the changes done to the primitives of the drawing with
+    // respect to the previous state.
+    public DrawingDelta delta;
+    // Contains the configuration of the drawing (layers, line widths...),
+    // in the FidoCadJ format.
+    public String configuration;
     // Is true if there has been a modification of the drawing: something
     // that needs the file to be saved, unless the user wants to discard
     // changes.
@@ -45,7 +49,8 @@ public class UndoState
     */
     public UndoState()
     {
-        text="";
+        delta=null;
+        configuration="";
         isModified=false;
         fileName="";
         libraryDir="";
@@ -57,7 +62,8 @@ public class UndoState
     */
     @Override public String toString()
     {
-        return "text="+text+"\nfileName="+fileName+
+        return "delta="+delta+"\nconfiguration="+configuration+
+            "\nfileName="+fileName+
             "\nOperation on a library: "+libraryOperation+
             "\nlibraryDir="+libraryDir;
     }
@@ -47,6 +47,14 @@ then
         test_failed=1
 fi
 
+cd ../model
+./test_model.sh
+
+if test $? != 0
+then
+        test_failed=1
+fi
+
 cd ..
 
 
@@ -0,0 +1,357 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import fidocadj.circuit.model.DrawingModel;
+import fidocadj.circuit.controllers.ParserActions;
+import fidocadj.globals.Globals;
+import fidocadj.primitives.LibraryCache;
+import fidocadj.primitives.MacroDesc;
+
+/** CheckLibraries.java
+
+    Check that the libraries, which are indexed and whose descriptions are
+    read only when needed, give the same macros as when the whole library
+    was read at once, line by line. The libraries of the jar file are
+    checked, as well as random libraries containing invalid lines.
+
+    If a directory is given, the libraries are written in it and kept, and
+    the cache of the libraries is saved at the end. When the check is run
+    again with the same directory, the indexes are read from the cache.
+
+    <pre>
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2023 by Davide Bucci
+    </pre>
+*/
+public final class CheckLibraries
+{
+    private static final String[] LIBRARIES={"IHRAM.FCL", "IHRAM_en.FCL",
+        "FCDstdlib.fcl", "FCDstdlib_en.fcl", "PCB.fcl", "PCB_en.fcl",
+        "EY_Libraries.fcl", "elettrotecnica.fcl", "elettrotecnica_en.fcl"};
+    private static final int RANDOM_LIBRARIES=200;
+    // The modification time of the libraries, the same at each run so that
+    // the cache written by a previous run is used.
+    private static final long TIME=1672531200000L;
+
+    private static Path dir;
+    private static int errors;
+    private static int macros;
+
+    private CheckLibraries()
+    {
+        // Nothing to do.
+    }
+
+    /** Run the check.
+        @param args the seed of the random generator and the directory where
+            the libraries are kept (both optional).
+        @throws IOException if the libraries can not be written.
+    */
+    public static void main(String[] args)
+        throws IOException
+    {
+        long seed=args.length>0 ? Long.parseLong(args[0]) : 1;
+        Random r=new Random(seed);
+        boolean keep=args.length>1;
+        dir=keep ? Paths.get(args[1]) : Files.createTempDirectory("fidocadj");
+        Files.createDirectories(dir.resolve("modified"));
+        try {
+            for(String l : LIBRARIES) {
+                InputStream in=CheckLibraries.class.getResourceAsStream(
+                    "/lib/"+l);
+                if(in==null) {
+                    System.out.println("Library "+l+" not found.");
+                    ++errors;
+                    continue;
+                }
+                String prefix=l.substring(0, l.lastIndexOf('.'));
+                if(prefix.startsWith("FCDstdlib")) {
+                    prefix="";
+                }
+                check(l, in.readAllBytes(), prefix);
+            }
+            for(int i=0; i<RANDOM_LIBRARIES; ++i) {
+                check("random "+i,
+                    randomLibrary(r).getBytes(Globals.encoding), "rnd"+i);
+            }
+        } finally {
+            if(!keep) {
+                delete(dir.toFile());
+            }
+        }
+        if(keep) {
+            LibraryCache.save();
+        }
+        System.out.println(macros+" macros checked, "+errors+" errors.");
+        if(errors>0) {
+            System.exit(1);
+        }
+    }
+
+    /** Delete a directory and its content.
+        @param f the directory.
+        @throws IOException if something can not be deleted.
+    */
+    private static void delete(File f)
+        throws IOException
+    {
+        File[] content=f.listFiles();
+        if(content!=null) {
+            for(File c : content) {
+                delete(c);
+            }
+        }
+        Files.delete(f.toPath());
+    }
+
+    /** Create a library at random, with all the possible kinds of lines.
+        @param r the random generator.
+        @return the text of the library.
+    */
+    private static String randomLibrary(Random r)
+    {
+        String[] lines={"[FIDOLIB Library %]", "{Category %}",
+            "{ Category with spaces }", "[M% Macro %]", "[m% Macro %]",
+            "[M%]", "  [M% indented]  ", "LI 0 0 10 % 0", "RV 0 0 % 10 1",
+            "TY 0 0 4 3 0 0 0 * Text è %", "FCJ", "", "x", "   ",
+            "SA 0 0 0 ", "{Category not terminated %", "[M% not terminated"};
+        StringBuilder s=new StringBuilder();
+        int n=r.nextInt(60);
+        for(int i=0; i<n; ++i) {
+            String l;
+            if(i==0 && r.nextBoolean()) {
+                l=lines[0];
+            } else {
+                // The invalid lines are rare.
+                l=lines[r.nextInt(r.nextInt(20)==0 ? lines.length :
+                    lines.length-2)];
+            }
+            s.append(l.replace("%", String.valueOf(r.nextInt(10))));
+            s.append(r.nextInt(10)==0 ? "\r\n" : "\n");
+        }
+        return s.toString();
+    }
+
+    /** Load a library in the different ways and compare the macros with
+        those obtained by reading it line by line.
+        @param what the description of the library.
+        @param text the text of the library.
+        @param prefix the prefix of the keys.
+        @throws IOException if the temporary file can not be written.
+    */
+    private static void check(String what, byte[] text, String prefix)
+        throws IOException
+    {
+        Map<String, String> expected=new HashMap<String, String>();
+        boolean expectedError=false;
+        try {
+            readLineByLine(text, prefix, expected);
+        } catch (IOException e) {
+            expectedError=true;
+        }
+        macros+=expected.size();
+
+        DrawingModel dm=new DrawingModel();
+        boolean error=false;
+        try {
+            new ParserActions(dm).readLibraryBufferedReader(
+                new BufferedReader(new InputStreamReader(
+                    new ByteArrayInputStream(text), Globals.encoding)),
+                prefix);
+        } catch (IOException e) {
+            error=true;
+        }
+        compare(what+", reader", expected, expectedError, dm, error);
+
+        // The prefix of a library file is its name.
+        String name=(prefix.isEmpty()?"FCDstdlib":prefix)+".fcl";
+        File f=new File(dir.toFile(), name);
+        Files.write(f.toPath(), text);
+        f.setLastModified(TIME);
+        dm=new DrawingModel();
+        error=false;
+        try {
+            new ParserActions(dm).readLibraryFile(f.getPath());
+        } catch (IOException e) {
+            error=true;
+        }
+        compare(what+", file", expected, expectedError, dm, error);
+
+        dm=new DrawingModel();
+        new ParserActions(dm).loadLibraryInJar(f.toURI().toURL(), prefix);
+        compare(what+", URL", expected, false, dm, false);
+
+        // If the file is modified after it has been indexed, the macros are
+        // found again when their description is needed.
+        f=new File(dir.resolve("modified").toFile(), name);
+        Files.write(f.toPath(), text);
+        f.setLastModified(TIME);
+        dm=new DrawingModel();
+        error=false;
+        try {
+            new ParserActions(dm).readLibraryFile(f.getPath());
+        } catch (IOException e) {
+            error=true;
+        }
+        byte[] start="[NEW Moved]\nLI 0 0 1 1 0\n".getBytes(Globals.encoding);
+        byte[] changed=new byte[start.length+text.length];
+        System.arraycopy(start, 0, changed, 0, start.length);
+        System.arraycopy(text, 0, changed, start.length, text.length);
+        Files.write(f.toPath(), changed);
+        compare(what+", modified file", expected, expectedError, dm, error);
+    }
+
+    /** Compare the macros of a library with the expected ones.
+        @param what the description of the library.
+        @param expected the expected macros.
+        @param expectedError true if an error was expected.
+        @param dm the drawing containing the library.
+        @param error true if an error has been found.
+    */
+    private static void compare(String what, Map<String, String> expected,
+        boolean expectedError, DrawingModel dm, boolean error)
+    {
+        if(error!=expectedError) {
+            System.out.println(what+": the error has "+
+                (error?"":"not ")+"been found.");
+            ++errors;
+        }
+        Map<String, String> found=new HashMap<String, String>();
+        for(MacroDesc md : dm.getLibrary().values()) {
+            found.put(md.key, describe(md.key, md.name, md.category,
+                md.library, md.filename, md.getDescription()));
+        }
+        if(!found.keySet().equals(expected.keySet())) {
+            System.out.println(what+": the keys are not the same.");
+            ++errors;
+            return;
+        }
+        for(String k : expected.keySet()) {
+            if(!found.get(k).equals(expected.get(k))) {
+                System.out.println(what+": macro "+k+" is\n"+found.get(k)+
+                    "\ninstead of\n"+expected.get(k));
+                ++errors;
+            }
+        }
+    }
+
+    /** Describe a macro, so that two macros can be compared.
+        @return the description.
+    */
+    private static String describe(String key, String name, String category,
+        String library, String filename, String description)
+    {
+        return "key="+key+" name="+name+" category="+category+" library="+
+            library+" filename="+filename+" description="+description;
+    }
+
+    /** Read a library line by line, building the description of each macro,
+        as FidoCadJ did before the libraries were indexed.
+        @param text the text of the library.
+        @param prefix the prefix of the keys.
+        @param m the map receiving the description of each macro, given by
+            describe().
+        @throws IOException if the library is not valid.
+    */
+    private static void readLineByLine(byte[] text, String prefix,
+        Map<String, String> m)
+        throws IOException
+    {
+        BufferedReader bufRead=new BufferedReader(new InputStreamReader(
+            new ByteArrayInputStream(text), Globals.encoding));
+        String macroName="";
+        String longName="";
+        String categoryName="";
+        String libraryName="";
+        // For each macro: name, category, library, file name, description.
+        Map<String, String[]> lib=new LinkedHashMap<String, String[]>();
+        try {
+            String line;
+            while((line=bufRead.readLine())!=null) {
+                line=line.trim();
+                if(line.length()<=1) {
+                    continue;
+                }
+                int i;
+                if(line.charAt(0)=='{') {
+                    StringBuilder temp=new StringBuilder();
+                    for(i=1; i<line.length()&&line.charAt(i)!='}'; ++i) {
+                        temp.append(line.charAt(i));
+                    }
+                    categoryName=temp.toString().trim();
+                    if(i==line.length()) {
+                        throw new IOException(
+                            "Category non terminated with }.");
+                    }
+                    continue;
+                }
+                if(line.charAt(0)=='[') {
+                    StringBuilder temp=new StringBuilder();
+                    for(i=1; i<line.length() && line.charAt(i)!=' ' &&
+                        line.charAt(i)!=']'; ++i)
+                    {
+                        temp.append(line.charAt(i));
+                    }
+                    macroName=temp.toString().trim();
+                    int j;
+                    temp=new StringBuilder();
+                    for(j=i; j<line.length()&&line.charAt(j)!=']'; ++j) {
+                        temp.append(line.charAt(j));
+                    }
+                    longName=temp.toString();
+                    if(j==line.length()) {
+                        throw new IOException(
+                            "Macro name non terminated with ].");
+                    }
+                    if("FIDOLIB".equals(macroName)) {
+                        libraryName=longName.trim();
+                    } else {
+                        if(!"".equals(prefix)) {
+                            macroName=prefix+"."+macroName;
+                        }
+                        macroName=macroName.toLowerCase(
+                            Locale.forLanguageTag("en"));
+                        lib.put(macroName,
+                            new String[] {"", "", "", prefix, ""});
+                    }
+                    continue;
+                }
+                if(!"".equals(macroName)) {
+                    macroName=macroName.toLowerCase(
+                        Locale.forLanguageTag("en"));
+                    String[] d=lib.get(macroName);
+                    if(d==null) {
+                        return;
+                    }
+                    d[0]=longName;
+                    d[1]=categoryName;
+                    d[2]=libraryName;
+                    d[3]=prefix;
+                    d[4]=d[4]+"\n"+line;
+                }
+            }
+        } finally {
+            for(Map.Entry<String, String[]> e : lib.entrySet()) {
+                String[] d=e.getValue();
+                m.put(e.getKey(), describe(e.getKey(), d[0], d[1], d[2],
+                    d[3], d[4]));
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import fidocadj.circuit.model.DrawingModel;
+import fidocadj.circuit.controllers.ParserActions;
+import fidocadj.globals.Globals;
+import fidocadj.layers.StandardLayers;
+import fidocadj.primitives.GraphicPrimitive;
+import fidocadj.primitives.MacroDesc;
+
+/** CheckParsing.java
+
+    Check that a big drawing, which is parsed in parallel chunks, gives the
+    same primitives, configuration and error messages as when it is parsed
+    line by line.
+
+    <pre>
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2023 by Davide Bucci
+    </pre>
+*/
+public final class CheckParsing
+{
+    // Enough to be parsed in parallel (more than 1M characters).
+    private static final int PRIMITIVES=60000;
+
+    private static Map<String, MacroDesc> library;
+    private static int errors;
+
+    private CheckParsing()
+    {
+        // Nothing to do.
+    }
+
+    /** Run the check.
+        @param args the seed of the random generator (optional).
+        @throws IOException if the temporary file can not be written.
+    */
+    public static void main(String[] args)
+        throws IOException
+    {
+        // The drawing is parsed in parallel only if several threads are
+        // available. This must be set before the pool is used.
+        System.setProperty(
+            "java.util.concurrent.ForkJoinPool.common.parallelism", "4");
+
+        long seed=args.length>0 ? Long.parseLong(args[0]) : 1;
+        RandomDrawing rd=new RandomDrawing(seed, 5000);
+        library=RandomDrawing.createModel().getLibrary();
+        String text=create(rd);
+
+        check("LF", text);
+        check("CR LF", text.replace("\n", "\r\n"));
+        System.out.println(text.length()+" characters parsed, "+errors+
+            " errors.");
+        if(errors>0) {
+            System.exit(1);
+        }
+    }
+
+    /** Create a drawing containing also configuration commands, invalid
+        lines and empty lines.
+        @param rd the generator of the primitives.
+        @return the text of the drawing.
+    */
+    private static String create(RandomDrawing rd)
+    {
+        Random r=rd.getRandom();
+        StringBuilder s=new StringBuilder("[FIDOCAD]\n");
+        for(int i=0; i<PRIMITIVES; ++i) {
+            s.append(rd.primitive(i));
+            switch(r.nextInt(500)) {
+                case 0:
+                    s.append("FJC A "+(0.1+r.nextInt(10)/10.0)+"\n");
+                    break;
+                case 1:
+                    s.append("FJC L "+r.nextInt(16)+" "+r.nextInt()+
+                        " 0.5\nFJC N 3 Layer "+i+"\n");
+                    break;
+                case 2:
+                    s.append("LI 10 x 20 30 0\n");
+                    break;
+                case 3:
+                    s.append("XY 10 20\n");
+                    break;
+                case 4:
+                    s.append("\n\n");
+                    break;
+                case 5:
+                    // A modifier without a primitive before it.
+                    s.append("SA 1 1 0\nFCJ\nTY 1 1 4 3 0 0 0 * A\n");
+                    break;
+                default:
+                    break;
+            }
+        }
+        return s.toString();
+    }
+
+    /** Parse the drawing line by line, then in parallel from a string and
+        from a file, and compare the results.
+        @param what the description of the check.
+        @param text the drawing.
+        @throws IOException if the temporary file can not be written.
+    */
+    private static void check(String what, String text)
+        throws IOException
+    {
+        Result expected=new Result();
+        expected.parse(new Parsing() {
+            public void parse(ParserActions pa) throws IOException
+            {
+                pa.parseReader(new StringReader(text));
+            }
+        });
+        compare(what+", string", expected, new Parsing() {
+            public void parse(ParserActions pa)
+            {
+                pa.parseString(new StringBuffer(text));
+            }
+        });
+
+        Path f=Files.createTempFile("fidocadj", ".fcd");
+        try {
+            Files.write(f, text.getBytes(StandardCharsets.UTF_8));
+            compare(what+", file", expected, new Parsing() {
+                public void parse(ParserActions pa) throws IOException
+                {
+                    try (FileChannel ch=FileChannel.open(f)) {
+                        pa.parseChannel(ch);
+                    }
+                }
+            });
+        } finally {
+            Files.delete(f);
+        }
+
+        // The primitives added to an existing drawing are selected.
+        Result expectedAdded=new Result();
+        expectedAdded.parse(new Parsing() {
+            public void parse(ParserActions pa) throws IOException
+            {
+                pa.parseString(new StringBuffer("LI 0 0 10 10 0\n"));
+                pa.addReader(new StringReader(text), true);
+            }
+        });
+        compare(what+", added", expectedAdded, new Parsing() {
+            public void parse(ParserActions pa)
+            {
+                pa.parseString(new StringBuffer("LI 0 0 10 10 0\n"));
+                pa.addString(new StringBuffer(text), true);
+            }
+        });
+    }
+
+    /** Parse a drawing and compare the result with the expected one.
+        @param what the description of the check.
+        @param expected the expected result.
+        @param p the parsing.
+        @throws IOException if the drawing can not be read.
+    */
+    private static void compare(String what, Result expected, Parsing p)
+        throws IOException
+    {
+        Result r=new Result();
+        r.parse(p);
+        if(!r.text.equals(expected.text)) {
+            System.out.println(what+": the drawing is not the same.");
+            ++errors;
+        }
+        if(!r.layers.equals(expected.layers)) {
+            System.out.println(what+": the layers are not the same.");
+            ++errors;
+        }
+        if(!r.selected.equals(expected.selected)) {
+            System.out.println(what+": the selection is not the same.");
+            ++errors;
+        }
+        if(!r.messages.equals(expected.messages)) {
+            System.out.println(what+": the messages are not the same.");
+            ++errors;
+        }
+    }
+
+    /** A way to parse the drawing.
+    */
+    private interface Parsing
+    {
+        /** Parse the drawing.
+            @param pa the parser.
+            @throws IOException if the drawing can not be read.
+        */
+        void parse(ParserActions pa) throws IOException;
+    }
+
+    /** The result of the parsing of a drawing.
+    */
+    private static final class Result
+    {
+        String text;
+        String messages;
+        // Number of primitives in each layer.
+        List<Integer> layers=new ArrayList<Integer>();
+        // Positions of the selected primitives.
+        List<Integer> selected=new ArrayList<Integer>();
+
+        /** Parse a drawing in a new model, starting from the default
+            configuration, and keep the result.
+            @param p the parsing.
+            @throws IOException if the drawing can not be read.
+        */
+        void parse(Parsing p) throws IOException
+        {
+            Globals.lineWidth=Globals.lineWidthDefault;
+            Globals.lineWidthCircles=Globals.lineWidthCirclesDefault;
+            Globals.diameterConnection=Globals.diameterConnectionDefault;
+            DrawingModel dm=new DrawingModel();
+            dm.setLayers(StandardLayers.createStandardLayers());
+            dm.setLibrary(library);
+            ParserActions pa=new ParserActions(dm);
+
+            // The error messages are written on the standard output.
+            PrintStream out=System.out;
+            ByteArrayOutputStream b=new ByteArrayOutputStream();
+            System.setOut(new PrintStream(b, true, "UTF-8"));
+            try {
+                p.parse(pa);
+            } finally {
+                System.setOut(out);
+            }
+            messages=b.toString("UTF-8");
+            text=pa.getText(true).toString();
+            for(int l=0; l<16; ++l) {
+                layers.add(Integer.valueOf(dm.getLayerPrimitives(l).size()));
+            }
+            List<GraphicPrimitive> v=dm.getPrimitiveVector();
+            for(int i=0; i<v.size(); ++i) {
+                if(v.get(i).isSelected()) {
+                    selected.add(Integer.valueOf(i));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.util.*;
+
+import fidocadj.circuit.model.DrawingModel;
+import fidocadj.circuit.controllers.EditorActions;
+import fidocadj.circuit.controllers.ParserActions;
+import fidocadj.circuit.controllers.SelectionActions;
+import fidocadj.circuit.controllers.UndoActions;
+import fidocadj.geom.MapCoordinates;
+import fidocadj.graphic.PointG;
+import fidocadj.layers.LayerDesc;
+import fidocadj.primitives.GraphicPrimitive;
+import fidocadj.primitives.PrimitiveMacro;
+
+/** CheckPicking.java
+
+    Check that the selection of a primitive with the mouse, which employs
+    the spatial index of the drawing, chooses the same primitive as a scan
+    of all the primitives. The drawing is modified between the checks
+    (primitives added, deleted, moved, rotated, mirrored, moved to another
+    layer) so that the updates of the index are checked as well.
+
+    <pre>
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2023 by Davide Bucci
+    </pre>
+*/
+public final class CheckPicking
+{
+    private static final int SIZE=2000;
+    private static final int STEPS=42;
+    private static final int CLICKS=150;
+
+    private CheckPicking()
+    {
+        // Nothing to do.
+    }
+
+    /** Run the check.
+        @param args the seed of the random generator (optional).
+    */
+    public static void main(String[] args)
+    {
+        long seed=args.length>0 ? Long.parseLong(args[0]) : 1;
+        RandomDrawing rd=new RandomDrawing(seed, SIZE);
+        Random r=rd.getRandom();
+        DrawingModel dm=RandomDrawing.createModel();
+        ParserActions pa=new ParserActions(dm);
+        pa.parseString(new StringBuffer(rd.create(1000)));
+        SelectionActions sa=new SelectionActions(dm);
+        EditorActions ea=new EditorActions(dm, sa, new UndoActions(pa));
+        MapCoordinates cs=new MapCoordinates();
+
+        int errors=0;
+        int found=0;
+        for(int step=0; step<STEPS; ++step) {
+            double z=new double[] {0.2, 1.0, 3.0}[step%3];
+            cs.setMagnitudes(z, z);
+            for(int i=0; i<CLICKS; ++i) {
+                PointG p=clickPosition(dm, r);
+                int x=(int)Math.round(p.x*z);
+                int y=(int)Math.round(p.y*z);
+                GraphicPrimitive expected=scan(dm, cs, x, y,
+                    ea.getSelectionTolerance());
+                ea.handleSelection(cs, x, y, false);
+                GraphicPrimitive g=sa.getFirstSelectedPrimitive();
+                if(g!=expected) {
+                    System.out.println("Step "+step+", click at "+
+                        cs.unmapXnosnap(x)+", "+cs.unmapYnosnap(y)+
+                        ": selected "+describe(g)+" instead of "+
+                        describe(expected));
+                    ++errors;
+                }
+                if(expected!=null) {
+                    ++found;
+                }
+            }
+            modify(dm, pa, sa, ea, rd, r, step);
+        }
+        System.out.println(found+" primitives picked in "+STEPS*CLICKS+
+            " clicks, "+errors+" errors.");
+        if(errors>0) {
+            System.exit(1);
+        }
+    }
+
+    /** Choose the position of a click, most of the times close to a
+        primitive.
+        @param dm the drawing.
+        @param r the random generator.
+        @return the position in logical units.
+    */
+    private static PointG clickPosition(DrawingModel dm, Random r)
+    {
+        List<GraphicPrimitive> v=dm.getPrimitiveVector();
+        if(v.isEmpty() || r.nextInt(4)==0) {
+            return new PointG(r.nextInt(SIZE), r.nextInt(SIZE));
+        }
+        PointG p=v.get(r.nextInt(v.size())).getFirstPoint();
+        return new PointG(p.x+r.nextInt(31)-15, p.y+r.nextInt(31)-15);
+    }
+
+    /** Find the primitive to be selected with a click, by examining all the
+        primitives of the drawing, as EditorActions did before the spatial
+        index was introduced.
+        @param dm the drawing.
+        @param cs the coordinate mapping.
+        @param x the x coordinate of the click (screen).
+        @param y the y coordinate of the click (screen).
+        @param selTolerance the selection tolerance (screen).
+        @return the primitive, or null if nothing should be selected.
+    */
+    private static GraphicPrimitive scan(DrawingModel dm, MapCoordinates cs,
+        int x, int y, int selTolerance)
+    {
+        int toll=cs.unmapXnosnap(x+selTolerance)-cs.unmapXnosnap(x);
+        if (toll<2) { toll=2; }
+        int px=cs.unmapXnosnap(x);
+        int py=cs.unmapYnosnap(y);
+        int mindistance=Integer.MAX_VALUE;
+        GraphicPrimitive gpsel=null;
+        List<LayerDesc> layerV=dm.getLayers();
+        for(GraphicPrimitive g : dm.getPrimitiveVector()) {
+            if(layerV.get(g.getLayer()).isVisible() ||
+                g instanceof PrimitiveMacro)
+            {
+                int distance=g.getDistanceToPoint(px, py);
+                if(distance<=mindistance) {
+                    gpsel=g;
+                    mindistance=distance;
+                }
+            }
+        }
+        return mindistance<toll ? gpsel : null;
+    }
+
+    /** Modify the drawing, as the editor would do.
+        @param dm the drawing.
+        @param pa the parser of the drawing.
+        @param sa the selection controller.
+        @param ea the editor controller.
+        @param rd the generator of the primitives.
+        @param r the random generator.
+        @param step the number of the step, used to choose the change.
+    */
+    private static void modify(DrawingModel dm, ParserActions pa,
+        SelectionActions sa, EditorActions ea, RandomDrawing rd, Random r,
+        int step)
+    {
+        sa.setSelectionAll(false);
+        for(GraphicPrimitive g : dm.getPrimitiveVector()) {
+            if(r.nextInt(20)==0) {
+                g.setSelected(true);
+            }
+        }
+        switch(step%7) {
+            case 0:
+                ea.moveAllSelected(r.nextInt(41)-20, r.nextInt(41)-20);
+                break;
+            case 1:
+                ea.rotateAllSelected();
+                break;
+            case 2:
+                ea.mirrorAllSelected();
+                break;
+            case 3:
+                ea.deleteAllSelected(false);
+                break;
+            case 4:
+                ea.setLayerForSelectedPrimitives(r.nextInt(16));
+                break;
+            case 5:
+                StringBuilder s=new StringBuilder();
+                for(int i=0; i<100; ++i) {
+                    s.append(rd.primitive(i));
+                }
+                pa.addString(new StringBuffer(s), true);
+                break;
+            default:
+                LayerDesc l=dm.getLayers().get(r.nextInt(4));
+                l.setVisible(!l.isVisible());
+                break;
+        }
+    }
+
+    /** Describe a primitive, for the error messages.
+        @param g the primitive, or null.
+        @return the description.
+    */
+    private static String describe(GraphicPrimitive g)
+    {
+        return g==null ? "nothing" : g.toString(true).trim();
+    }
+}
@@ -0,0 +1,266 @@
+import java.util.*;
+
+import fidocadj.circuit.model.DrawingModel;
+import fidocadj.circuit.controllers.EditorActions;
+import fidocadj.circuit.controllers.ParserActions;
+import fidocadj.circuit.controllers.SelectionActions;
+import fidocadj.circuit.controllers.UndoActions;
+import fidocadj.dialogs.controls.ParameterDescription;
+import fidocadj.primitives.GraphicPrimitive;
+import fidocadj.primitives.PrimitiveMacro;
+
+/** CheckUndo.java
+
+    Check the undo and redo operations. A random sequence of edits is done
+    on a drawing and the text of the drawing is kept after each of them.
+    All the edits are then undone and redone, and the drawing must be equal
+    to the text kept for each state.
+
+    <pre>
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2023 by Davide Bucci
+    </pre>
+*/
+public final class CheckUndo
+{
+    // Less than the number of states kept by UndoActions.
+    private static final int STEPS=90;
+
+    private final DrawingModel dm;
+    private final ParserActions pa;
+    private final SelectionActions sa;
+    private final UndoActions ua;
+    private final EditorActions ea;
+    // Editor which does not save the undo state after each operation.
+    private final EditorActions eaNoUndo;
+    private final RandomDrawing rd;
+    private final Random r;
+
+    // The text of the drawing for each state, the first one is the initial
+    // drawing.
+    private final List<String> states=new ArrayList<String>();
+    private int errors;
+
+    /** Constructor.
+        @param seed the seed of the random generator.
+    */
+    private CheckUndo(long seed)
+    {
+        rd=new RandomDrawing(seed, 1000);
+        r=rd.getRandom();
+        dm=RandomDrawing.createModel();
+        pa=new ParserActions(dm);
+        sa=new SelectionActions(dm);
+        ua=new UndoActions(pa);
+        ea=new EditorActions(dm, sa, ua);
+        eaNoUndo=new EditorActions(dm, sa, null);
+    }
+
+    /** Run the check.
+        @param args the seed of the random generator (optional).
+    */
+    public static void main(String[] args)
+    {
+        long seed=args.length>0 ? Long.parseLong(args[0]) : 1;
+        CheckUndo c=new CheckUndo(seed);
+        c.run();
+        System.out.println(c.states.size()-1+" edits undone and redone, "+
+            c.errors+" errors.");
+        if(c.errors>0) {
+            System.exit(1);
+        }
+    }
+
+    /** Do the edits, then undo and redo them.
+    */
+    private void run()
+    {
+        pa.parseString(new StringBuffer(rd.create(2000)));
+        ua.saveUndoState();
+        states.add(text());
+        for(int step=0; step<STEPS; ++step) {
+            if(edit(step)) {
+                states.add(text());
+            }
+        }
+
+        // Undo everything, then redo everything.
+        int nStates=states.size()-1;
+        for(int i=states.size()-2; i>=0; --i) {
+            ua.undo();
+            compare("Undo to state "+i, states.get(i));
+        }
+        for(int i=1; i<states.size(); ++i) {
+            ua.redo();
+            compare("Redo to state "+i, states.get(i));
+        }
+
+        // Undo half of the edits, then edit again: the states which have
+        // been undone are lost and the new one is undone and redone.
+        int n=nStates/2;
+        for(int i=0; i<n; ++i) {
+            ua.undo();
+        }
+        compare("Undo to state "+(nStates-n), states.get(nStates-n));
+        while(!edit(0)) {
+            // Try again.
+        }
+        String last=text();
+        if(ua.canRedo()) {
+            System.out.println("Redo possible after a new edit");
+            ++errors;
+        }
+        ua.undo();
+        compare("Undo of the new edit", states.get(nStates-n));
+        ua.redo();
+        compare("Redo of the new edit", last);
+    }
+
+    /** Do an edit and save the undo state, as the editor would do.
+        @param step the number of the edit.
+        @return false if nothing has been done, so that the state has not
+            been saved.
+    */
+    private boolean edit(int step)
+    {
+        sa.setSelectionAll(false);
+        List<GraphicPrimitive> v=dm.getPrimitiveVector();
+        int nSel=1+r.nextInt(r.nextBoolean() ? 3 : 40);
+        for(int i=0; i<nSel && !v.isEmpty(); ++i) {
+            v.get(r.nextInt(v.size())).setSelected(true);
+        }
+        switch(r.nextInt(11)) {
+            case 0:
+                ea.moveAllSelected(r.nextInt(21)-10, r.nextInt(21)-10);
+                break;
+            case 1:
+                ea.rotateAllSelected();
+                break;
+            case 2:
+                ea.mirrorAllSelected();
+                break;
+            case 3:
+                ea.deleteAllSelected(true);
+                break;
+            case 4:
+                // Nothing is done if only macros are selected.
+                return ea.setLayerForSelectedPrimitives(r.nextInt(16));
+            case 5:
+                StringBuilder s=new StringBuilder();
+                int n=1+r.nextInt(30);
+                for(int i=0; i<n; ++i) {
+                    s.append(rd.primitive(step*100+i));
+                }
+                pa.addString(new StringBuffer(s), true);
+                ua.saveUndoState();
+                break;
+            case 6:
+                changeProperties();
+                break;
+            case 7:
+                // Insert copies of primitives at random positions.
+                for(GraphicPrimitive g : copySelected()) {
+                    g.movePrimitive(5, 5);
+                    dm.insertPrimitive(g, r.nextInt(v.size()+1));
+                }
+                ua.saveUndoState();
+                break;
+            case 8:
+                // Change the layer of a primitive and sort them again.
+                for(GraphicPrimitive g : sa.getSelectedPrimitives()) {
+                    if(!(g instanceof PrimitiveMacro)) {
+                        g.setLayer(r.nextInt(16));
+                        dm.updatePrimitive(g);
+                    }
+                }
+                dm.sortPrimitiveLayers();
+                ua.saveUndoState();
+                break;
+            case 9:
+                // Several edits before the state is saved.
+                eaNoUndo.moveAllSelected(1, 2);
+                eaNoUndo.rotateAllSelected();
+                eaNoUndo.deleteAllSelected(false);
+                pa.addString(new StringBuffer(rd.primitive(step)), false);
+                ua.saveUndoState();
+                break;
+            default:
+                dm.setTextFont(r.nextBoolean()?"Courier New":"Arial",
+                    3+r.nextInt(3), ua);
+                ua.saveUndoState();
+                break;
+        }
+        return true;
+    }
+
+    /** Change the parameters of the selected primitives, as the dialog
+        of the properties does: the booleans are toggled and something is
+        added to the texts.
+    */
+    private void changeProperties()
+    {
+        for(GraphicPrimitive g : sa.getSelectedPrimitives()) {
+            List<ParameterDescription> v=g.getControls();
+            for(ParameterDescription pd : v) {
+                if(pd.parameter instanceof Boolean) {
+                    pd.parameter=Boolean.valueOf(!(Boolean)pd.parameter);
+                } else if(pd.parameter instanceof String) {
+                    pd.parameter=pd.parameter+"x";
+                }
+            }
+            g.setControls(v);
+            dm.updatePrimitive(g);
+        }
+        dm.sortPrimitiveLayers();
+        ua.saveUndoState();
+    }
+
+    /** Copy the selected primitives, through their text.
+        @return the copies.
+    */
+    private List<GraphicPrimitive> copySelected()
+    {
+        DrawingModel t=new DrawingModel();
+        t.setLibrary(dm.getLibrary());
+        t.setLayers(dm.getLayers());
+        new ParserActions(t).addString(
+            sa.getSelectedString(true, pa), false);
+        return new ArrayList<GraphicPrimitive>(t.getPrimitiveVector());
+    }
+
+    /** Get the text of the drawing.
+        @return the text.
+    */
+    private String text()
+    {
+        return pa.getText(true).toString();
+    }
+
+    /** Compare the drawing with the expected text.
+        @param what the description of the operation.
+        @param expected the expected text.
+    */
+    private void compare(String what, String expected)
+    {
+        String t=text();
+        if(!t.equals(expected)) {
+            System.out.println(what+": the drawing is not the expected one.");
+            ++errors;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import java.util.*;
+
+import fidocadj.FidoMain;
+import fidocadj.circuit.model.DrawingModel;
+import fidocadj.globals.AccessResources;
+import fidocadj.globals.Globals;
+import fidocadj.layers.StandardLayers;
+
+/** RandomDrawing.java
+
+    Create drawings containing all the kinds of primitives, placed at
+    random, for the checks of the drawing model.
+
+    <pre>
+    This file is part of FidoCadJ.
+
+    FidoCadJ is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FidoCadJ is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FidoCadJ. If not,
+    @see <a href=http://www.gnu.org/licenses/>http://www.gnu.org/licenses/</a>.
+
+    Copyright 2023 by Davide Bucci
+    </pre>
+*/
+public final class RandomDrawing
+{
+    // Some macros of the standard libraries.
+    private static final String[] MACROS={"000", "010", "080", "220",
+        "390", "pcb.cc25", "pcb.cpbx252", "ihram.ma09", "ihram.ma20"};
+
+    private final Random r;
+    private final int size;
+
+    /** Constructor.
+        @param seed the seed of the random generator, so that the drawings
+            can be created again.
+        @param size the coordinates are between 0 and this value.
+    */
+    public RandomDrawing(long seed, int size)
+    {
+        r=new Random(seed);
+        this.size=size;
+    }
+
+    /** Create an empty drawing model with the standard layers and the
+        standard libraries. The English messages are loaded, since some
+        primitives need them to describe their parameters.
+        @return the drawing model.
+    */
+    public static DrawingModel createModel()
+    {
+        if(Globals.messages==null) {
+            Globals.messages=new AccessResources(ResourceBundle.getBundle(
+                "MessagesBundle", Locale.of("en", "US")));
+        }
+        DrawingModel dm=new DrawingModel();
+        dm.setLayers(StandardLayers.createStandardLayers());
+        FidoMain.readLibrariesProbeDirectory(dm, true, null);
+        return dm;
+    }
+
+    /** Get the random generator used to create the drawings.
+        @return the random generator.
+    */
+    public Random getRandom()
+    {
+        return r;
+    }
+
+    /** Create the text of a drawing.
+        @param n the number of primitives.
+        @return the text, in the FidoCadJ format.
+    */
+    public String create(int n)
+    {
+        StringBuilder s=new StringBuilder("[FIDOCAD]\n");
+        for(int i=0; i<n; ++i) {
+            s.append(primitive(i));
+        }
+        return s.toString();
+    }
+
+    /** Create the text of a primitive, with its FCJ and TY lines if needed.
+        @param i a number used to get different texts.
+        @return the text, ending with a new line.
+    */
+    public String primitive(int i)
+    {
+        int x=coord();
+        int y=coord();
+        int l=r.nextInt(r.nextInt(4)==0 ? 16 : 4);
+        switch(r.nextInt(13)) {
+            case 0:
+                return "LI "+x+" "+y+" "+near(x)+" "+near(y)+" "+l+"\n"+
+                    fcj(true);
+            case 1:
+                return "BE "+x+" "+y+" "+near(x)+" "+near(y)+" "+
+                    near(x)+" "+near(y)+" "+near(x)+" "+near(y)+" "+l+
+                    "\n"+fcj(true);
+            case 2:
+                return (r.nextBoolean()?"RV ":"RP ")+x+" "+y+" "+
+                    near(x)+" "+near(y)+" "+l+"\n"+fcj(false);
+            case 3:
+                return (r.nextBoolean()?"EV ":"EP ")+x+" "+y+" "+
+                    near(x)+" "+near(y)+" "+l+"\n"+fcj(false);
+            case 4:
+                return "PL "+x+" "+y+" "+near(x)+" "+near(y)+" "+
+                    (1+r.nextInt(10))+" "+l+"\n";
+            case 5:
+                return "PA "+x+" "+y+" "+(2+r.nextInt(20))+" "+
+                    (2+r.nextInt(20))+" "+(1+r.nextInt(4))+" "+
+                    r.nextInt(3)+" "+l+"\n";
+            case 6:
+                return "SA "+x+" "+y+" "+l+"\n";
+            case 7:
+                return (r.nextBoolean()?"PV ":"PP ")+x+" "+y+" "+
+                    near(x)+" "+near(y)+" "+near(x)+" "+near(y)+" "+l+
+                    "\n"+fcj(false);
+            case 8:
+                return (r.nextBoolean()?"CV ":"CP ")+r.nextInt(2)+" "+
+                    x+" "+y+" "+near(x)+" "+near(y)+" "+near(x)+" "+
+                    near(y)+" "+l+"\n"+fcj(true);
+            case 9:
+                return "TY "+x+" "+y+" "+(2+r.nextInt(8))+" "+
+                    (2+r.nextInt(6))+" "+(r.nextInt(4)*90)+" "+
+                    r.nextInt(8)+" "+l+" * Text "+i+"\n";
+            default:
+                String m="MC "+x+" "+y+" "+r.nextInt(4)+" "+r.nextInt(2)+
+                    " "+MACROS[r.nextInt(MACROS.length)]+"\n";
+                if(r.nextBoolean()) {
+                    m+="FCJ\nTY "+x+" "+(y+5)+" 4 3 0 0 0 * R"+i+"\n"+
+                        "TY "+x+" "+(y+10)+" 4 3 0 0 0 * "+r.nextInt(100)+
+                        "k\n";
+                }
+                return m;
+        }
+    }
+
+    /** Get a random coordinate.
+        @return the coordinate.
+    */
+    private int coord()
+    {
+        return r.nextInt(size);
+    }
+
+    /** Get a random coordinate close to the given one.
+        @param c the coordinate.
+        @return the new coordinate.
+    */
+    private int near(int c)
+    {
+        return c+r.nextInt(61)-30;
+    }
+
+    /** Get, from time to time, an FCJ line giving arrows and dashing to the
+        previous primitive.
+        @param arrows true if the primitive may have arrows.
+        @return the FCJ line, or an empty string.
+    */
+    private String fcj(boolean arrows)
+    {
+        if(r.nextInt(3)!=0) {
+            return "";
+        }
+        if(arrows) {
+            return "FCJ "+r.nextInt(2)+" "+r.nextInt(2)+" "+r.nextInt(4)+
+                " "+(1+r.nextInt(3))+" "+r.nextInt(5)+" 0\n";
+        }
+        return "FCJ "+r.nextInt(5)+" 0\n";
+    }
+}
@@ -0,0 +1,57 @@
+#!/bin/sh
+
+# The checks are small Java programs, compiled against the jar file. They
+# create random drawings and compare the results of the optimized parts of
+# the drawing model with those of a plain implementation.
+
+echo "Test of the drawing model"
+echo "-------------------------"
+echo ""
+
+CP=../../jar/fidocadj.jar:classes
+test_failed=0
+
+# The cache of the libraries is kept in a temporary directory, not in the
+# configuration of the user.
+XDG_CONFIG_HOME=`pwd`/libraries/config
+export XDG_CONFIG_HOME
+
+rm -rf classes libraries
+mkdir classes
+if ! javac -encoding UTF-8 -cp ../../jar/fidocadj.jar -d classes *.java
+then
+    printf "\033[1mTest failed: the checks could not be compiled\033[0m\n"
+    exit 1
+fi
+
+# Run a check: the first argument is its description, the second one the
+# name of the class, the others are given to the check. The output is kept
+# in case of failure.
+check()
+{
+    printf "  %-30s" "$1"
+    name=$2
+    shift 2
+    if java -Djava.awt.headless=true -cp $CP $name "$@" >output_$name.txt 2>&1
+    then
+        echo "OK"
+        rm output_$name.txt
+    else
+        printf "\033[1mfailed, see output_$name.txt\033[0m\n"
+        test_failed=1
+    fi
+}
+
+check "Picking (spatial index):" CheckPicking
+check "Undo and redo:" CheckUndo
+check "Parallel parsing:" CheckParsing
+check "Library index:" CheckLibraries
+
+# The cache of the libraries is written by the first run and read by the
+# second one.
+check "Library cache, writing:" CheckLibraries 1 libraries/lib
+check "Library cache, reading:" CheckLibraries 1 libraries/lib
+
+rm -rf classes libraries
+echo ""
+exit $test_failed